@@ -0,0 +1,99 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+/**
+ * Conversions between block numbers counted from the start of a transfer,
+ * which go past 65535, and the 16-bit block numbers of DATA and ACK packets,
+ * which roll over to 0 or 1 after 65535. Shared by the Server side (Client)
+ * and TFTPClient, having no constructors.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public final class BlockNumber {
+
+    private BlockNumber() {
+    }
+
+    /**
+     * Returns the block number on the wire of a block number counted from
+     * the start of the transfer. After 65535, the block number on the wire
+     * rolls over to 'rollover', which is 0 or 1.
+     *
+     * @param block block number counted from the start of the transfer.
+     * @param rollover block number following 65535, 0 or 1.
+     * @return block number from 0 to 65535 to be sent.
+     * */
+    protected static int toWire(long block, int rollover) {
+        if (block <= Constants.MAX_BLOCK) {
+            return (int) block;
+        }
+        long cycle = Constants.MAX_BLOCK + 1 - rollover; // 65536 or 65535
+        return (int) ((block - rollover) % cycle + rollover);
+    }
+
+    /**
+     * Returns the block number counted from the start of the transfer of a
+     * block number received on the wire, being the closest one to the
+     * reference block number that has that block number on the wire.
+     *
+     * @param wireBlock block number from 0 to 65535 received.
+     * @param reference block number counted from the start of the transfer
+     *                  the received one is expected to be near to.
+     * @param rollover block number following 65535, 0 or 1.
+     * @return block number counted from the start of the transfer.
+     * */
+    protected static long fromWire(int wireBlock, long reference,
+                                   int rollover) {
+        if (reference < 0 || (wireBlock == 0 && rollover == 1)) {
+            return wireBlock; // block 0 only precedes the first rollover
+        }
+        long cycle = Constants.MAX_BLOCK + 1 - rollover; // 65536 or 65535
+        long distance = Math.floorMod((wireBlock - rollover)
+                - (reference - rollover), cycle);
+        if (distance >= cycle / 2) {
+            distance -= cycle; // behind the reference
+        }
+        return reference + distance;
+    }
+
+    /**
+     * Returns the block number stored in the third and fourth bytes of a
+     * DATA or ACK packet, most significant byte first (RFC 1350).
+     *
+     * @param packetContents raw content of a DATA or ACK packet.
+     * @return block number from 0 to 65535.
+     * */
+    protected static int read(byte[] packetContents) {
+        return (packetContents[3] & 0xFF) + 256 * (packetContents[2] & 0xFF);
+    }
+
+    /**
+     * Stores a block number in the third and fourth bytes of a DATA or ACK
+     * packet, most significant byte first (RFC 1350).
+     *
+     * @param packetContents raw content of a DATA or ACK packet.
+     * @param wireBlock block number from 0 to 65535.
+     * */
+    protected static void write(byte[] packetContents, int wireBlock) {
+        packetContents[2] = (byte) (wireBlock >>> 8);
+        packetContents[3] = (byte) wireBlock;
+    }
+
+    // END OF FILE
+}
@@ -16,9 +16,15 @@
  * */
 package transport;
 
-import java.io.*;
+import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * This class keeps and processes the states of each Client in process.
@@ -28,15 +34,22 @@ import java.util.Map;
  * @version 1.0 %G%, %U%.
  * */
 public class Client {
-    /** RRQ: Block number currently in attempt to be sent to Client in a read
-     *  request. Increases by one unit for each successful acknowledgement. */
-    private int blockNumber = -1;
-    /** RRQ: Expected acknowledgement number (block number of received ACK
-     * packet) to be received in a read request. Must always be equal to
-     * 'blockNumber'. */
-    private int expectedAck = -1;
-    /** WRQ: Expected block number to be received in a write request. */
-    private int blockExpected = -1;
+    /** Sessions of the Server, holding the transfer state of this Client:
+     * RRQ: block number currently in attempt to be sent, which increases by
+     * one unit for each successful acknowledgement; WRQ: expected block
+     * number to be received. Both count past 65535; the block number on the
+     * wire rolls over. */
+    private final SessionTable sessions;
+    /** Slot of this Client in 'sessions', -1 for a throw-away Client. */
+    private final int slot;
+    /** Block number on the wire after 65535, 0 or 1. */
+    private final int rollover;
+    /** Negotiated windowsize (RFC 7440), 1 for stop-and-wait. */
+    private final int windowSize;
+    /** Negotiated block size (RFC 2348), DEFAULT_DATA_SIZE if none. */
+    private final int blockSize;
+    /** Congestion control of a windowed RRQ, null if stop-and-wait. */
+    private final CongestionControl congestion;
     /** Port number of this Client. */
     private final int clientPort;
 
@@ -44,20 +57,136 @@ public class Client {
     private final InetAddress clientAddr;
     /** Either a read or write request that this Client is prompting. */
     private final Opcode requestOpcode;
-    /** RRQ: BufferedReader to read and send char buffers from requested file
-     * in a read request. */
-    private BufferedReader rdr;
-    /** WRQ: Whether the final DATA packet has been successfully received. */
-    private boolean writeRequestCompleted = false;
+    /** RRQ: Read handle of requested file, opened at the first block so the
+     * whole transfer sees the same file, and read at the offset of the
+     * block in attempt. */
+    private Storage.ReadHandle file;
+    /** Options (RFC 2347) in request, keyed by lower case option name. */
+    private final Map<String, String> options;
+    /** Options to be acknowledged in an OACK: RRQ before DATA 1 is sent,
+     * WRQ in place of ACK 0. */
+    private Map<String, String> acceptedOptions = Collections.emptyMap();
+    /** RRQ: System.nanoTime() when startRead() sent the OACK or DATA 1,
+     * whose ACK the first turn waits for without sending it again. 0 if
+     * not sent or already waited for. */
+    private long primedAt;
+    /** Transfer of this Client as a step function, driven by the
+     * EVENT_LOOP engine; null under the other engines. */
+    private Transfer transfer;
+    /** RRQ: next block of the window in attempt still to be sent, left by
+     * sendWindow() for a later turn when a rate limit or the pacing of the
+     * window held it back; 0 if no window is part sent. */
+    private long windowNext;
+    /** RRQ: System.nanoTime() when 'windowNext' is due under the pacing of
+     * the window in attempt. */
+    private long windowDue;
+    /** RRQ: whether the ACK of the window in attempt can be timed, as it
+     * was decided before its first block was sent. */
+    private boolean windowTimed;
+    /** Sends the packets and does the file operations of the Transfer of
+     * this Client. */
+    private final Transfer.Output output = new Transfer.Output() {
+        @Override
+        public void sendData(long block, boolean retransmit)
+                throws IOException {
+            byte[] readBuf = sessions.attach(slot, blockSize + 4);
+            try {
+                int readCount = readBlock(readBuf, block);
+                udtSend(produceDataPacket(readBuf, readCount,
+                        toWireBlock(block)), clientPort, clientAddr,
+                        retransmit);
+            } finally {
+                detach();
+            }
+        }
+
+        @Override
+        public long delay(long block) {
+            return Client.this.delay(block);
+        }
+
+        @Override
+        public void sendAck(long block, boolean retransmit)
+                throws IOException {
+            sendACK(block, clientPort, clientAddr, retransmit);
+        }
+
+        @Override
+        public void sendOack(boolean retransmit) throws IOException {
+            udtSend(produceOackPacket(), clientPort, clientAddr, retransmit);
+        }
+
+        @Override
+        public void write(long block, byte[] packet, int offset, int length)
+                throws IOException {
+            writeBlock(packet, offset, length, block);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            completeWrite();
+            System.out.println("File " + filename + " successfully received "
+                    + "and written.\n");
+        }
+
+        @Override
+        public void end(boolean complete) throws IOException {
+            if (!complete) {
+                Client.this.complete = false;
+                System.out.println("NOTE 073: Transfer of " + filename
+                        + " given up [" + clientPort + "].\n");
+            } else if (congestion != null) {
+                System.out.println("NOTE 062: " + congestion + " ["
+                        + clientPort + "].\n");
+            }
+            if (upload != null) {
+                upload.abort();
+                upload = null;
+            }
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+            removeFromStatus(clientAddr, clientPort);
+        }
+    };
+
+    /** True once this Client is done, and its session closed. Set by the
+     * listener thread if the first packet of a RRQ fails. */
+    private volatile boolean finished;
 
     /** Name of file in request. */
     private final String filename;
-    /** RRQ: Reading file in 512 bytes and sending the read buffer in blocks. */
-    private char[] readBuf = new char[DEFAULT_DATA_SIZE]; // = 512
-    /** WRQ: Current content of file successfully received in a WRQ. */
-    private StringBuilder fileContent;
+    /** System.nanoTime() when the request of this Client was received. */
+    private final long requestTime = System.nanoTime();
+    /** WRQ: Write handle of requested file, written at the offset of each
+     * block received and committed once the final DATA packet is
+     * received. */
+    private Storage.WriteHandle upload;
+    /** Server this Client is in process by. */
+    private final TFTPServer server;
     /** Sole slave socket of this Server. */
-    private final DatagramSocket slaveSocket = TFTPServerThread.slaveSocket;
+    private final DatagramSocket slaveSocket;
+    /** Where files of this Server are read from and written to. */
+    private final Storage storage;
+    /** Rate limits of the packets sent to this Client. */
+    private final TokenBucket[] buckets;
+    /** Flight recorder event of this transfer, committed once this Client
+     * is done. Null unless a recording enables it. */
+    private final FlightEvents.Session session;
+    /** RRQ: block number and System.nanoTime() of the blocks of the window
+     * first sent, by block modulo windowSize, the time 0 once sent again
+     * or acknowledged. Null unless a recording enables block latencies. */
+    private final long[] sentAt;
+    /** Packets sent again to this Client. */
+    private int retransmits;
+    /** Timeouts waiting for this Client. */
+    private int timeouts;
+    /** RRQ: Timeouts of full blocks larger than DEFAULT_DATA_SIZE before
+     * any is acknowledged, see PathMtu. */
+    private int blackHoleTimeouts;
+    /** False once this Client is given up. */
+    private boolean complete = true;
 
     /** Default size of a single DATA block content. */
     private static final int DEFAULT_DATA_SIZE = Constants.DEFAULT_DATA_SIZE;
@@ -67,50 +196,200 @@ public class Client {
     /**
      * Sole functional constructor.
      *
+     * @param tftpServer Server this Client is in process by.
      * @param op either a WRQ or RRQ depending on this Client's initial prompt.
      * @param socAddr Socket Internet Address of this Client.
      * @param nameOfFile filename in request.
+     * @param requestOptions options in request, empty if none.
      * */
-    public Client(Opcode op, InetSocketAddress socAddr, String nameOfFile) {
+    public Client(TFTPServer tftpServer, Opcode op, InetSocketAddress socAddr,
+                  String nameOfFile, Map<String, String> requestOptions) {
+        server = tftpServer;
+        slaveSocket = server.getSlaveSocket();
+        storage = server.getStorage();
+        sessions = server.getSessions();
+        buckets = server.getShaper().bucketsFor(socAddr.getAddress(),
+                socAddr.getPort());
         clientPort = socAddr.getPort();
         clientAddr = socAddr.getAddress();
         requestOpcode = op;
         filename = nameOfFile;
+        options = requestOptions;
 
         if (op == Opcode.RRQ) {
-            blockNumber = 1;
-            expectedAck = blockNumber;
+            slot = sessions.open(clientAddr, clientPort,
+                    SessionTable.SENDING);
+            sessions.setBlock(slot, 1);
+            rollover = requestedRollover(server.getBlockRollover());
+            windowSize = requestedWindowSize();
+            blockSize = requestedBlockSize();
         } else if (op == Opcode.WRQ) {
-            blockExpected = 1;
-            fileContent = new StringBuilder(DEFAULT_DATA_SIZE + 4);
+            slot = sessions.open(clientAddr, clientPort,
+                    SessionTable.RECEIVING);
+            sessions.setBlock(slot, 1);
+            // options of a WRQ are not acknowledged, so the Client keeps
+            // its default
+            rollover = server.getBlockRollover();
+            windowSize = 1;
+            blockSize = DEFAULT_DATA_SIZE;
+        } else {
+            throw new IllegalArgumentException("Request not RRQ or WRQ.");
+        }
+        congestion = windowSize > 1 ? new CongestionControl(windowSize,
+                blockSize, server.isCongestionControl()) : null;
+
+        FlightEvents.Session event = new FlightEvents.Session();
+        if (event.isEnabled()) {
+            event.begin();
+            session = event;
         } else {
-            System.out.println("ERROR 227\n");
-            System.exit(-1);
+            session = null;
         }
+        sentAt = op == Opcode.RRQ && new FlightEvents.BlockLatency()
+                .isEnabled() ? new long[2 * windowSize] : null;
+        server.getTuner().opened(bufferedBlocks());
     }
 
     /**
      * Throw-away constructor solely to enable external usage of methods.
+     *
+     * @param tftpServer Server whose slave socket is used.
      * */
-    protected Client() {
+    protected Client(TFTPServer tftpServer) {
+        server = tftpServer;
+        slaveSocket = server.getSlaveSocket();
+        storage = null;
+        sessions = server.getSessions();
+        slot = -1;
+        buckets = server.getShaper().bucketsFor(null, -1);
         filename = null;
         clientAddr = null;
         clientPort = -1;
         requestOpcode = Opcode.BLANK;
+        options = Collections.emptyMap();
+        rollover = server.getBlockRollover();
+        windowSize = 1;
+        blockSize = DEFAULT_DATA_SIZE;
+        congestion = null;
+        session = null;
+        sentAt = null;
     }
 
     /**
-     * RRQ: Initialises the BufferedReader to read and send file content to
-     * Client in a RRQ.
+     * RRQ: Opens the requested file in the storage of the Server to read
+     * and send file content to Client in a RRQ. Options in request which are
+     * supported are answered from the metadata of the read handle.
      *
      * @throws IOException if an I/O error occurs.
      * */
     protected void makeBuffer() throws IOException {
-        // makes a BufferedReader to read content of file
-        rdr = new BufferedReader(new FileReader(filename));
+        if (file != null) { // OACK sent at a previous turn
+            return;
+        }
+        // file already confirmed to exist
+        file = storage.openRead(filename);
+        if (session != null) {
+            session.size = file.size();
+        }
+
+        if (options.containsKey(Constants.TSIZE_OPTION)) {
+            acceptedOptions = new LinkedHashMap<>();
+            acceptedOptions.put(Constants.TSIZE_OPTION,
+                    String.valueOf(file.size()));
+        }
+        if (options.containsKey(Constants.ROLLOVER_OPTION)) {
+            if (acceptedOptions.isEmpty()) {
+                acceptedOptions = new LinkedHashMap<>();
+            }
+            acceptedOptions.put(Constants.ROLLOVER_OPTION,
+                    String.valueOf(rollover));
+        }
+        if (blockSize != DEFAULT_DATA_SIZE) {
+            if (acceptedOptions.isEmpty()) {
+                acceptedOptions = new LinkedHashMap<>();
+            }
+            acceptedOptions.put(Constants.BLKSIZE_OPTION,
+                    String.valueOf(blockSize));
+        }
+        if (windowSize > 1) {
+            if (acceptedOptions.isEmpty()) {
+                acceptedOptions = new LinkedHashMap<>();
+            }
+            acceptedOptions.put(Constants.WINDOWSIZE_OPTION,
+                    String.valueOf(windowSize));
+        }
+        if (!acceptedOptions.isEmpty()) {
+            sessions.setState(slot, SessionTable.NEGOTIATING);
+        }
     }
 
 
+    /**
+     * RRQ: Fast path of a new request, run by the listener of the Server as
+     * soon as the request is received rather than at the first turn of this
+     * Client, or once the Storage has looked the file up if it had to ask
+     * another host. Answers FILE_NOT_FOUND if the file does not exist and
+     * NOT_DEFINED if the Storage could not tell, otherwise opens it and
+     * sends the OACK or DATA 1 at once. The ACK is waited for, and the
+     * packet sent again if need be, at the turns of this Client.
+     *
+     * @param request read request received.
+     * @param lookup lookup of the file in the Storage, done.
+     * @return true if the transfer started. False if the request was
+     * answered with an ERROR and this Client removed.
+     * @throws IOException if an I/O error occurs.
+     * */
+    protected boolean startRead(DatagramPacket request,
+                                CompletableFuture<Long> lookup)
+            throws IOException {
+        long size;
+        try {
+            size = lookup.join();
+        } catch (CompletionException e) { // not told, as by a relay origin
+            System.out.println("NOTE 075: " + filename + " not looked up. "
+                    + e.getCause().getMessage() + "\n");
+            sendErrorPacket(Error.NOT_DEFINED, request);
+            return false;
+        }
+        if (size < 0) {
+            sendFileNotFoundError(request);
+            return false;
+        }
+        try {
+            makeBuffer();
+        } catch (NoSuchFileException e) { // removed since size() was asked
+            sendFileNotFoundError(request);
+            return false;
+        } catch (IOException e) {
+            System.out.println("NOTE 072: " + filename + " not opened. "
+                    + e.getMessage() + "\n");
+            sendErrorPacket(Error.ACCESS_VIOLATION, request);
+            return false;
+        }
+
+        if (delay() > 0) {
+            return true; // sent at the first turn not to hold the listener
+        }
+        if (!acceptedOptions.isEmpty()) {
+            udtSend(produceOackPacket(), clientPort, clientAddr);
+            primedAt = System.nanoTime();
+            return true;
+        }
+        byte[] readBuf = sessions.attach(slot, blockSize + 4);
+        try {
+            int readCount = readBlock(readBuf, 1);
+            if (readCount > 0) { // an empty file is left to sendZeroData()
+                udtSend(produceDataPacket(readBuf, readCount, toWireBlock(1)),
+                        clientPort, clientAddr);
+                sessions.setSent(slot, 1);
+                primedAt = System.nanoTime();
+            }
+        } finally {
+            detach();
+        }
+        return true;
+    }
+
     /**
      * RRQ: The main read method on the Server side. Processes a single
      * request to read a file from the server. DATA packets in octet mode are
@@ -128,23 +407,45 @@ public class Client {
      * */
     protected void readFile() throws IOException {
 
-        slaveSocket.setSoTimeout(Constants.TIMEOUT);
+        slaveSocket.setSoTimeout(sessions.getRto(slot));
 
-        // if a packet was sent but timeout before the ACK is received,
-        // resend the packet once more. move on to next client at timeout or
-        // receipt of the ACK
-        if (blockNumber != expectedAck) {
-            System.out.println("ERROR 567: blockNumber " + blockNumber
-                    + " != expectedAck " + expectedAck + ".");
-            rdr.close();
-            slaveSocket.close();
-            System.exit(-1);
+        // options acknowledged first; DATA 1 is sent at the next turn
+        if (!acceptedOptions.isEmpty()) {
+            sendOack();
+            slaveSocket.setSoTimeout(0);
+            return;
         }
 
+        // a buffer is held only during the turn of this Client
+        byte[] readBuf = sessions.attach(slot, blockSize + 4);
+        try {
+            if (windowSize > 1) {
+                sendWindow(readBuf);
+            } else {
+                sendBlock(readBuf);
+            }
+        } finally {
+            detach();
+        }
+    }
+
+    /**
+     * RRQ: Sends the block in attempt and waits for its ACK, sending it again
+     * at timeout. If a packet was sent but timeout before the ACK is
+     * received, resend the packet once more. Move on to next client at
+     * timeout or receipt of the ACK. A block other than the last timing out
+     * more than Constants.MAX_RETRIES times in a row gives up the transfer.
+     *
+     * @param readBuf buffer the block is read into.
+     * @throws IOException if an I/O error occurs.
+     * */
+    private void sendBlock(byte[] readBuf) throws IOException {
+        long blockNumber = sessions.getBlock(slot);
+
         int readCount;
-        if ((readCount = rdr.read(readBuf, 0, readBuf.length)) > 0) {
+        if ((readCount = readBlock(readBuf, blockNumber)) > 0) {
 
-            slaveSocket.setSoTimeout(Constants.TIMEOUT);
+            slaveSocket.setSoTimeout(sessions.getRto(slot));
 
             int loopCount = 0;
 
@@ -153,12 +454,18 @@ public class Client {
                 try {
                     // sends a packet filled with 516-byte-or-less file data
                     DatagramPacket packetInLine = produceDataPacket(readBuf,
-                            readCount, blockNumber);
+                            readCount, toWireBlock(blockNumber));
                     packetInLine.setPort(clientPort);
                     packetInLine.setAddress(clientAddr);
-                    udtSend(packetInLine, clientPort, clientAddr);
+                    if (primedAt != 0) {
+                        primedAt = 0; // sent by startRead()
+                    } else {
+                        udtSend(packetInLine, clientPort, clientAddr,
+                                loopCount > 0);
+                    }
+                    sessions.setSent(slot, blockNumber);
 
-                    if (readCount < DEFAULT_DATA_SIZE) {
+                    if (readCount < blockSize) {
                         System.out.println("Last data packet "
                                 + blockNumber + " sent ["
                                 + slaveSocket.getLocalPort()
@@ -170,25 +477,23 @@ public class Client {
                                 + ", " + clientPort + "].\n");
                     }
 
-                    // necessary to 'stimulate' the process, otherwise
-                    // readBuf somehow won't send DO NOT DELETE
-                    char randomChar = readBuf[readBuf.length / 2]; // DO NOT DEL
-
                     // receive ACK for sent data
                     byte[] bufAck =
-                            (receiveAck(expectedAck, packetInLine)).getData();
+                            (receiveAck(blockNumber, packetInLine)).getData();
 
-                    int blockReceived = fromByteToInt(new byte[]{bufAck[2],
-                            bufAck[3]});
+                    long blockReceived = fromWireBlock(fromByteToInt(
+                            new byte[]{bufAck[2], bufAck[3]}), blockNumber);
 
                     // correct ACK received: move on to next Client
-                    if (blockReceived == expectedAck) {
+                    if (blockReceived == blockNumber) {
                         blockNumber++;
-                        expectedAck++;
+                        sessions.setBlock(slot, blockNumber);
+                        sessions.setRetries(slot, 0);
                         break;
                     }
                 } catch (SocketTimeoutException soe) {
                     // repeat cycle until receive ACK
+                    timedOut(Opcode.ACK, blockNumber);
                     System.out.println("NOTE 868: Timeout. Resending block "
                             + blockNumber + ".\n");
                     // if final data block is consistently not acknowledged,
@@ -196,7 +501,7 @@ public class Client {
                     // Thread will be terminated.
                     // else if non-final data block is consistently not
                     // acknowledged, move on to next Client
-                    if (readCount < DEFAULT_DATA_SIZE) { // final block
+                    if (readCount < blockSize) { // final block
                         if (loopCount > LOOP_LIMIT) { // > 20
                             System.out.println("\nloopCount = " + loopCount);
                             System.out.println("\nLast block sent too "
@@ -205,6 +510,18 @@ public class Client {
                             break;
                         }
                     } else { // readCount == 512
+                        // timeouts in a row are counted across turns, so a
+                        // Client gone away is given up as Transfer does
+                        int timeouts = sessions.getRetries(slot) + 1;
+                        sessions.setRetries(slot, timeouts);
+                        if (timeouts > Constants.MAX_RETRIES) {
+                            System.out.println("NOTE 073: Transfer of "
+                                    + filename + " given up [" + clientPort
+                                    + "].\n");
+                            slaveSocket.setSoTimeout(0);
+                            release();
+                            return;
+                        }
                         if (loopCount > LOOP_LIMIT / 2) { // > 10
                             break;
                         }
@@ -220,22 +537,22 @@ public class Client {
         // file size is a multiple of 512 bytes meaning we have to send a
         // 0-byte DATA packet or that it's the end of the file and
         // read process is completed
-        if (readCount == DEFAULT_DATA_SIZE) {
+        if (readCount == blockSize) {
             // at end of while loop, one block has been acknowledged and move
             // on to next client
             slaveSocket.setSoTimeout(0);
             return;
-        } else if (readCount < DEFAULT_DATA_SIZE) {
+        } else if (readCount < blockSize) {
             // if file size multiple of 512 bytes, a last packet of 0-byte data
             // size will be sent i.e. move on to next client and send the
             // last packet later. Else, file successfully sent.
             boolean fileMultipleOfBlockSize =
-                    (new File(filename)).length() % DEFAULT_DATA_SIZE == 0;
+                    file.size() % blockSize == 0;
             if (fileMultipleOfBlockSize) {
-                sendZeroData();
+                sendZeroData(blockNumber);
             }
             // file transmission successful. terminate thread
-            rdr.close();
+            file.close();
             removeFromStatus(clientAddr, clientPort);
             slaveSocket.setSoTimeout(0);
             return;
@@ -243,19 +560,243 @@ public class Client {
         slaveSocket.setSoTimeout(0);
     }
 
+    /**
+     * RRQ: Sends the next window of up to 'windowSize' DATA packets, paced
+     * by the congestion control of this Client, and waits for the ACK of its
+     * last block. A block held back by the rate limits of this Client, or
+     * not yet due under pacing, ends the turn, and the rest of the window
+     * is sent from it at a later turn, which the Scheduler gives once
+     * delay() allows it. An ACK of part of the window makes the rest be
+     * sent again at the next turn of this Client (go-back-N), and a timeout
+     * the whole window. An ACK of a block already acknowledged is ignored
+     * like ACKs of earlier windows: a late duplicate cannot be told from a sign
+     * of the loss of the next block, and answering it would send again a
+     * window already received.
+     *
+     * The transfer ends once the last block is acknowledged, or has been
+     * sent in more than FINAL_LOOP_LIMIT windows in a row not acknowledged,
+     * when the Client is presumed to have received it.
+     *
+     * @param readBuf buffer the blocks are read into.
+     * @throws IOException if an I/O error occurs.
+     * */
+    private void sendWindow(byte[] readBuf) throws IOException {
+        long blockNumber = sessions.getBlock(slot);
+        long highestSent = sessions.getSent(slot);
+        // the last block is shorter than blockSize, possibly empty
+        long lastBlock = file.size() / blockSize + 1;
+        long end = Math.min(lastBlock, blockNumber + windowSize - 1);
+        if (windowNext == 0) { // a new window
+            windowNext = blockNumber;
+            windowDue = System.nanoTime();
+            // the ACK of a block sent before cannot be timed (Karn)
+            windowTimed = end > highestSent;
+        }
+        boolean timed = windowTimed;
+
+        long lastSent = 0;
+        long interval = congestion.pacingInterval();
+        for (; windowNext <= end; windowNext++) {
+            if (delay() > 0) {
+                return; // the rest of the window at a later turn
+            }
+            // a block due every 'interval'; one late is sent at once
+            windowDue += interval;
+            long block = windowNext;
+            int readCount = readBlock(readBuf, block);
+            udtSend(produceDataPacket(readBuf, readCount, toWireBlock(block)),
+                    clientPort, clientAddr, block <= highestSent);
+            sessions.setSent(slot, Math.max(highestSent, block));
+            lastSent = System.nanoTime();
+        }
+        windowNext = 0;
+        System.out.println("Data packets " + blockNumber + " to " + end
+                + " sent [" + slaveSocket.getLocalPort() + ", " + clientPort
+                + "], window " + congestion.getWindow() + ".\n");
+
+        long ackReceived;
+        int rto = sessions.getRto(slot);
+        long deadline = System.nanoTime() + rto * 1_000_000L;
+        slaveSocket.setSoTimeout(rto);
+        try {
+            while (true) {
+                ackReceived = receiveWindowAck(end);
+                // ACKs of earlier windows and duplicates are ignored
+                if (ackReceived >= blockNumber && ackReceived <= end) {
+                    break;
+                }
+                shortenTimeout(deadline);
+            }
+        } catch (SocketTimeoutException soe) {
+            timedOut(Opcode.ACK, end);
+            congestion.timedOut();
+            int timeouts = sessions.getRetries(slot) + 1;
+            sessions.setRetries(slot, timeouts);
+            System.out.println("NOTE 869: Timeout. Resending blocks "
+                    + blockNumber + " to " + end + ".\n");
+            if (end == lastBlock && timeouts > LOOP_LIMIT) {
+                System.out.println("\nLast block sent too frequently."
+                        + " Client presumed terminated.\n");
+                completeRead();
+            }
+            return;
+        } finally {
+            slaveSocket.setSoTimeout(0);
+        }
+        sessions.setRetries(slot, 0);
+
+        if (ackReceived < end) {
+            // the Client acknowledges the last block in order on a gap. Not
+            // timed: the ACK waited while the rest of the window was sent
+            congestion.lost();
+            System.out.println("NOTE 003: ackReceived " + ackReceived
+                    + " < " + end + ". DATA lost in network, resending from "
+                    + (ackReceived + 1) + ".\n");
+        } else {
+            congestion.acknowledged((int) (end - blockNumber + 1),
+                    timed ? System.nanoTime() - lastSent : 0);
+        }
+        sessions.setBlock(slot, ackReceived + 1);
+
+        if (ackReceived == lastBlock) {
+            System.out.println("Final data block " + ackReceived
+                    + " successfully acknowledged. Terminating thread.\n");
+            completeRead();
+        }
+    }
+
+    /**
+     * RRQ: Ends a windowed transfer, closing the file read.
+     *
+     * @throws IOException if an I/O error occurs.
+     * */
+    private void completeRead() throws IOException {
+        System.out.println("NOTE 062: " + congestion + " [" + clientPort
+                + "].\n");
+        file.close();
+        removeFromStatus(clientAddr, clientPort);
+    }
+
+    /**
+     * WRQ: Writes the content of a received DATA packet at the offset of its
+     * block, so the received file is never held by this Client. Nothing is
+     * visible in the storage until completeWrite().
+     *
+     * @param packet contents of the DATA packet of the block expected.
+     * @param offset offset of the content in 'packet'.
+     * @param length length of the content.
+     * @param block block number of the packet.
+     * @throws IOException if an I/O error occurs.
+     * */
+    private void writeBlock(byte[] packet, int offset, int length,
+                            long block) throws IOException {
+        if (upload == null) { // no tsize in request
+            upload = storage.openWrite(filename, -1);
+        }
+
+        long position = (block - 1) * DEFAULT_DATA_SIZE;
+        FlightEvents.DiskStall stall = new FlightEvents.DiskStall();
+        stall.begin();
+        await(upload.write(ByteBuffer.wrap(packet, offset, length),
+                position));
+        stall.end();
+        if (stall.shouldCommit()) {
+            commitStall(stall, true, position, length);
+        }
+        sessions.setOffset(slot, position + length);
+    }
+
+    /**
+     * WRQ: Commits the file written, replacing any file of the same name.
+     *
+     * @throws IOException if an I/O error occurs.
+     * */
+    private void completeWrite() throws IOException {
+        upload.commit();
+        upload = null;
+    }
+
+    /**
+     * RRQ: Reads the content of a block into a buffer, from the offset of
+     * that block in the requested file. Never reads beyond the size of the
+     * file when it was opened.
+     *
+     * @param readBuf buffer of at least blockSize bytes.
+     * @param block block number.
+     * @return number of bytes read, 0 if the end of file was reached.
+     * @throws IOException if an I/O error occurs.
+     * */
+    private int readBlock(byte[] readBuf, long block) throws IOException {
+        long offset = (block - 1) * blockSize;
+        FlightEvents.DiskStall stall = new FlightEvents.DiskStall();
+        stall.begin();
+        int readCount = await(file.read(ByteBuffer.wrap(readBuf, 0,
+                blockSize), offset));
+        stall.end();
+        if (stall.shouldCommit()) {
+            commitStall(stall, false, offset, readCount);
+        }
+        sessions.setOffset(slot, offset + readCount);
+        return readCount;
+    }
+
+    /**
+     * RRQ: Sends an OACK with the accepted options to the Client and waits
+     * for ACK 0. If ACK 0 is not received the OACK is sent again at the next
+     * turn of this Client.
+     *
+     * @throws IOException if an I/O error occurs.
+     * */
+    private void sendOack() throws IOException {
+        DatagramPacket oack = produceOackPacket();
+
+        // the ACK of an OACK sent by startRead() may have waited for this
+        // turn, so it is not timed
+        boolean timed = primedAt == 0;
+        int loopCount = 0;
+        while (true) {
+            try {
+                long oackSent = System.nanoTime();
+                if (primedAt != 0) {
+                    primedAt = 0; // sent by startRead()
+                } else {
+                    udtSend(oack, clientPort, clientAddr, loopCount > 0);
+                }
+                System.out.println("OACK " + acceptedOptions + " sent ["
+                        + slaveSocket.getLocalPort() + ", " + clientPort
+                        + "].\n");
+                receiveAck(0, oack);
+                if (congestion != null && loopCount == 0 && timed) {
+                    // first round trip of a windowed transfer
+                    congestion.acknowledged(0, System.nanoTime() - oackSent);
+                }
+                acceptedOptions = Collections.emptyMap();
+                sessions.setState(slot, SessionTable.SENDING);
+                break;
+            } catch (SocketTimeoutException soe) {
+                timedOut(Opcode.ACK, 0);
+                System.out.println("NOTE 871: Timeout. Resending OACK.\n");
+                if (loopCount > LOOP_LIMIT / 2) { // > 10
+                    break;
+                }
+            }
+            loopCount++;
+        }
+    }
+
     /**
      * RRQ: Sends a single DATA packet with zero content to the Client in an
      * RRQ. Called when the size of the transmitted file contents is a multiple
-     * of DEFAULT_DATA_SIZE as the last DATA packet to be sent.
+     * of the block size as the last DATA packet to be sent.
      *
+     * @param blockNumber block number of the last DATA packet.
      * @throws IOException if an I/O error occurs.
      * */
-    private void sendZeroData() throws IOException {
+    private void sendZeroData(long blockNumber) throws IOException {
         System.out.println("NOTE 908: File size multiple of "
-                + DEFAULT_DATA_SIZE + " bytes.");
-        readBuf = new char[0];
-        DatagramPacket packetInLine = produceDataPacket(readBuf, 0,
-                blockNumber);
+                + blockSize + " bytes.");
+        DatagramPacket packetInLine = produceDataPacket(new byte[0], 0,
+                toWireBlock(blockNumber));
         packetInLine.setPort(clientPort);
         packetInLine.setAddress(clientAddr);
 
@@ -265,14 +806,15 @@ public class Client {
         // resend until ACK received
         while (true) {
             try {
-                udtSend(packetInLine, clientPort, clientAddr);
+                udtSend(packetInLine, clientPort, clientAddr, loopCount > 0);
                 System.out.println("Last data packet with block number "
                         + blockNumber + " sent [" + slaveSocket.getLocalPort()
                         + ", " + clientPort + "].\n");
                 // receive ACK for sent data
-                receiveAck(expectedAck, packetInLine);
+                receiveAck(blockNumber, packetInLine);
                 break;
             } catch (SocketTimeoutException soe) {
+                timedOut(Opcode.ACK, blockNumber);
                 System.out.println("NOTE 304: Timeout. Resending block "
                         + blockNumber + ".");
                 // if final data block is consistently not acknowledged,
@@ -288,27 +830,80 @@ public class Client {
         }
     }
 
+    /**
+     * WRQ: Admits a new write request as soon as it is received, before
+     * ACK 0 or the OACK is sent at the first turn of this Client. A request
+     * announcing the size of its file with tsize (RFC 2349) is answered
+     * with DISK_FULL if the file is larger than the upload limit of the
+     * Server or than the space available in the Storage, so no DATA is sent
+     * for an upload that cannot fit. Otherwise the file is made at that
+     * size at once and the size acknowledged in an OACK.
+     *
+     * @param request write request received.
+     * @return true if the transfer goes on. False if the request was
+     * answered with an ERROR and this Client removed.
+     * @throws IOException if an I/O error occurs.
+     * */
+    protected boolean startWrite(DatagramPacket request) throws IOException {
+        long size = announcedSize();
+        if (size < 0) {
+            return true; // written as it comes
+        }
+        if (size > server.getUploadLimit()
+                || size > storage.available(filename)) {
+            System.out.println("NOTE 074: " + filename + " of " + size
+                    + " bytes refused, not enough space.\n");
+            sendErrorPacket(Error.DISK_FULL, request);
+            return false;
+        }
+        try {
+            upload = storage.openWrite(filename, size);
+        } catch (IOException e) {
+            System.out.println("NOTE 072: " + filename + " not opened. "
+                    + e.getMessage() + "\n");
+            sendErrorPacket(Error.ACCESS_VIOLATION, request);
+            return false;
+        }
+        acceptedOptions = new LinkedHashMap<>();
+        acceptedOptions.put(Constants.TSIZE_OPTION, String.valueOf(size));
+        return true;
+    }
+
     /**
      * Sends a single ACK with block number 0 to Client as acknowledgement of
-     * WRQ request.
+     * WRQ request, or the OACK of the options accepted by startWrite().
      *
      * @throws IOException if an I/O error occurs.
      * */
     protected void sendFirstAck() throws IOException {
         if (requestOpcode != Opcode.WRQ) {
-            System.out.println("ERROR 706\n");
-            System.exit(-1);
+            throw new IllegalStateException("ACK 0 of a request not WRQ.");
         }
 
-        sendACK(0, clientPort, clientAddr);
+        acknowledgeWrite(false);
+    }
+
+    /**
+     * WRQ: Sends ACK 0, or the OACK if options were accepted.
+     *
+     * @param retransmit whether it was sent before.
+     * @throws IOException if an I/O error occurs.
+     * */
+    private void acknowledgeWrite(boolean retransmit) throws IOException {
+        if (acceptedOptions.isEmpty()) {
+            sendACK(0, clientPort, clientAddr, retransmit);
+        } else {
+            udtSend(produceOackPacket(), clientPort, clientAddr, retransmit);
+        }
     }
     /**
      * WRQ: The main write method on the Server side. Processes a single request
      * to write a file to the server. DATA packets in octet mode are received
      * and separate acknowledgements are received for each before another DATA
      * packet can be received. An acknowledgement to write was previously sent
-     * to Client. Will attempt to receive DATA 1 from Client afterwards but at
-     * timeout will send ACK 0 indefinitely until DATA 1 received. Returns so
+     * to Client. Waits for the next DATA for one timeout at most, and at
+     * timeout sends the last ACK again and returns, giving up after
+     * Constants.MAX_RETRIES timeouts in a row. Returns so
      * TFTPServerThread can process next Client. At receipt of DATA, the
      * corresponding ACK will be sent and this includes DATA already
      * acknowledged (duplicates).
@@ -328,28 +923,48 @@ public class Client {
      * @throws IOException if an I/O error occurs.
      */
     protected void receiveWrittenFile() throws IOException {
+        // a buffer is held only during the turn of this Client
+        byte[] totalBuf = sessions.attach(slot);
+        try {
+            receiveBlock(totalBuf);
+        } finally {
+            detach();
+        }
+    }
 
-        byte[] totalBuf = new byte[DEFAULT_DATA_SIZE + 4];
+    /**
+     * WRQ: Receives the next DATA packet and acknowledges it, or
+     * acknowledges duplicates of the final DATA packet while dallying. The
+     * last ACK is sent again if no DATA arrives within the timeout of this
+     * Client, and the DATA awaited at its next turn.
+     *
+     * @param totalBuf buffer of DEFAULT_DATA_SIZE + 4 bytes the packet is
+     *                 received into.
+     * @throws IOException if an I/O error occurs.
+     * */
+    private void receiveBlock(byte[] totalBuf) throws IOException {
+        long blockExpected = sessions.getBlock(slot);
 
         // keep receiving the duplicate of the final DATA packet if the
         // Client hasn't received the final ACK until timeout when Client
         // presumed to have received the final ACK and terminated
-        if (writeRequestCompleted) {
-            slaveSocket.setSoTimeout(10 * Constants.TIMEOUT);
+        if (sessions.getState(slot) == SessionTable.DALLYING) {
+            slaveSocket.setSoTimeout(10 * sessions.getRto(slot));
             while (true) {
                 try {
                     DatagramPacket finalDuplicate = new DatagramPacket(totalBuf,
                             totalBuf.length);
-                    slaveSocket.receive(finalDuplicate);
-                    if (verifySocAddr(finalDuplicate, clientAddr, clientPort)
-                            && verifyPacketOpcode(finalDuplicate,
-                            Opcode.DATA)) {
+                    receiveFromClient(finalDuplicate);
+                    if (verifyPacketOpcode(finalDuplicate, Opcode.DATA)) {
                         byte[] blockEncoded = {totalBuf[2], totalBuf[3]};
-                        int blockReceived = fromByteToInt(blockEncoded);
+                        long blockReceived = fromWireBlock(
+                                fromByteToInt(blockEncoded), blockExpected - 1);
+                        received(Opcode.DATA, blockReceived,
+                                finalDuplicate.getLength() - 4);
                         System.out.println("NOTE 544: Received duplicate of "
                                 + "final" + " DATA block " + blockReceived
                                 + ".\n");
-                        sendACK(blockReceived, clientPort, clientAddr);
+                        sendACK(blockReceived, clientPort, clientAddr, true);
                     }
                 } catch (SocketTimeoutException soe) {
                     slaveSocket.setSoTimeout(0);
@@ -362,66 +977,74 @@ public class Client {
 
         DatagramPacket received = new DatagramPacket(totalBuf, totalBuf.length);
 
-        // if ACK 0 was received, expect to receive a DATA 1 packet. If no
-        // DATA packet received from the correct source, keep receiving.
-        if (blockExpected == 1) {
-            slaveSocket.setSoTimeout(Constants.TIMEOUT);
+        // wait for the next DATA packet for one timeout at most, so that a
+        // silent Client never holds the turn of the others. If no DATA
+        // packet received from the correct source, keep receiving.
+        slaveSocket.setSoTimeout(sessions.getRto(slot));
+        try {
             while (true) {
-                try {
-                    slaveSocket.receive(received);
-                    if (verifySocAddr(received, clientAddr, clientPort)
-                            && verifyPacketOpcode(received, Opcode.DATA)) {
-                        break;
-                    }
-                } catch (SocketTimeoutException soe) {
-                    sendFirstAck();
-                }
-            }
-            slaveSocket.setSoTimeout(0);
-        } else { // DATA 1 has been received before
-            while (true) {
-                // if ACK 0 successfully received and subsequent DATA packets is
-                // being sent, wait indefinitely until next DATA is received
-                slaveSocket.receive(received);
-                // if received packet not of correct source or not DATA,
-                // keep receiving
-                if (verifySocAddr(received, clientAddr, clientPort)
-                        && verifyPacketOpcode(received, Opcode.DATA)) {
+                receiveFromClient(received);
+                if (verifyPacketOpcode(received, Opcode.DATA)) {
                     break;
                 }
             }
+        } catch (SocketTimeoutException soe) {
+            timedOut(Opcode.DATA, blockExpected);
+            int timeouts = sessions.getRetries(slot) + 1;
+            sessions.setRetries(slot, timeouts);
+            if (timeouts > Constants.MAX_RETRIES) {
+                System.out.println("NOTE 073: Transfer of " + filename
+                        + " given up [" + clientPort + "].\n");
+                release();
+                return;
+            }
+            // the last ACK is sent again, and the DATA awaited at the next
+            // turn of this Client
+            if (blockExpected == 1) {
+                acknowledgeWrite(true);
+            } else {
+                sendACK(blockExpected - 1, clientPort, clientAddr, true);
+            }
+            return;
+        } finally {
+            slaveSocket.setSoTimeout(0);
         }
+        sessions.setRetries(slot, 0);
 
         // send ACK after verifying block number; if less than
         // expected, resend  ACK; if more than expected, declare
         // missing block and exit
         byte[] blockEncoded = {totalBuf[2], totalBuf[3]};
-        int blockReceived = fromByteToInt(blockEncoded);
+        long blockReceived = fromWireBlock(fromByteToInt(blockEncoded),
+                blockExpected);
+        received(Opcode.DATA, blockReceived, received.getLength() - 4);
 
         if (blockReceived == blockExpected) {
+            // file content written before it is acknowledged, and the file
+            // moved into place before the final DATA is
+            writeBlock(totalBuf, 4, received.getLength() - 4,
+                    blockReceived);
+            if (received.getLength() < DEFAULT_DATA_SIZE + 4) {
+                completeWrite();
+            }
             sendACK(blockReceived, clientPort, clientAddr);
-
-            // building file content
-            String dataReceived = new String(received.getData(), 0,
-                    received.getLength());
-            fileContent.append(dataReceived.substring(4));
             blockExpected++;
+            sessions.setBlock(slot, blockExpected);
         } else if (blockReceived < blockExpected) {
             System.out.println("NOTE 648: Duplicate. Packet's block "
                     + "received " + blockReceived + " < block "
                     + "expected " + blockExpected + ".");
-            sendACK(blockReceived, clientPort, clientAddr);
+            sendACK(blockReceived, clientPort, clientAddr, true);
         } else { // blockReceived > blockExpected
-            System.err.println("ERROR 301: A previous block of "
-                    + "data is missing.");
-            System.out.println("blockReceived = " + blockReceived);
-            System.out.println("blockExpected = " + blockExpected + "\n");
-            slaveSocket.close();
-            System.exit(-1);
+            // a previous block is missing: dropped, and the Client sends
+            // the block expected again at its timeout
+            server.reject("DATA out of sequence", received);
+            return;
         }
 
         // if last block, end transmission
-        if (received.getLength() < DEFAULT_DATA_SIZE + 4) {
+        if (received.getLength() < DEFAULT_DATA_SIZE + 4
+                && blockReceived == blockExpected - 1) {
             System.out.println("Block " + blockReceived + " received "
                     + "[" + received.getPort() + ", "
                     + slaveSocket.getLocalPort() + "]."
@@ -429,14 +1052,10 @@ public class Client {
                     + slaveSocket.getLocalPort()
                     + ", " + clientPort + "].\n");
 
-            // write file that was read
-            FileWriter myWriter = new FileWriter(filename);
-            myWriter.write(String.valueOf(fileContent));
-            myWriter.close();
             System.out.println("File " + filename + " successfully received "
                     + "and written. Terminating thread.");
             System.out.println();
-            writeRequestCompleted = true;
+            sessions.setState(slot, SessionTable.DALLYING);
         } else {
             System.out.println("Block " + blockReceived + " received "
                     + "[" + received.getPort() + ", "
@@ -449,8 +1068,127 @@ public class Client {
     }
 
 
+    /**
+     * Starts the transfer of this Client as a Transfer driven by the
+     * EVENT_LOOP engine, which calls step() for every packet received from
+     * this Client and expire() whenever the timer returned is due. The
+     * OACK or DATA 1 sent by startRead() is not sent again.
+     *
+     * @param now current time in nanoseconds.
+     * @return nanoseconds until expire() is due, Transfer.NO_TIMER if none.
+     * @throws IOException if the slave socket is closed. Any other fault
+     * gives up this Client only, as do those of step() and expire().
+     * */
+    protected long begin(long now) throws IOException {
+        try {
+            long rto = sessions.getRto(slot) * 1_000_000L;
+            if (requestOpcode == Opcode.RRQ) {
+                makeBuffer();
+                transfer = Transfer.read(file.size(), blockSize,
+                        rollover, rto, windowSize, congestion,
+                        !acceptedOptions.isEmpty());
+            } else {
+                transfer = Transfer.write(DEFAULT_DATA_SIZE, rollover, rto,
+                        !acceptedOptions.isEmpty());
+            }
+            boolean primed = primedAt != 0;
+            primedAt = 0;
+            return settle(transfer.start(now, primed, output));
+        } catch (IOException | RuntimeException e) {
+            return contain(e);
+        }
+    }
+
+    /**
+     * Processes a packet received from this Client, see begin().
+     *
+     * @param packet packet received.
+     * @param now current time in nanoseconds.
+     * @return nanoseconds until expire() is due, Transfer.NO_TIMER if none.
+     * @throws IOException if the slave socket is closed.
+     * */
+    protected long step(DatagramPacket packet, long now) throws IOException {
+        byte[] contents = packet.getData();
+        int length = packet.getLength();
+        boolean wellFormed = length >= 4 && contents[0] == 0
+                && contents[1] >= Opcode.DATA.ordinal()
+                && contents[1] <= Opcode.ERROR.ordinal();
+        if (!wellFormed) {
+            server.reject("malformed packet", packet);
+        }
+        try {
+            if (wellFormed && contents[1] != Opcode.ERROR.ordinal()) {
+                received(Opcode.values()[contents[1]],
+                        fromWireBlock(BlockNumber.read(contents),
+                                transfer.getBlock()),
+                        contents[1] == Opcode.DATA.ordinal() ? length - 4
+                                : 0);
+            }
+            return settle(transfer.receive(contents, length, now, output));
+        } catch (IOException | RuntimeException e) {
+            return contain(e);
+        }
+    }
+
+    /**
+     * Processes the timer of this Client, see begin().
+     *
+     * @param now current time in nanoseconds.
+     * @return nanoseconds until expire() is due, Transfer.NO_TIMER if none.
+     * @throws IOException if the slave socket is closed.
+     * */
+    protected long expire(long now) throws IOException {
+        try {
+            int retries = transfer.getRetries();
+            long timer = transfer.timeout(now, output);
+            if (transfer.getRetries() > retries) {
+                timedOut(requestOpcode == Opcode.RRQ ? Opcode.ACK
+                        : Opcode.DATA, transfer.getBlock());
+            }
+            if (transfer.getState() == Transfer.DONE && !complete) {
+                server.dumpEventsOnError(); // given up on timeouts
+            }
+            return settle(timer);
+        } catch (IOException | RuntimeException e) {
+            return contain(e);
+        }
+    }
+
+    /**
+     * Gives up this Client after a fault in a step of its Transfer, unless
+     * the fault is the slave socket closed as the Server stops.
+     *
+     * @param fault exception raised by the step.
+     * @return Transfer.NO_TIMER.
+     * @throws IOException the fault, if the slave socket is closed.
+     * */
+    private long contain(Exception fault) throws IOException {
+        if (fault instanceof IOException && slaveSocket.isClosed()) {
+            throw (IOException) fault;
+        }
+        fail(fault);
+        return Transfer.NO_TIMER;
+    }
+
     //=========================helper methods===================================
 
+    /**
+     * Copies the state of the Transfer of this Client into its session,
+     * unless it has ended and the session is closed.
+     *
+     * @param timer timer returned by the Transfer.
+     * @return timer.
+     * */
+    private long settle(long timer) {
+        if (!finished) {
+            sessions.setBlock(slot, transfer.getBlock());
+            sessions.setSent(slot, transfer.getSent());
+            sessions.setState(slot, transfer.getState());
+            sessions.setRetries(slot, transfer.getRetries());
+        }
+        return timer;
+    }
+
     /**
      * Returns the opcode of a TFTP operation in byte[] form, based on RFC 1350.
      *
@@ -464,7 +1202,7 @@ public class Client {
         byte[] data = {0, (byte) Opcode.DATA.ordinal()}; // {0, 3}
         byte[] ack = {0, (byte) Opcode.ACK.ordinal()}; // {0, 4}
         byte[] error = {0, (byte) Opcode.ERROR.ordinal()}; // {0, 5}
-        byte[] none = {Byte.MIN_VALUE, Byte.MIN_VALUE}; // {-128, -128}
+        byte[] oack = {0, (byte) Opcode.OACK.ordinal()}; // {0, 6}
 
         switch (opcode) {
             case RRQ: return rrq;
@@ -472,11 +1210,10 @@ public class Client {
             case DATA: return data;
             case ACK: return ack;
             case ERROR: return error;
+            case OACK: return oack;
             default:
-                System.err.println("ERROR 760: Opcode not recognized.");
-                slaveSocket.close();
-                System.exit(-1);
-                return none;
+                throw new IllegalArgumentException("ERROR 760: Opcode "
+                        + opcode + " not recognized.");
         }
     }
 
@@ -497,36 +1234,82 @@ public class Client {
         return result;
     }
 
+    /**
+     * Waits for a read or write of the storage to complete.
+     *
+     * @param operation read or write in progress.
+     * @return number of bytes read or written.
+     * @throws IOException if the operation failed.
+     * */
+    private static int await(CompletableFuture<Integer> operation)
+            throws IOException {
+        try {
+            return operation.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
     /**
      * Converts the number stored in 2-tuple byte array base-256 into the
-     * base-10 integer equivalent. b must be 2-tuple as b was initially
-     * constructed in fromIntToByte(int) with checking mechanisms.
-     * Block Number = (b[1] + 128) + 256 * (b[0] + 128), max = 65535.
-     * {-128, -128} = 0
-     * {-128, 0} = 128
-     * {-128, 127} = 255
-     * {-127, -128} = 256
-     * {127, 127} = 65535
+     * base-10 integer equivalent. b must be 2-tuple, most significant byte
+     * first and both bytes unsigned, as in RFC 1350 (network byte order).
+     * Block Number = (b[1] & 0xFF) + 256 * (b[0] & 0xFF), max = 65535.
+     * {0, 0} = 0
+     * {0, -128} = 128
+     * {0, -1} = 255
+     * {1, 0} = 256
+     * {-1, -1} = 65535
      *
      * @param b the byte array holding the 2-tuple base-256 bytes.
      * @return b in base-10 int format.
      * */
     private int fromByteToInt(byte[] b) {
         int base = Byte.MAX_VALUE + (-1 * Byte.MIN_VALUE) + 1; // 256
-        // ans = b[1] + 128 + 256 * (b[0] + 128)
-        return (b[1] + (-1 * Byte.MIN_VALUE) + base * (b[0]
-                + (-1 * Byte.MIN_VALUE)));
+        // ans = b[1] + 256 * b[0], both read as unsigned
+        return (b[1] & 0xFF) + base * (b[0] & 0xFF);
+    }
+
+    /**
+     * Returns the block number on the wire of a block number counted from
+     * the start of the transfer, rolled over to 'rollover' after 65535.
+     *
+     * @param block block number counted from the start of the transfer.
+     * @return block number from 0 to 65535 to be sent.
+     * @see BlockNumber#toWire(long, int)
+     * */
+    private int toWireBlock(long block) {
+        return BlockNumber.toWire(block, rollover);
+    }
+
+    /**
+     * Returns the block number counted from the start of the transfer of a
+     * block number received on the wire, closest to the reference.
+     *
+     * @param wireBlock block number from 0 to 65535 received.
+     * @param reference block number counted from the start of the transfer
+     *                  the received one is expected to be near to.
+     * @return block number counted from the start of the transfer.
+     * @see BlockNumber#fromWire(int, long, int)
+     * */
+    private long fromWireBlock(int wireBlock, long reference) {
+        return BlockNumber.fromWire(wireBlock, reference, rollover);
     }
 
     /**
      * Converts the number stored in integer base-10 format into a 2-tuple
-     * Byte array, with both bytes in base-256 from min -128 to max 127.
-     * Block Number = (b[1] + 128) + 256 * (b[0] + 128), max = 65535.
-     * {-128, -128} = 0
-     * {-128, 0} = 128
-     * {-128, 127} = 255
-     * {-127, -128} = 256
-     * {127, 127} = 65535
+     * Byte array, most significant byte first and both bytes unsigned, as in
+     * RFC 1350 (network byte order). Block numbers beyond 65535 are first
+     * rolled over with toWireBlock().
+     * Block Number = (b[1] & 0xFF) + 256 * (b[0] & 0xFF), max = 65535.
+     * {0, 0} = 0
+     * {0, -128} = 128
+     * {0, -1} = 255
+     * {1, 0} = 256
+     * {-1, -1} = 65535
      *
      * @param i number in base-10 integer format.
      * @return i in 2-tuple Byte array in base-256 (range of Byte) format.
@@ -536,8 +1319,8 @@ public class Client {
         int base = Byte.MAX_VALUE + (-1 * Byte.MIN_VALUE) + 1; // 256
         int max = base * (base - 1) + (base - 1); // 65535
 
-        byte zerothDigit = (byte) (i / base + Byte.MIN_VALUE); // i / 256 - 128
-        byte firstDigit = (byte) ((i % base) + Byte.MIN_VALUE); // i % 256 - 128
+        byte zerothDigit = (byte) (i / base); // i / 256
+        byte firstDigit = (byte) (i % base); // i % 256
 
         if (i >= 0 && i <= max) {
             return new byte[]{zerothDigit, firstDigit};
@@ -545,37 +1328,49 @@ public class Client {
             System.out.println("ERROR 461: Block number out of range "
                     + "[0, 65535]. ");
             System.out.println("Terminating thread.\n");
+            server.dumpEventsOnError(); // a fault of this Server
             terminatePrematurely("ERROR 461 raised.\n");
             return null;
         }
     }
 
+    /**
+     * Generates an OACK packet with the accepted options.
+     *
+     * @return OACK packet.
+     * */
+    private DatagramPacket produceOackPacket() {
+        byte[] contents = generateOpcode(Opcode.OACK);
+        byte[] zero = {0};
+        for (Map.Entry<String, String> option : acceptedOptions.entrySet()) {
+            contents = combineArr(contents, option.getKey().getBytes());
+            contents = combineArr(contents, zero);
+            contents = combineArr(contents, option.getValue().getBytes());
+            contents = combineArr(contents, zero);
+        }
+        return new DatagramPacket(contents, contents.length);
+    }
+
     /**
      * Generates a DatagramPacket DATA packet with the given input contents of
      * the packet, with length equalling the actual used space which may be
      * 516 bytes (DEFAULT_DATA_SIZE + 4) or lower to a minimum of 4 bytes.
      *
-     * @param buf character buffer of the DATA contents.
-     * @param readCount number of characters in character buffer.
+     * @param buf byte buffer of the DATA contents.
+     * @param readCount number of bytes in byte buffer.
      * @param numberOfBlock block number of this DATA packet.
      * @return DATA packet with contents and block number.
      * */
-    private DatagramPacket produceDataPacket(char[] buf, int readCount,
+    private DatagramPacket produceDataPacket(byte[] buf, int readCount,
                                                int numberOfBlock)
             throws IOException {
-        byte[] dataBuf = new byte[DEFAULT_DATA_SIZE];
-
-        // if only reading less than 512 chars, the read contents will be
-        // the last content of the file. dataBuf readjusted to reflect final
+        // if only reading less than 512 bytes, the read contents will be
+        // the last content of the file. dataBuf sized to reflect final
         // content length
-        if (readCount < DEFAULT_DATA_SIZE) {
-            dataBuf = new byte[readCount];
-        }
+        byte[] dataBuf = new byte[readCount];
 
         // copying readBuf into dataBuf
-        for (int i = 0; i < readCount; i++) {
-            dataBuf[i] = (byte) buf[i];
-        }
+        System.arraycopy(buf, 0, dataBuf, 0, readCount);
 
         // generating opcode for DATA
         byte[] dataOpcode = generateOpcode(Opcode.DATA);
@@ -594,110 +1389,357 @@ public class Client {
 
     /**
      * Returns the filename from a write request (WRQ) or read request (RRQ).
-     * Exits system if mode is not octet (and indirectly if the packet's
-     * contents do not resemble that of a WRQ or RRQ).
      *
      * @param packetContents raw content of received WRQ or RRQ.
-     * @return filename kept inside the WRQ or RRQ.
+     * @param length length of the received WRQ or RRQ.
+     * @return filename kept inside the WRQ or RRQ, null if the request is
+     * malformed: the filename is empty, or it or the mode is not ended
+     * with a zero byte.
      * */
-    protected String getFilename(byte[] packetContents) {
-
-        // getting the locations of the three zero bytes
-        // filename is located in index 2 : 2nd zero
-        // mode is located in index (2nd zero + 1) : 3rd zero
+    protected static String getFilename(byte[] packetContents, int length) {
         // per RFC: | 01/02 | Filename | 0 | Mode | 0 |
-        int index2ndZero = 0;
-        int index3rdZero = 0;
-        int index = 0;
-        for (byte b : packetContents) {
-            if (index > 0) {
-                if (b == 0) {
-                    if (index2ndZero == 0) {
-                        index2ndZero = index;
-                    } else {
-                        index3rdZero = index;
-                        break;
-                    }
+        int end = modeStart(packetContents, length) - 1;
+        if (end <= 2) {
+            return null;
+        }
+        return new String(packetContents, 2, end - 2);
+    }
+
+    /**
+     * Returns true if the mode of a well formed write request (WRQ) or read
+     * request (RRQ) is octet, in any case.
+     *
+     * @param packetContents raw content of received WRQ or RRQ.
+     * @param length length of the received WRQ or RRQ.
+     * @return whether the mode is octet.
+     * */
+    protected static boolean isOctet(byte[] packetContents, int length) {
+        int start = modeStart(packetContents, length);
+        String octet = "octet";
+        if (start < 0 || start + octet.length() >= length
+                || packetContents[start + octet.length()] != 0) {
+            return false;
+        }
+        for (int i = 0; i < octet.length(); i++) {
+            if (Character.toLowerCase((char) packetContents[start + i])
+                    != octet.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the mode in a write request (WRQ) or read
+     * request (RRQ), after the zero byte ending the filename.
+     *
+     * @param packetContents raw content of received WRQ or RRQ.
+     * @param length length of the received WRQ or RRQ.
+     * @return index of the mode, -1 if the filename or the mode is not
+     * ended with a zero byte within 'length'.
+     * */
+    private static int modeStart(byte[] packetContents, int length) {
+        int start = -1;
+        for (int index = 2; index < length; index++) {
+            if (packetContents[index] == 0) {
+                if (start >= 0) {
+                    return start;
                 }
+                start = index + 1;
             }
-            index++;
         }
+        return -1;
+    }
 
-        String nameOfFile = (new String(packetContents)).substring(2,
-                index2ndZero);
+    /**
+     * Returns the block number on the wire after 65535 requested with the
+     * rollover option, or the given default if not requested or invalid.
+     *
+     * @param defaultRollover rollover of the Server, 0 or 1.
+     * @return rollover of this Client, 0 or 1.
+     * */
+    private int requestedRollover(int defaultRollover) {
+        String requested = options.get(Constants.ROLLOVER_OPTION);
+        if ("0".equals(requested) || "1".equals(requested)) {
+            return Integer.parseInt(requested);
+        }
+        return defaultRollover;
+    }
+
+    /**
+     * Returns the windowsize requested with the windowsize option, at most
+     * Constants.MAX_WINDOW_SIZE, or 1 if not requested or invalid.
+     *
+     * @return windowsize of this Client.
+     * */
+    private int requestedWindowSize() {
+        try {
+            int requested = Integer.parseInt(options.getOrDefault(
+                    Constants.WINDOWSIZE_OPTION, "1"));
+            return requested < 1 ? 1
+                    : Math.min(requested, Constants.MAX_WINDOW_SIZE);
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * RRQ: Returns the block size requested with the blksize option (RFC
+     * 2348), held to the path MTU of this Client, or DEFAULT_DATA_SIZE if
+     * not requested or invalid.
+     *
+     * @return block size of this Client.
+     * */
+    private int requestedBlockSize() {
+        try {
+            int requested = Integer.parseInt(options.getOrDefault(
+                    Constants.BLKSIZE_OPTION, "0"));
+            if (requested < Constants.MIN_BLOCK_SIZE
+                    || requested > Constants.MAX_BLOCK_SIZE) {
+                return DEFAULT_DATA_SIZE;
+            }
+            return server.getPathMtu().blockSize(clientAddr,
+                    server.getAddress(), requested);
+        } catch (NumberFormatException e) {
+            return DEFAULT_DATA_SIZE;
+        }
+    }
 
-        // ensuring mode is octet
-        String octet =
-                (new String(packetContents)).substring((index2ndZero + 1),
-                        index3rdZero);
-        if (!octet.equals("octet")) {
-            System.out.println("ERROR 522: mode is not octet.");
-            slaveSocket.close();
-            System.exit(-1);
+    /**
+     * Returns the number of blocks of DEFAULT_DATA_SIZE the socket buffers
+     * take for a window of this Client.
+     *
+     * @return windowsize in blocks of DEFAULT_DATA_SIZE.
+     * */
+    private int bufferedBlocks() {
+        return windowSize * ((blockSize + DEFAULT_DATA_SIZE - 1)
+                / DEFAULT_DATA_SIZE);
+    }
+
+    /**
+     * WRQ: Returns the size of the file announced with tsize (RFC 2349).
+     *
+     * @return size in bytes, -1 if not announced or not a number.
+     * */
+    private long announcedSize() {
+        String size = options.get(Constants.TSIZE_OPTION);
+        if (size == null) {
+            return -1;
         }
+        try {
+            return Math.max(-1, Long.parseLong(size));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
-        return nameOfFile;
+    /**
+     * Returns the options (RFC 2347) appended after the mode of a write
+     * request (WRQ) or read request (RRQ), keyed by lower case option name.
+     * Malformed trailing content is ignored.
+     *
+     * @param packetContents raw content of received WRQ or RRQ.
+     * @param length length of the received WRQ or RRQ.
+     * @return options in order of appearance, empty if none.
+     * */
+    protected static Map<String, String> getOptions(byte[] packetContents,
+                                                    int length) {
+        // per RFC: | opc | filename | 0 | mode | 0 | opt1 | 0 | value1 | 0 |
+        Map<String, String> requestOptions = new LinkedHashMap<>();
+        int start = 2;
+        int field = 0;
+        String name = null;
+        for (int index = 2; index < length; index++) {
+            if (packetContents[index] != 0) {
+                continue;
+            }
+            String value = new String(packetContents, start, index - start);
+            if (field >= 2) { // past filename and mode
+                if (name == null) {
+                    name = value.toLowerCase();
+                } else {
+                    requestOptions.put(name, value);
+                    name = null;
+                }
+            }
+            field++;
+            start = index + 1;
+        }
+        return requestOptions.isEmpty() ? Collections.<String, String>emptyMap()
+                : requestOptions;
     }
 
     /**
-     * A blocking call to receive an acknowledgement packet (ACK). If an ACK
-     * with the expected block number is not received, the packet in line is
-     * resent. If non-ACK packet received, this method remains open and
-     * blocking until an ACK is received.
+     * A blocking call to receive the acknowledgement packet (ACK) of the
+     * packet in line. If non-ACK packet received, this method remains open
+     * and blocking until an ACK is received.
+     *
+     * An ACK of an earlier block is a duplicate, late or sent again by the
+     * Client, and is ignored: answering it by sending the packet in line
+     * again would have every later packet sent twice for as long as the
+     * transfer lasts (the Sorcerer's Apprentice Syndrome, RFC 1123 4.2.3.1).
+     * Only the timeout sends it again. Ignored packets do not extend the
+     * wait, which ends within the timeout of the slave socket.
      *
      * Timeout is not initiated or handled here.
      *
      * @param expectedAcknowNum expected block number of incoming ACK.
-     * @param packetInLine packet to be sent if the expected ACK is not
-     *                     received.
+     * @param packetInLine packet whose ACK is awaited.
      * @return received acknowledgement packet.
+     * @throws SocketTimeoutException if the expected ACK is not received
+     * within the timeout.
      * @throws IOException if an I/O error occurs.
      * */
-    private DatagramPacket receiveAck(int expectedAcknowNum,
+    private DatagramPacket receiveAck(long expectedAcknowNum,
                                         DatagramPacket packetInLine)
             throws IOException {
-
-        // fixing port number of client
-        // int clientPort = packetInLine.getPort();
-        // InetAddress clientAddr = packetInLine.getAddress();
-
-        // create buffer to receive ACK packet
-        byte[] bufACK = new byte[4];
+        // create buffer to receive ACK packet, large enough for any packet
+        // of this Client
+        byte[] bufACK = new byte[DEFAULT_DATA_SIZE + 4];
         DatagramPacket ackPacket = new DatagramPacket(bufACK, bufACK.length);
 
-        // receive and verify opcode is ACK and from clientPort
-        do {
-            slaveSocket.receive(ackPacket);
-        } while (!verifySocAddr(ackPacket, clientAddr, clientPort)
-                || !verifyPacketOpcode(ackPacket, Opcode.ACK));
-
-
-        // verifying expected ACK block number
-        byte[] blockReceived = {bufACK[2], bufACK[3]};
-        int ackReceived = fromByteToInt(blockReceived);
-        if (ackReceived < expectedAcknowNum) {
-            System.out.println("NOTE 002: ackReceived " + ackReceived
-                    + " < expectedAcknowNum " + expectedAcknowNum
-                    + ". DATA lost in network. ");
-            udtSend(packetInLine, clientPort, clientAddr);
-        } else if (ackReceived == expectedAcknowNum) {
-            if (packetInLine.getLength() < DEFAULT_DATA_SIZE + 4) {
-                System.out.println("Final data block " + ackReceived
-                        + " successfully acknowledged. Terminating thread.");
-            } else {
-                System.out.println("Data block " + ackReceived
-                        + " successfully acknowledged. Sending next block.");
+        int timeout = slaveSocket.getSoTimeout();
+        long deadline = System.nanoTime() + timeout * 1_000_000L;
+        try {
+            // receive and verify opcode is ACK, of the block in line
+            while (true) {
+                do {
+                    receiveFromClient(ackPacket);
+                } while (!verifyPacketOpcode(ackPacket, Opcode.ACK));
+
+                long ackReceived = fromWireBlock(BlockNumber.read(bufACK),
+                        expectedAcknowNum);
+                received(Opcode.ACK, ackReceived, 0);
+                if (ackReceived == expectedAcknowNum) {
+                    break;
+                } else if (ackReceived > expectedAcknowNum) {
+                    server.reject("ACK of a block not sent", ackPacket);
+                } else {
+                    System.out.println("NOTE 002: ackReceived "
+                            + ackReceived + " < expectedAcknowNum "
+                            + expectedAcknowNum + ". Duplicate ignored.\n");
+                }
+                if (timeout > 0) {
+                    shortenTimeout(deadline);
+                }
             }
-            System.out.println();
+        } finally {
+            slaveSocket.setSoTimeout(timeout);
+        }
+
+        if (expectedAcknowNum == 0) {
+            System.out.println("OACK successfully acknowledged. Sending "
+                    + "first block.");
+        } else if (packetInLine.getLength() < blockSize + 4) {
+            System.out.println("Final data block " + expectedAcknowNum
+                    + " successfully acknowledged. Terminating thread.");
         } else {
-            System.out.println("ERROR 004: ackReceived " + ackReceived
-                    + " > expectedAcknowNum " + expectedAcknowNum + ".");
-            slaveSocket.close();
-            System.exit(-1);
+            System.out.println("Data block " + expectedAcknowNum
+                    + " successfully acknowledged. Sending next block.");
         }
+        System.out.println();
         return ackPacket;
     }
 
+    /**
+     * Sets the timeout of the slave socket to what is left of a wait, so
+     * that packets ignored while waiting do not extend it.
+     *
+     * @param deadline System.nanoTime() the wait ends at.
+     * @throws SocketTimeoutException if the wait is over.
+     * @throws SocketException if the slave socket is closed.
+     * */
+    private void shortenTimeout(long deadline) throws SocketException,
+            SocketTimeoutException {
+        long left = deadline - System.nanoTime();
+        if (left < 1_000_000L) {
+            throw new SocketTimeoutException("Timeout waiting for ACK.");
+        }
+        slaveSocket.setSoTimeout((int) (left / 1_000_000L));
+    }
+
+    /**
+     * A blocking call to receive the acknowledgement packet (ACK) of a
+     * window. Packets other than an ACK from this Client are ignored.
+     *
+     * Timeout is not initiated or handled here.
+     *
+     * @param end last block of the window.
+     * @return block number acknowledged.
+     * @throws IOException if an I/O error occurs.
+     * */
+    private long receiveWindowAck(long end) throws IOException {
+        byte[] bufACK = new byte[DEFAULT_DATA_SIZE + 4];
+        DatagramPacket ackPacket = new DatagramPacket(bufACK, bufACK.length);
+        do {
+            receiveFromClient(ackPacket);
+        } while (!verifyPacketOpcode(ackPacket, Opcode.ACK));
+
+        long ackReceived = fromWireBlock(BlockNumber.read(bufACK), end);
+        received(Opcode.ACK, ackReceived, 0);
+        return ackReceived;
+    }
+
+    /**
+     * Receives the next packet from this Client at the slave socket: the
+     * one held for it while another Client had its turn if any, else the
+     * next one to arrive. Packets of other Clients arriving meanwhile are
+     * held for them in the sessions of the Server rather than dropped.
+     *
+     * Timeout is not initiated or handled here.
+     *
+     * @param packet packet to receive into, with a buffer of at least
+     *               DEFAULT_DATA_SIZE + 4 bytes.
+     * @throws IOException if an I/O error occurs.
+     * */
+    private void receiveFromClient(DatagramPacket packet) throws IOException {
+        byte[] buf = packet.getData();
+        int length = sessions.take(slot, buf);
+        if (length >= 0) {
+            packet.setData(buf, 0, length);
+            packet.setAddress(clientAddr);
+            packet.setPort(clientPort);
+            return;
+        }
+        while (true) {
+            packet.setData(buf, 0, buf.length);
+            slaveSocket.receive(packet);
+            if (verifySocAddr(packet, clientAddr, clientPort)) {
+                return;
+            }
+            // only well formed packets are looked up for another Client
+            if (packet.getLength() < 4 || buf[0] != 0
+                    || buf[1] < Opcode.DATA.ordinal()
+                    || buf[1] > Opcode.ERROR.ordinal()) {
+                server.reject("malformed packet", packet);
+            } else if (!sessions.hold(packet.getAddress(), packet.getPort(),
+                    buf, packet.getLength())) {
+                server.reject("packet of an unknown TID", packet);
+            }
+        }
+    }
+
+    /**
+     * Records an ACK or DATA received from this Client in the event ring of
+     * the Server and, if the Server captures traffic, in its capture.
+     *
+     * @param opcode ACK or DATA.
+     * @param block block number counted from the start of the transfer.
+     * @param length length of the DATA content, 0 for ACK.
+     * */
+    private void received(Opcode opcode, long block, int length) {
+        server.getEvents().record(clientPort, opcode.ordinal(), (int) block,
+                EventRing.RECEIVE);
+        if (sentAt != null && opcode == Opcode.ACK) {
+            acknowledged(block);
+        }
+        TrafficCapture capture = server.getCapture();
+        if (capture != null) {
+            capture.packet(new InetSocketAddress(clientAddr, clientPort),
+                    opcode, block, length);
+        }
+    }
+
     /**
      * Sends a DatagramPacket to the given port and internet address.
      *
@@ -707,8 +1749,26 @@ public class Client {
      * */
     private void udtSend(DatagramPacket packet, int port,
                            InetAddress addr) throws IOException {
+        udtSend(packet, port, addr, false);
+    }
+
+    /**
+     * Sends a DatagramPacket to the given port and internet address once
+     * the rate limits of this Client allow it, and records it in the event
+     * ring of the Server.
+     *
+     * @param packet packet to be sent.
+     * @param port port number of destination remote host.
+     * @param addr internet address of destination remote host.
+     * @param retransmit whether the packet was sent before.
+     * */
+    private void udtSend(DatagramPacket packet, int port,
+                           InetAddress addr, boolean retransmit)
+            throws IOException {
         packet.setAddress(addr);
         packet.setPort(port);
+        int flags = retransmit
+                ? EventRing.SEND | EventRing.RETRANSMIT : EventRing.SEND;
 
         // Unnecessary random variable to invoke lost packet simulations
         double random = Math.random();
@@ -716,101 +1776,195 @@ public class Client {
         // System.out.println(Constants.LOST_PROBABILITY);
         if (random < (1 - Constants.LOST_PROBABILITY)) {
             try {
+                server.getShaper().pace(buckets, packet.getLength());
                 slaveSocket.send(packet);
+                server.packetServed();
             } catch (IllegalArgumentException ioe) {
                 System.out.println(ioe.getMessage() + "\n");
             }
         } else {
             System.out.println("Packet made lost.");
+            flags |= EventRing.LOST;
+        }
+
+        byte[] contents = packet.getData();
+        int opcode = contents[1];
+        int block = 0;
+        if (opcode == Opcode.DATA.ordinal() || opcode == Opcode.ACK.ordinal()) {
+            block = (int) fromWireBlock(BlockNumber.read(contents),
+                    slot < 0 ? 0 : sessions.getBlock(slot));
+        } else if (opcode == Opcode.ERROR.ordinal()) {
+            block = contents[3]; // error code
         }
+        server.getEvents().record(port, opcode, block, flags);
+        if (retransmit) {
+            retransmits++;
+        }
+        if (sentAt != null && opcode == Opcode.DATA.ordinal()) {
+            int index = 2 * Math.floorMod(block, windowSize);
+            sentAt[index] = block;
+            sentAt[index + 1] = retransmit ? 0 : System.nanoTime();
+        }
+    }
+
+    /**
+     * Returns how long the next DATA of this Client is held back, as by
+     * delay(long), under the engines taking turns: the next block is that
+     * of the window part sent, else the block in attempt.
+     *
+     * @return nanoseconds to wait, 0 if the next DATA can be sent now.
+     * */
+    protected long delay() {
+        return delay(windowNext != 0 ? windowNext
+                : file != null ? sessions.getBlock(slot) : 0);
     }
 
     /**
-     * Ensures a packet has the expected opcode. Returns true if the expected
-     * opcode matches packet's opcode. False otherwise. Exits the system if a
-     * packet's opcode is ERROR but the expected opcode is not ERROR, for
-     * example, if a WRQ packet is responded with a FILE_NOT_FOUND error.
+     * Returns how long a DATA of this Client, of the negotiated block
+     * size, is held back by its rate limits or, in a window part sent, by
+     * pacing. A RRQ whose block has not yet arrived in the Storage, as a
+     * file still fetched by a RelayStorage, is asked again after
+     * Constants.STORAGE_POLL_INTERVAL rather than wait for it in a read.
+     *
+     * @param block block number of the DATA.
+     * @return nanoseconds to wait, 0 if the DATA can be sent now.
+     * */
+    protected long delay(long block) {
+        long wait = Shaper.delay(buckets, blockSize + 4);
+        if (windowNext != 0) {
+            wait = Math.max(wait, windowDue - System.nanoTime());
+        }
+        if (file != null && !file.ready(Math.min(block * blockSize,
+                file.size()))) {
+            wait = Math.max(wait, Constants.STORAGE_POLL_INTERVAL
+                    * 1_000_000L);
+        }
+        return wait;
+    }
+
+    /**
+     * Records a timeout waiting for this Client in the event ring of the
+     * Server and, if recorded, as a flight recorder event.
+     *
+     * @param awaited opcode of the packet awaited, ACK or DATA.
+     * @param block block number awaited, counted from the start of the
+     *              transfer.
+     * */
+    private void timedOut(Opcode awaited, long block) {
+        server.getEvents().record(clientPort, awaited.ordinal(), (int) block,
+                EventRing.TIMEOUT);
+        timeouts++;
+        if (requestOpcode == Opcode.RRQ && blockSize > DEFAULT_DATA_SIZE
+                && file != null && file.size() >= blockSize
+                && sessions.getBlock(slot) == 1
+                && sessions.getState(slot) != SessionTable.NEGOTIATING
+                && ++blackHoleTimeouts == Constants.MTU_PROBE_TIMEOUTS) {
+            // the OACK got through but no full block did: too large for
+            // the path
+            server.getPathMtu().blackHole(clientAddr, blockSize);
+        }
+        FlightEvents.Timeout event = new FlightEvents.Timeout();
+        if (event.isEnabled()) {
+            event.file = filename;
+            event.client = clientAddr.getHostAddress();
+            event.port = clientPort;
+            event.awaited = awaited.toString();
+            event.block = block;
+            event.commit();
+        }
+    }
+
+    /**
+     * RRQ: Records the latency of a block acknowledged as a flight recorder
+     * event if above Constants.BLOCK_EVENT_THRESHOLD, or if the block is
+     * one in Constants.BLOCK_EVENT_SAMPLE. Blocks sent again are not timed
+     * (Karn).
+     *
+     * @param block block number acknowledged, counted from the start of
+     *              the transfer.
+     * */
+    private void acknowledged(long block) {
+        int index = 2 * (int) Math.floorMod(block, (long) windowSize);
+        long sent = sentAt[index + 1];
+        if (sentAt[index] != block || sent == 0) {
+            return;
+        }
+        sentAt[index + 1] = 0;
+        long latency = System.nanoTime() - sent;
+        if (latency < Constants.BLOCK_EVENT_THRESHOLD * 1_000_000L
+                && block % Constants.BLOCK_EVENT_SAMPLE != 0) {
+            return;
+        }
+        FlightEvents.BlockLatency event = new FlightEvents.BlockLatency();
+        event.file = filename;
+        event.client = clientAddr.getHostAddress();
+        event.port = clientPort;
+        event.block = block;
+        event.latency = latency;
+        event.commit();
+    }
+
+    /**
+     * Commits the flight recorder event of a slow read or write of the file
+     * of this Client.
+     *
+     * @param stall event, ended.
+     * @param write true for a write, false for a read.
+     * @param offset offset in the file.
+     * @param bytes bytes read or written.
+     * */
+    private void commitStall(FlightEvents.DiskStall stall, boolean write,
+                             long offset, int bytes) {
+        stall.file = filename;
+        stall.client = clientAddr.getHostAddress();
+        stall.port = clientPort;
+        stall.write = write;
+        stall.offset = offset;
+        stall.bytes = bytes;
+        stall.commit();
+    }
+
+    /**
+     * Ensures a packet of this Client has the expected opcode, DATA or ACK,
+     * in constant time. Returns true if the expected opcode matches
+     * packet's opcode. False otherwise, rejecting the packet. Gives up this
+     * Client if the packet is an ERROR other than UNKNOWN_TID, for example,
+     * if the Client cancels the transfer.
      *
      * @param recv packet whose opcode is to be compared.
-     * @param op expected opcode.
+     * @param op expected opcode, DATA or ACK.
      * @return true if packet's opcode is the expected opcode. False
-     * otherwise. Exits the system if packet's opcode is ERROR when expected
-     * opcode is not ERROR.
+     * otherwise.
+     * @throws IOException if an ERROR is received, having given up this
+     * Client.
      * */
     private boolean verifyPacketOpcode(DatagramPacket recv, Opcode op)
             throws IOException {
         byte[] recvBuf = recv.getData();
-        boolean isRRQ =
-                ((generateOpcode(Opcode.RRQ)[1]) == recvBuf[1]);
-        boolean isWRQ =
-                ((generateOpcode(Opcode.WRQ)[1]) == recvBuf[1]);
-        boolean isData =
-                ((generateOpcode(Opcode.DATA)[1]) == recvBuf[1]);
-        boolean isError =
-                ((generateOpcode(Opcode.ERROR)[1]) == recvBuf[1]);
-        boolean isAck =
-                ((generateOpcode(Opcode.ACK)[1]) == recvBuf[1]);
-        switch (op) {
-            case RRQ:
-                if (isRRQ) {
-                    System.out.println("Request received: RRQ from "
-                            + "addr " + recv.getAddress() + " port "
-                            + recv.getPort() + ".");
-                    return true;
-                }
-                break;
-            case WRQ:
-                if (isWRQ) {
-                    System.out.println("Request received: WRQ from "
-                            + "addr " + recv.getAddress() + " port "
-                            + recv.getPort() + ".");
-                    return true;
-                }
-                break;
-            case DATA:
-                if (isData) {
-                    return true;
-                }
-                break;
-            case ERROR:
-                if (isError) {
-                    int errorCode = recvBuf[3];
-                    String dataReceived = new String(recvBuf);
-                    String errMsg = dataReceived.substring(4,
-                            recv.getLength() - 1);
-                    System.out.println("ERROR 454: Expected error code "
-                            + errorCode + " with message: " + errMsg);
-                    System.out.println();
-                    return true;
-                }
-                break;
-            case ACK:
-                if (isAck) {
-                    return true;
-                }
-                break;
-            default:
-                System.out.println("ERROR 631: Unknown opcode of data "
-                        + "received: " + recvBuf[1]);
-                System.out.println();
-                System.out.println("Terminating server...");
-                slaveSocket.close();
-                System.exit(-1);
-        }
-        if (isError) {
-            int errorCode = recvBuf[3];
-            String dataReceived = new String(recvBuf);
-            try {
-                String errMsg = dataReceived.substring(4, recv.getLength() - 1);
-                System.out.println("ERROR 978: Unexpected error code 0"
-                        + errorCode + " with message: " + errMsg + ".\n");
-            } catch (IndexOutOfBoundsException ioe) {
-                System.out.println(ioe.getMessage() + "\n");
-            }
-            if (errorCode != Error.UNKNOWN_TID.ordinal()) {
-                System.out.println("Terminating thread.\n");
-                terminatePrematurely("ERROR 977 raised.\n");
-            }
+        if (recv.getLength() < 4 || recvBuf[0] != 0) {
+            server.reject("malformed packet", recv);
+            return false;
+        }
+        if (recvBuf[1] == op.ordinal()) {
+            return true;
+        }
+        if (recvBuf[1] != Opcode.ERROR.ordinal()) {
+            server.reject("packet out of sequence", recv);
+            return false;
+        }
+
+        int errorCode = recvBuf[3];
+        // message up to its zero byte, if any
+        int end = 4;
+        while (end < recv.getLength() && recvBuf[end] != 0) {
+            end++;
+        }
+        System.out.println("ERROR 978: Unexpected error code 0" + errorCode
+                + " with message: " + new String(recvBuf, 4, end - 4)
+                + ".\n");
+        if (errorCode != Error.UNKNOWN_TID.ordinal()) {
+            System.out.println("Terminating thread.\n");
+            terminatePrematurely("ERROR 977 raised.\n");
         }
         return false;
     }
@@ -824,15 +1978,31 @@ public class Client {
      * @param addr internet address of client.
      * @throws IOException if an I/O error occurs.
      * */
-    private void sendACK(int block, int port, InetAddress addr)
+    private void sendACK(long block, int port, InetAddress addr)
             throws IOException {
-        byte[] blockInBytes = fromIntToByte(block);
+        sendACK(block, port, addr, false);
+    }
+
+    /**
+     * Sends an acknowledgement packet (ACK) with the specified block number to
+     * the server.
+     *
+     * @param block block number of DATA packet to be acknowledged, counted
+     *              from the start of the transfer.
+     * @param port port number of client.
+     * @param addr internet address of client.
+     * @param retransmit whether this ACK was sent before.
+     * @throws IOException if an I/O error occurs.
+     * */
+    private void sendACK(long block, int port, InetAddress addr,
+                         boolean retransmit) throws IOException {
+        byte[] blockInBytes = fromIntToByte(toWireBlock(block));
         assert blockInBytes != null;
         byte[] packetContents = combineArr(generateOpcode(Opcode.ACK),
                 blockInBytes);
         DatagramPacket ackToSend = new DatagramPacket(packetContents,
                 packetContents.length);
-        udtSend(ackToSend, port, addr);
+        udtSend(ackToSend, port, addr, retransmit);
     }
 
     /**
@@ -880,7 +2050,8 @@ public class Client {
             case FILE_NOT_FOUND:
                 // {0, 1}
                 errCode = new byte[]{0, (byte) Error.FILE_NOT_FOUND.ordinal()};
-                String nameOfFile = getFilename(received.getData());
+                String nameOfFile = getFilename(received.getData(),
+                        received.getLength());
                 message = "File " + nameOfFile + " not found.";
                 terminate = true;
                 break;
@@ -925,6 +2096,13 @@ public class Client {
                 message = "Mo such user.";
                 terminate = true;
                 break;
+            case OPTION_NEGOTIATION:
+                // {0, 8}
+                errCode = new byte[]{0, (byte) Error.OPTION_NEGOTIATION
+                        .ordinal()};
+                message = "Option negotiation refused.";
+                terminate = true;
+                break;
             default:
                 message = "Not defined.";
                 System.out.println("ERROR 993: Unknown Error Opcode.");
@@ -943,6 +2121,7 @@ public class Client {
 
         if (terminate) {
             System.out.println("Terminating thread.\n");
+            complete = false;
             removeFromStatus(clientAddr, clientPort);
         }
     }
@@ -989,92 +2168,114 @@ public class Client {
     }
 
     /**
-     * Removes client from the mainStatus in TFTPServer after all processes
-     * with client is done and connection closes with that client.
+     * Marks this Client done after all processes with client are done and
+     * connection closes with that client. TFTPServerThread then removes it
+     * from the mainStatus in TFTPServer.
      *
      * @param addr internet address of client to be removed.
      * @param port port of client to be removed
      * */
     private void removeFromStatus(InetAddress addr, int port) {
-        InetSocketAddress toRemove = null;
-        for (Map.Entry<InetSocketAddress, Client> i
-                : TFTPServer.mainStatusPending.entrySet()) {
-            InetSocketAddress current = i.getKey();
-            if (current.equals(new InetSocketAddress(addr, port))) {
-                toRemove = current;
+        if (finished) {
+            return; // the slot may already be another Client's
+        }
+        if (session != null) {
+            session.request = requestOpcode.toString();
+            session.file = filename;
+            session.client = clientAddr.getHostAddress();
+            session.port = clientPort;
+            if (requestOpcode == Opcode.WRQ) {
+                session.size = sessions.getOffset(slot);
             }
+            session.blockSize = blockSize;
+            session.windowSize = windowSize;
+            session.retransmits = retransmits;
+            session.timeouts = timeouts;
+            session.complete = complete;
+            session.commit();
         }
+        // closed first: the TID is free for a new request once removed
+        sessions.close(slot);
+        finished = true;
+        if (slot >= 0) {
+            server.getTuner().closed(bufferedBlocks());
+        }
+        server.getShaper().release(buckets);
+    }
 
-        if (toRemove != null) {
-            TFTPServer.mainStatusPending.remove(toRemove);
+    /**
+     * Returns the buffer attached for a turn of this Client to the pool.
+     * Nothing is done once this Client is finished: closing its session
+     * returned the buffer, and the slot may already be another Client's.
+     * */
+    private void detach() {
+        if (!finished) {
+            sessions.detach(slot);
         }
     }
 
     /**
      * Terminates this Client (remove from TFTPServer.mainStatus). Called if
-     * a terminating error is raised. Does not close slaveSocket.
+     * a terminating error is raised. Does not close slaveSocket. Events are
+     * not dumped here: an ERROR from the Client, such as the abort of a
+     * tsize probe, is routine.
      *
      * @param errMsg error message raised.
      *
-     * @throws IOException if an I/O error occurs.
+     * @throws IOException always, with the error message.
      * */
     private void terminatePrematurely(String errMsg) throws IOException {
-        removeFromStatus(clientAddr, clientPort);
+        release();
         throw new IOException(errMsg);
     }
 
     /**
-     * Generates either a write request (WRQ) packet or read request (RRQ)
-     * packet filled with a nameOfFile. Packet is without a predefined address
-     * or port number.
+     * Gives up this Client after a fault in its transfer, so that the fault
+     * ends this Client only and never the threads of the Server. Notes it at
+     * most once every Constants.REJECT_LOG_INTERVAL. Does nothing if this
+     * Client is already done.
      *
-     * @param opcode opcode of operation, whether WRQ or RRQ.
-     * @param nameOfFile name of file to be read or written.
-     * @param addr Internet address of source Client of this request.
-     * @param port port number of source Client of this request.
-     * @return WRQ or RRQ for file in question without address or port number.
+     * @param fault exception raised by the transfer.
      * */
-    protected DatagramPacket generateRequestPacket(Opcode opcode,
-                                                 String nameOfFile,
-                                                 InetAddress addr, int port) {
-        byte[] opcodeInByte = {Byte.MIN_VALUE, Byte.MIN_VALUE};
-        if (opcode == Opcode.RRQ) {
-            // getting opcode
-            opcodeInByte = generateOpcode(Opcode.RRQ);
-        } else if (opcode == Opcode.WRQ) {
-            // getting opcode
-            opcodeInByte = generateOpcode(Opcode.WRQ);
-        } else {
-            System.out.println("ERROR 005: Opcode is not RRQ or WRQ.");
-            slaveSocket.close();
-            System.exit(-1);
+    protected void fail(Exception fault) {
+        if (finished) {
+            return;
         }
-
-        // getting mode, here remaining as octet
-        String mode = "octet";
-
-        // producing RRQ
-        byte[] firstContentInBytes = combineArr(opcodeInByte,
-                nameOfFile.getBytes());
-        byte[] zero = {0};
-        byte[] secondContentInBytes = combineArr(firstContentInBytes, zero);
-        byte[] thirdContentInBytes = combineArr(secondContentInBytes,
-                mode.getBytes());
-        byte[] finalContentInBytes = combineArr(thirdContentInBytes, zero);
-        return new DatagramPacket(finalContentInBytes,
-                finalContentInBytes.length, addr, port);
+        LogLimiter log = server.getRejectLog();
+        if (log.allow()) {
+            log.print("NOTE 142: Client " + clientAddr + ", " + clientPort
+                    + " given up. " + fault);
+        }
+        server.dumpEventsOnError();
+        release();
     }
 
-
+    /**
+     * Aborts the file written or closes the file read, if any, and removes
+     * this Client.
+     * */
+    private void release() {
+        complete = false;
+        if (upload != null) {
+            upload.abort();
+            upload = null;
+        }
+        if (file != null) {
+            file.close();
+            file = null;
+        }
+        removeFromStatus(clientAddr, clientPort);
+    }
 
     // getters and setters------------------------------------------------------
 
     /**
      * RRQ: Returns current block number being sent in an RRQ.
-     * @return current block number being sent.
+     * @return current block number being sent, counted from the start of
+     * the transfer.
      * */
-    public int getBlockNumber() {
-        return blockNumber;
+    public long getBlockNumber() {
+        return requestOpcode == Opcode.RRQ ? sessions.getBlock(slot) : -1;
     }
     /**
      * Returns the initial request of the Client, whether a WRQ or RRQ.
@@ -1090,6 +2291,62 @@ public class Client {
     public String getFilename() {
         return filename;
     }
+    /**
+     * Returns the size of the file read, opened by startRead().
+     * @return size in bytes, -1 for a WRQ.
+     * */
+    public long getFileSize() {
+        return file != null ? file.size() : -1;
+    }
+    /**
+     * Returns the slot of this Client in the sessions of the Server.
+     * @return slot, -1 for a throw-away Client.
+     * */
+    protected int getSlot() {
+        return slot;
+    }
+    /**
+     * Returns true once this Client is done and may be dropped.
+     * @return whether this Client is done.
+     * */
+    protected boolean isFinished() {
+        return finished;
+    }
+    /**
+     * Returns the congestion control of a windowed RRQ.
+     * @return congestion control, null if stop-and-wait.
+     * */
+    public CongestionControl getCongestionControl() {
+        return congestion;
+    }
+    /**
+     * Returns the rate limits of the packets sent to this Client.
+     * @return token buckets, empty if unlimited.
+     * */
+    protected TokenBucket[] getBuckets() {
+        return buckets;
+    }
+    /**
+     * Returns the time the request of this Client was received.
+     * @return System.nanoTime() at the request.
+     * */
+    public long getRequestTime() {
+        return requestTime;
+    }
+    /**
+     * Returns the number of packets sent again to this Client.
+     * @return packets retransmitted.
+     * */
+    public int getRetransmits() {
+        return retransmits;
+    }
+    /**
+     * Returns the number of timeouts waiting for this Client.
+     * @return timeouts.
+     * */
+    public int getTimeouts() {
+        return timeouts;
+    }
     /**
      * Returns port number of this Client.
      * @return port of Client.
@@ -1106,10 +2363,11 @@ public class Client {
     }
     /**
      * WRQ: Returns expected DATA block number to be received in a WRQ.
-     * @return expected DATA block to be received.
+     * @return expected DATA block to be received, counted from the start of
+     * the transfer.
      * */
-    public int getBlockExpected() {
-        return blockExpected;
+    public long getBlockExpected() {
+        return requestOpcode == Opcode.WRQ ? sessions.getBlock(slot) : -1;
     }
     // END OF FILE
 }
@@ -0,0 +1,205 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Command line benchmark comparing the goodput of windowed transfers with a
+ * fixed window against congestion control, over ImpairedLinks with the
+ * impairment profiles below. Every transfer reads one file from a
+ * TFTPServer on loopback with a MemoryStorage, so the disk plays no part;
+ * the console output of the Servers is discarded for the same reason.
+ *
+ * Usage: java transport.CongestionBench [-s size] [-w windowsize,...]
+ * [-n repeat] [-e engine] [profile ...]
+ *
+ * Runs every profile (all by default) with every fixed windowsize (4, 16
+ * and 64 by default) and then with congestion control up to the largest,
+ * each 'repeat' times (1 by default), on Servers of 'engine'
+ * (DEFICIT_ROUND_ROBIN by default), and prints per run the goodput, the
+ * time to complete and the DATA packets sent by the Server per block.
+ *
+ * Profiles:
+ * clean, no impairment;
+ * wan, 20 ms each way and 0.1% loss behind a 2 MB/s bottleneck;
+ * lossy, 5 ms each way and 2% random loss;
+ * shallow, 10 ms each way behind a 1 MB/s bottleneck queueing 8 packets.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class CongestionBench {
+    /** Name of the file transferred. */
+    private static final String FILE = "bench.bin";
+    /** Names of the impairment profiles. */
+    private static final String[] PROFILES = {"clean", "wan", "lossy",
+            "shallow"};
+
+    /**
+     * Main method.
+     *
+     * @param args options and profiles, see the class description.
+     * @throws IOException if a Server cannot be started.
+     * */
+    public static void main(String[] args) throws IOException {
+        int size = 4 << 20;
+        List<Integer> windows = new ArrayList<>();
+        int repeat = 1;
+        Engine engine = Engine.DEFICIT_ROUND_ROBIN;
+        List<String> profiles = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-s":
+                        size = Integer.parseInt(args[++i]);
+                        break;
+                    case "-w":
+                        for (String window : args[++i].split(",")) {
+                            windows.add(Integer.parseInt(window));
+                        }
+                        break;
+                    case "-n":
+                        repeat = Integer.parseInt(args[++i]);
+                        break;
+                    case "-e":
+                        engine = Engine.valueOf(args[++i]);
+                        break;
+                    default:
+                        if (profile(args[i]) == null) {
+                            throw new IllegalArgumentException("Unknown "
+                                    + "profile " + args[i] + ".");
+                        }
+                        profiles.add(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("ERROR 711: Missing value of "
+                    + args[args.length - 1] + ".");
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR 712: " + e.getMessage());
+            return;
+        }
+        if (windows.isEmpty()) {
+            windows.add(4);
+            windows.add(16);
+            windows.add(Constants.MAX_WINDOW_SIZE);
+        }
+        if (profiles.isEmpty()) {
+            profiles.addAll(List.of(PROFILES));
+        }
+        int limit = 1;
+        for (int window : windows) {
+            limit = Math.max(limit, window);
+        }
+
+        byte[] contents = new byte[size];
+        new Random(size).nextBytes(contents);
+        MemoryStorage storage = new MemoryStorage();
+        storage.put(FILE, contents);
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            out.println(String.format("%-8s %-10s %10s %10s %10s", "profile",
+                    "window", "MB/s", "ms", "sent/block"));
+            for (String name : profiles) {
+                for (int window : windows) {
+                    for (int run = 0; run < repeat; run++) {
+                        out.println(run(name, storage, engine, window, false));
+                    }
+                }
+                for (int run = 0; run < repeat; run++) {
+                    out.println(run(name, storage, engine, limit, true));
+                }
+            }
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Reads the file once through a new Server and ImpairedLink.
+     *
+     * @param name name of the impairment profile.
+     * @param storage storage holding the file.
+     * @param engine engine of the Server.
+     * @param window windowsize requested.
+     * @param adaptive whether the Server runs congestion control.
+     * @return line of the report.
+     * @throws IOException if the Server cannot be started.
+     * */
+    private static String run(String name, Storage storage, Engine engine,
+                              int window, boolean adaptive)
+            throws IOException {
+        TFTPServer server = TFTPServer.builder().port(0).storage(storage)
+                .engine(engine).congestionControl(adaptive).build();
+        server.start();
+        String mode = (adaptive ? "cc " : "fixed ") + window;
+        try (ImpairedLink link = profile(name).open(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), server.getPort()));
+             TFTPClient client = TFTPClient.builder().windowSize(window)
+                     .build()) {
+            TFTPClient.Transfer transfer = client.get(link.getAddress(), FILE,
+                    OutputStream.nullOutputStream());
+            return String.format("%-8s %-10s %10.2f %10d %10.2f", name, mode,
+                    transfer.getThroughput() / 1e6,
+                    transfer.getDuration() / 1_000_000,
+                    (double) link.getSentByServer() / transfer.getBlocks());
+        } catch (IOException e) {
+            return String.format("%-8s %-10s ERROR 713: %s", name, mode,
+                    e.getMessage());
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Returns the impairments of a profile.
+     *
+     * @param name name of the profile.
+     * @return Builder of the impairments, null if there is no such profile.
+     * */
+    private static ImpairedLink.Builder profile(String name) {
+        switch (name) {
+            case "clean":
+                return ImpairedLink.builder();
+            case "wan":
+                return ImpairedLink.builder().delay(20).loss(0.001)
+                        .rate(2_000_000).queue(64);
+            case "lossy":
+                return ImpairedLink.builder().delay(5).loss(0.02);
+            case "shallow":
+                return ImpairedLink.builder().delay(10).rate(1_000_000)
+                        .queue(8);
+            default:
+                return null;
+        }
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,194 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+/**
+ * Loss-driven congestion control of the windowed transfer of one Client
+ * (RFC 7440). The window starts at Constants.INITIAL_WINDOW blocks, doubles
+ * every window acknowledged in slow start up to the slow start threshold,
+ * then grows by one block per round trip. It is cut to 0.7 times when the
+ * Client acknowledges only part of a window, and falls back to one block on
+ * timeout. A duplicate ACK of a block already acknowledged is ignored and
+ * leaves the window as it is: a late duplicate cannot be told from a sign
+ * of loss. It never exceeds the negotiated windowsize.
+ *
+ * The Client acknowledges every 'windowsize' blocks whatever the window, so
+ * the window is enforced by pacing rather than by the number of blocks in
+ * flight: the blocks of a windowsize are spaced by round trip / (2 *
+ * window), twice the rate of one window per round trip as TCP paces in slow
+ * start, so that a windowsize never arrives at a queue in one burst.
+ *
+ * When disabled, the window stays at the negotiated windowsize and blocks
+ * are never paced, as with a fixed window.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class CongestionControl {
+    /** Factor of the window on loss, as in CUBIC (RFC 8312). */
+    private static final double DECREASE = 0.7;
+
+    /** Negotiated windowsize, the largest window. */
+    private final int limit;
+    /** Negotiated block size in bytes. */
+    private final int blockSize;
+    /** Whether the window adapts to loss. */
+    private final boolean adaptive;
+    /** Window in blocks, fractional while growing by one per round trip. */
+    private double window;
+    /** Window at which slow start ends. */
+    private double threshold;
+    /** Smoothed round trip time in nanoseconds, 0 until measured. */
+    private long smoothedRtt;
+    /** Number of windows partly acknowledged. */
+    private int losses;
+    /** Number of windows not acknowledged at all. */
+    private int timeouts;
+
+    /**
+     * Sole constructor.
+     *
+     * @param windowSize negotiated windowsize, at least 1.
+     * @param blockSize negotiated block size in bytes.
+     * @param adaptive whether the window adapts to loss, false for a window
+     *                 fixed at windowSize.
+     * */
+    public CongestionControl(int windowSize, int blockSize,
+                             boolean adaptive) {
+        limit = Math.max(1, windowSize);
+        this.blockSize = blockSize;
+        this.adaptive = adaptive;
+        window = adaptive ? Math.min(limit, Constants.INITIAL_WINDOW) : limit;
+        threshold = limit;
+    }
+
+    /**
+     * Grows the window after blocks were acknowledged.
+     *
+     * @param blocks number of blocks newly acknowledged.
+     * @param rtt nanoseconds from a block sent to its ACK received, 0 if
+     *            not measured or the block was sent again (Karn).
+     * */
+    protected void acknowledged(int blocks, long rtt) {
+        if (rtt > 0) {
+            smoothedRtt = smoothedRtt == 0 ? rtt
+                    : smoothedRtt + (rtt - smoothedRtt) / 8;
+        }
+        if (!adaptive) {
+            return;
+        }
+        if (window < threshold) {
+            // at most doubles per window, however long it is
+            window = Math.min(threshold, window + Math.min(blocks, window));
+        } else {
+            window += blocks / window;
+        }
+        window = Math.min(limit, window);
+    }
+
+    /**
+     * Cuts the window after a window was acknowledged only in part.
+     * */
+    protected void lost() {
+        losses++;
+        if (adaptive) {
+            threshold = Math.max(1, window * DECREASE);
+            window = threshold;
+        }
+    }
+
+    /**
+     * Brings the window down to one block after a window was not
+     * acknowledged at all.
+     * */
+    protected void timedOut() {
+        timeouts++;
+        if (adaptive) {
+            threshold = Math.max(1, window * DECREASE);
+            window = 1;
+        }
+    }
+
+    /**
+     * Returns the time between the starts of two blocks of a window.
+     *
+     * @return nanoseconds between blocks, 0 if blocks are not paced.
+     * */
+    protected long pacingInterval() {
+        if (!adaptive || smoothedRtt == 0) {
+            return 0;
+        }
+        return (long) (smoothedRtt / (2 * window));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("window %.1f of %d, rtt %d us, %d losses, %d "
+                + "timeouts", window, limit, smoothedRtt / 1000, losses,
+                timeouts);
+    }
+
+    // getters and setters------------------------------------------------------
+
+    /**
+     * Returns the window, the number of blocks sent per round trip.
+     * @return window in blocks, from 1 to the negotiated windowsize.
+     * */
+    public int getWindow() {
+        return Math.max(1, (int) window);
+    }
+    /**
+     * Returns the negotiated windowsize.
+     * @return largest window in blocks.
+     * */
+    public int getLimit() {
+        return limit;
+    }
+    /**
+     * Returns the smoothed round trip time.
+     * @return round trip time in nanoseconds, 0 until measured.
+     * */
+    public long getSmoothedRtt() {
+        return smoothedRtt;
+    }
+    /**
+     * Returns the rate blocks are paced at, two windows per round trip.
+     * @return bytes of DATA per second, 0 if not paced.
+     * */
+    public long getPacingRate() {
+        if (!adaptive || smoothedRtt == 0) {
+            return 0;
+        }
+        return (long) (2 * window * blockSize * 1e9 / smoothedRtt);
+    }
+    /**
+     * Returns the number of windows acknowledged only in part.
+     * @return number of losses.
+     * */
+    public int getLosses() {
+        return losses;
+    }
+    /**
+     * Returns the number of windows not acknowledged at all.
+     * @return number of timeouts.
+     * */
+    public int getTimeouts() {
+        return timeouts;
+    }
+
+    // END OF FILE
+}
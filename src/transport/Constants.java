@@ -62,4 +62,245 @@ public class Constants {
      * are the Dynamic ports.
      * */
     protected static final int MAX_PORT = 49151;
+    /**
+     * Target time in milliseconds from starting a TFTPServer to serving its
+     * first packet. Exceeding it is noted in the Server output.
+     * */
+    protected static final int STARTUP_TARGET = 50;
+    /**
+     * The time value in milliseconds after which a cached file whose
+     * directory cannot be watched for changes is checked again on disk.
+     * */
+    protected static final int CACHE_REVALIDATE_INTERVAL = 1000;
+    /**
+     * The largest number of files, existing or not, whose metadata and
+     * read handle a FileCache keeps.
+     * */
+    protected static final int FILE_CACHE_SIZE = 4096;
+    /**
+     * The largest block number a DATA or ACK packet can carry. Transfers of
+     * more blocks roll the block number over, see BLOCK_ROLLOVER.
+     * */
+    protected static final int MAX_BLOCK = 65535;
+    /**
+     * Block number following MAX_BLOCK on the wire, 0 or 1. Most clients
+     * expect 0; some expect 1. Set per Server with
+     * TFTPServer.Builder.blockRollover() or per transfer with the rollover
+     * option.
+     * */
+    protected static final int BLOCK_ROLLOVER = 0;
+    /**
+     * Block rollover option, accepted in a read request and answered in an
+     * OACK with the block number following MAX_BLOCK.
+     * */
+    protected static final String ROLLOVER_OPTION = "rollover";
+    /**
+     * Number of most recent packet events kept by a Server for dumps.
+     * */
+    protected static final int EVENT_CAPACITY = 1 << 16;
+    /**
+     * The minimum time value in milliseconds between two event dumps made
+     * because of errors.
+     * */
+    protected static final int EVENT_DUMP_INTERVAL = 1000;
+    /**
+     * The largest number of event dumps kept in the dump directory of a
+     * Server. The oldest are deleted after a dump made because of an error.
+     * */
+    protected static final int EVENT_DUMP_LIMIT = 8;
+    /**
+     * Transfer size option, by RFC 2349. Answered in an OACK with the size of
+     * the requested file in a read request, and with the size announced in
+     * a write request that fits.
+     * */
+    protected static final String TSIZE_OPTION = "tsize";
+    /**
+     * Block size option (RFC 2348), the number of data bytes per DATA
+     * packet.
+     * */
+    protected static final String BLKSIZE_OPTION = "blksize";
+    /**
+     * Window size option (RFC 7440), the number of DATA packets sent before
+     * waiting for an ACK.
+     * */
+    protected static final String WINDOWSIZE_OPTION = "windowsize";
+    /**
+     * Timeout interval option (RFC 2349), in seconds.
+     * */
+    protected static final String TIMEOUT_OPTION = "timeout";
+    /**
+     * The smallest block size that can be negotiated (RFC 2348).
+     * */
+    protected static final int MIN_BLOCK_SIZE = 8;
+    /**
+     * The largest block size that can be negotiated (RFC 2348).
+     * */
+    protected static final int MAX_BLOCK_SIZE = 65464;
+    /**
+     * The number of times TFTPClient sends a packet again after a timeout
+     * before giving up on a transfer. Long enough to outlast a Server
+     * dallying for 10 * TIMEOUT with another Client.
+     * */
+    protected static final int MAX_RETRIES = 20;
+    /**
+     * The largest total size in bytes of the files TieredStorage keeps in
+     * memory by default.
+     * */
+    protected static final long MEMORY_TIER_CAPACITY = 256L << 20;
+    /**
+     * The number of reads of a file after which TieredStorage copies it into
+     * memory by default.
+     * */
+    protected static final int PROMOTE_AFTER_READS = 3;
+    /**
+     * The largest size in bytes of a file whose Clients are scheduled in
+     * the small class by default, see Scheduler.
+     * */
+    protected static final long SMALL_FILE_SIZE = 1 << 20;
+    /**
+     * The turns given each round to the small class by default, against 1
+     * for the bulk class.
+     * */
+    protected static final int SMALL_CLASS_WEIGHT = 8;
+    /**
+     * The minimum time value in milliseconds between two reports of the
+     * queueing delays of the scheduling classes.
+     * */
+    protected static final int SCHEDULER_REPORT_INTERVAL = 10000;
+    /**
+     * The length in bytes of the IPv4 and UDP headers of a packet, counted
+     * against rate limits with the payload.
+     * */
+    protected static final int UDP_OVERHEAD = 28;
+    /**
+     * The minimum time value in milliseconds between two reports of the
+     * current and configured egress rates.
+     * */
+    protected static final int SHAPING_REPORT_INTERVAL = 10000;
+    /**
+     * The largest windowsize (RFC 7440) accepted in a RRQ. Larger requests
+     * are answered with this value.
+     * */
+    protected static final int MAX_WINDOW_SIZE = 64;
+    /**
+     * Window in blocks a windowed transfer starts at when its window adapts
+     * to loss.
+     * */
+    protected static final int INITIAL_WINDOW = 4;
+    /**
+     * Number of concurrent sessions the session table of a Server holds
+     * before its arrays grow.
+     * */
+    protected static final int SESSION_CAPACITY = 1024;
+    /**
+     * The minimum time value in milliseconds between two notes of packets
+     * rejected, or of Clients given up after a fault. Those in between are
+     * only counted.
+     * */
+    protected static final int REJECT_LOG_INTERVAL = 1000;
+    /**
+     * The time value in milliseconds from a DATA block sent to its ACK
+     * above which the latency of the block is recorded as a flight
+     * recorder event. Below it, only one block in BLOCK_EVENT_SAMPLE is.
+     * */
+    protected static final int BLOCK_EVENT_THRESHOLD = 10;
+    /**
+     * One block in this number has its latency recorded as a flight
+     * recorder event whatever the latency, see BLOCK_EVENT_THRESHOLD.
+     * */
+    protected static final int BLOCK_EVENT_SAMPLE = 64;
+    /**
+     * Bytes of the file system of a FileSystemStorage kept free: an upload
+     * whose tsize would leave less is refused with DISK_FULL.
+     * */
+    protected static final long DISK_RESERVE = 16L << 20;
+    /**
+     * Bytes the kernel takes in a socket buffer for a packet beyond its
+     * payload, roughly, for the sizing of socket buffers.
+     * */
+    protected static final int PACKET_OVERHEAD = 768;
+    /**
+     * Smallest receive and send buffers of the sockets of a Server, in
+     * bytes, unless fixed with TFTPServer.Builder.socketBuffer().
+     * */
+    protected static final int SOCKET_BUFFER_MIN = 256 << 10;
+    /**
+     * Largest receive and send buffers of the sockets of a Server, in
+     * bytes. The kernel may hold them to less (net.core.rmem_max).
+     * */
+    protected static final int SOCKET_BUFFER_MAX = 16 << 20;
+    /**
+     * The time value in milliseconds between two checks of the packets
+     * dropped by the kernel and of the socket buffer sizes.
+     * */
+    protected static final int BUFFER_CHECK_INTERVAL = 1000;
+    /**
+     * The largest number of filenames resolved a FilenameMap keeps by
+     * default.
+     * */
+    protected static final int FILENAME_CACHE_SIZE = 4096;
+    /**
+     * MTU in bytes of the path to a Client taken when no interface is up
+     * to take it from, see PathMtu.
+     * */
+    protected static final int DEFAULT_MTU = 1500;
+    /**
+     * Number of timeouts of full blocks, none acknowledged, after which the
+     * path to a Client is taken to drop packets of that size, see PathMtu.
+     * */
+    protected static final int MTU_PROBE_TIMEOUTS = 3;
+    /**
+     * The time value in milliseconds a lowered MTU of the path to a Client
+     * is kept, after which larger blocks are tried again.
+     * */
+    protected static final int MTU_PROBE_EXPIRY = 600_000;
+    /**
+     * The time value in milliseconds between two listings of the network
+     * interfaces and their MTU.
+     * */
+    protected static final int MTU_REFRESH_INTERVAL = 60_000;
+    /**
+     * The largest number of Clients whose lowered MTU is kept.
+     * */
+    protected static final int MTU_CACHE_SIZE = 4096;
+    /**
+     * Block size in bytes RelayStorage asks the origin for by default, the
+     * most that fits in an Ethernet frame over IPv4.
+     * */
+    protected static final int RELAY_BLOCK_SIZE = 1468;
+    /**
+     * Windowsize RelayStorage asks the origin for by default.
+     * */
+    protected static final int RELAY_WINDOW_SIZE = 8;
+    /**
+     * The largest number of files RelayStorage fetches from the origin at
+     * a time.
+     * */
+    protected static final int RELAY_FETCHES = 16;
+    /**
+     * The time value in milliseconds after which RelayStorage fetches a
+     * file kept again from the origin by default.
+     * */
+    protected static final long RELAY_MAX_AGE = 3_600_000;
+    /**
+     * The time value in milliseconds a file the origin does not have, or
+     * failed to send, is answered for without asking the origin again.
+     * */
+    protected static final int RELAY_MISS_TTL = 5000;
+    /**
+     * The largest number of files missing on, or failed by, the origin
+     * RelayStorage remembers.
+     * */
+    protected static final int RELAY_MISS_CACHE_SIZE = 4096;
+    /**
+     * The time value in milliseconds a request waits for the origin of
+     * RelayStorage to tell the size of a file, or to send the bytes of it
+     * a read needs, before it is answered with an ERROR.
+     * */
+    protected static final int RELAY_TIMEOUT = 5000;
+    /**
+     * The time value in milliseconds after which a Client whose next block
+     * has not yet arrived in its Storage is asked again.
+     * */
+    protected static final int STORAGE_POLL_INTERVAL = 1;
 }
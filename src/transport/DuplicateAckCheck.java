@@ -0,0 +1,154 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Command line check that the Server does not fall into the Sorcerer's
+ * Apprentice Syndrome (RFC 1123 4.2.3.1): over an ImpairedLink that
+ * delivers some packets twice, the second copy well after the first, the
+ * Server must not send DATA again on a duplicate ACK, so it sends about one
+ * DATA per block. A Server answering duplicates would send every later
+ * block twice, then four times, and so on.
+ *
+ * Usage: java transport.DuplicateAckCheck [-s size] [-d probability]
+ * [-l delay] [-m sent/block]
+ *
+ * Reads a file of 'size' bytes (256 KB by default) through every engine,
+ * stop-and-wait and with a windowsize of 16, where each packet is delivered
+ * twice with 'probability' (0.1 by default), the second copy 'delay'
+ * milliseconds late (20 by default, past the next exchanges), on a path
+ * of 5 ms each way without loss. Prints per run the DATA packets sent by
+ * the Server per block, which must not exceed 'sent/block' (1.1 by
+ * default), checks the file received is the file sent, and exits with
+ * status 1 if any run exceeds the limit, receives another file or fails.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class DuplicateAckCheck {
+    /** Name of the file transferred. */
+    private static final String FILE = "duplicate.bin";
+    /** Windowsizes every engine is checked with. */
+    private static final int[] WINDOWS = {1, 16};
+
+    /**
+     * Main method.
+     *
+     * @param args options, see the class description.
+     * @throws IOException if a Server cannot be started.
+     * */
+    public static void main(String[] args) throws IOException {
+        int size = 256 << 10;
+        double probability = 0.1;
+        double delay = 20;
+        double limit = 1.1;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-s":
+                        size = Integer.parseInt(args[++i]);
+                        break;
+                    case "-d":
+                        probability = Double.parseDouble(args[++i]);
+                        break;
+                    case "-l":
+                        delay = Double.parseDouble(args[++i]);
+                        break;
+                    case "-m":
+                        limit = Double.parseDouble(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option "
+                                + args[i] + ".");
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("ERROR 761: Missing value of "
+                    + args[args.length - 1] + ".");
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR 762: " + e.getMessage());
+            return;
+        }
+
+        byte[] contents = new byte[size];
+        new Random(size).nextBytes(contents);
+        MemoryStorage storage = new MemoryStorage();
+        storage.put(FILE, contents);
+        ImpairedLink.Builder profile = ImpairedLink.builder().delay(5)
+                .duplicate(probability).duplicateDelay(delay);
+
+        boolean passed = true;
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            out.println(String.format("%-20s %8s %10s %10s %6s", "engine",
+                    "window", "ms", "sent/block", ""));
+            for (Engine engine : Engine.values()) {
+                for (int window : WINDOWS) {
+                    TFTPServer server = TFTPServer.builder().port(0)
+                            .storage(storage).engine(engine).build();
+                    server.start();
+                    String run = String.format("%-20s %8d", engine, window);
+                    try (ImpairedLink link = profile.open(
+                            new InetSocketAddress(
+                                    InetAddress.getLoopbackAddress(),
+                                    server.getPort()));
+                         TFTPClient client = TFTPClient.builder()
+                                 .windowSize(window).build()) {
+                        ByteArrayOutputStream received =
+                                new ByteArrayOutputStream(size);
+                        TFTPClient.Transfer transfer = client.get(
+                                link.getAddress(), FILE, received);
+                        double sent = (double) link.getSentByServer()
+                                / transfer.getBlocks();
+                        boolean ok = sent <= limit && Arrays.equals(
+                                contents, received.toByteArray());
+                        passed &= ok;
+                        out.println(String.format("%s %10d %10.2f %6s", run,
+                                transfer.getDuration() / 1_000_000, sent,
+                                ok ? "ok" : "FAIL"));
+                    } catch (IOException e) {
+                        passed = false;
+                        out.println(run + " ERROR 763: " + e.getMessage());
+                    } finally {
+                        server.stop();
+                    }
+                }
+            }
+        } finally {
+            System.setOut(out);
+        }
+        if (!passed) {
+            System.out.println("ERROR 764: More than " + limit
+                    + " DATA sent per block, a file received altered, or a"
+                    + " transfer failed.");
+            System.exit(1);
+        }
+    }
+
+    // END OF FILE
+}
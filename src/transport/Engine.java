@@ -0,0 +1,37 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+/**
+ * All available engines processing the Clients of a TFTPServer, set with
+ * TFTPServer.Builder.engine().
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public enum Engine {
+    /** A single TFTPServerThread processing one block of every Client in
+     * turn on one slave socket. */
+    ROUND_ROBIN,
+    /** A single TFTPServerThread on one slave socket, sharing turns
+     * between classes of Clients by weight, see Scheduler. */
+    DEFICIT_ROUND_ROBIN,
+    /** A single TFTPServerThread on one slave socket, driving the Transfer
+     * of every Client packet by packet and timer by timer, never blocking
+     * on one Client. Clients are not scheduled in classes. */
+    EVENT_LOOP
+}
@@ -39,7 +39,9 @@ public enum Error {
     /** 6 File already exists. */
     FILE_ALREADY_EXISTS,
     /** 7 No such user. */
-    NO_SUCH_USER
+    NO_SUCH_USER,
+    /** 8 Option negotiation refused (RFC 2347). */
+    OPTION_NEGOTIATION
 
     /*
     * Error Codes
@@ -52,6 +54,7 @@ public enum Error {
         5 Unknown transfer ID.
         6 File already exists.
         7 No such user.
+        8 Option negotiation refused (RFC 2347).
         * In this assignment, only FILE_NOT_FOUND and UNKNOWN_TID is handled.
     * */
 }
@@ -0,0 +1,254 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line tool turning a dump of an EventRing into per-session
+ * timelines and latency breakdowns. Sessions are told apart by TID (the
+ * remote port).
+ *
+ * Usage: java transport.EventDecoder dump-file [--summary]
+ *
+ * For every session, prints the number of packets sent, received, sent again
+ * and timeouts, then the distribution of:
+ * RTT, from the last DATA n sent to ACK n received (RRQ);
+ * turn wait, from ACK n received to DATA n + 1 sent (RRQ);
+ * ACK delay, from DATA n received to ACK n sent (WRQ).
+ * The timeline of every event follows unless --summary is given.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class EventDecoder {
+
+    /**
+     * Main method.
+     *
+     * @param args path of the dump, optionally followed by --summary.
+     * @throws IOException if the dump cannot be read.
+     * */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java transport.EventDecoder "
+                    + "dump-file [--summary]");
+            return;
+        }
+        boolean summaryOnly = args.length > 1 && args[1].equals("--summary");
+
+        long dumpNanos;
+        long dumpMillis;
+        long[] times;
+        long[] events;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(Paths.get(args[0]))))) {
+            if (in.readLong() != EventRing.MAGIC) {
+                System.out.println("ERROR 801: " + args[0]
+                        + " is not an event dump.");
+                return;
+            }
+            dumpNanos = in.readLong();
+            dumpMillis = in.readLong();
+            int count = in.readInt();
+            times = new long[count];
+            events = new long[count];
+            for (int i = 0; i < count; i++) {
+                times[i] = in.readLong();
+                events[i] = in.readLong();
+            }
+        }
+
+        // indices of events of every session, in order of first event
+        Map<Integer, List<Integer>> sessions = new LinkedHashMap<>();
+        for (int i = 0; i < events.length; i++) {
+            sessions.computeIfAbsent(EventRing.tid(events[i]),
+                    k -> new ArrayList<>()).add(i);
+        }
+        System.out.println(events.length + " events, " + sessions.size()
+                + " sessions.\n");
+
+        for (Map.Entry<Integer, List<Integer>> session : sessions.entrySet()) {
+            List<Integer> indices = session.getValue();
+            long first = times[indices.get(0)];
+            long last = times[indices.get(indices.size() - 1)];
+            Instant wallStart = Instant.ofEpochMilli(dumpMillis
+                    - (dumpNanos - first) / 1_000_000);
+
+            System.out.println("===== TID " + session.getKey() + " from "
+                    + wallStart + ", " + (last - first) / 1000 + " us =====");
+            printBreakdown(indices, times, events);
+
+            if (!summaryOnly) {
+                for (int i : indices) {
+                    System.out.println(String.format("  +%10.3f ms  %s",
+                            (times[i] - first) / 1e6, describe(events[i])));
+                }
+            }
+            System.out.println();
+        }
+    }
+
+    /**
+     * Prints the packet counts and latency distributions of one session.
+     *
+     * @param indices indices of the events of this session, in order.
+     * @param times timestamps of all events.
+     * @param events packed events of all events.
+     * */
+    private static void printBreakdown(List<Integer> indices, long[] times,
+                                       long[] events) {
+        int sent = 0;
+        int received = 0;
+        int retransmits = 0;
+        int timeouts = 0;
+        List<Long> rtts = new ArrayList<>();
+        List<Long> turnWaits = new ArrayList<>();
+        List<Long> ackDelays = new ArrayList<>();
+        // time of the last DATA sent, and of the last DATA received, by block
+        Map<Long, Long> dataSent = new HashMap<>();
+        Map<Long, Long> dataReceived = new HashMap<>();
+        Map<Long, Boolean> resent = new HashMap<>();
+        long lastAck = -1;
+
+        for (int i : indices) {
+            long event = events[i];
+            int flags = EventRing.flags(event);
+            int opcode = EventRing.opcode(event);
+            long block = EventRing.block(event);
+            long time = times[i];
+
+            if ((flags & EventRing.TIMEOUT) != 0) {
+                timeouts++;
+                continue;
+            }
+            if ((flags & EventRing.RETRANSMIT) != 0) {
+                retransmits++;
+            }
+            if ((flags & EventRing.SEND) != 0) {
+                sent++;
+                if (opcode == Opcode.DATA.ordinal()) {
+                    if (dataSent.containsKey(block)) {
+                        resent.put(block, true);
+                    } else if (lastAck >= 0) {
+                        turnWaits.add(time - lastAck);
+                    }
+                    dataSent.put(block, time);
+                } else if (opcode == Opcode.ACK.ordinal()) {
+                    Long receivedAt = dataReceived.remove(block);
+                    if (receivedAt != null) {
+                        ackDelays.add(time - receivedAt);
+                    }
+                }
+            } else if ((flags & EventRing.RECEIVE) != 0) {
+                received++;
+                if (opcode == Opcode.ACK.ordinal()) {
+                    Long sentAt = dataSent.get(block);
+                    // Karn: RTT of blocks sent again is ambiguous
+                    if (sentAt != null && !resent.containsKey(block)) {
+                        rtts.add(time - sentAt);
+                    }
+                    lastAck = time;
+                } else if (opcode == Opcode.DATA.ordinal()) {
+                    dataReceived.putIfAbsent(block, time);
+                }
+            }
+        }
+
+        System.out.println("  sent " + sent + ", received " + received
+                + ", retransmits " + retransmits + ", timeouts " + timeouts);
+        printDistribution("RTT", rtts);
+        printDistribution("turn wait", turnWaits);
+        printDistribution("ACK delay", ackDelays);
+    }
+
+    /**
+     * Prints the percentiles of a list of durations in microseconds.
+     *
+     * @param name name of the duration.
+     * @param nanos durations in nanoseconds.
+     * */
+    private static void printDistribution(String name, List<Long> nanos) {
+        if (nanos.isEmpty()) {
+            return;
+        }
+        long[] sorted = new long[nanos.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = nanos.get(i);
+        }
+        Arrays.sort(sorted);
+        System.out.println(String.format("  %-10s n=%-6d p50=%-8d p90=%-8d "
+                        + "p99=%-8d max=%d us", name, sorted.length,
+                percentile(sorted, 50) / 1000, percentile(sorted, 90) / 1000,
+                percentile(sorted, 99) / 1000,
+                sorted[sorted.length - 1] / 1000));
+    }
+
+    /**
+     * Returns a percentile of a sorted array by the nearest-rank method.
+     *
+     * @param sorted values in ascending order, not empty.
+     * @param percent percentile from 0 to 100.
+     * @return value at the percentile.
+     * */
+    protected static long percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Returns a readable description of a packed event.
+     *
+     * @param event packed event.
+     * @return description such as "SEND DATA 5 RETRANSMIT".
+     * */
+    private static String describe(long event) {
+        int flags = EventRing.flags(event);
+        int opcode = EventRing.opcode(event);
+        String name = opcode < Opcode.values().length
+                ? Opcode.values()[opcode].toString() : "OPCODE " + opcode;
+
+        StringBuilder description = new StringBuilder();
+        if ((flags & EventRing.TIMEOUT) != 0) {
+            description.append("TIMEOUT waiting for ").append(name);
+        } else {
+            description.append((flags & EventRing.SEND) != 0
+                    ? "SEND    " : "RECEIVE ").append(name);
+        }
+        description.append(' ').append(EventRing.block(event));
+        if ((flags & EventRing.RETRANSMIT) != 0) {
+            description.append(" RETRANSMIT");
+        }
+        if ((flags & EventRing.LOST) != 0) {
+            description.append(" LOST");
+        }
+        return description.toString();
+    }
+
+    // END OF FILE
+}
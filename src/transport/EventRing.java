@@ -0,0 +1,203 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Always-on, fixed-size and lock-free record of every packet sent and
+ * received by a Server, kept for latency forensics. Each event is stored as
+ * two longs (timestamp and packed TID, opcode, flags and block number) and
+ * recording one never allocates or blocks, so it does not distort the timing
+ * it records. Once full, the oldest events are overwritten.
+ *
+ * A dump is written with dump() and read back with EventDecoder.
+ *
+ * Dump format, all big endian: magic "TFTPEVT1", long nanoTime and long
+ * currentTimeMillis taken at the time of the dump, int number of events,
+ * then per event long nanoTime and long packed event, oldest first.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class EventRing {
+    /** Magic number at the start of a dump, "TFTPEVT1" in ASCII. */
+    protected static final long MAGIC = 0x5446545045565431L;
+
+    /** Event of a packet sent. */
+    protected static final int SEND = 1;
+    /** Event of a packet received. */
+    protected static final int RECEIVE = 1 << 1;
+    /** Flag of a packet sent again. */
+    protected static final int RETRANSMIT = 1 << 2;
+    /** Event of a timeout waiting for a packet with the given opcode. */
+    protected static final int TIMEOUT = 1 << 3;
+    /** Flag of a packet made lost by Constants.LOST_PROBABILITY. */
+    protected static final int LOST = 1 << 4;
+
+    /** Number of longs per slot: sequence, timestamp and packed event. */
+    private static final int SLOT = 3;
+
+    /** Slots, each holding the sequence number of its event + 1 (0 if
+     * never written), the timestamp and the packed event. */
+    private final AtomicLongArray slots;
+    /** Mask of the slot index, number of slots - 1. */
+    private final int mask;
+    /** Sequence number of the next event recorded. */
+    private final AtomicLong cursor = new AtomicLong();
+
+    /**
+     * Sole constructor.
+     *
+     * @param capacity number of events kept, rounded up to a power of two.
+     * */
+    public EventRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new AtomicLongArray(size * SLOT);
+        mask = size - 1;
+    }
+
+    /**
+     * Records one event. Safe to call from any number of threads.
+     *
+     * @param tid transfer identifier (port) of the remote Client.
+     * @param opcode ordinal of the opcode of the packet.
+     * @param block block number of the packet, 0 if none.
+     * @param flags SEND, RECEIVE or TIMEOUT, with any other flags.
+     * */
+    protected void record(int tid, int opcode, int block, int flags) {
+        long time = System.nanoTime();
+        long sequence = cursor.getAndIncrement();
+        int base = (int) (sequence & mask) * SLOT;
+
+        // invalidate the slot while it is written so a concurrent dump
+        // skips it instead of reading a torn event
+        slots.setOpaque(base, 0);
+        VarHandle.releaseFence();
+        slots.setOpaque(base + 1, time);
+        slots.setOpaque(base + 2, pack(tid, opcode, block, flags));
+        slots.setRelease(base, sequence + 1);
+    }
+
+    /**
+     * Writes every event currently kept to a file. Recording continues
+     * while the dump is written; events overwritten in the meantime are
+     * left out.
+     *
+     * @param file file to write the dump to.
+     * @throws IOException if an I/O error occurs.
+     * */
+    protected void dump(Path file) throws IOException {
+        long end = cursor.get();
+        long start = Math.max(0, end - (mask + 1));
+        long[] times = new long[(int) (end - start)];
+        long[] events = new long[times.length];
+
+        int count = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            int base = (int) (sequence & mask) * SLOT;
+            if (slots.getAcquire(base) != sequence + 1) {
+                continue; // overwritten or being written
+            }
+            long time = slots.getOpaque(base + 1);
+            long event = slots.getOpaque(base + 2);
+            VarHandle.acquireFence();
+            if (slots.getOpaque(base) != sequence + 1) {
+                continue;
+            }
+            times[count] = time;
+            events[count] = event;
+            count++;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeLong(MAGIC);
+            out.writeLong(System.nanoTime());
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(times[i]);
+                out.writeLong(events[i]);
+            }
+        }
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Packs an event into a long: TID in bits 48-63, opcode in bits 40-47,
+     * flags in bits 32-39 and block number in bits 0-31.
+     *
+     * @param tid transfer identifier (port) of the remote Client.
+     * @param opcode ordinal of the opcode of the packet.
+     * @param block block number of the packet.
+     * @param flags flags of the event.
+     * @return packed event.
+     * */
+    protected static long pack(int tid, int opcode, int block, int flags) {
+        return ((long) (tid & 0xFFFF) << 48)
+                | ((long) (opcode & 0xFF) << 40)
+                | ((long) (flags & 0xFF) << 32)
+                | (block & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the TID of a packed event.
+     * @param event packed event.
+     * @return transfer identifier (port) of the remote Client.
+     * */
+    protected static int tid(long event) {
+        return (int) (event >>> 48) & 0xFFFF;
+    }
+
+    /**
+     * Returns the opcode ordinal of a packed event.
+     * @param event packed event.
+     * @return ordinal of the opcode of the packet.
+     * */
+    protected static int opcode(long event) {
+        return (int) (event >>> 40) & 0xFF;
+    }
+
+    /**
+     * Returns the flags of a packed event.
+     * @param event packed event.
+     * @return flags of the event.
+     * */
+    protected static int flags(long event) {
+        return (int) (event >>> 32) & 0xFF;
+    }
+
+    /**
+     * Returns the block number of a packed event.
+     * @param event packed event.
+     * @return block number of the packet.
+     * */
+    protected static long block(long event) {
+        return event & 0xFFFFFFFFL;
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,434 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the metadata (existence, size, last modified time) and an open read
+ * handle of every file requested from the served root directory, so that
+ * request admission, EOF decisions and tsize answers are made from memory.
+ *
+ * Entries are invalidated by a WatchService registered on the directory of
+ * every cached file. Where a directory cannot be watched, entries under it
+ * are revalidated by an mtime check at most once every
+ * Constants.CACHE_REVALIDATE_INTERVAL milliseconds. At most
+ * Constants.FILE_CACHE_SIZE entries are kept, those of files that do not
+ * exist included, and the least recently used is dropped first.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class FileCache {
+    /** Interval in nanoseconds before an unwatched entry is revalidated. */
+    private static final long REVALIDATE_NANOS =
+            Constants.CACHE_REVALIDATE_INTERVAL * 1_000_000L;
+
+    /** Directory where requested filenames are resolved against. */
+    private final Path root;
+    /** Cached entries keyed by resolved and normalized path, in access
+     * order. Guarded by itself. */
+    private final Map<Path, Entry> entries;
+    /** Directories currently registered with the WatchService. */
+    private final Set<Path> watchedDirs = ConcurrentHashMap.newKeySet();
+    /** Number of invalidations so far, to detect one racing a lookup. */
+    private final AtomicLong invalidations = new AtomicLong();
+    /** Watches directories of cached files. Null if unavailable. */
+    private WatchService watcher;
+    /** Thread draining 'watcher' and invalidating entries. */
+    private Thread watchThread;
+
+    /**
+     * Sole constructor. The WatchService is started lazily on the first
+     * lookup.
+     *
+     * @param root directory where requested filenames are resolved against.
+     * */
+    public FileCache(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+        entries = new LinkedHashMap<Path, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Path, Entry> eldest) {
+                if (size() > Constants.FILE_CACHE_SIZE) {
+                    eldest.getValue().retire();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached entry of a requested file, stating the file only if
+     * it is not cached or its entry is no longer known to be valid. An entry
+     * is returned even if the file does not exist.
+     *
+     * @param filename filename as received in a request.
+     * @return entry of the requested file.
+     * */
+    protected Entry lookup(String filename) {
+        Path path = resolve(filename);
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(path);
+        }
+        if (entry != null && entry.isFresh()) {
+            return entry;
+        }
+
+        // register before stating so a change in between is not missed
+        long generation = invalidations.get();
+        boolean watched = watch(path.getParent());
+        Entry fresh = stat(path, watched);
+        if (invalidations.get() != generation) {
+            // an event raced this stat: fall back to the mtime check
+            fresh.touch(false);
+        }
+        if (entry != null && entry.sameAs(fresh)) {
+            entry.touch(watched);
+            return entry;
+        }
+
+        Entry previous;
+        synchronized (entries) {
+            previous = entries.put(path, fresh);
+        }
+        if (previous != null) {
+            previous.retire();
+        }
+        return fresh;
+    }
+
+    /**
+     * Returns true if the requested file exists and is a regular file.
+     *
+     * @param filename filename as received in a request.
+     * @return true if the file exists. False otherwise.
+     * */
+    protected boolean exists(String filename) {
+        return lookup(filename).exists();
+    }
+
+    /**
+     * Returns the size in bytes of the requested file.
+     *
+     * @param filename filename as received in a request.
+     * @return size of the file in bytes, or -1 if it does not exist.
+     * */
+    protected long size(String filename) {
+        return lookup(filename).getSize();
+    }
+
+    /**
+     * Drops the entry of a file, for example after it was written by a WRQ.
+     *
+     * @param filename filename as received in a request.
+     * */
+    protected void invalidate(String filename) {
+        invalidate(resolve(filename));
+    }
+
+    /**
+     * Stops the WatchService and closes every open handle not in use.
+     * */
+    protected void close() {
+        synchronized (this) {
+            if (watcher != null) {
+                try {
+                    watcher.close();
+                } catch (IOException e) {
+                    System.out.println("NOTE 131: " + e.getMessage() + "\n");
+                }
+                watcher = null;
+            }
+        }
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                entry.retire();
+            }
+            entries.clear();
+        }
+        watchedDirs.clear();
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Resolves a requested filename against the served root.
+     *
+     * @param filename filename as received in a request.
+     * @return absolute and normalized path of the file.
+     * */
+    private Path resolve(String filename) {
+        return root.resolve(filename).normalize();
+    }
+
+    /**
+     * Reads the attributes of a file.
+     *
+     * @param path absolute path of the file.
+     * @param watched whether the file's directory is watched.
+     * @return new entry reflecting the file on disk.
+     * */
+    private Entry stat(Path path, boolean watched) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path,
+                    BasicFileAttributes.class);
+            if (attrs.isRegularFile()) {
+                return new Entry(path, true, attrs.size(),
+                        attrs.lastModifiedTime().toMillis(), watched);
+            }
+        } catch (IOException e) {
+            // file does not exist or cannot be read: cached as missing
+        }
+        return new Entry(path, false, -1, -1, watched);
+    }
+
+    /**
+     * Registers a directory with the WatchService, starting the service on
+     * first use.
+     *
+     * @param dir directory to watch.
+     * @return true if the directory is watched. False if changes in it must
+     * be detected by an mtime check.
+     * */
+    private synchronized boolean watch(Path dir) {
+        if (dir == null) {
+            return false;
+        }
+        if (watchedDirs.contains(dir)) {
+            return true;
+        }
+        try {
+            if (watcher == null) {
+                watcher = dir.getFileSystem().newWatchService();
+                watchThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        drainEvents();
+                    }
+                }, "TFTPFileCacheWatcher");
+                watchThread.setDaemon(true);
+                watchThread.start();
+            }
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirs.add(dir);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Body of the watcher thread. Invalidates the entry of every file
+     * created, deleted or modified in a watched directory.
+     * */
+    private void drainEvents() {
+        WatchService service = watcher;
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // events were lost; nothing in the directory is
+                        // known to be valid
+                        invalidateUnder(dir);
+                    } else {
+                        invalidateUnder(dir.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    watchedDirs.remove(dir);
+                    invalidateUnder(dir);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // cache closed
+        }
+    }
+
+    /**
+     * Drops the entry of a path.
+     *
+     * @param path absolute path of the file.
+     * */
+    private void invalidate(Path path) {
+        Entry previous;
+        synchronized (entries) {
+            previous = entries.remove(path);
+        }
+        if (previous != null) {
+            previous.retire();
+        }
+    }
+
+    /**
+     * Drops the entry of a path and of every path under it.
+     *
+     * @param path absolute path of a file or directory.
+     * */
+    private void invalidateUnder(Path path) {
+        invalidations.incrementAndGet();
+        List<Path> cached;
+        synchronized (entries) {
+            cached = new ArrayList<>(entries.keySet());
+        }
+        for (Path file : cached) {
+            if (file.startsWith(path)) {
+                invalidate(file);
+            }
+        }
+    }
+
+    /**
+     * Metadata and shared read handle of one file. A handle is opened on
+     * first acquire and closed once the entry is retired and no session
+     * holds it anymore, so in-flight transfers keep reading the file they
+     * started with.
+     * */
+    protected static final class Entry {
+        /** Absolute path of the file. */
+        private final Path path;
+        /** Whether the file exists and is a regular file. */
+        private final boolean exists;
+        /** Size of the file in bytes, -1 if it does not exist. */
+        private final long size;
+        /** Last modified time in milliseconds, -1 if it does not exist. */
+        private final long mtime;
+        /** Whether the directory of the file is watched. */
+        private volatile boolean watched;
+        /** System.nanoTime() of the last stat of the file. */
+        private volatile long checkedAt;
+        /** Shared read handle. Null until first acquired. */
+        private FileChannel channel;
+        /** Number of sessions currently holding 'channel'. */
+        private int refs;
+        /** Whether this entry has been replaced or invalidated. */
+        private boolean retired;
+
+        private Entry(Path path, boolean exists, long size, long mtime,
+                      boolean watched) {
+            this.path = path;
+            this.exists = exists;
+            this.size = size;
+            this.mtime = mtime;
+            this.watched = watched;
+            this.checkedAt = System.nanoTime();
+        }
+
+        /**
+         * Returns the open read handle of this file, opening it if needed.
+         * Every call must be paired with release().
+         *
+         * @return positional read handle of the file.
+         * @throws IOException if the file cannot be opened.
+         * */
+        protected synchronized FileChannel acquire() throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+            }
+            refs++;
+            return channel;
+        }
+
+        /**
+         * Releases a handle previously acquired.
+         * */
+        protected synchronized void release() {
+            refs--;
+            if (retired && refs <= 0) {
+                closeChannel();
+            }
+        }
+
+        /**
+         * Marks this entry as replaced, closing its handle once unused.
+         * */
+        private synchronized void retire() {
+            retired = true;
+            if (refs <= 0) {
+                closeChannel();
+            }
+        }
+
+        private void closeChannel() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.out.println("NOTE 132: " + e.getMessage() + "\n");
+                }
+                channel = null;
+            }
+        }
+
+        private boolean isFresh() {
+            return watched
+                    || System.nanoTime() - checkedAt < REVALIDATE_NANOS;
+        }
+
+        private boolean sameAs(Entry other) {
+            return exists == other.exists && size == other.size
+                    && mtime == other.mtime;
+        }
+
+        private void touch(boolean isWatched) {
+            watched = isWatched;
+            checkedAt = System.nanoTime();
+        }
+
+        /**
+         * Returns true if the file exists and is a regular file.
+         * @return whether the file exists.
+         * */
+        protected boolean exists() {
+            return exists;
+        }
+
+        /**
+         * Returns the size of the file in bytes.
+         * @return size in bytes, -1 if the file does not exist.
+         * */
+        protected long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the last modified time of the file.
+         * @return last modified time in milliseconds, -1 if it does not exist.
+         * */
+        protected long getModifiedTime() {
+            return mtime;
+        }
+    }
+
+    // END OF FILE
+}
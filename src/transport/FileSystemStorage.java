@@ -0,0 +1,293 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage of the files under a root directory. Metadata and read handles
+ * come from a FileCache, so admission and tsize answers do not touch the
+ * disk, and every block is read or written with a positional FileChannel
+ * call completed before returning.
+ *
+ * A file written is first written to a temporary file next to it, then
+ * moved in place atomically where the file system allows. A file of a known
+ * size is extended to that size when opened, so that blocks are written
+ * within the file rather than appended to it, and the part of it not yet
+ * written is reserved against the free space of the file system.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class FileSystemStorage implements Storage {
+    /** Directory where requested filenames are resolved against. */
+    private final Path root;
+    /** Metadata and read handles of the files read. */
+    private final FileCache cache;
+    /** Bytes announced by the uploads in progress and not yet written. */
+    private final AtomicLong reserved = new AtomicLong();
+
+    /**
+     * Sole constructor.
+     *
+     * @param root directory where requested filenames are resolved against.
+     * */
+    public FileSystemStorage(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+        cache = new FileCache(this.root);
+    }
+
+    @Override
+    public long size(String filename) {
+        return cache.size(filename);
+    }
+
+    @Override
+    public long modifiedTime(String filename) {
+        return cache.lookup(filename).getModifiedTime();
+    }
+
+    @Override
+    public ReadHandle openRead(String filename) throws IOException {
+        final FileCache.Entry entry = cache.lookup(filename);
+        if (!entry.exists()) {
+            throw new NoSuchFileException(filename);
+        }
+        final FileChannel channel = entry.acquire();
+        return new ReadHandle() {
+            @Override
+            public long size() {
+                return entry.getSize();
+            }
+
+            @Override
+            public CompletableFuture<Integer> read(ByteBuffer dst,
+                                                   long offset) {
+                // never beyond the size cached when opened
+                int length = (int) Math.max(0, Math.min(dst.remaining(),
+                        entry.getSize() - offset));
+                int start = dst.position();
+                int limit = dst.limit();
+                dst.limit(start + length);
+                try {
+                    while (dst.hasRemaining()) {
+                        if (channel.read(dst, offset + dst.position()
+                                - start) < 0) {
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    return CompletableFuture.failedFuture(e);
+                } finally {
+                    dst.limit(limit);
+                }
+                return CompletableFuture.completedFuture(
+                        dst.position() - start);
+            }
+
+            @Override
+            public void close() {
+                entry.release();
+            }
+        };
+    }
+
+    @Override
+    public String findIgnoreCase(String filename) {
+        StringBuilder found = new StringBuilder();
+        Path directory = root;
+        for (String part : FilenameMap.normalize(filename).split("/")) {
+            String match = Files.exists(directory.resolve(part)) ? part
+                    : null;
+            if (match == null) {
+                try (DirectoryStream<Path> entries =
+                             Files.newDirectoryStream(directory)) {
+                    for (Path entry : entries) {
+                        String name = entry.getFileName().toString();
+                        if (name.equalsIgnoreCase(part)) {
+                            match = name;
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    return null; // not a directory, or unreadable
+                }
+            }
+            if (match == null) {
+                return null;
+            }
+            if (found.length() > 0) {
+                found.append('/');
+            }
+            found.append(match);
+            directory = directory.resolve(match);
+        }
+        return Files.isRegularFile(directory) ? found.toString() : null;
+    }
+
+    @Override
+    public long available(String filename) {
+        try {
+            return Files.getFileStore(root).getUsableSpace()
+                    - Constants.DISK_RESERVE - reserved.get();
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    @Override
+    public WriteHandle openWrite(final String filename, final long size)
+            throws IOException {
+        final Path target = root.resolve(filename).normalize();
+        final Path partFile = createPart(target);
+        final FileChannel channel = FileChannel.open(partFile,
+                StandardOpenOption.WRITE);
+        if (size > 0) {
+            try {
+                // the size is set once rather than at every block
+                channel.write(ByteBuffer.allocate(1), size - 1);
+            } catch (IOException e) {
+                channel.close();
+                Files.deleteIfExists(partFile);
+                throw e;
+            }
+            reserved.addAndGet(size);
+        }
+        return new WriteHandle() {
+            /** End of the furthest range written. */
+            private long length;
+            /** Part of the size announced not yet written. */
+            private long unwritten = Math.max(0, size);
+
+            @Override
+            public CompletableFuture<Integer> write(ByteBuffer src,
+                                                    long offset) {
+                int start = src.position();
+                try {
+                    while (src.hasRemaining()) {
+                        channel.write(src, offset + src.position() - start);
+                    }
+                } catch (IOException e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+                int count = src.position() - start;
+                if (offset + count > length) {
+                    long grown = offset + count - length;
+                    length = offset + count;
+                    release(Math.min(grown, unwritten));
+                }
+                return CompletableFuture.completedFuture(count);
+            }
+
+            @Override
+            public void commit() throws IOException {
+                release(unwritten);
+                if (channel.size() > length) { // less sent than announced
+                    channel.truncate(length);
+                }
+                channel.close();
+                try {
+                    Files.move(partFile, target,
+                            StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(partFile, target,
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+                cache.invalidate(filename);
+            }
+
+            @Override
+            public void abort() {
+                release(unwritten);
+                try {
+                    channel.close();
+                    Files.deleteIfExists(partFile);
+                } catch (IOException e) {
+                    System.out.println("NOTE 133: " + e.getMessage() + "\n");
+                }
+            }
+
+            /**
+             * Gives back part of the space reserved by this handle.
+             *
+             * @param bytes bytes no longer reserved.
+             * */
+            private void release(long bytes) {
+                if (bytes > 0) {
+                    unwritten -= bytes;
+                    reserved.addAndGet(-bytes);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        cache.close();
+    }
+
+    /**
+     * Creates an empty part file next to a file, to be moved in place once
+     * written. Unlike Files.createTempFile(), which makes files readable by
+     * their owner only, the part file takes the permissions of any file
+     * created by the Server (the umask), which it keeps once moved.
+     *
+     * @param target file the part file is written for.
+     * @return path of the new part file.
+     * @throws IOException if the part file cannot be created.
+     * */
+    protected static Path createPart(Path target) throws IOException {
+        while (true) {
+            Path part = target.resolveSibling(target.getFileName() + "."
+                    + Long.toUnsignedString(ThreadLocalRandom.current()
+                    .nextLong(), 36) + ".part");
+            try {
+                Files.newByteChannel(part, StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE).close();
+                return part;
+            } catch (FileAlreadyExistsException e) {
+                // taken by another upload of the same file: another name
+            }
+        }
+    }
+
+    // getters and setters------------------------------------------------------
+
+    /**
+     * Returns the directory files are read from and written to.
+     * @return root of this Storage.
+     * */
+    public Path getRoot() {
+        return root;
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,603 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maps the filenames in requests to the names of stored files. PXE Clients
+ * ask for the same file with backslashes, leading slashes or another case,
+ * and for names made of their MAC or IP address.
+ *
+ * Every filename is first normalized: backslashes become slashes, and
+ * empty, "." and ".." parts are dropped, ".." taking the part before it, so
+ * no name leads out of the root of the Storage. Then the first rule
+ * matching the name rewrites it, in the order the rules were added:
+ * a prefix rule replaces a leading part of the name;
+ * a regex rule replaces the whole name when the regular expression matches
+ * all of it, "$1" and so on in the replacement taking its groups.
+ * The result is normalized again and put under the root directory of the
+ * first subnet the Client is in, if any. With ignoreCase(), rules match
+ * regardless of case and a name not stored as is takes the case of a file
+ * stored under it, as on the file systems PXE firmware is written for.
+ *
+ * Rules are compiled once into a trie of their literal prefixes, so a name
+ * is only tried against the rules whose prefix it starts with, and the
+ * names resolved are kept in a bounded LRU keyed by subnet and filename.
+ *
+ * Rule files, one rule per line, '#' starting a comment:
+ * prefix FROM [TO], no TO to strip FROM;
+ * regex PATTERN REPLACEMENT;
+ * root CIDR DIRECTORY;
+ * ignorecase.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class FilenameMap {
+    /** Rules in the order they are tried. */
+    private final Rule[] rules;
+    /** Trie of the literal prefixes of the rules. */
+    private final Node trie;
+    /** Subnets given a root directory, in the order they are tried. */
+    private final Subnet[] subnets;
+    /** Root directory of each subnet in 'subnets', at the same index. */
+    private final String[] roots;
+    /** Whether names are matched and looked up regardless of case. */
+    private final boolean ignoreCase;
+    /** Names resolved, most recently used last. */
+    private final Map<Key, Resolution> cache;
+
+    /**
+     * Compiles the rules of a Builder.
+     *
+     * @param builder rules of the map.
+     * */
+    private FilenameMap(Builder builder) {
+        ignoreCase = builder.ignoreCase;
+        rules = new Rule[builder.rules.size()];
+        trie = new Node();
+        for (int i = 0; i < rules.length; i++) {
+            rules[i] = builder.rules.get(i).compile(ignoreCase);
+            Node node = trie;
+            String prefix = rules[i].literal;
+            for (int c = 0; c < prefix.length(); c++) {
+                node = node.add(fold(prefix.charAt(c)));
+            }
+            node.rules = Arrays.copyOf(node.rules, node.rules.length + 1);
+            node.rules[node.rules.length - 1] = i;
+        }
+        subnets = builder.subnets.toArray(new Subnet[0]);
+        roots = builder.roots.toArray(new String[0]);
+        final int capacity = builder.cacheSize;
+        cache = new LinkedHashMap<Key, Resolution>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Key, Resolution> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns a Builder of a FilenameMap with no rule, which normalizes
+     * filenames only.
+     *
+     * @return new Builder.
+     * */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Reads a FilenameMap from a rule file, see the class description.
+     *
+     * @param file rule file.
+     * @return new FilenameMap.
+     * @throws IOException if the file cannot be read.
+     * @throws IllegalArgumentException if a line is not a valid rule.
+     * */
+    public static FilenameMap load(Path file) throws IOException {
+        Builder builder = builder();
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                int comment = line.indexOf('#');
+                String[] fields = (comment < 0 ? line
+                        : line.substring(0, comment)).trim().split("\\s+");
+                if (fields[0].isEmpty()) {
+                    continue;
+                }
+                String rule = fields[0].toLowerCase(Locale.ROOT);
+                if (rule.equals("ignorecase") && fields.length == 1) {
+                    builder.ignoreCase();
+                } else if (rule.equals("prefix") && fields.length <= 3
+                        && fields.length > 1) {
+                    builder.prefix(fields[1],
+                            fields.length == 3 ? fields[2] : "");
+                } else if (rule.equals("regex") && fields.length == 3) {
+                    builder.regex(fields[1], fields[2]);
+                } else if (rule.equals("root") && fields.length == 3) {
+                    builder.root(fields[1], fields[2]);
+                } else {
+                    throw new IllegalArgumentException("Bad rule at line "
+                            + number + " of " + file + ".");
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the name of the stored file a Client requests.
+     *
+     * @param client address of the Client.
+     * @param filename filename as received in a request.
+     * @param storage Storage the file is looked up in under ignoreCase().
+     * @return normalized name of the file in the Storage.
+     * */
+    protected String resolve(InetAddress client, String filename,
+                             Storage storage) {
+        int subnet = subnetOf(client);
+        Key key = new Key(subnet, filename);
+        Resolution resolution;
+        synchronized (cache) {
+            resolution = cache.get(key);
+        }
+        if (resolution == null) {
+            String name = rewrite(normalize(filename));
+            if (subnet >= 0) {
+                name = normalize(roots[subnet] + '/' + name);
+            }
+            resolution = new Resolution(name);
+            synchronized (cache) {
+                cache.put(key, resolution);
+            }
+        }
+        if (!ignoreCase) {
+            return resolution.name;
+        }
+        // stored case checked at every request: the file may have gone
+        String stored = resolution.stored;
+        if (stored == null || !mayExist(storage, stored)) {
+            stored = mayExist(storage, resolution.name) ? resolution.name
+                    : storage.findIgnoreCase(resolution.name);
+            if (stored == null) {
+                return resolution.name;
+            }
+            resolution.stored = stored;
+        }
+        return stored;
+    }
+
+    /**
+     * Returns a filename relative to a root: backslashes replaced with
+     * slashes, and empty, "." and ".." parts dropped, ".." taking the part
+     * before it if any, so that "a/./b", "\a\b" and "/a/b" name the same
+     * file and no name leads out of the root.
+     *
+     * @param filename filename as received in a request.
+     * @return normalized filename with '/' separators.
+     * */
+    protected static String normalize(String filename) {
+        StringBuilder key = new StringBuilder(filename.length());
+        for (String part : filename.replace('\\', '/').split("/")) {
+            if (part.isEmpty() || part.equals(".")) {
+                continue;
+            }
+            if (part.equals("..")) {
+                int slash = key.lastIndexOf("/");
+                key.setLength(Math.max(0, slash));
+                continue;
+            }
+            if (key.length() > 0) {
+                key.append('/');
+            }
+            key.append(part);
+        }
+        return key.toString();
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Returns false if a file surely does not exist in a Storage. A file
+     * the Storage has to look up on another host is not waited for, so
+     * that the listener is never held: it may exist.
+     *
+     * @param storage Storage the file is looked up in.
+     * @param name normalized name of the file.
+     * @return false if the file does not exist. True otherwise.
+     * */
+    private static boolean mayExist(Storage storage, String name) {
+        CompletableFuture<Long> size = storage.lookup(name);
+        return !size.isDone() || size.isCompletedExceptionally()
+                || size.join() >= 0;
+    }
+
+    /**
+     * Rewrites a normalized filename with the first rule matching it.
+     *
+     * @param name normalized filename.
+     * @return normalized filename rewritten, the same if no rule matches.
+     * */
+    protected String rewrite(String name) {
+        // every rule on the path of the name in the trie starts with a
+        // prefix of it; the first in order that matches wins
+        int first = rules.length;
+        Node node = trie;
+        for (int c = 0; node != null; c++) {
+            for (int rule : node.rules) {
+                if (rule >= first) {
+                    break;
+                }
+                if (rules[rule].matches(name)) {
+                    first = rule;
+                    break;
+                }
+            }
+            node = c < name.length() ? node.child(fold(name.charAt(c)))
+                    : null;
+        }
+        return first == rules.length ? name
+                : normalize(rules[first].apply(name));
+    }
+
+    /**
+     * Returns the first subnet given a root that holds a Client.
+     *
+     * @param client address of the Client.
+     * @return index of the subnet in 'subnets', -1 if none.
+     * */
+    private int subnetOf(InetAddress client) {
+        for (int i = 0; i < subnets.length; i++) {
+            if (subnets[i].contains(client)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a character as the trie holds it.
+     *
+     * @param c character of a name or of a prefix.
+     * @return lower case character under ignoreCase(), else the same.
+     * */
+    private char fold(char c) {
+        return ignoreCase ? Character.toLowerCase(c) : c;
+    }
+
+    // getters and setters------------------------------------------------------
+
+    /**
+     * Returns the number of rules of this map.
+     * @return number of prefix and regex rules.
+     * */
+    public int getRules() {
+        return rules.length;
+    }
+    /**
+     * Returns whether filenames are matched and looked up regardless of
+     * case.
+     * @return true under ignoreCase().
+     * */
+    public boolean isIgnoringCase() {
+        return ignoreCase;
+    }
+
+    /**
+     * One prefix or regex rule.
+     * */
+    private static final class Rule {
+        /** Regular expression, null for a prefix rule. */
+        private final String regex;
+        /** Compiled 'regex', null until compiled or for a prefix rule. */
+        private final Pattern pattern;
+        /** Leading part every name matching starts with. */
+        private final String literal;
+        /** Replacement of the prefix or of the whole name. */
+        private final String replacement;
+
+        private Rule(String regex, Pattern pattern, String literal,
+                     String replacement) {
+            this.regex = regex;
+            this.pattern = pattern;
+            this.literal = literal;
+            this.replacement = replacement;
+        }
+
+        /**
+         * Returns this rule ready to match names.
+         *
+         * @param ignoreCase whether names are matched regardless of case.
+         * @return compiled rule.
+         * */
+        private Rule compile(boolean ignoreCase) {
+            if (regex == null) {
+                return this;
+            }
+            return new Rule(regex, Pattern.compile(regex, ignoreCase
+                    ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0),
+                    literal, replacement);
+        }
+
+        /**
+         * Returns true if a name this rule's literal prefix leads to is
+         * rewritten by it.
+         *
+         * @param name normalized filename.
+         * @return whether the rule matches.
+         * */
+        private boolean matches(String name) {
+            return pattern == null || pattern.matcher(name).matches();
+        }
+
+        /**
+         * Rewrites a name this rule matches.
+         *
+         * @param name normalized filename.
+         * @return name rewritten.
+         * */
+        private String apply(String name) {
+            if (pattern == null) {
+                return replacement + name.substring(literal.length());
+            }
+            Matcher matcher = pattern.matcher(name);
+            matcher.matches();
+            StringBuilder rewritten = new StringBuilder();
+            matcher.appendReplacement(rewritten, replacement);
+            return rewritten.toString();
+        }
+    }
+
+    /**
+     * Node of the trie of literal prefixes, its children kept sorted by
+     * character for a binary search.
+     * */
+    private static final class Node {
+        /** Characters leading to the children, in ascending order. */
+        private char[] labels = new char[0];
+        /** Children, at the index of their character in 'labels'. */
+        private Node[] children = new Node[0];
+        /** Rules whose literal prefix ends here, in ascending order. */
+        private int[] rules = new int[0];
+
+        /**
+         * Returns the child of a character.
+         *
+         * @param c character.
+         * @return child, null if none.
+         * */
+        private Node child(char c) {
+            int index = Arrays.binarySearch(labels, c);
+            return index < 0 ? null : children[index];
+        }
+
+        /**
+         * Returns the child of a character, adding it if there is none.
+         *
+         * @param c character.
+         * @return child.
+         * */
+        private Node add(char c) {
+            int index = Arrays.binarySearch(labels, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            index = -index - 1;
+            char[] newLabels = new char[labels.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(labels, index, newLabels, index + 1,
+                    labels.length - index);
+            System.arraycopy(children, index, newChildren, index + 1,
+                    children.length - index);
+            newLabels[index] = c;
+            newChildren[index] = new Node();
+            labels = newLabels;
+            children = newChildren;
+            return newChildren[index];
+        }
+    }
+
+    /**
+     * Key of a name resolved: subnet of the Client and filename requested.
+     * */
+    private static final class Key {
+        /** Index of the subnet of the Client, -1 if none. */
+        private final int subnet;
+        /** Filename as received in a request. */
+        private final String filename;
+
+        private Key(int subnet, String filename) {
+            this.subnet = subnet;
+            this.filename = filename;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return subnet == key.subnet && filename.equals(key.filename);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * filename.hashCode() + subnet;
+        }
+    }
+
+    /**
+     * A name resolved.
+     * */
+    private static final class Resolution {
+        /** Name rewritten and put under the root of the subnet. */
+        private final String name;
+        /** Name of the file stored under 'name' regardless of case, null
+         * until looked up. */
+        private volatile String stored;
+
+        private Resolution(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Builder of a FilenameMap.
+     * */
+    public static final class Builder {
+        /** Rules in the order they are tried. */
+        private final List<Rule> rules = new ArrayList<>();
+        /** Subnets given a root directory. */
+        private final List<Subnet> subnets = new ArrayList<>();
+        /** Root directory of each subnet, at the same index. */
+        private final List<String> roots = new ArrayList<>();
+        /** Whether names are matched regardless of case. */
+        private boolean ignoreCase;
+        /** Largest number of names resolved kept. */
+        private int cacheSize = Constants.FILENAME_CACHE_SIZE;
+
+        private Builder() {
+        }
+
+        /**
+         * Adds a rule replacing a leading part of filenames, for example
+         * "boot/" with "images/x86/".
+         * @param from leading part of the filename normalized, so with
+         *             slashes and without a leading one.
+         * @param to replacement.
+         * @return this Builder.
+         * */
+        public Builder prefix(String from, String to) {
+            String literal = from.replace('\\', '/').replaceFirst("^/+", "");
+            rules.add(new Rule(null, null, literal, to));
+            return this;
+        }
+        /**
+         * Adds a rule replacing filenames matching a regular expression as
+         * a whole, for example "pxelinux\.cfg/01-.*" with
+         * "pxelinux.cfg/default".
+         * @param regex regular expression, as in Pattern.
+         * @param replacement replacement, "$1" and so on taking the groups.
+         * @return this Builder.
+         * @throws java.util.regex.PatternSyntaxException if the expression
+         * is not valid.
+         * */
+        public Builder regex(String regex, String replacement) {
+            Pattern.compile(regex); // refused here rather than at build()
+            rules.add(new Rule(regex, null, literalPrefix(regex),
+                    replacement));
+            return this;
+        }
+        /**
+         * Gives the Clients of a subnet a root directory of their own,
+         * under the root of the Storage.
+         * @param cidr subnet in CIDR notation, for example "10.1.0.0/16".
+         * @param directory directory relative to the root of the Storage.
+         * @return this Builder.
+         * @throws IllegalArgumentException if cidr is not a numeric subnet.
+         * */
+        public Builder root(String cidr, String directory) {
+            subnets.add(Subnet.parse(cidr));
+            roots.add(normalize(directory));
+            return this;
+        }
+        /**
+         * Matches filenames regardless of case, and looks up a file
+         * stored under another case when none is stored as requested.
+         * @return this Builder.
+         * */
+        public Builder ignoreCase() {
+            ignoreCase = true;
+            return this;
+        }
+        /**
+         * Sets the number of names resolved kept,
+         * Constants.FILENAME_CACHE_SIZE by default.
+         * @param names largest number of names, 0 to keep none.
+         * @return this Builder.
+         * */
+        public Builder cacheSize(int names) {
+            cacheSize = Math.max(0, names);
+            return this;
+        }
+
+        /**
+         * Compiles the rules.
+         * @return new FilenameMap.
+         * */
+        public FilenameMap build() {
+            return new FilenameMap(this);
+        }
+
+        /**
+         * Returns the leading literal characters of a regular expression,
+         * which every string it matches starts with, "" if it has none or
+         * they cannot be told for sure.
+         * @param regex regular expression.
+         * @return literal prefix.
+         * */
+        private static String literalPrefix(String regex) {
+            StringBuilder literal = new StringBuilder();
+            int i = regex.startsWith("^") ? 1 : 0;
+            while (i < regex.length()) {
+                char c = regex.charAt(i);
+                int next = i + 1;
+                if (c == '\\') {
+                    // an escaped symbol is literal, a class such as \d not
+                    if (next >= regex.length()
+                            || Character.isLetterOrDigit(regex.charAt(next))) {
+                        break;
+                    }
+                    c = regex.charAt(next);
+                    next++;
+                } else if ("^$.|?*+()[]{}".indexOf(c) >= 0) {
+                    break;
+                }
+                if (next < regex.length()
+                        && "?*{".indexOf(regex.charAt(next)) >= 0) {
+                    break; // the character is optional
+                }
+                literal.append(c);
+                i = next;
+            }
+            // an alternative later on may start with anything
+            return regex.indexOf('|') >= 0 ? "" : literal.toString();
+        }
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,226 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Command line benchmark of the resolution of filenames by a FilenameMap
+ * with many rules, against trying every rule in order.
+ *
+ * Usage: java transport.FilenameMapBench [-r rules] [-n names]
+ * [-i iterations]
+ *
+ * Builds a map of 'rules' rules (10000 by default): half prefix rules
+ * such as "host00042/" to "images/00042/", half regex rules with a literal
+ * prefix such as "mac/00042-(.*)\.cfg" to "cfg/00042/$1", and ten regex
+ * rules without one, which every name is tried against. Then resolves
+ * 'names' distinct filenames (1000 by default, fewer than the cache holds)
+ * from a Client in a subnet given a root, 'iterations' times over (1000 by
+ * default), and prints the time to compile the rules and the nanoseconds
+ * per name resolved:
+ * miss, with no cache, so every name is normalized and rewritten;
+ * hit, with the cache;
+ * linear, trying every rule in order as a map without a trie would.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class FilenameMapBench {
+    /** Regex rules without a literal prefix. */
+    private static final int UNANCHORED = 10;
+
+    /**
+     * Main method.
+     *
+     * @param args options, see the class description.
+     * @throws Exception if the loopback address cannot be parsed.
+     * */
+    public static void main(String[] args) throws Exception {
+        int ruleCount = 10_000;
+        int nameCount = 1000;
+        int iterations = 1000;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-r":
+                        ruleCount = Integer.parseInt(args[++i]);
+                        break;
+                    case "-n":
+                        nameCount = Integer.parseInt(args[++i]);
+                        break;
+                    case "-i":
+                        iterations = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option "
+                                + args[i] + ".");
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("ERROR 771: Missing value of "
+                    + args[args.length - 1] + ".");
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR 772: " + e.getMessage());
+            return;
+        }
+
+        // the rules, also kept as is for the linear baseline
+        List<String[]> rules = new ArrayList<>();
+        for (int i = 0; i < UNANCHORED; i++) {
+            rules.add(new String[]{"regex", ".*\\.tmp" + i, "trash/" + i});
+        }
+        for (int i = 0; rules.size() < ruleCount; i++) {
+            String id = String.format(Locale.ROOT, "%05d", i);
+            rules.add(i % 2 == 0
+                    ? new String[]{"prefix", "host" + id + "/",
+                    "images/" + id + "/"}
+                    : new String[]{"regex", "mac/" + id + "-(.*)\\.cfg",
+                    "cfg/" + id + "/$1"});
+        }
+
+        long compileStart = System.nanoTime();
+        FilenameMap hit = build(rules, Constants.FILENAME_CACHE_SIZE);
+        long compile = System.nanoTime() - compileStart;
+        FilenameMap miss = build(rules, 0);
+
+        // names from PXE Clients, matching rules anywhere in the order
+        Random random = new Random(nameCount);
+        String[] names = new String[nameCount];
+        for (int i = 0; i < names.length; i++) {
+            String id = String.format(Locale.ROOT, "%05d",
+                    random.nextInt(Math.max(1, rules.size() - UNANCHORED)));
+            switch (i % 4) {
+                case 0:
+                    names[i] = "/host" + id + "/pxelinux.0";
+                    break;
+                case 1:
+                    names[i] = "mac\\" + id + "-01-aa-bb-cc-dd-ee-"
+                            + i + ".cfg";
+                    break;
+                case 2:
+                    names[i] = "pxelinux.cfg/C0A8" + Integer.toHexString(i);
+                    break;
+                default:
+                    names[i] = "boot//./vmlinuz-" + i;
+            }
+        }
+
+        InetAddress client = InetAddress.getByName("10.1.2.3");
+        Storage storage = new MemoryStorage();
+        List<Pattern> patterns = new ArrayList<>();
+        for (String[] rule : rules) {
+            patterns.add(rule[0].equals("regex") ? Pattern.compile(rule[1])
+                    : null);
+        }
+
+        System.out.println(String.format("%8s %12s %12s %12s %12s", "rules",
+                "compile ms", "miss ns/op", "hit ns/op", "linear ns/op"));
+        for (int round = 0; round < 3; round++) { // the first warms up
+            long sink = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                for (String name : names) {
+                    sink += miss.resolve(client, name, storage).length();
+                }
+            }
+            long missNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                for (String name : names) {
+                    sink += hit.resolve(client, name, storage).length();
+                }
+            }
+            long hitNanos = System.nanoTime() - start;
+
+            // a tenth of the iterations: it is that much slower
+            int linearIterations = Math.max(1, iterations / 10);
+            start = System.nanoTime();
+            for (int i = 0; i < linearIterations; i++) {
+                for (String name : names) {
+                    sink += linear(rules, patterns,
+                            FilenameMap.normalize(name)).length();
+                }
+            }
+            long linearNanos = System.nanoTime() - start;
+
+            double resolved = (double) iterations * names.length;
+            System.out.println(String.format("%8d %12.1f %12.1f %12.1f "
+                            + "%12.1f%s", hit.getRules(), compile / 1e6,
+                    missNanos / resolved, hitNanos / resolved,
+                    linearNanos / ((double) linearIterations * names.length),
+                    sink == 0 ? " " : ""));
+        }
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Builds a FilenameMap of rules and of a root for 10.0.0.0/8.
+     *
+     * @param rules rules as kind, pattern and replacement.
+     * @param cacheSize names resolved kept.
+     * @return new FilenameMap.
+     * */
+    private static FilenameMap build(List<String[]> rules, int cacheSize) {
+        FilenameMap.Builder builder = FilenameMap.builder()
+                .root("10.0.0.0/8", "lab").cacheSize(cacheSize);
+        for (String[] rule : rules) {
+            if (rule[0].equals("prefix")) {
+                builder.prefix(rule[1], rule[2]);
+            } else {
+                builder.regex(rule[1], rule[2]);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Rewrites a name with the first rule matching it, trying every rule in
+     * order.
+     *
+     * @param rules rules as kind, pattern and replacement.
+     * @param patterns compiled pattern of every regex rule, null for a
+     *                 prefix rule.
+     * @param name normalized filename.
+     * @return name rewritten, the same if no rule matches.
+     * */
+    private static String linear(List<String[]> rules, List<Pattern> patterns,
+                                 String name) {
+        for (int i = 0; i < rules.size(); i++) {
+            String[] rule = rules.get(i);
+            Pattern pattern = patterns.get(i);
+            if (pattern == null) {
+                if (name.startsWith(rule[1])) {
+                    return rule[2] + name.substring(rule[1].length());
+                }
+            } else if (pattern.matcher(name).matches()) {
+                return pattern.matcher(name).replaceFirst(rule[2]);
+            }
+        }
+        return name;
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,238 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Events of Java Flight Recorder emitted by a Server, for profiling it in
+ * production at little cost. Every event is disabled unless a recording
+ * enables it, for example with the settings in tftp.jfc next to this file:
+ *
+ * java -XX:StartFlightRecording=settings=tftp.jfc,filename=tftp.jfr
+ * transport.TFTPServer
+ *
+ * A recording is summarized by FlightSummary. No event records a stack
+ * trace; every event names its session by file, client address and TID.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class FlightEvents {
+
+    /**
+     * A request handled by the listener, from its receipt to its Client
+     * handed to TFTPServerThread, or to its ERROR.
+     * */
+    @Name("transport.Request")
+    @Category("TFTP")
+    @Label("Request")
+    @Description("Request received at the port of the Server")
+    @StackTrace(false)
+    protected static class Request extends Event {
+        /** RRQ or WRQ. */
+        @Label("Request")
+        protected String request;
+        /** File in request. */
+        @Label("File")
+        protected String file;
+        /** Internet address of the Client. */
+        @Label("Client")
+        protected String client;
+        /** Port of the Client. */
+        @Label("TID")
+        protected int port;
+        /** What became of the request. */
+        @Label("Outcome")
+        @Description("accepted, refused (answered with an ERROR), "
+                + "not octet, malformed or fault")
+        protected String outcome;
+    }
+
+    /**
+     * A transfer, from its request to the end of its Client.
+     * */
+    @Name("transport.Session")
+    @Category("TFTP")
+    @Label("Session")
+    @Description("Transfer of one file with one Client")
+    @StackTrace(false)
+    protected static class Session extends Event {
+        /** RRQ or WRQ. */
+        @Label("Request")
+        protected String request;
+        /** File in request. */
+        @Label("File")
+        protected String file;
+        /** Internet address of the Client. */
+        @Label("Client")
+        protected String client;
+        /** Port of the Client. */
+        @Label("TID")
+        protected int port;
+        /** Bytes of the file sent or written. */
+        @Label("Size")
+        @DataAmount
+        protected long size;
+        /** Bytes of content per DATA block. */
+        @Label("Block Size")
+        @DataAmount
+        protected int blockSize;
+        /** Negotiated windowsize, 1 for stop-and-wait. */
+        @Label("Window Size")
+        protected int windowSize;
+        /** Packets sent again. */
+        @Label("Retransmits")
+        protected int retransmits;
+        /** Timeouts waiting for the Client. */
+        @Label("Timeouts")
+        protected int timeouts;
+        /** False if the Client was given up. */
+        @Label("Complete")
+        protected boolean complete;
+    }
+
+    /**
+     * Latency of a DATA block from sent to acknowledged. Recorded above
+     * Constants.BLOCK_EVENT_THRESHOLD and for one block in
+     * Constants.BLOCK_EVENT_SAMPLE; never for blocks sent again (Karn).
+     * */
+    @Name("transport.BlockLatency")
+    @Category("TFTP")
+    @Label("Block Latency")
+    @Description("Time from a DATA block sent to its ACK received")
+    @StackTrace(false)
+    protected static class BlockLatency extends Event {
+        /** File in request. */
+        @Label("File")
+        protected String file;
+        /** Internet address of the Client. */
+        @Label("Client")
+        protected String client;
+        /** Port of the Client. */
+        @Label("TID")
+        protected int port;
+        /** Block number counted from the start of the transfer. */
+        @Label("Block")
+        protected long block;
+        /** Time from the block sent to its ACK received. */
+        @Label("Latency")
+        @Timespan
+        protected long latency;
+    }
+
+    /**
+     * A timeout waiting for a packet of a Client.
+     * */
+    @Name("transport.Timeout")
+    @Category("TFTP")
+    @Label("Timeout")
+    @Description("Timeout waiting for the ACK or DATA of a Client")
+    @StackTrace(false)
+    protected static class Timeout extends Event {
+        /** File in request. */
+        @Label("File")
+        protected String file;
+        /** Internet address of the Client. */
+        @Label("Client")
+        protected String client;
+        /** Port of the Client. */
+        @Label("TID")
+        protected int port;
+        /** ACK or DATA. */
+        @Label("Awaited")
+        protected String awaited;
+        /** Block number awaited, counted from the start of the transfer. */
+        @Label("Block")
+        protected long block;
+    }
+
+    /**
+     * A read or write of the file of a session slower than the threshold
+     * of the recording, 1 ms by default.
+     * */
+    @Name("transport.DiskStall")
+    @Category("TFTP")
+    @Label("Disk Stall")
+    @Description("Slow read or write of the file of a session")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    protected static class DiskStall extends Event {
+        /** File in request. */
+        @Label("File")
+        protected String file;
+        /** Internet address of the Client. */
+        @Label("Client")
+        protected String client;
+        /** Port of the Client. */
+        @Label("TID")
+        protected int port;
+        /** True for a write, false for a read. */
+        @Label("Write")
+        protected boolean write;
+        /** Offset in the file. */
+        @Label("Offset")
+        @DataAmount
+        protected long offset;
+        /** Bytes read or written. */
+        @Label("Bytes")
+        @DataAmount
+        protected int bytes;
+    }
+
+    /**
+     * A check of the socket buffers of a Server, once every
+     * Constants.BUFFER_CHECK_INTERVAL.
+     * */
+    @Name("transport.SocketBuffers")
+    @Category("TFTP")
+    @Label("Socket Buffers")
+    @Description("Packets dropped by the kernel and socket buffer sizes")
+    @StackTrace(false)
+    protected static class SocketBuffers extends Event {
+        /** Requests dropped since the last check. */
+        @Label("Request Drops")
+        protected long requestDrops;
+        /** Packets of transfers dropped since the last check. */
+        @Label("Transfer Drops")
+        protected long transferDrops;
+        /** Receive buffer of the request socket. */
+        @Label("Request Buffer")
+        @DataAmount
+        protected int requestBuffer;
+        /** Buffers of the slave socket. */
+        @Label("Transfer Buffer")
+        @DataAmount
+        protected int transferBuffer;
+        /** Sum of the windows of the Clients in process. */
+        @Label("Windows")
+        protected int windows;
+        /** Whether new requests are dropped. */
+        @Label("Shedding")
+        protected boolean shedding;
+    }
+
+    // END OF FILE
+}
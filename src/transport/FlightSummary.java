@@ -0,0 +1,266 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Command line tool summarizing a flight recording of a Server, made with
+ * the events of FlightEvents, into per-file and per-client latency tables.
+ *
+ * Usage: java transport.FlightSummary recording.jfr
+ *
+ * Prints the requests received by outcome with the distribution of the time
+ * the listener took over them, then one table per file and one per client
+ * address with: sessions, sessions given up, MB transferred, session time
+ * (p50 and p99), block latency (p50, p99 and max), timeouts, packets sent
+ * again, and disk stalls with the longest. Block latencies are those
+ * recorded, so latencies above Constants.BLOCK_EVENT_THRESHOLD weigh more
+ * than they do in the transfers.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class FlightSummary {
+
+    /**
+     * Main method.
+     *
+     * @param args path of the recording.
+     * @throws IOException if the recording cannot be read.
+     * */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java transport.FlightSummary "
+                    + "recording.jfr");
+            return;
+        }
+        List<RecordedEvent> events;
+        try {
+            events = RecordingFile.readAllEvents(Paths.get(args[0]));
+        } catch (IOException e) {
+            System.out.println("ERROR 751: " + args[0] + " is not a "
+                    + "recording. " + e.getMessage());
+            return;
+        }
+
+        Map<String, Row> byFile = new TreeMap<>();
+        Map<String, Row> byClient = new TreeMap<>();
+        Map<String, Integer> outcomes = new TreeMap<>();
+        List<Long> intakes = new ArrayList<>();
+        for (RecordedEvent event : events) {
+            String name = event.getEventType().getName();
+            if (!name.startsWith("transport.")) {
+                continue;
+            }
+            if (name.equals("transport.Request")) {
+                outcomes.merge(String.valueOf(event.getString("outcome")), 1,
+                        Integer::sum);
+                intakes.add(event.getDuration().toNanos());
+                continue;
+            }
+            Row file = row(byFile, event.getString("file"));
+            Row client = row(byClient, event.getString("client"));
+            switch (name) {
+                case "transport.Session":
+                    file.session(event);
+                    client.session(event);
+                    break;
+                case "transport.BlockLatency":
+                    file.latencies.add(event.getDuration("latency")
+                            .toNanos());
+                    client.latencies.add(event.getDuration("latency")
+                            .toNanos());
+                    break;
+                case "transport.Timeout":
+                    file.timeouts++;
+                    client.timeouts++;
+                    break;
+                case "transport.DiskStall":
+                    file.stalls.add(event.getDuration().toNanos());
+                    client.stalls.add(event.getDuration().toNanos());
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        int requests = 0;
+        for (int count : outcomes.values()) {
+            requests += count;
+        }
+        System.out.println(requests + " requests " + outcomes + ", intake "
+                + distribution(intakes, 1000, "us") + ".\n");
+        print("file", byFile);
+        System.out.println();
+        print("client", byClient);
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Returns the row of a key, adding it if absent.
+     *
+     * @param rows rows by key.
+     * @param key file or client, null if the event has none.
+     * @return row of the key.
+     * */
+    private static Row row(Map<String, Row> rows, String key) {
+        return rows.computeIfAbsent(key == null ? "?" : key,
+                k -> new Row());
+    }
+
+    /**
+     * Prints a table of rows.
+     *
+     * @param title heading of the key column.
+     * @param rows rows by key.
+     * */
+    private static void print(String title, Map<String, Row> rows) {
+        System.out.println(String.format("%-24s %8s %6s %10s %-22s %-30s "
+                        + "%8s %8s %s", title, "sessions", "failed", "MB",
+                "session ms p50/p99", "block ms p50/p99/max", "timeouts",
+                "resent", "stalls (max ms)"));
+        for (Map.Entry<String, Row> entry : rows.entrySet()) {
+            Row row = entry.getValue();
+            System.out.println(String.format("%-24s %8d %6d %10.2f %-22s "
+                            + "%-30s %8d %8d %d (%s)", entry.getKey(),
+                    row.sessions, row.failed, row.bytes / 1e6,
+                    percentiles(row.durations, false),
+                    percentiles(row.latencies, true), row.timeouts,
+                    row.retransmits, row.stalls.size(),
+                    row.stalls.isEmpty() ? "-" : String.format("%.2f",
+                            max(row.stalls) / 1e6)));
+        }
+    }
+
+    /**
+     * Returns the p50 and p99, and optionally the maximum, of durations in
+     * milliseconds.
+     *
+     * @param nanos durations in nanoseconds.
+     * @param withMax whether the maximum is included.
+     * @return percentiles separated by '/', "-" if there are none.
+     * */
+    private static String percentiles(List<Long> nanos, boolean withMax) {
+        if (nanos.isEmpty()) {
+            return "-";
+        }
+        long[] sorted = sorted(nanos);
+        String text = String.format("%.2f/%.2f",
+                EventDecoder.percentile(sorted, 50) / 1e6,
+                EventDecoder.percentile(sorted, 99) / 1e6);
+        return withMax ? text + String.format("/%.2f",
+                sorted[sorted.length - 1] / 1e6) : text;
+    }
+
+    /**
+     * Returns the p50, p99 and maximum of durations.
+     *
+     * @param nanos durations in nanoseconds.
+     * @param unit nanoseconds per unit printed.
+     * @param name name of the unit.
+     * @return description of the distribution.
+     * */
+    private static String distribution(List<Long> nanos, long unit,
+                                       String name) {
+        if (nanos.isEmpty()) {
+            return "-";
+        }
+        long[] sorted = sorted(nanos);
+        return "p50 " + EventDecoder.percentile(sorted, 50) / unit + " "
+                + name + ", p99 " + EventDecoder.percentile(sorted, 99) / unit
+                + " " + name + ", max " + sorted[sorted.length - 1] / unit
+                + " " + name;
+    }
+
+    /**
+     * Returns values as a sorted array.
+     *
+     * @param values values, in any order.
+     * @return values in ascending order.
+     * */
+    private static long[] sorted(List<Long> values) {
+        long[] sorted = new long[values.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = values.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Returns the largest of values.
+     *
+     * @param values values, not empty.
+     * @return largest value.
+     * */
+    private static long max(List<Long> values) {
+        long max = Long.MIN_VALUE;
+        for (long value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    /**
+     * Totals of the events of one file or one client.
+     * */
+    private static class Row {
+        /** Sessions ended. */
+        private int sessions;
+        /** Sessions given up. */
+        private int failed;
+        /** Bytes of the files of the sessions. */
+        private long bytes;
+        /** Timeouts waiting for the Clients. */
+        private int timeouts;
+        /** Packets sent again. */
+        private int retransmits;
+        /** Duration of every session in nanoseconds. */
+        private final List<Long> durations = new ArrayList<>();
+        /** Every block latency recorded in nanoseconds. */
+        private final List<Long> latencies = new ArrayList<>();
+        /** Duration of every disk stall in nanoseconds. */
+        private final List<Long> stalls = new ArrayList<>();
+
+        /**
+         * Adds a session ended.
+         *
+         * @param event transport.Session event.
+         * */
+        private void session(RecordedEvent event) {
+            sessions++;
+            if (!event.getBoolean("complete")) {
+                failed++;
+            }
+            bytes += event.getLong("size");
+            retransmits += event.getInt("retransmits");
+            durations.add(event.getDuration().toNanos());
+        }
+    }
+
+    // END OF FILE
+}
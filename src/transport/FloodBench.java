@@ -0,0 +1,260 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Command line benchmark showing that legitimate transfers keep their
+ * throughput while a Server absorbs a flood of junk packets. Reads one file
+ * from a TFTPServer on loopback with a MemoryStorage a number of times
+ * without junk, then the same number of times while a flooder sends junk to
+ * both the request port and the port of the Clients.
+ *
+ * Usage: java transport.FloodBench [-r packets/s] [-s size] [-n transfers]
+ * [-w windowsize] [-e engine]
+ *
+ * The flooder sends 'packets/s' (100000 by default) packets cycling through
+ * one byte packets, unknown opcodes, requests with no filename or mode,
+ * requests in netascii mode, and ACK and DATA from TIDs that are not
+ * transferring. Each phase reads a file of 'size' bytes (1 MB by default)
+ * 'transfers' times (10 by default) with 'windowsize' (1 by default) from a
+ * Server of 'engine' (DEFICIT_ROUND_ROBIN by default), and prints the median
+ * goodput, the median and longest time to complete, then the junk rate
+ * achieved, the packets rejected by the Server and whether it is still
+ * running.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class FloodBench {
+    /** Name of the file transferred. */
+    private static final String FILE = "bench.bin";
+
+    /**
+     * Main method.
+     *
+     * @param args options, see the class description.
+     * @throws IOException if the Server or the flooder cannot be started.
+     * @throws InterruptedException if interrupted waiting for the flooder.
+     * */
+    public static void main(String[] args)
+            throws IOException, InterruptedException {
+        int rate = 100_000;
+        int size = 1 << 20;
+        int transfers = 10;
+        int window = 1;
+        Engine engine = Engine.DEFICIT_ROUND_ROBIN;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-r":
+                        rate = Integer.parseInt(args[++i]);
+                        break;
+                    case "-s":
+                        size = Integer.parseInt(args[++i]);
+                        break;
+                    case "-n":
+                        transfers = Integer.parseInt(args[++i]);
+                        break;
+                    case "-w":
+                        window = Integer.parseInt(args[++i]);
+                        break;
+                    case "-e":
+                        engine = Engine.valueOf(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option "
+                                + args[i] + ".");
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("ERROR 741: Missing value of "
+                    + args[args.length - 1] + ".");
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR 742: " + e.getMessage());
+            return;
+        }
+
+        byte[] contents = new byte[size];
+        new Random(size).nextBytes(contents);
+        MemoryStorage storage = new MemoryStorage();
+        storage.put(FILE, contents);
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        TFTPServer server = TFTPServer.builder().port(0).storage(storage)
+                .engine(engine).build();
+        server.start();
+        InetSocketAddress address = new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), server.getPort());
+        try (TFTPClient client = TFTPClient.builder().windowSize(window)
+                .build()) {
+            out.println(String.format("%-8s %10s %10s %10s %12s %10s",
+                    "phase", "MB/s", "ms", "max ms", "junk/s", "rejected"));
+            out.println(phase("quiet", client, address, transfers) + String
+                    .format(" %12d %10d", 0, server.getRejected()));
+
+            Flooder flooder = new Flooder(server, rate);
+            Thread thread = new Thread(flooder, "flooder");
+            thread.setDaemon(true);
+            thread.start();
+            String line = phase("flood", client, address, transfers);
+            flooder.stop();
+            thread.join();
+            out.println(line + String.format(" %12.0f %10d",
+                    flooder.getRate(), server.getRejected()));
+            out.println("Server " + (server.isRunning()
+                    ? "still running." : "stopped."));
+        } catch (IOException e) {
+            out.println("ERROR 743: " + e.getMessage());
+        } finally {
+            server.stop();
+            System.setOut(out);
+        }
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Reads the file a number of times, one after the other.
+     *
+     * @param name name of the phase.
+     * @param client Client reading the file.
+     * @param address address of the Server.
+     * @param transfers number of reads.
+     * @return line of the report, without the junk columns.
+     * @throws IOException if a read fails.
+     * */
+    private static String phase(String name, TFTPClient client,
+                                InetSocketAddress address, int transfers)
+            throws IOException {
+        long[] throughputs = new long[transfers];
+        long[] durations = new long[transfers];
+        for (int i = 0; i < transfers; i++) {
+            TFTPClient.Transfer transfer = client.get(address, FILE,
+                    OutputStream.nullOutputStream());
+            throughputs[i] = (long) transfer.getThroughput();
+            durations[i] = transfer.getDuration();
+        }
+        Arrays.sort(throughputs);
+        Arrays.sort(durations);
+        return String.format("%-8s %10.2f %10d %10d", name,
+                EventDecoder.percentile(throughputs, 50) / 1e6,
+                EventDecoder.percentile(durations, 50) / 1_000_000,
+                durations[transfers - 1] / 1_000_000);
+    }
+
+    /**
+     * Sends junk to the request port and to the port of the Clients of a
+     * Server at a steady rate, in bursts of one millisecond, until stopped.
+     * */
+    private static class Flooder implements Runnable {
+        /** Request port of the Server. */
+        private final InetSocketAddress requests;
+        /** Port of the Clients of the Server. */
+        private final InetSocketAddress transfers;
+        /** Packets to send per second. */
+        private final int rate;
+        /** Whether to keep sending. */
+        private volatile boolean running = true;
+        /** Packets sent. */
+        private volatile long sent;
+        /** Nanoseconds spent sending. */
+        private volatile long elapsed;
+
+        /**
+         * Sole constructor.
+         *
+         * @param server Server to flood.
+         * @param packetsPerSecond packets to send per second.
+         * */
+        Flooder(TFTPServer server, int packetsPerSecond) {
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            requests = new InetSocketAddress(loopback, server.getPort());
+            transfers = new InetSocketAddress(loopback,
+                    server.getSlavePort());
+            rate = packetsPerSecond;
+        }
+
+        @Override
+        public void run() {
+            byte[][] junk = {
+                    {1},
+                    {0, 9, 0, 0},
+                    {0, 1, 0, 0},
+                    ("\0\1" + FILE + "\0netascii\0")
+                            .getBytes(StandardCharsets.US_ASCII),
+                    {0, 4, 0, 1},
+                    new byte[Constants.DEFAULT_DATA_SIZE + 4]
+            };
+            junk[5][1] = 3;
+            junk[5][3] = 1;
+
+            try (DatagramSocket socket = new DatagramSocket()) {
+                DatagramPacket packet = new DatagramPacket(junk[0], 1);
+                long start = System.nanoTime();
+                long count = 0;
+                while (running) {
+                    long due = (System.nanoTime() - start) * rate
+                            / 1_000_000_000L;
+                    for (; count < due; count++) {
+                        int kind = (int) (count % junk.length);
+                        packet.setData(junk[kind]);
+                        // requests go to port 69, blocks to the Clients
+                        packet.setSocketAddress(kind < 4 ? requests
+                                : transfers);
+                        socket.send(packet);
+                    }
+                    sent = count;
+                    LockSupport.parkNanos(1_000_000);
+                }
+                elapsed = System.nanoTime() - start;
+            } catch (IOException e) {
+                System.err.println("ERROR 743: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Stops sending; run() returns shortly after.
+         * */
+        protected void stop() {
+            running = false;
+        }
+
+        /**
+         * Returns the rate achieved, once run() returned.
+         * @return packets sent per second.
+         * */
+        protected double getRate() {
+            return sent / (Math.max(1, elapsed) / 1e9);
+        }
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,273 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Command line benchmark and check of the CPU time an idle Server takes,
+ * and of how soon its TFTPServerThread wakes up for a new request.
+ *
+ * Usage: java transport.IdleCpu [seconds] [samples] [percent]
+ *
+ * Under every engine, starts a Server on loopback and, once it has
+ * settled, measures the CPU time of its threads (listener and
+ * TFTPServerThread) and of the whole process over 'seconds' (5 by default)
+ * without any request, printed in milliseconds and as a share of one core.
+ * Then sends 'samples' (10 by default) write requests of an empty file,
+ * each once the Server is idle again, and prints the distribution of the
+ * time from the WRQ sent to ACK 0 received. ACK 0 is sent by
+ * TFTPServerThread, so this is the time the request takes from the
+ * listener thread to a sleeping TFTPServerThread. The console output of
+ * the Server is discarded.
+ *
+ * Exits with status 1 if the Server threads of any engine take more than
+ * 'percent' (1 by default) of a core while idle, or leave a request
+ * unacknowledged.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class IdleCpu {
+    /** Time in milliseconds for a Server to settle or fall idle again: the
+     * dally of the previous write request and some more. */
+    private static final int SETTLE = Constants.TIMEOUT * 10 + 200;
+
+    /**
+     * Main method.
+     *
+     * @param args seconds measured idle, number of wake up samples and
+     *             largest share of a core taken idle in percent.
+     * @throws IOException if the Server cannot be started.
+     * @throws InterruptedException if interrupted while waiting.
+     * */
+    public static void main(String[] args) throws IOException,
+            InterruptedException {
+        int seconds = 5;
+        int samples = 10;
+        double limit = 1;
+        try {
+            if (args.length > 0) {
+                seconds = Integer.parseInt(args[0]);
+            }
+            if (args.length > 1) {
+                samples = Integer.parseInt(args[1]);
+            }
+            if (args.length > 2) {
+                limit = Double.parseDouble(args[2]);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Usage: java transport.IdleCpu [seconds] "
+                    + "[samples] [percent]");
+            return;
+        }
+
+        boolean passed = true;
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (Engine engine : Engine.values()) {
+                TFTPServer server = TFTPServer.builder().port(0)
+                        .address(InetAddress.getLoopbackAddress())
+                        .engine(engine).storage(new MemoryStorage()).build();
+                server.start();
+                try {
+                    Thread.sleep(SETTLE);
+                    out.println(engine);
+                    passed &= measureIdle(out, seconds) <= limit;
+                    passed &= measureWakeUp(out, server, samples) == samples;
+                } finally {
+                    server.stop();
+                }
+            }
+        } finally {
+            System.setOut(out);
+        }
+        if (!passed) {
+            System.out.println("ERROR 831: Server threads took more than "
+                    + limit + " % of a core idle, or a request was not "
+                    + "acknowledged.");
+            System.exit(1);
+        }
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Prints the CPU time taken by the Server threads and by the process
+     * while no request is sent.
+     *
+     * @param out console output.
+     * @param seconds time measured.
+     * @return share of a core taken by the Server threads in percent.
+     * @throws InterruptedException if interrupted while waiting.
+     * */
+    private static double measureIdle(PrintStream out, int seconds)
+            throws InterruptedException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        List<Long> ids = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("TFTPServer")) {
+                ids.add(thread.getId());
+            }
+        }
+
+        long threadsBefore = cpuTime(threads, ids);
+        long processBefore = processCpuTime();
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        long wall = System.nanoTime() - start;
+        long threadsUsed = cpuTime(threads, ids) - threadsBefore;
+        long processUsed = processCpuTime() - processBefore;
+
+        out.println(String.format("idle %d s, %d Server threads", seconds,
+                ids.size()));
+        out.println(String.format("  Server threads %8.3f ms CPU %7.3f %%",
+                threadsUsed / 1e6, 100.0 * threadsUsed / wall));
+        out.println(String.format("  process        %8.3f ms CPU %7.3f %%",
+                processUsed / 1e6, 100.0 * processUsed / wall));
+        return 100.0 * threadsUsed / wall;
+    }
+
+    /**
+     * Prints the distribution of the time from a WRQ sent to an idle
+     * Server to ACK 0 received.
+     *
+     * @param out console output.
+     * @param server Server measured.
+     * @param samples number of requests.
+     * @return number of requests acknowledged.
+     * @throws IOException if an I/O error occurs.
+     * @throws InterruptedException if interrupted while waiting.
+     * */
+    private static int measureWakeUp(PrintStream out, TFTPServer server,
+                                      int samples)
+            throws IOException, InterruptedException {
+        InetSocketAddress target = new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), server.getPort());
+        long[] wakeUps = new long[samples];
+        int count = 0;
+        for (int i = 0; i < samples; i++) {
+            long wakeUp = writeEmptyFile(target, "idle-" + i + ".bin");
+            if (wakeUp >= 0) {
+                wakeUps[count++] = wakeUp;
+            }
+            Thread.sleep(SETTLE);
+        }
+
+        out.println(String.format("wake up, %d of %d requests acknowledged",
+                count, samples));
+        if (count > 0) {
+            long[] sorted = Arrays.copyOf(wakeUps, count);
+            Arrays.sort(sorted);
+            out.println(String.format("  WRQ to ACK 0   p50=%-8d p90=%-8d "
+                            + "max=%d us",
+                    EventDecoder.percentile(sorted, 50) / 1000,
+                    EventDecoder.percentile(sorted, 90) / 1000,
+                    sorted[sorted.length - 1] / 1000));
+        }
+        return count;
+    }
+
+    /**
+     * Writes an empty file to a Server: sends the WRQ, waits for ACK 0, then
+     * sends the sole, empty DATA 1 and waits for ACK 1.
+     *
+     * @param target address of requests of the Server.
+     * @param filename name of the file written.
+     * @return nanoseconds from the WRQ sent to ACK 0 received, -1 if no
+     * ACK 0 was received.
+     * @throws IOException if an I/O error occurs.
+     * */
+    private static long writeEmptyFile(InetSocketAddress target,
+                                       String filename) throws IOException {
+        byte[] name = filename.getBytes(StandardCharsets.US_ASCII);
+        byte[] mode = "octet".getBytes(StandardCharsets.US_ASCII);
+        byte[] request = new byte[4 + name.length + mode.length];
+        request[1] = (byte) Opcode.WRQ.ordinal();
+        System.arraycopy(name, 0, request, 2, name.length);
+        System.arraycopy(mode, 0, request, 3 + name.length, mode.length);
+
+        try (DatagramSocket socket = new DatagramSocket(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            socket.setSoTimeout(Constants.TIMEOUT * 10);
+            byte[] buf = new byte[Constants.DEFAULT_DATA_SIZE + 4];
+            DatagramPacket reply = new DatagramPacket(buf, buf.length);
+
+            long sent = System.nanoTime();
+            socket.send(new DatagramPacket(request, request.length, target));
+            try {
+                socket.receive(reply);
+            } catch (SocketTimeoutException e) {
+                return -1;
+            }
+            long wakeUp = System.nanoTime() - sent;
+            if (buf[1] != Opcode.ACK.ordinal()) {
+                return -1;
+            }
+
+            byte[] data = {0, (byte) Opcode.DATA.ordinal(), 0, 1};
+            socket.send(new DatagramPacket(data, data.length,
+                    reply.getSocketAddress()));
+            try {
+                socket.receive(reply);
+            } catch (SocketTimeoutException e) {
+                // ACK 1 lost; the Server dallies and the file is written
+            }
+            return wakeUp;
+        }
+    }
+
+    /**
+     * Returns the total CPU time of some threads.
+     *
+     * @param threads thread management of the JVM.
+     * @param ids ids of the threads.
+     * @return nanoseconds of CPU time, of the threads still alive.
+     * */
+    private static long cpuTime(ThreadMXBean threads, List<Long> ids) {
+        long total = 0;
+        for (long id : ids) {
+            total += Math.max(0, threads.getThreadCpuTime(id));
+        }
+        return total;
+    }
+
+    /**
+     * Returns the CPU time of this process so far.
+     * @return nanoseconds of CPU time, 0 if unknown.
+     * */
+    private static long processCpuTime() {
+        return ProcessHandle.current().info().totalCpuDuration()
+                .map(d -> d.toNanos()).orElse(0L);
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,443 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UDP relay between one remote Client and a Server that impairs the path
+ * like a real network: one-way delay with jitter, random loss and
+ * duplication, possibly delayed, a bottleneck of limited rate with a
+ * drop-tail queue, and an MTU above which packets are dropped without
+ * notice, like a tunnel filtering ICMP (a black hole). Each direction is
+ * impaired on its own with the same profile, from a seeded random source
+ * so runs are repeatable.
+ *
+ * The Client sends its requests to getAddress(). Requests (RRQ and WRQ) are
+ * relayed to the request port of the Server and every other packet to the
+ * TID the Server last answered from, so the Client sees a single Server TID.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class ImpairedLink implements Closeable {
+    /** Largest UDP payload relayed. */
+    private static final int MAX_PACKET = 65507;
+
+    /** Request address of the Server. */
+    private final InetSocketAddress server;
+    /** Socket facing the Client. */
+    private final DatagramSocket front;
+    /** Socket facing the Server. */
+    private final DatagramSocket back;
+    /** Impairments from the Client to the Server. */
+    private final Direction upstream;
+    /** Impairments from the Server to the Client. */
+    private final Direction downstream;
+    /** Timer of the packets in flight. */
+    private final ScheduledThreadPoolExecutor timer;
+    /** Address and TID the Client last sent from. */
+    private volatile SocketAddress clientTid;
+    /** Address and TID the Server last sent from. */
+    private volatile SocketAddress serverTid;
+
+    /**
+     * Starts relaying to a Server.
+     *
+     * @param server request address of the Server.
+     * @param builder impairments of the path.
+     * @throws SocketException if a socket cannot be bound.
+     * */
+    private ImpairedLink(InetSocketAddress server, Builder builder)
+            throws SocketException {
+        this.server = server;
+        Random random = new Random(builder.seed);
+        upstream = new Direction(builder, random.nextLong());
+        downstream = new Direction(builder, random.nextLong());
+        front = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        back = new DatagramSocket();
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ImpairedLink-"
+                        + front.getLocalPort());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        relay(front, true);
+        relay(back, false);
+    }
+
+    /**
+     * Returns a new Builder of a path with no impairment.
+     * @return new Builder.
+     * */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Stops relaying. Packets in flight are dropped.
+     * */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        front.close();
+        back.close();
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Starts the thread receiving the packets of one side.
+     *
+     * @param socket socket facing that side.
+     * @param fromClient whether that side is the Client.
+     * */
+    private void relay(final DatagramSocket socket, final boolean fromClient) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[MAX_PACKET];
+                DatagramPacket packet = new DatagramPacket(buffer,
+                        buffer.length);
+                while (!socket.isClosed()) {
+                    try {
+                        packet.setLength(buffer.length);
+                        socket.receive(packet);
+                    } catch (IOException e) {
+                        return; // closed
+                    }
+                    byte[] contents = new byte[packet.getLength()];
+                    System.arraycopy(buffer, 0, contents, 0, contents.length);
+                    if (fromClient) {
+                        clientTid = packet.getSocketAddress();
+                        boolean request = contents.length > 1
+                                && (contents[1] == Opcode.RRQ.ordinal()
+                                || contents[1] == Opcode.WRQ.ordinal());
+                        SocketAddress to = request || serverTid == null
+                                ? server : serverTid;
+                        forward(upstream, back, contents, to);
+                    } else {
+                        serverTid = packet.getSocketAddress();
+                        forward(downstream, front, contents, clientTid);
+                    }
+                }
+            }
+        }, (fromClient ? "ImpairedLink-up-" : "ImpairedLink-down-")
+                + front.getLocalPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sends a packet through the impairments of one direction.
+     *
+     * @param direction impairments of the direction.
+     * @param socket socket to send from.
+     * @param contents UDP payload.
+     * @param to destination.
+     * */
+    private void forward(Direction direction, final DatagramSocket socket,
+                         final byte[] contents, final SocketAddress to) {
+        int copies = direction.copies(contents.length);
+        for (int i = 0; i < copies; i++) {
+            long delay = direction.admit(contents.length);
+            if (delay < 0) {
+                continue;
+            }
+            if (i > 0) {
+                delay += direction.duplicateDelay;
+            }
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        socket.send(new DatagramPacket(contents,
+                                contents.length, to));
+                    } catch (IOException e) {
+                        // closed, or the destination is gone: lost
+                    }
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // getters and setters------------------------------------------------------
+
+    /**
+     * Returns the address the Client sends its requests to.
+     * @return loopback address and port of the relay.
+     * */
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(front.getLocalAddress(),
+                front.getLocalPort());
+    }
+    /**
+     * Returns the number of packets the Client sent through the relay.
+     * @return packets received from the Client.
+     * */
+    public long getSentByClient() {
+        return upstream.packets.get();
+    }
+    /**
+     * Returns the number of packets the Server sent through the relay.
+     * @return packets received from the Server.
+     * */
+    public long getSentByServer() {
+        return downstream.packets.get();
+    }
+    /**
+     * Returns the number of packets dropped in both directions, by random
+     * loss, a full queue or the MTU.
+     * @return packets dropped.
+     * */
+    public long getDropped() {
+        return upstream.dropped.get() + downstream.dropped.get();
+    }
+
+    /**
+     * Impairments of one direction of the path.
+     * */
+    private static final class Direction {
+        /** One-way delay in nanoseconds. */
+        private final long delay;
+        /** Largest random delay added in nanoseconds. */
+        private final long jitter;
+        /** Probability a packet is lost. */
+        private final double loss;
+        /** Probability a packet is delivered twice. */
+        private final double duplicate;
+        /** Delay of the second copy in nanoseconds. */
+        private final long duplicateDelay;
+        /** Rate of the bottleneck in bytes per second, 0 if none. */
+        private final long rate;
+        /** Longest wait in the queue of the bottleneck in nanoseconds. */
+        private final long queueLimit;
+        /** Largest packet forwarded, IP and UDP headers included, 0 if
+         * unlimited. */
+        private final int mtu;
+        /** Random source of this direction. */
+        private final Random random;
+        /** System.nanoTime() the bottleneck is free from. */
+        private long freeAt;
+        /** Packets received. */
+        private final AtomicLong packets = new AtomicLong();
+        /** Packets dropped. */
+        private final AtomicLong dropped = new AtomicLong();
+
+        private Direction(Builder builder, long seed) {
+            delay = builder.delay;
+            jitter = builder.jitter;
+            loss = builder.loss;
+            duplicate = builder.duplicate;
+            duplicateDelay = builder.duplicateDelay;
+            rate = builder.rate;
+            mtu = builder.mtu;
+            queueLimit = rate == 0 ? 0 : builder.queue
+                    * (Constants.DEFAULT_DATA_SIZE + 4
+                    + Constants.UDP_OVERHEAD) * 1_000_000_000L / rate;
+            random = new Random(seed);
+        }
+
+        /**
+         * Returns how many times a packet received is delivered.
+         * @param length length of the UDP payload.
+         * @return 0 if lost or larger than the MTU, 2 if duplicated, 1
+         * otherwise.
+         * */
+        private synchronized int copies(int length) {
+            packets.incrementAndGet();
+            if (mtu > 0 && length + Constants.UDP_OVERHEAD > mtu) {
+                dropped.incrementAndGet();
+                return 0;
+            }
+            if (random.nextDouble() < loss) {
+                dropped.incrementAndGet();
+                return 0;
+            }
+            return random.nextDouble() < duplicate ? 2 : 1;
+        }
+
+        /**
+         * Queues a packet at the bottleneck.
+         *
+         * @param length length of the UDP payload.
+         * @return nanoseconds until the packet is delivered, -1 if it is
+         * dropped by a full queue.
+         * */
+        private synchronized long admit(int length) {
+            long now = System.nanoTime();
+            long departure = now;
+            if (rate > 0) {
+                long start = Math.max(now, freeAt);
+                if (start - now > queueLimit) {
+                    dropped.incrementAndGet();
+                    return -1;
+                }
+                departure = start + (length + Constants.UDP_OVERHEAD)
+                        * 1_000_000_000L / rate;
+                freeAt = departure;
+            }
+            long spread = jitter > 0 ? (long) (random.nextDouble() * jitter)
+                    : 0;
+            return departure - now + delay + spread;
+        }
+    }
+
+    /**
+     * Builder of the impairments of an ImpairedLink, none by default.
+     * */
+    public static final class Builder {
+        /** One-way delay in nanoseconds. */
+        private long delay;
+        /** Largest random delay added in nanoseconds. */
+        private long jitter;
+        /** Probability a packet is lost. */
+        private double loss;
+        /** Probability a packet is delivered twice. */
+        private double duplicate;
+        /** Delay of the second copy of a packet after the first, in
+         * nanoseconds. */
+        private long duplicateDelay;
+        /** Rate of the bottleneck in bytes per second, 0 if none. */
+        private long rate;
+        /** Length of the queue of the bottleneck in full DATA packets. */
+        private int queue = 64;
+        /** Largest packet forwarded, 0 if unlimited. */
+        private int mtu;
+        /** Seed of the random source. */
+        private long seed = 1;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the one-way delay.
+         * @param millis delay in milliseconds.
+         * @return this Builder.
+         * */
+        public Builder delay(double millis) {
+            delay = (long) (Math.max(0, millis) * 1_000_000);
+            return this;
+        }
+        /**
+         * Sets the largest random delay added to the one-way delay. Packets
+         * may then be reordered.
+         * @param millis jitter in milliseconds.
+         * @return this Builder.
+         * */
+        public Builder jitter(double millis) {
+            jitter = (long) (Math.max(0, millis) * 1_000_000);
+            return this;
+        }
+        /**
+         * Sets the probability a packet is lost.
+         * @param probability from 0.0 to 1.0.
+         * @return this Builder.
+         * */
+        public Builder loss(double probability) {
+            loss = probability;
+            return this;
+        }
+        /**
+         * Sets the probability a packet is delivered twice.
+         * @param probability from 0.0 to 1.0.
+         * @return this Builder.
+         * */
+        public Builder duplicate(double probability) {
+            duplicate = probability;
+            return this;
+        }
+        /**
+         * Sets how long after the first copy of a packet delivered twice the
+         * second arrives, 0 by default. Once longer than a round trip, the
+         * second copy arrives in the middle of later exchanges.
+         * @param millis delay in milliseconds.
+         * @return this Builder.
+         * */
+        public Builder duplicateDelay(double millis) {
+            duplicateDelay = (long) (Math.max(0, millis) * 1_000_000);
+            return this;
+        }
+        /**
+         * Sets the rate of the bottleneck, none by default.
+         * @param bytesPerSecond rate counting IP and UDP headers, 0 for none.
+         * @return this Builder.
+         * */
+        public Builder rate(long bytesPerSecond) {
+            rate = Math.max(0, bytesPerSecond);
+            return this;
+        }
+        /**
+         * Sets the length of the queue of the bottleneck, 64 by default.
+         * Packets arriving at a full queue are dropped.
+         * @param packets length in full DATA packets.
+         * @return this Builder.
+         * */
+        public Builder queue(int packets) {
+            queue = Math.max(1, packets);
+            return this;
+        }
+        /**
+         * Sets the MTU of the path, none by default. Larger packets are
+         * dropped without notice.
+         * @param bytes largest packet forwarded, IP and UDP headers
+         *              included, 0 for none.
+         * @return this Builder.
+         * */
+        public Builder mtu(int bytes) {
+            mtu = Math.max(0, bytes);
+            return this;
+        }
+        /**
+         * Sets the seed of the random source, 1 by default.
+         * @param randomSeed seed.
+         * @return this Builder.
+         * */
+        public Builder seed(long randomSeed) {
+            seed = randomSeed;
+            return this;
+        }
+
+        /**
+         * Starts relaying to a Server with these impairments.
+         * @param server request address of the Server.
+         * @return new ImpairedLink, to be closed.
+         * @throws SocketException if a socket cannot be bound.
+         * */
+        public ImpairedLink open(InetSocketAddress server)
+                throws SocketException {
+            return new ImpairedLink(server, this);
+        }
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,390 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Command line check that files of more than 65535 blocks are streamed
+ * through a Server both ways, with block numbers rolling over, 64-bit
+ * offsets, and the heap of the process not growing with the size of the
+ * file.
+ *
+ * Usage: java -Xmx64m transport.LargeFileCheck [-r size] [-w size]
+ * [-m megabytes]
+ *
+ * Serves a temporary directory through a FileSystemStorage. Reads a sparse
+ * file of 'size' bytes given with -r (4 GB and a block by default: 65610
+ * blocks of 65464 bytes, past 4 GB and past block 65535) with a windowsize
+ * of 16, then writes a file of 'size' bytes given with -w (48 MB and a
+ * block by default: 98306 blocks of 512 bytes) read from a generated
+ * stream. Each
+ * file must arrive in full with the same CRC-32, the file written must
+ * have the permissions of any file created in the directory, and the heap
+ * used after each transfer, once collected, must not exceed the heap used
+ * before by more than 'megabytes' (16 by default). Prints per transfer the
+ * blocks, the time, the peak and retained heap, and exits with status 1 if
+ * any transfer fails either. With -Xmx64m, the heap holds a small part of
+ * the files only.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class LargeFileCheck {
+    /** Block size of the file read. */
+    private static final int BLOCK_SIZE = 65464;
+    /** Windowsize of the file read. */
+    private static final int WINDOW_SIZE = 16;
+    /** Bytes between two marks written in the sparse file read. */
+    private static final long MARK_INTERVAL = 1 << 20;
+
+    /**
+     * Main method.
+     *
+     * @param args options, see the class description.
+     * @throws Exception if the files cannot be made or the Server started.
+     * */
+    public static void main(String[] args) throws Exception {
+        long readSize = (4L << 30) + BLOCK_SIZE;
+        long writeSize = (48L << 20) + Constants.DEFAULT_DATA_SIZE;
+        long limit = 16;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-r":
+                        readSize = Long.parseLong(args[++i]);
+                        break;
+                    case "-w":
+                        writeSize = Long.parseLong(args[++i]);
+                        break;
+                    case "-m":
+                        limit = Long.parseLong(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option "
+                                + args[i] + ".");
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("ERROR 821: Missing value of "
+                    + args[args.length - 1] + ".");
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR 822: " + e.getMessage());
+            return;
+        }
+
+        Path root = Files.createTempDirectory("tftp-large");
+        Path read = root.resolve("read.bin");
+        Path written = root.resolve("written.bin");
+        long readCrc = makeSparse(read, readSize);
+
+        boolean passed = true;
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        TFTPServer server = TFTPServer.builder().port(0)
+                .address(InetAddress.getLoopbackAddress())
+                .root(root).build();
+        server.start();
+        InetSocketAddress address = new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), server.getPort());
+        Sampler sampler = new Sampler();
+        try {
+            out.println(String.format("%-6s %14s %8s %8s %10s %10s %6s",
+                    "", "bytes", "blocks", "s", "peak MB", "kept MB", ""));
+
+            // read: streamed to a CRC, never held
+            try (TFTPClient client = TFTPClient.builder()
+                    .blockSize(BLOCK_SIZE).windowSize(WINDOW_SIZE).build()) {
+                CRC32 crc = new CRC32();
+                long before = sampler.start();
+                TFTPClient.Transfer transfer = client.get(address,
+                        read.getFileName().toString(),
+                        new CheckedOutputStream(
+                                OutputStream.nullOutputStream(), crc));
+                long kept = sampler.stop() - before;
+                boolean ok = transfer.getBytes() == readSize
+                        && crc.getValue() == readCrc && kept <= limit << 20;
+                passed &= ok;
+                out.println(row("RRQ", transfer, sampler, kept, ok));
+            } catch (IOException e) {
+                sampler.stop();
+                passed = false;
+                out.println("RRQ    ERROR 823: " + e.getMessage());
+            }
+
+            // write: read from a generated stream, never held
+            try (TFTPClient client = TFTPClient.builder().build()) {
+                CRC32 crc = new CRC32();
+                long before = sampler.start();
+                TFTPClient.Transfer transfer = client.put(address,
+                        written.getFileName().toString(),
+                        new CheckedInputStream(new Generated(writeSize), crc),
+                        writeSize);
+                long kept = sampler.stop() - before;
+                boolean ok = Files.size(written) == writeSize
+                        && crc(written) == crc.getValue()
+                        && kept <= limit << 20 && sameMode(root, written);
+                passed &= ok;
+                out.println(row("WRQ", transfer, sampler, kept, ok));
+            } catch (IOException e) {
+                sampler.stop();
+                passed = false;
+                out.println("WRQ    ERROR 823: " + e.getMessage());
+            }
+        } finally {
+            server.stop();
+            System.setOut(out);
+            Files.deleteIfExists(read);
+            Files.deleteIfExists(written);
+            Files.deleteIfExists(root);
+        }
+        if (!passed) {
+            System.out.println("ERROR 824: A large file was not streamed "
+                    + "in full, or the heap grew by more than " + limit
+                    + " MB.");
+            System.exit(1);
+        }
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Makes a sparse file with the offset of every MARK_INTERVAL written
+     * at that offset, so that a block out of place changes its CRC.
+     *
+     * @param file file to make.
+     * @param size size of the file in bytes.
+     * @return CRC-32 of the file.
+     * @throws IOException if an I/O error occurs.
+     * */
+    private static long makeSparse(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+                StandardOpenOption.SPARSE)) {
+            ByteBuffer mark = ByteBuffer.allocate(Long.BYTES);
+            for (long offset = 0; offset + Long.BYTES <= size;
+                 offset += MARK_INTERVAL) {
+                mark.clear();
+                mark.putLong(offset).flip();
+                channel.write(mark, offset);
+            }
+            if (channel.size() < size) {
+                channel.write(ByteBuffer.allocate(1), size - 1);
+            }
+        }
+        return crc(file);
+    }
+
+    /**
+     * Returns the CRC-32 of a file, read in chunks.
+     *
+     * @param file file to read.
+     * @return CRC-32 of its contents.
+     * @throws IOException if an I/O error occurs.
+     * */
+    private static long crc(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        try (FileChannel channel = FileChannel.open(file)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Returns whether a file written by the Server has the permissions of
+     * any file created in the same directory, where POSIX permissions are
+     * kept.
+     *
+     * @param directory directory of the file.
+     * @param file file written by the Server.
+     * @return false if the permissions differ.
+     * @throws IOException if an I/O error occurs.
+     * */
+    private static boolean sameMode(Path directory, Path file)
+            throws IOException {
+        if (Files.getFileAttributeView(file, PosixFileAttributeView.class)
+                == null) {
+            return true;
+        }
+        Path reference = Files.createFile(directory.resolve("mode.bin"));
+        try {
+            Set<PosixFilePermission> expected =
+                    Files.getPosixFilePermissions(reference);
+            return expected.equals(Files.getPosixFilePermissions(file));
+        } finally {
+            Files.delete(reference);
+        }
+    }
+
+    /**
+     * Returns a line of results.
+     *
+     * @param request RRQ or WRQ.
+     * @param transfer transfer done.
+     * @param sampler sampler of the heap during the transfer.
+     * @param kept bytes of heap kept after the transfer.
+     * @param ok whether the transfer passed.
+     * @return line to print.
+     * */
+    private static String row(String request, TFTPClient.Transfer transfer,
+                              Sampler sampler, long kept, boolean ok) {
+        return String.format("%-6s %14d %8d %8.1f %10.1f %10.1f %6s",
+                request, transfer.getBytes(), transfer.getBlocks(),
+                transfer.getDuration() / 1e9, sampler.peak / 1048576.0,
+                kept / 1048576.0, ok ? "ok" : "FAIL");
+    }
+
+    /**
+     * Stream of 'size' bytes that change with their offset.
+     * */
+    private static final class Generated extends InputStream {
+        /** Bytes left. */
+        private long left;
+        /** Offset of the next byte. */
+        private long offset;
+
+        private Generated(long size) {
+            left = size;
+        }
+
+        @Override
+        public int read() {
+            if (left == 0) {
+                return -1;
+            }
+            left--;
+            return value(offset++);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (left == 0) {
+                return -1;
+            }
+            int count = (int) Math.min(len, left);
+            for (int i = 0; i < count; i++) {
+                b[off + i] = (byte) value(offset++);
+            }
+            left -= count;
+            return count;
+        }
+
+        /**
+         * Returns the byte at an offset.
+         *
+         * @param at offset.
+         * @return byte from 0 to 255.
+         * */
+        private static int value(long at) {
+            return (int) ((at ^ at >>> 9 ^ at >>> 19) & 0xff);
+        }
+    }
+
+    /**
+     * Samples the heap used every 10 milliseconds while a transfer is in
+     * process.
+     * */
+    private static final class Sampler implements Runnable {
+        /** Heap of the process. */
+        private final MemoryMXBean memory =
+                ManagementFactory.getMemoryMXBean();
+        /** Largest heap used sampled. */
+        private volatile long peak;
+        /** Thread sampling, null while none. */
+        private Thread thread;
+
+        /**
+         * Collects garbage, then starts sampling.
+         *
+         * @return heap used once collected.
+         * */
+        private long start() {
+            long used = used();
+            peak = used;
+            thread = new Thread(this, "LargeFileCheck-sampler");
+            thread.setDaemon(true);
+            thread.start();
+            return used;
+        }
+
+        /**
+         * Stops sampling, then collects garbage.
+         *
+         * @return heap used once collected.
+         * */
+        private long stop() {
+            if (thread != null) {
+                thread.interrupt();
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                thread = null;
+            }
+            return used();
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Returns the heap used once garbage is collected.
+         *
+         * @return bytes of heap used.
+         * */
+        private long used() {
+            System.gc();
+            return memory.getHeapMemoryUsage().getUsed();
+        }
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,84 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+/**
+ * Console notes limited to one per interval, for events which a remote host
+ * can cause at will, such as malformed packets, so that a flood of them
+ * costs a counter rather than a line each. A line printed tells how many
+ * were left out since the previous one.
+ *
+ * Callers ask allow() before building the note, so nothing is allocated for
+ * the notes left out.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class LogLimiter {
+    /** Minimum time in nanoseconds between two notes. */
+    private final long interval;
+    /** System.nanoTime() from which the next note may be printed. */
+    private long next;
+    /** Whether a note was printed yet. */
+    private boolean started;
+    /** Notes left out since the last one printed. */
+    private long suppressed;
+
+    /**
+     * Sole constructor.
+     *
+     * @param intervalMillis minimum time in milliseconds between two notes.
+     * */
+    public LogLimiter(int intervalMillis) {
+        interval = intervalMillis * 1_000_000L;
+    }
+
+    /**
+     * Returns true if a note may be printed now, in which case the caller
+     * prints it with print(). Otherwise, counts it as left out.
+     *
+     * @return whether to print the note.
+     * */
+    protected synchronized boolean allow() {
+        long now = System.nanoTime();
+        if (!started || now - next >= 0) {
+            started = true;
+            next = now + interval;
+            return true;
+        }
+        suppressed++;
+        return false;
+    }
+
+    /**
+     * Prints a note allowed by allow(), with the number of notes left out
+     * before it.
+     *
+     * @param note note to print.
+     * */
+    protected synchronized void print(String note) {
+        if (suppressed > 0) {
+            System.out.println(note + " (" + suppressed + " more since "
+                    + "the last note.)\n");
+        } else {
+            System.out.println(note + "\n");
+        }
+        suppressed = 0;
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,315 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage holding every file in memory, for boot sets served from RAM and
+ * for benchmarks free of disk noise. Files are loaded with put() or load()
+ * and written by WRQs; nothing is ever written to disk.
+ *
+ * The contents of a file are never changed once stored: a file written
+ * replaces the array of the previous one, so readers of the previous one
+ * keep reading it undisturbed.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class MemoryStorage implements Storage {
+    /** Files by normalized filename. */
+    private final Map<String, Blob> files = new ConcurrentHashMap<>();
+    /** Largest total size of the files held, in bytes. */
+    private final long capacity;
+    /** Total size of the files held, in bytes. */
+    private long used;
+    /** Total size announced by the uploads in progress, in bytes. */
+    private long reserved;
+
+    /**
+     * Constructor of a Storage of unlimited capacity.
+     * */
+    public MemoryStorage() {
+        this(Long.MAX_VALUE);
+    }
+
+    /**
+     * Constructor of a Storage refusing files past a total size.
+     *
+     * @param capacity largest total size of the files held, in bytes.
+     * */
+    public MemoryStorage(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns a Storage holding a copy of every regular file under a
+     * directory, named by their path relative to it.
+     *
+     * @param directory directory to copy.
+     * @return new Storage of unlimited capacity.
+     * @throws IOException if a file cannot be read.
+     * */
+    public static MemoryStorage load(final Path directory) throws IOException {
+        final MemoryStorage storage = new MemoryStorage();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file,
+                                             BasicFileAttributes attrs)
+                    throws IOException {
+                if (attrs.isRegularFile()) {
+                    storage.put(directory.relativize(file).toString(),
+                            Files.readAllBytes(file));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return storage;
+    }
+
+    /**
+     * Stores a file, replacing any file of the same name.
+     *
+     * @param filename name the file is requested by.
+     * @param contents contents of the file, not copied and not to be
+     *                 changed afterwards.
+     * @throws IOException if the capacity of this Storage would be exceeded.
+     * */
+    public synchronized void put(String filename, byte[] contents)
+            throws IOException {
+        String key = normalize(filename);
+        Blob previous = files.get(key);
+        long total = used + contents.length
+                - (previous == null ? 0 : previous.data.length);
+        if (total > capacity) {
+            throw new IOException("Memory storage full: " + filename
+                    + " needs " + contents.length + " bytes.");
+        }
+        files.put(key, new Blob(contents, System.currentTimeMillis()));
+        used = total;
+    }
+
+    /**
+     * Removes a file.
+     *
+     * @param filename name the file is requested by.
+     * @return true if the file was held. False otherwise.
+     * */
+    public synchronized boolean remove(String filename) {
+        Blob previous = files.remove(normalize(filename));
+        if (previous == null) {
+            return false;
+        }
+        used -= previous.data.length;
+        return true;
+    }
+
+    @Override
+    public long size(String filename) {
+        Blob blob = files.get(normalize(filename));
+        return blob == null ? -1 : blob.data.length;
+    }
+
+    @Override
+    public long modifiedTime(String filename) {
+        Blob blob = files.get(normalize(filename));
+        return blob == null ? -1 : blob.mtime;
+    }
+
+    @Override
+    public ReadHandle openRead(String filename) throws IOException {
+        final Blob blob = files.get(normalize(filename));
+        if (blob == null) {
+            throw new NoSuchFileException(filename);
+        }
+        return new ReadHandle() {
+            @Override
+            public long size() {
+                return blob.data.length;
+            }
+
+            @Override
+            public CompletableFuture<Integer> read(ByteBuffer dst,
+                                                   long offset) {
+                int length = (int) Math.max(0, Math.min(dst.remaining(),
+                        blob.data.length - offset));
+                if (length > 0) {
+                    dst.put(blob.data, (int) offset, length);
+                }
+                return CompletableFuture.completedFuture(length);
+            }
+
+            @Override
+            public void close() {
+                // nothing held
+            }
+        };
+    }
+
+    @Override
+    public synchronized long available(String filename) {
+        Blob previous = files.get(normalize(filename));
+        return capacity - used - reserved
+                + (previous == null ? 0 : previous.data.length);
+    }
+
+    @Override
+    public String findIgnoreCase(String filename) {
+        String key = normalize(filename);
+        for (String stored : files.keySet()) {
+            if (stored.equalsIgnoreCase(key)) {
+                return stored;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public WriteHandle openWrite(final String filename, long size) {
+        final long announced = size >= 0 && size <= Integer.MAX_VALUE - 8
+                ? size : -1;
+        if (announced > 0) {
+            reserve(announced);
+        }
+        return new WriteHandle() {
+            /** Contents written so far, of the size announced if any,
+             * otherwise grown as needed. */
+            private byte[] data = new byte[announced >= 0 ? (int) announced
+                    : Constants.DEFAULT_DATA_SIZE];
+            /** Size of the file written, the end of the furthest range. */
+            private int length;
+            /** Whether the size announced is still reserved. */
+            private boolean reserving = announced > 0;
+
+            @Override
+            public CompletableFuture<Integer> write(ByteBuffer src,
+                                                    long offset) {
+                int count = src.remaining();
+                long end = offset + count;
+                if (end > Integer.MAX_VALUE - 8) {
+                    return CompletableFuture.failedFuture(new IOException(
+                            "File too large for memory storage: "
+                                    + filename));
+                }
+                if (end > data.length) {
+                    data = Arrays.copyOf(data, (int) Math.min(
+                            Integer.MAX_VALUE - 8,
+                            Math.max(end, 2L * data.length)));
+                }
+                src.get(data, (int) offset, count);
+                length = (int) Math.max(length, end);
+                return CompletableFuture.completedFuture(count);
+            }
+
+            @Override
+            public void commit() throws IOException {
+                unreserve();
+                put(filename, length == data.length ? data
+                        : Arrays.copyOf(data, length));
+                data = null;
+            }
+
+            @Override
+            public void abort() {
+                unreserve();
+                data = null;
+            }
+
+            /**
+             * Gives back the size reserved by this handle, once.
+             * */
+            private void unreserve() {
+                if (reserving) {
+                    reserving = false;
+                    reserve(-announced);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        // files are kept so a stopped Server can be started again
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Adds to the total size announced by the uploads in progress.
+     *
+     * @param bytes bytes reserved, negative to give them back.
+     * */
+    private synchronized void reserve(long bytes) {
+        reserved += bytes;
+    }
+
+    /**
+     * Returns the key of a filename, so that "a/./b" and "a/b" name the
+     * same file.
+     *
+     * @param filename filename as received in a request.
+     * @return normalized filename with '/' separators.
+     * */
+    private static String normalize(String filename) {
+        return FilenameMap.normalize(filename);
+    }
+
+    // getters and setters------------------------------------------------------
+
+    /**
+     * Returns the total size of the files held.
+     * @return size in bytes.
+     * */
+    public synchronized long getUsed() {
+        return used;
+    }
+    /**
+     * Returns the largest total size of the files held.
+     * @return capacity in bytes.
+     * */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Contents and time of storage of one file.
+     * */
+    private static final class Blob {
+        /** Contents, never changed. */
+        private final byte[] data;
+        /** System.currentTimeMillis() when stored. */
+        private final long mtime;
+
+        private Blob(byte[] data, long mtime) {
+            this.data = data;
+            this.mtime = mtime;
+        }
+    }
+
+    // END OF FILE
+}
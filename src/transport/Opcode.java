@@ -35,7 +35,9 @@ public enum Opcode {
     /** 4 Acknowledgment (ACK). */
     ACK,
     /** 5 Error (ERROR). */
-    ERROR
+    ERROR,
+    /** 6 Option acknowledgment (OACK), by RFC 2347. */
+    OACK
 
     /*
     * opcode  operation
@@ -45,5 +47,6 @@ public enum Opcode {
             3     Data (DATA)
             4     Acknowledgment (ACK)
             5     Error (ERROR)
+            6     Option acknowledgment (OACK)
     * */
 }
@@ -0,0 +1,510 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Read-only Storage serving every file from one pack: a single file made
+ * by Packer holding the contents of a directory and a hash index of their
+ * names, mapped into memory once. Looking up a file and reading its blocks
+ * then take no system call, where a boot tree of thousands of small files
+ * would otherwise cost an open, a stat and a read each.
+ *
+ * A pack replaced on disk by a rename, as Packer does, is mapped again and
+ * swapped in at once: transfers started before keep reading the pack they
+ * opened, which stays mapped until the last of them ends. A pack found
+ * invalid is not swapped in. A pack should never be rewritten in place
+ * (as by cp): a mapping whose file shrinks faults when read, which fails
+ * the transfers reading it until the pack rewritten is swapped in.
+ *
+ * Layout of a pack, big-endian: a header of HEADER bytes (MAGIC, VERSION,
+ * number of files, number of slots of the index, time packed); an entry
+ * of ENTRY bytes per file, sorted by name (hash of the name, last
+ * modified time, offset and length of the name, offset and length of the
+ * contents); the index, a power of two of slots holding an entry number
+ * plus one, or 0 if empty, probed linearly from the hash of a name; then
+ * the names in UTF-8 and the contents. A pack is at most
+ * Integer.MAX_VALUE bytes, the most one mapping holds.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class PackStorage implements Storage {
+    /** First 8 bytes of a pack, "TFTPPACK". */
+    protected static final long MAGIC = 0x544654505041434BL;
+    /** Version of the layout of a pack. */
+    protected static final int VERSION = 1;
+    /** Bytes of the header of a pack. */
+    protected static final int HEADER = 32;
+    /** Bytes of the entry of a file. */
+    protected static final int ENTRY = 32;
+
+    /** Path of the pack. */
+    private final Path path;
+    /** Pack served, replaced whole when swapped. */
+    private volatile Pack pack;
+    /** Number of packs swapped in since the first. */
+    private volatile int swaps;
+    /** Watches the directory of the pack. Null if unavailable or closed. */
+    private WatchService watcher;
+
+    /**
+     * Sole constructor. Maps the pack and watches its directory, so that
+     * the pack is swapped whenever it is replaced.
+     *
+     * @param path path of the pack.
+     * @throws IOException if the pack cannot be read or is invalid.
+     * */
+    public PackStorage(Path path) throws IOException {
+        this.path = path.toAbsolutePath().normalize();
+        pack = map(this.path);
+        watch();
+    }
+
+    /**
+     * Maps the pack again if it was replaced, and swaps it in. Called by
+     * the watcher of its directory, or by hand where the directory cannot
+     * be watched.
+     *
+     * @return true if a new pack was swapped in. False if the pack was not
+     * replaced or is invalid, in which case the one served is kept.
+     * */
+    public synchronized boolean reload() {
+        Pack current = pack;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path,
+                    BasicFileAttributes.class);
+            if (attrs.fileKey() != null
+                    && attrs.fileKey().equals(current.fileKey)
+                    && attrs.size() == current.map.capacity()
+                    && attrs.lastModifiedTime().toMillis() == current.mtime) {
+                return false; // the same file, unchanged
+            }
+            Pack replacement = map(path);
+            pack = replacement;
+            swaps++;
+            System.out.println("NOTE 057: Pack " + path + " swapped, "
+                    + replacement.count + " files.\n");
+            return true;
+        } catch (IOException e) {
+            System.out.println("NOTE 058: Pack " + path + " kept. "
+                    + e.getMessage() + "\n");
+            return false;
+        }
+    }
+
+    @Override
+    public long size(String filename) {
+        Pack current = pack;
+        int entry = current.find(normalize(filename));
+        return entry < 0 ? -1 : current.map.getInt(entry + 28);
+    }
+
+    @Override
+    public long modifiedTime(String filename) {
+        Pack current = pack;
+        int entry = current.find(normalize(filename));
+        return entry < 0 ? -1 : current.map.getLong(entry + 8);
+    }
+
+    @Override
+    public ReadHandle openRead(String filename) throws IOException {
+        final Pack opened = pack;
+        int entry = opened.find(normalize(filename));
+        if (entry < 0) {
+            throw new NoSuchFileException(filename);
+        }
+        final int start = opened.map.getInt(entry + 24);
+        final int length = opened.map.getInt(entry + 28);
+        // a view of its own, so reads do not share a position
+        final ByteBuffer view = opened.map.duplicate();
+        return new ReadHandle() {
+            @Override
+            public long size() {
+                return length;
+            }
+
+            @Override
+            public CompletableFuture<Integer> read(ByteBuffer dst,
+                                                   long offset) {
+                int count = (int) Math.max(0, Math.min(dst.remaining(),
+                        length - offset));
+                if (count > 0) {
+                    synchronized (view) {
+                        view.limit(start + (int) offset + count)
+                                .position(start + (int) offset);
+                        try {
+                            dst.put(view);
+                        } catch (InternalError e) { // pack rewritten in place
+                            return CompletableFuture.failedFuture(
+                                    new IOException("Pack truncated."));
+                        }
+                    }
+                }
+                return CompletableFuture.completedFuture(count);
+            }
+
+            @Override
+            public void close() {
+                // unmapped once no handle refers to the pack
+            }
+        };
+    }
+
+    @Override
+    public long available(String filename) {
+        return 0;
+    }
+
+    @Override
+    public String findIgnoreCase(String filename) {
+        Pack current = pack;
+        String key = FilenameMap.normalize(filename);
+        for (int i = 0; i < current.count; i++) {
+            String name = current.name(HEADER + i * ENTRY);
+            if (name.equalsIgnoreCase(key)) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public WriteHandle openWrite(String filename, long size)
+            throws IOException {
+        throw new AccessDeniedException(filename, null, "pack is read-only");
+    }
+
+    @Override
+    public synchronized void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                System.out.println("NOTE 131: " + e.getMessage() + "\n");
+            }
+            watcher = null;
+        }
+    }
+
+    /**
+     * Returns the hash of a name in a pack, 64-bit FNV-1a.
+     *
+     * @param name name in UTF-8.
+     * @return hash of the name.
+     * */
+    protected static long hash(byte[] name) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : name) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Maps a pack and checks that every offset in it is within it, so
+     * that a bad pack is refused at once rather than failing transfers.
+     *
+     * @param file path of the pack.
+     * @return pack mapped.
+     * @throws IOException if the pack cannot be read or is invalid.
+     * */
+    private static Pack map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a pack: " + size + " bytes.");
+            }
+            ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    size);
+            BasicFileAttributes attrs = Files.readAttributes(file,
+                    BasicFileAttributes.class);
+            return new Pack(map, attrs.fileKey(),
+                    attrs.lastModifiedTime().toMillis());
+        }
+    }
+
+    /**
+     * Registers the directory of the pack with a WatchService, and starts
+     * the thread swapping the pack whenever it is replaced. Without one,
+     * the pack is swapped only by reload().
+     * */
+    private synchronized void watch() {
+        Path dir = path.getParent();
+        if (dir == null) {
+            return;
+        }
+        try {
+            watcher = dir.getFileSystem().newWatchService();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            close();
+            return;
+        }
+        final WatchService service = watcher;
+        Thread watchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainEvents(service);
+            }
+        }, "TFTPPackWatcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    /**
+     * Body of the watcher thread. Reloads the pack whenever its name is
+     * created or modified in its directory.
+     *
+     * @param service WatchService of the directory.
+     * */
+    private void drainEvents(WatchService service) {
+        Path name = path.getFileName();
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean replaced = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    replaced |= event.kind()
+                            == StandardWatchEventKinds.OVERFLOW
+                            || name.equals(event.context());
+                }
+                if (replaced) {
+                    reload();
+                }
+                if (!key.reset()) {
+                    return; // directory gone
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // storage closed
+        }
+    }
+
+    /**
+     * Returns the key of a filename, so that "a/./b" and "a/b" name the
+     * same file.
+     *
+     * @param filename filename as received in a request.
+     * @return normalized filename in UTF-8.
+     * */
+    private static byte[] normalize(String filename) {
+        return FilenameMap.normalize(filename)
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    // getters and setters------------------------------------------------------
+
+    /**
+     * Returns the path of the pack.
+     * @return path of the pack.
+     * */
+    public Path getPath() {
+        return path;
+    }
+    /**
+     * Returns the number of files in the pack served.
+     * @return number of files.
+     * */
+    public int getCount() {
+        return pack.count;
+    }
+    /**
+     * Returns the time the pack served was made by Packer.
+     * @return time in milliseconds.
+     * */
+    public long getPackedTime() {
+        return pack.map.getLong(24);
+    }
+    /**
+     * Returns the number of packs swapped in since the first.
+     * @return number of swaps.
+     * */
+    public int getSwaps() {
+        return swaps;
+    }
+
+    /**
+     * A pack mapped, never changed once checked.
+     * */
+    private static final class Pack {
+        /** Contents of the pack, read only by absolute index. */
+        private final ByteBuffer map;
+        /** Identity of the file mapped, null if the system has none. */
+        private final Object fileKey;
+        /** Last modified time of the file mapped. */
+        private final long mtime;
+        /** Number of files. */
+        private final int count;
+        /** Number of slots of the index minus one. */
+        private final int mask;
+        /** Offset of the index. */
+        private final int slots;
+
+        /**
+         * Sole constructor. Checks the pack.
+         *
+         * @param map contents of the pack.
+         * @param fileKey identity of the file mapped.
+         * @param mtime last modified time of the file mapped.
+         * @throws IOException if the pack is invalid.
+         * */
+        private Pack(ByteBuffer map, Object fileKey, long mtime)
+                throws IOException {
+            this.map = map;
+            this.fileKey = fileKey;
+            this.mtime = mtime;
+            if (map.getLong(0) != MAGIC || map.getInt(8) != VERSION) {
+                throw new IOException("Not a pack of version " + VERSION
+                        + ".");
+            }
+            count = map.getInt(12);
+            int slotCount = map.getInt(16);
+            slots = HEADER + count * ENTRY;
+            long indexEnd = HEADER + (long) count * ENTRY + 4L * slotCount;
+            if (count < 0 || slotCount <= count
+                    || Integer.bitCount(slotCount) != 1
+                    || indexEnd > map.capacity()) {
+                throw new IOException("Index of the pack out of bounds.");
+            }
+            mask = slotCount - 1;
+            for (int i = 0; i < count; i++) {
+                int entry = HEADER + i * ENTRY;
+                if (!within(map.getInt(entry + 16), map.getInt(entry + 20),
+                        indexEnd) || !within(map.getInt(entry + 24),
+                        map.getInt(entry + 28), indexEnd)) {
+                    throw new IOException("File " + i + " of the pack out "
+                            + "of bounds.");
+                }
+            }
+            for (int i = 0; i <= mask; i++) {
+                int slot = map.getInt(slots + 4 * i);
+                if (slot < 0 || slot > count) {
+                    throw new IOException("Slot " + i + " of the pack out "
+                            + "of bounds.");
+                }
+            }
+        }
+
+        /**
+         * Returns the offset of the entry of a file.
+         *
+         * @param name normalized filename in UTF-8.
+         * @return offset of its entry, -1 if not in the pack or the pack
+         * was rewritten in place.
+         * */
+        private int find(byte[] name) {
+            try {
+                return probe(name);
+            } catch (InternalError e) {
+                return -1;
+            }
+        }
+
+        /**
+         * Probes the index for a file, see find().
+         *
+         * @param name normalized filename in UTF-8.
+         * @return offset of its entry, -1 if not in the pack.
+         * */
+        private int probe(byte[] name) {
+            long hash = hash(name);
+            for (int i = (int) hash & mask, probes = 0; probes <= mask;
+                 i = (i + 1) & mask, probes++) {
+                int slot = map.getInt(slots + 4 * i);
+                if (slot == 0) {
+                    return -1;
+                }
+                int entry = HEADER + (slot - 1) * ENTRY;
+                if (map.getLong(entry) == hash && matches(entry, name)) {
+                    return entry;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns true if the name of an entry is the one given.
+         *
+         * @param entry offset of the entry.
+         * @param name name in UTF-8.
+         * @return true if equal. False otherwise.
+         * */
+        private boolean matches(int entry, byte[] name) {
+            int start = map.getInt(entry + 16);
+            if (map.getInt(entry + 20) != name.length) {
+                return false;
+            }
+            for (int i = 0; i < name.length; i++) {
+                if (map.get(start + i) != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the name of an entry.
+         *
+         * @param entry offset of the entry.
+         * @return name of the file.
+         * */
+        private String name(int entry) {
+            byte[] name = new byte[map.getInt(entry + 20)];
+            for (int i = 0; i < name.length; i++) {
+                name[i] = map.get(map.getInt(entry + 16) + i);
+            }
+            return new String(name, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Returns true if a range lies in the pack past its index.
+         *
+         * @param offset offset of the range.
+         * @param length length of the range.
+         * @param indexEnd end of the index.
+         * @return true if within. False otherwise.
+         * */
+        private boolean within(int offset, int length, long indexEnd) {
+            return offset >= indexEnd && length >= 0
+                    && (long) offset + length <= map.capacity();
+        }
+    }
+
+    // END OF FILE
+}
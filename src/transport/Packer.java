@@ -0,0 +1,254 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Command line tool making the pack of a directory, served by
+ * PackStorage.
+ *
+ * Usage: java transport.Packer [-o pack] directory
+ *
+ * Packs every regular file under 'directory', named by its path relative
+ * to it, into 'pack' ("tftp.pack" by default). The pack is written next
+ * to its path and renamed into place, so a Server serving the pack swaps
+ * to the new one without disturbing transfers in progress. Prints the
+ * number of files and bytes packed.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class Packer {
+
+    /**
+     * Main method.
+     *
+     * @param args options and directory, see the class description.
+     * */
+    public static void main(String[] args) {
+        Path output = Paths.get("tftp.pack");
+        Path directory = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-o")) {
+                    output = Paths.get(args[++i]);
+                } else if (args[i].startsWith("-") || directory != null) {
+                    throw new IllegalArgumentException("Unknown option "
+                            + args[i] + ".");
+                } else {
+                    directory = Paths.get(args[i]);
+                }
+            }
+            if (directory == null) {
+                throw new IllegalArgumentException("No directory given.");
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("ERROR 791: Missing value of "
+                    + args[args.length - 1] + ".");
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR 792: " + e.getMessage());
+            return;
+        }
+
+        try {
+            long start = System.nanoTime();
+            List<Packed> files = list(directory);
+            long bytes = pack(files, output);
+            System.out.println("Packed " + files.size() + " files, " + bytes
+                    + " bytes, into " + output + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms.");
+        } catch (IOException e) {
+            System.out.println("ERROR 793: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Lists the regular files under a directory, sorted by name.
+     *
+     * @param directory directory to pack.
+     * @return files to pack.
+     * @throws IOException if the directory cannot be walked.
+     * */
+    private static List<Packed> list(final Path directory)
+            throws IOException {
+        final List<Packed> files = new ArrayList<>();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file,
+                                             BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    files.add(new Packed(file, FilenameMap.normalize(
+                            directory.relativize(file).toString()),
+                            attrs.size(),
+                            attrs.lastModifiedTime().toMillis()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(files, new Comparator<Packed>() {
+            @Override
+            public int compare(Packed a, Packed b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Writes the pack of some files next to its path, then renames it
+     * into place.
+     *
+     * @param files files to pack, sorted by name.
+     * @param output path of the pack.
+     * @return size of the pack in bytes.
+     * @throws IOException if a file cannot be read, changed while packed,
+     * or the pack would exceed Integer.MAX_VALUE bytes.
+     * */
+    private static long pack(List<Packed> files, Path output)
+            throws IOException {
+        int count = files.size();
+        int slotCount = Integer.highestOneBit(Math.max(1, 2 * count)) << 1;
+        long names = PackStorage.HEADER + (long) count * PackStorage.ENTRY
+                + 4L * slotCount;
+        long contents = names;
+        for (Packed file : files) {
+            contents += file.utf8.length;
+        }
+        long end = contents;
+        for (Packed file : files) {
+            end += file.size;
+        }
+        if (end > Integer.MAX_VALUE) {
+            throw new IOException("Pack of " + end + " bytes exceeds "
+                    + Integer.MAX_VALUE + ".");
+        }
+
+        // index: entry number plus one, probed linearly from the hash
+        int[] slots = new int[slotCount];
+        for (int i = 0; i < count; i++) {
+            int slot = (int) files.get(i).hash & (slotCount - 1);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & (slotCount - 1);
+            }
+            slots[slot] = i + 1;
+        }
+
+        Path absolute = output.toAbsolutePath();
+        Path partFile = FileSystemStorage.createPart(absolute);
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(partFile),
+                            1 << 16))) {
+                out.writeLong(PackStorage.MAGIC);
+                out.writeInt(PackStorage.VERSION);
+                out.writeInt(count);
+                out.writeInt(slotCount);
+                out.writeInt(0);
+                out.writeLong(System.currentTimeMillis());
+                long name = names;
+                long data = contents;
+                for (Packed file : files) {
+                    out.writeLong(file.hash);
+                    out.writeLong(file.mtime);
+                    out.writeInt((int) name);
+                    out.writeInt(file.utf8.length);
+                    out.writeInt((int) data);
+                    out.writeInt((int) file.size);
+                    name += file.utf8.length;
+                    data += file.size;
+                }
+                for (int slot : slots) {
+                    out.writeInt(slot);
+                }
+                for (Packed file : files) {
+                    out.write(file.utf8);
+                }
+                for (Packed file : files) {
+                    long copied;
+                    try (InputStream in = Files.newInputStream(file.path)) {
+                        copied = in.transferTo(out);
+                    }
+                    if (copied != file.size) {
+                        throw new IOException(file.path + " changed while "
+                                + "packed.");
+                    }
+                }
+            }
+            try {
+                Files.move(partFile, absolute,
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partFile, absolute,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(partFile);
+        }
+        return end;
+    }
+
+    /**
+     * A file to pack.
+     * */
+    private static final class Packed {
+        /** Path of the file. */
+        private final Path path;
+        /** Name the file is requested by, normalized. */
+        private final String name;
+        /** Name in UTF-8. */
+        private final byte[] utf8;
+        /** Hash of the name. */
+        private final long hash;
+        /** Size of the file when listed. */
+        private final long size;
+        /** Last modified time of the file. */
+        private final long mtime;
+
+        private Packed(Path path, String name, long size, long mtime) {
+            this.path = path;
+            this.name = name;
+            this.size = size;
+            this.mtime = mtime;
+            utf8 = name.getBytes(StandardCharsets.UTF_8);
+            hash = PackStorage.hash(utf8);
+        }
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,317 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the block size of every read request asking for the blksize
+ * option (RFC 2348): the size asked for, but no more than fits in one IP
+ * packet on the path to the Client, since a block fragmented is lost
+ * whenever any of its fragments is, which on a lossy link multiplies the
+ * loss of blocks.
+ *
+ * The MTU of the path is the one set for the first subnet the Client is
+ * in, else the one set for every path, else that of the interface the
+ * Client is on the subnet of, else that of the interface of the local
+ * address of the Server, else the smallest of the interfaces up other than
+ * loopback. Interfaces are listed again every
+ * Constants.MTU_REFRESH_INTERVAL.
+ *
+ * With probing on, a Client whose full blocks time out
+ * Constants.MTU_PROBE_TIMEOUTS times before any is acknowledged is taken
+ * to be behind a link of a smaller MTU that drops what it cannot forward
+ * (a black hole): its later transfers are offered blocks of the next MTU
+ * plateau down (RFC 1191), one plateau further per black hole, until
+ * Constants.MTU_PROBE_EXPIRY passes without one. A transfer keeps the
+ * block size it started with, as the block numbers depend on it.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class PathMtu {
+    /** Smallest MTU settable, which every IPv4 host must take. */
+    protected static final int MIN_MTU = 576;
+    /** MTU plateaus of RFC 1191, descending, probed down one at a time. */
+    private static final int[] PLATEAUS = {65535, 32000, 17914, 8166, 4352,
+            2002, 1500, 1492, 1280, 1006, MIN_MTU};
+    /** Bytes of the UDP and TFTP headers of a DATA packet. */
+    private static final int HEADERS = 8 + 4;
+
+    /** MTU of every path, 0 to take that of the interface. */
+    private final int mtu;
+    /** Subnets given an MTU, in the order they are tried. */
+    private final Subnet[] subnets;
+    /** MTU of each subnet in 'subnets'. */
+    private final int[] subnetMtus;
+    /** Whether black holes lower the block size of later transfers. */
+    private final boolean probing;
+    /** Lowered MTU by Client address, least recently used first. */
+    private final Map<InetAddress, Probe> lowered;
+    /** Interfaces up, listed last at 'listedAt'. */
+    private volatile Link[] links;
+    /** System.nanoTime() the interfaces were listed at. */
+    private volatile long listedAt;
+
+    /**
+     * Sole constructor.
+     *
+     * @param mtu MTU of every path, 0 to take that of the interface.
+     * @param subnetMtus MTU of each subnet in CIDR notation. A Client
+     *                   takes the first subnet it is in.
+     * @param probing whether black holes lower the block size of later
+     *                transfers.
+     * */
+    public PathMtu(int mtu, Map<String, Integer> subnetMtus,
+                   boolean probing) {
+        this.mtu = mtu;
+        this.probing = probing;
+        subnets = new Subnet[subnetMtus.size()];
+        this.subnetMtus = new int[subnetMtus.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> subnet : subnetMtus.entrySet()) {
+            subnets[i] = Subnet.parse(subnet.getKey());
+            this.subnetMtus[i++] = subnet.getValue();
+        }
+        lowered = new LinkedHashMap<InetAddress, Probe>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<InetAddress, Probe> eldest) {
+                return size() > Constants.MTU_CACHE_SIZE;
+            }
+        };
+    }
+
+    /**
+     * Returns the block size of a read request asking for one.
+     *
+     * @param client address of the Client.
+     * @param local local address of the Server, null if bound to all.
+     * @param requested block size asked for, from
+     *                  Constants.MIN_BLOCK_SIZE to Constants.MAX_BLOCK_SIZE.
+     * @return block size of the transfer, at most 'requested'.
+     * */
+    protected int blockSize(InetAddress client, InetAddress local,
+                            int requested) {
+        return Math.min(requested, Math.max(Constants.MIN_BLOCK_SIZE,
+                mtu(client, local) - header(client) - HEADERS));
+    }
+
+    /**
+     * Notes a black hole on the path to a Client: full blocks of
+     * 'blockSize' bytes timed out before any was acknowledged. Later
+     * transfers of the Client are offered blocks of the next MTU plateau
+     * below. Does nothing with probing off.
+     *
+     * @param client address of the Client.
+     * @param blockSize block size of the transfer.
+     * */
+    protected void blackHole(InetAddress client, int blockSize) {
+        if (!probing) {
+            return;
+        }
+        int packet = blockSize + HEADERS + header(client);
+        int plateau = MIN_MTU;
+        for (int candidate : PLATEAUS) {
+            if (candidate < packet) {
+                plateau = candidate;
+                break;
+            }
+        }
+        synchronized (lowered) {
+            Probe probe = lowered.get(client);
+            if (probe != null && probe.mtu <= plateau) {
+                return; // lowered as far by another transfer
+            }
+            lowered.put(client, new Probe(plateau, System.nanoTime()
+                    + Constants.MTU_PROBE_EXPIRY * 1_000_000L));
+        }
+        System.out.println("NOTE 056: Blocks of " + blockSize + " bytes "
+                + "lost to " + client.getHostAddress() + ", MTU "
+                + plateau + " taken for later transfers.\n");
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Returns the MTU of the path to a Client, lowered if a black hole was
+     * found on it.
+     *
+     * @param client address of the Client.
+     * @param local local address of the Server, null if bound to all.
+     * @return MTU in bytes.
+     * */
+    private int mtu(InetAddress client, InetAddress local) {
+        int path = configured(client);
+        if (path == 0) {
+            path = detected(client, local);
+        }
+        if (probing) {
+            synchronized (lowered) {
+                Probe probe = lowered.get(client);
+                if (probe != null && System.nanoTime() - probe.expiresAt
+                        >= 0) {
+                    lowered.remove(client);
+                } else if (probe != null) {
+                    path = Math.min(path, probe.mtu);
+                }
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Returns the MTU set for the path to a Client.
+     *
+     * @param client address of the Client.
+     * @return MTU of its first subnet, else that of every path, 0 if none.
+     * */
+    private int configured(InetAddress client) {
+        for (int i = 0; i < subnets.length; i++) {
+            if (subnets[i].contains(client)) {
+                return subnetMtus[i];
+            }
+        }
+        return mtu;
+    }
+
+    /**
+     * Returns the MTU of the interface a Client is reached through, as
+     * well as can be told without the routing table.
+     *
+     * @param client address of the Client.
+     * @param local local address of the Server, null if bound to all.
+     * @return MTU in bytes, Constants.DEFAULT_MTU if no interface is up.
+     * */
+    private int detected(InetAddress client, InetAddress local) {
+        Link[] current = links;
+        if (current == null || System.nanoTime() - listedAt
+                > Constants.MTU_REFRESH_INTERVAL * 1_000_000L) {
+            current = list();
+        }
+        int smallest = 0;
+        int bound = 0;
+        for (Link link : current) {
+            if (link.subnet.contains(client)) {
+                return link.mtu; // on the subnet of the Client
+            }
+            if (link.address.equals(local)) {
+                bound = link.mtu;
+            }
+            if (!link.loopback) {
+                smallest = smallest == 0 ? link.mtu
+                        : Math.min(smallest, link.mtu);
+            }
+        }
+        if (bound > 0) {
+            return bound;
+        }
+        return smallest > 0 ? smallest : Constants.DEFAULT_MTU;
+    }
+
+    /**
+     * Lists the addresses of the interfaces up with their MTU.
+     * @return interfaces up, none if they cannot be listed.
+     * */
+    private Link[] list() {
+        List<Link> found = new ArrayList<>();
+        try {
+            Enumeration<NetworkInterface> interfaces =
+                    NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface network = interfaces.nextElement();
+                if (!network.isUp() || network.getMTU() <= 0) {
+                    continue;
+                }
+                for (InterfaceAddress address
+                        : network.getInterfaceAddresses()) {
+                    String host = address.getAddress().getHostAddress();
+                    int scope = host.indexOf('%');
+                    found.add(new Link(address.getAddress(), Subnet.parse(
+                            (scope < 0 ? host : host.substring(0, scope))
+                                    + "/" + address.getNetworkPrefixLength()),
+                            Math.min(network.getMTU(), PLATEAUS[0]),
+                            network.isLoopback()));
+                }
+            }
+        } catch (SocketException | IllegalArgumentException e) {
+            // taken as no interface: the default MTU
+        }
+        Link[] listed = found.toArray(new Link[0]);
+        links = listed;
+        listedAt = System.nanoTime();
+        return listed;
+    }
+
+    /**
+     * Returns the length of the IP header of the packets to a Client.
+     *
+     * @param client address of the Client.
+     * @return 40 for IPv6, 20 for IPv4.
+     * */
+    private static int header(InetAddress client) {
+        return client instanceof Inet6Address ? 40 : 20;
+    }
+
+    /**
+     * Address of an interface up, with its subnet and MTU.
+     * */
+    private static final class Link {
+        /** Address of the interface. */
+        private final InetAddress address;
+        /** Subnet of the address. */
+        private final Subnet subnet;
+        /** MTU of the interface. */
+        private final int mtu;
+        /** Whether the interface is a loopback one. */
+        private final boolean loopback;
+
+        private Link(InetAddress address, Subnet subnet, int mtu,
+                     boolean loopback) {
+            this.address = address;
+            this.subnet = subnet;
+            this.mtu = mtu;
+            this.loopback = loopback;
+        }
+    }
+
+    /**
+     * MTU taken for a Client after a black hole, until it expires.
+     * */
+    private static final class Probe {
+        /** MTU taken. */
+        private final int mtu;
+        /** System.nanoTime() it expires at. */
+        private final long expiresAt;
+
+        private Probe(int mtu, long expiresAt) {
+            this.mtu = mtu;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // END OF FILE
+}
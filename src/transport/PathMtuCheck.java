@@ -0,0 +1,155 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Command line check of the probing of black holes by PathMtu: over an
+ * ImpairedLink dropping without notice every packet larger than its MTU,
+ * a Client asking for blocks too large for it must be offered smaller
+ * blocks at each new request, one MTU plateau further down each time its
+ * full blocks time out Constants.MTU_PROBE_TIMEOUTS times, until a
+ * transfer goes through.
+ *
+ * Usage: java transport.PathMtuCheck [-u mtu] [-b blksize] [-a attempts]
+ *
+ * Reads a file of 64 KB through every engine from a Server taking an MTU
+ * of 9000 bytes on every path, asking for blocks of 'blksize' bytes (8000
+ * by default) over a link of an MTU of 'mtu' bytes (1500 by default), up
+ * to 'attempts' times (5 by default) while a transfer fails. Prints per
+ * engine the attempts and the block size of the transfer that went
+ * through, and exits with status 1 unless every engine received the file
+ * in full in blocks that fit the link.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class PathMtuCheck {
+    /** Name of the file transferred. */
+    private static final String FILE = "mtu.bin";
+    /** MTU the Server takes on every path. */
+    private static final int SERVER_MTU = 9000;
+    /** Bytes of the IPv4, UDP and TFTP headers of a DATA packet. */
+    private static final int HEADERS = 20 + 8 + 4;
+
+    /**
+     * Main method.
+     *
+     * @param args options, see the class description.
+     * @throws IOException if a Server cannot be started.
+     * */
+    public static void main(String[] args) throws IOException {
+        int mtu = 1500;
+        int blockSize = 8000;
+        int attempts = 5;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-u":
+                        mtu = Integer.parseInt(args[++i]);
+                        break;
+                    case "-b":
+                        blockSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "-a":
+                        attempts = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option "
+                                + args[i] + ".");
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("ERROR 811: Missing value of "
+                    + args[args.length - 1] + ".");
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR 812: " + e.getMessage());
+            return;
+        }
+
+        byte[] contents = new byte[64 << 10];
+        new Random(contents.length).nextBytes(contents);
+        MemoryStorage storage = new MemoryStorage();
+        storage.put(FILE, contents);
+        ImpairedLink.Builder profile = ImpairedLink.builder().delay(1)
+                .mtu(mtu);
+
+        boolean passed = true;
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            out.println(String.format("%-20s %8s %8s %6s", "engine",
+                    "attempts", "blksize", ""));
+            for (Engine engine : Engine.values()) {
+                TFTPServer server = TFTPServer.builder().port(0)
+                        .storage(storage).engine(engine).mtu(SERVER_MTU)
+                        .mtuProbing(true).build();
+                server.start();
+                String run = String.format("%-20s", engine);
+                InetSocketAddress address = new InetSocketAddress(
+                        InetAddress.getLoopbackAddress(), server.getPort());
+                try (TFTPClient client = TFTPClient.builder()
+                        .blockSize(blockSize).build()) {
+                    TFTPClient.Transfer transfer = null;
+                    ByteArrayOutputStream received = null;
+                    int attempt = 0;
+                    while (transfer == null && attempt < attempts) {
+                        attempt++;
+                        received = new ByteArrayOutputStream();
+                        // a link per attempt, so each comes from a new TID
+                        // while the Server still sends to the last one
+                        try (ImpairedLink link = profile.open(address)) {
+                            transfer = client.get(link.getAddress(), FILE,
+                                    received);
+                        } catch (IOException e) {
+                            // blocks lost to the link: a smaller size next
+                        }
+                    }
+                    boolean ok = transfer != null
+                            && transfer.getBlockSize() + HEADERS <= mtu
+                            && Arrays.equals(contents,
+                            received.toByteArray());
+                    passed &= ok;
+                    out.println(String.format("%s %8d %8s %6s", run, attempt,
+                            transfer == null ? "-"
+                                    : String.valueOf(transfer.getBlockSize()),
+                            ok ? "ok" : "FAIL"));
+                } finally {
+                    server.stop();
+                }
+            }
+        } finally {
+            System.setOut(out);
+        }
+        if (!passed) {
+            System.out.println("ERROR 813: No transfer went through in "
+                    + "blocks fitting an MTU of " + mtu + ".");
+            System.exit(1);
+        }
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,493 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Command line check of RelayStorage in front of an origin Server, through
+ * every engine:
+ *
+ * shared: 'clients' Clients at once read a file not kept, from an origin
+ * taking 'delay' milliseconds to look every file up; the origin must be
+ * asked for it once, and every Client receive it whole.
+ *
+ * missing: as many read a file the origin does not have, at once and then
+ * once more; the origin must be asked once, and every Client be answered
+ * FILE_NOT_FOUND.
+ *
+ * timeout: a Client reads a file from an origin that never answers; it
+ * must be answered NOT_DEFINED after Constants.RELAY_TIMEOUT, while a file
+ * kept, read meanwhile, arrives within a second, as no wait on the origin
+ * holds the listener.
+ *
+ * failed: a Client reads a file whose fetch fails within the timeout, then
+ * reads it again; both must be answered NOT_DEFINED, the second at once
+ * without a second fetch.
+ *
+ * Usage: java transport.RelayCheck [-c clients] [-s size] [-l delay]
+ *
+ * 'clients' is 4, 'size' 256 KB and 'delay' 50 ms by default, less than
+ * the timeout of the Client of the relay, so that no request reaches the
+ * origin twice as sent again. Prints per engine and check the time taken
+ * and the requests that reached the origin, or the fetches started for
+ * the last two, and exits with status 1 if any check fails.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class RelayCheck {
+    /** Name of the file the origin has. */
+    private static final String FILE = "relay.bin";
+    /** Name of a file the origin does not have. */
+    private static final String MISSING = "missing.bin";
+    /** Name of the file kept in the cache of the relay. */
+    private static final String KEPT = "kept.bin";
+
+    /**
+     * Main method.
+     *
+     * @param args options, see the class description.
+     * @throws IOException if a Server cannot be started.
+     * @throws InterruptedException if interrupted while waiting for the
+     * Clients.
+     * */
+    public static void main(String[] args) throws IOException,
+            InterruptedException {
+        int clients = 4;
+        int size = 256 << 10;
+        int delay = 50;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-c":
+                        clients = Integer.parseInt(args[++i]);
+                        break;
+                    case "-s":
+                        size = Integer.parseInt(args[++i]);
+                        break;
+                    case "-l":
+                        delay = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option "
+                                + args[i] + ".");
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("ERROR 841: Missing value of "
+                    + args[args.length - 1] + ".");
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR 842: " + e.getMessage());
+            return;
+        }
+
+        byte[] contents = new byte[size];
+        new Random(size).nextBytes(contents);
+        ExecutorService threads = Executors.newCachedThreadPool();
+
+        boolean passed = true;
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            out.println(String.format("%-20s %-8s %8s %8s %6s", "engine",
+                    "check", "ms", "origin", ""));
+            for (Engine engine : Engine.values()) {
+                passed &= checkOrigin(out, threads, engine, contents,
+                        clients, delay);
+                passed &= checkFailures(out, threads, engine);
+            }
+        } finally {
+            System.setOut(out);
+            threads.shutdownNow();
+        }
+        if (!passed) {
+            System.out.println("ERROR 843: A relay check failed.");
+            System.exit(1);
+        }
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Runs the shared and missing checks through a relay in front of an
+     * origin counting its lookups.
+     *
+     * @param out where the results are printed.
+     * @param threads threads of the Clients.
+     * @param engine engine of the relay.
+     * @param contents contents of the file of the origin.
+     * @param clients Clients reading at once.
+     * @param delay milliseconds the origin takes to look a file up.
+     * @return true if both checks passed.
+     * @throws IOException if a Server cannot be started.
+     * @throws InterruptedException if interrupted while waiting.
+     * */
+    private static boolean checkOrigin(PrintStream out,
+                                       ExecutorService threads,
+                                       Engine engine, byte[] contents,
+                                       int clients, int delay)
+            throws IOException, InterruptedException {
+        MemoryStorage files = new MemoryStorage();
+        files.put(FILE, contents);
+        SlowStorage slow = new SlowStorage(files, delay);
+        TFTPServer origin = TFTPServer.builder().port(0).storage(slow)
+                .build();
+        origin.start();
+        TFTPServer relay = TFTPServer.builder().port(0).engine(engine)
+                .storage(new RelayStorage(addressOf(origin),
+                        new MemoryStorage())).build();
+        relay.start();
+        try {
+            InetSocketAddress address = addressOf(relay);
+            long started = System.nanoTime();
+            List<Object> shared = readAll(threads, address, FILE, clients,
+                    false);
+            long sharedMillis = (System.nanoTime() - started) / 1_000_000;
+            boolean sharedOk = slow.lookups(FILE) == 1;
+            for (Object received : shared) {
+                sharedOk &= received instanceof byte[]
+                        && Arrays.equals(contents, (byte[]) received);
+            }
+            print(out, engine, "shared", sharedMillis, slow.lookups(FILE),
+                    sharedOk);
+
+            started = System.nanoTime();
+            List<Object> missing = readAll(threads, address, MISSING,
+                    clients, false);
+            missing.addAll(readAll(threads, address, MISSING, clients,
+                    false));
+            long missingMillis = (System.nanoTime() - started) / 1_000_000;
+            boolean missingOk = slow.lookups(MISSING) == 1;
+            for (Object received : missing) {
+                missingOk &= received instanceof NoSuchFileException;
+            }
+            print(out, engine, "missing", missingMillis,
+                    slow.lookups(MISSING), missingOk);
+            return sharedOk && missingOk;
+        } finally {
+            relay.stop();
+            origin.stop();
+        }
+    }
+
+    /**
+     * Runs the timeout and failed checks through relays in front of an
+     * origin that never answers.
+     *
+     * @param out where the results are printed.
+     * @param threads threads of the Clients.
+     * @param engine engine of the relays.
+     * @return true if both checks passed.
+     * @throws IOException if a Server cannot be started.
+     * @throws InterruptedException if interrupted while waiting.
+     * */
+    private static boolean checkFailures(PrintStream out,
+                                         ExecutorService threads,
+                                         Engine engine)
+            throws IOException, InterruptedException {
+        try (DatagramSocket silent = new DatagramSocket(0,
+                InetAddress.getLoopbackAddress())) {
+            InetSocketAddress origin = new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), silent.getLocalPort());
+
+            // fetched for longer than the relay waits for it
+            MemoryStorage cache = new MemoryStorage();
+            cache.put(KEPT, new byte[4096]);
+            RelayStorage slowStorage = new RelayStorage(origin, cache,
+                    TFTPClient.builder().timeout(1).retries(9).build(), 0);
+            TFTPServer slow = TFTPServer.builder().port(0).engine(engine)
+                    .storage(slowStorage).build();
+            slow.start();
+            boolean timeoutOk;
+            try {
+                InetSocketAddress address = addressOf(slow);
+                long started = System.nanoTime();
+                Future<Object> waited = readLater(threads, address, FILE,
+                        true);
+                Thread.sleep(100);
+                long keptAt = System.nanoTime();
+                Object kept = readAll(threads, address, KEPT, 1, false)
+                        .get(0);
+                long keptMillis = (System.nanoTime() - keptAt) / 1_000_000;
+                Object answer = await(waited);
+                long millis = (System.nanoTime() - started) / 1_000_000;
+                timeoutOk = isNotDefined(answer) && kept instanceof byte[]
+                        && keptMillis < 1000
+                        && millis >= Constants.RELAY_TIMEOUT - 500
+                        && millis < Constants.RELAY_TIMEOUT + 2000;
+                print(out, engine, "timeout", millis,
+                        slowStorage.getFetched(), timeoutOk);
+            } finally {
+                slow.stop();
+            }
+
+            // fetch failed within the wait, then answered from memory
+            RelayStorage failedStorage = new RelayStorage(origin,
+                    new MemoryStorage(), TFTPClient.builder().timeout(1)
+                    .retries(0).build(), 0);
+            TFTPServer failed = TFTPServer.builder().port(0).engine(engine)
+                    .storage(failedStorage).build();
+            failed.start();
+            boolean failedOk;
+            try {
+                InetSocketAddress address = addressOf(failed);
+                Object first = readAll(threads, address, FILE, 1, true)
+                        .get(0);
+                long started = System.nanoTime();
+                Object again = readAll(threads, address, FILE, 1, true)
+                        .get(0);
+                long millis = (System.nanoTime() - started) / 1_000_000;
+                failedOk = isNotDefined(first) && isNotDefined(again)
+                        && millis < 1000 && failedStorage.getFetched() == 1;
+                print(out, engine, "failed", millis,
+                        failedStorage.getFetched(), failedOk);
+            } finally {
+                failed.stop();
+            }
+            return timeoutOk && failedOk;
+        }
+    }
+
+    /**
+     * Reads a file with a number of Clients at once, each from its own
+     * TID.
+     *
+     * @param threads threads of the Clients.
+     * @param server address of requests of the Server.
+     * @param filename name of the file.
+     * @param clients number of Clients.
+     * @param patient whether the Clients wait long enough for a relay to
+     *                answer after Constants.RELAY_TIMEOUT.
+     * @return per Client, the contents received or the IOException.
+     * @throws InterruptedException if interrupted while waiting.
+     * */
+    private static List<Object> readAll(ExecutorService threads,
+                                        InetSocketAddress server,
+                                        String filename, int clients,
+                                        boolean patient)
+            throws InterruptedException {
+        List<Future<Object>> reads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            reads.add(readLater(threads, server, filename, patient));
+        }
+        List<Object> results = new ArrayList<>();
+        for (Future<Object> read : reads) {
+            results.add(await(read));
+        }
+        return results;
+    }
+
+    /**
+     * Reads a file with one Client on another thread. A patient Client
+     * times out after a second, and so dallies as long after the last
+     * block.
+     *
+     * @param threads threads of the Clients.
+     * @param server address of requests of the Server.
+     * @param filename name of the file.
+     * @param patient whether the Client waits long enough for a relay to
+     *                answer after Constants.RELAY_TIMEOUT.
+     * @return future of the contents received or the IOException.
+     * */
+    private static Future<Object> readLater(ExecutorService threads,
+                                            final InetSocketAddress server,
+                                            final String filename,
+                                            boolean patient) {
+        final TFTPClient.Builder builder = patient ? TFTPClient.builder()
+                .timeout(1).retries(Constants.RELAY_TIMEOUT / 1000 + 3)
+                : TFTPClient.builder();
+        return threads.submit(new Callable<Object>() {
+            @Override
+            public Object call() {
+                ByteArrayOutputStream received = new ByteArrayOutputStream();
+                try (TFTPClient client = builder.build()) {
+                    client.get(server, filename, received);
+                    return received.toByteArray();
+                } catch (IOException e) {
+                    return e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for a read by readLater().
+     *
+     * @param read read in progress.
+     * @return contents received or the exception raised.
+     * @throws InterruptedException if interrupted while waiting.
+     * */
+    private static Object await(Future<Object> read)
+            throws InterruptedException {
+        try {
+            return read.get();
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    /**
+     * Returns true if a read was answered with an ERROR NOT_DEFINED.
+     *
+     * @param result result of a read by readAll().
+     * @return true if answered NOT_DEFINED. False otherwise.
+     * */
+    private static boolean isNotDefined(Object result) {
+        return result instanceof IOException
+                && !(result instanceof NoSuchFileException)
+                && String.valueOf(((IOException) result).getMessage())
+                .startsWith("ERROR " + Error.NOT_DEFINED.ordinal() + " ");
+    }
+
+    /**
+     * Returns the loopback address of requests of a Server.
+     *
+     * @param server Server started.
+     * @return address of requests.
+     * */
+    private static InetSocketAddress addressOf(TFTPServer server) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                server.getPort());
+    }
+
+    /**
+     * Prints the result of a check.
+     *
+     * @param out where the result is printed.
+     * @param engine engine of the relay.
+     * @param check name of the check.
+     * @param millis time taken in milliseconds.
+     * @param origin requests that reached the origin.
+     * @param ok whether the check passed.
+     * */
+    private static void print(PrintStream out, Engine engine, String check,
+                              long millis, long origin, boolean ok) {
+        out.println(String.format("%-20s %-8s %8d %8d %6s", engine, check,
+                millis, origin, ok ? "ok" : "FAIL"));
+    }
+
+    /**
+     * Storage of an origin taking a while to look files up, counting the
+     * lookups of every file, one per request.
+     * */
+    private static final class SlowStorage implements Storage {
+        /** Storage the files are in. */
+        private final Storage files;
+        /** Milliseconds a lookup takes. */
+        private final int delay;
+        /** Lookups by filename. */
+        private final Map<String, AtomicInteger> lookups =
+                new ConcurrentHashMap<>();
+
+        private SlowStorage(Storage files, int delay) {
+            this.files = files;
+            this.delay = delay;
+        }
+
+        /**
+         * Returns the number of lookups of a file.
+         *
+         * @param filename name of the file.
+         * @return lookups so far.
+         * */
+        private int lookups(String filename) {
+            AtomicInteger count = lookups.get(filename);
+            return count == null ? 0 : count.get();
+        }
+
+        @Override
+        public long size(String filename) {
+            return files.size(filename);
+        }
+
+        @Override
+        public CompletableFuture<Long> lookup(final String filename) {
+            lookups.computeIfAbsent(filename,
+                    new Function<String, AtomicInteger>() {
+                        @Override
+                        public AtomicInteger apply(String name) {
+                            return new AtomicInteger();
+                        }
+                    }).incrementAndGet();
+            return CompletableFuture.supplyAsync(new Supplier<Long>() {
+                @Override
+                public Long get() {
+                    return files.size(filename);
+                }
+            }, CompletableFuture.delayedExecutor(delay,
+                    TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public long modifiedTime(String filename) {
+            return files.modifiedTime(filename);
+        }
+
+        @Override
+        public ReadHandle openRead(String filename) throws IOException {
+            return files.openRead(filename);
+        }
+
+        @Override
+        public long available(String filename) {
+            return files.available(filename);
+        }
+
+        @Override
+        public String findIgnoreCase(String filename) {
+            return files.findIgnoreCase(filename);
+        }
+
+        @Override
+        public WriteHandle openWrite(String filename, long size)
+                throws IOException {
+            return files.openWrite(filename, size);
+        }
+
+        @Override
+        public void close() {
+            files.close();
+        }
+    }
+
+    // END OF FILE
+}
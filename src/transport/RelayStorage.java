@@ -0,0 +1,651 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage of an edge cache in front of an origin TFTP Server. A file not
+ * kept in the cache Storage, or kept for longer than 'maxAge', is fetched
+ * from the origin with a TFTPClient and served while it arrives. The file
+ * is written to the cache as it arrives, and later requests are served
+ * from the cache.
+ *
+ * Requests for a file being fetched share the one fetch. A fetch that
+ * fails, as the origin does not have the file, refuses it or does not
+ * answer, answers for the file for Constants.RELAY_MISS_TTL without asking
+ * again, as PXE Clients probe many names that do not exist. Only a file
+ * the origin does not have is answered as missing; any other failure is
+ * raised as such.
+ *
+ * Nothing waits on the origin for long. The size of a file not kept is
+ * learned from the tsize of the origin, or from the whole file if none is
+ * sent: lookup() tells it without holding the caller, while size() and
+ * openRead() wait for it at most Constants.RELAY_TIMEOUT. A read of bytes
+ * not yet arrived completes once they arrive, failing after as long, and
+ * ready() tells a transfer whether to wait for them.
+ *
+ * Files fetched are held in memory until every reader of them is done,
+ * so at most Integer.MAX_VALUE - 8 bytes are relayed per file. Writes go
+ * to the cache only, never to the origin.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class RelayStorage implements Storage {
+    /** Address of requests of the origin. */
+    private final InetSocketAddress origin;
+    /** Storage the files fetched are kept in and served from. */
+    private final Storage cache;
+    /** Client fetching from the origin, asking for tsize. */
+    private final TFTPClient client;
+    /** Time in milliseconds after which a file kept is fetched again, 0
+     * to keep files for ever. */
+    private final long maxAge;
+    /** Fetches in progress, by normalized filename. */
+    private final Map<String, Fetch> fetches = new ConcurrentHashMap<>();
+    /** Fetches failed, answering for their file until their 'until', by
+     * normalized filename, least recently used first. */
+    private final Map<String, Fetch> failed;
+    /** Number of fetches started. */
+    private final AtomicLong fetched = new AtomicLong();
+    /** Threads of the fetches. Null until first needed. */
+    private ExecutorService fetcher;
+
+    /**
+     * Constructor fetching with blocks of Constants.RELAY_BLOCK_SIZE and a
+     * windowsize of Constants.RELAY_WINDOW_SIZE, and fetching a file kept
+     * again after Constants.RELAY_MAX_AGE.
+     *
+     * @param origin address of requests of the origin.
+     * @param cache Storage the files fetched are kept in.
+     * */
+    public RelayStorage(InetSocketAddress origin, Storage cache) {
+        this(origin, cache, TFTPClient.builder()
+                .blockSize(Constants.RELAY_BLOCK_SIZE)
+                .windowSize(Constants.RELAY_WINDOW_SIZE)
+                .transferSize(true).build(), Constants.RELAY_MAX_AGE);
+    }
+
+    /**
+     * Full constructor.
+     *
+     * @param origin address of requests of the origin.
+     * @param cache Storage the files fetched are kept in.
+     * @param client client fetching from the origin, which should ask for
+     *               tsize.
+     * @param maxAge time in milliseconds after which a file kept is
+     *               fetched again, 0 to keep files for ever.
+     * */
+    public RelayStorage(InetSocketAddress origin, Storage cache,
+                        TFTPClient client, long maxAge) {
+        this.origin = origin;
+        this.cache = cache;
+        this.client = client;
+        this.maxAge = maxAge;
+        failed = new LinkedHashMap<String, Fetch>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Fetch> eldest) {
+                return size() > Constants.RELAY_MISS_CACHE_SIZE;
+            }
+        };
+    }
+
+    @Override
+    public long size(String filename) {
+        if (kept(filename)) {
+            return cache.size(filename);
+        }
+        return sizeOf(fetch(filename));
+    }
+
+    @Override
+    public CompletableFuture<Long> lookup(String filename) {
+        if (kept(filename)) {
+            return CompletableFuture.completedFuture(cache.size(filename));
+        }
+        return bounded(fetch(filename));
+    }
+
+    @Override
+    public long modifiedTime(String filename) {
+        if (kept(filename)) {
+            return cache.modifiedTime(filename);
+        }
+        Fetch fetch = fetch(filename);
+        return sizeOf(fetch) < 0 ? -1 : fetch.startedAt;
+    }
+
+    @Override
+    public ReadHandle openRead(String filename) throws IOException {
+        if (kept(filename)) {
+            try {
+                return cache.openRead(filename);
+            } catch (NoSuchFileException e) {
+                // removed since: fetched again
+            }
+        }
+        final Fetch fetch = fetch(filename);
+        final long size;
+        try {
+            size = bounded(fetch).join();
+        } catch (CompletionException e) {
+            throw new IOException(filename + " not fetched. "
+                    + e.getCause().getMessage(), e.getCause());
+        }
+        if (size < 0) {
+            throw new NoSuchFileException(filename);
+        }
+        return new ReadHandle() {
+            @Override
+            public long size() {
+                return size;
+            }
+
+            @Override
+            public CompletableFuture<Integer> read(ByteBuffer dst,
+                                                   long offset) {
+                return fetch.read(dst, offset, (int) Math.max(0,
+                        Math.min(dst.remaining(), size - offset)));
+            }
+
+            @Override
+            public boolean ready(long end) {
+                return fetch.ready(end);
+            }
+
+            @Override
+            public void close() {
+                // the contents are dropped with the last handle
+            }
+        };
+    }
+
+    @Override
+    public long available(String filename) {
+        return cache.available(filename);
+    }
+
+    @Override
+    public String findIgnoreCase(String filename) {
+        return cache.findIgnoreCase(filename);
+    }
+
+    @Override
+    public WriteHandle openWrite(String filename, long size)
+            throws IOException {
+        return cache.openWrite(filename, size);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (fetcher != null) {
+                fetcher.shutdownNow();
+                fetcher = null;
+            }
+        }
+        client.close();
+        cache.close();
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Returns true if a file is kept in the cache and not older than
+     * 'maxAge'.
+     *
+     * @param filename filename as received in a request.
+     * @return true if kept. False otherwise.
+     * */
+    private boolean kept(String filename) {
+        if (cache.size(filename) < 0) {
+            return false;
+        }
+        return maxAge == 0 || System.currentTimeMillis()
+                - cache.modifiedTime(filename) < maxAge;
+    }
+
+    /**
+     * Returns the fetch of a file from the origin: the one in progress if
+     * any, else the one recently failed if any, else a new one.
+     *
+     * @param filename filename as received in a request.
+     * @return fetch of the file.
+     * */
+    private Fetch fetch(String filename) {
+        String key = FilenameMap.normalize(filename);
+        Fetch current = fetches.get(key);
+        if (current != null) {
+            return current;
+        }
+        synchronized (failed) {
+            current = failed.get(key);
+            if (current != null) {
+                if (System.nanoTime() - current.until < 0) {
+                    return current;
+                }
+                failed.remove(key);
+            }
+        }
+        Fetch created = new Fetch(filename);
+        current = fetches.putIfAbsent(key, created);
+        if (current != null) {
+            return current; // another request started it meanwhile
+        }
+        start(key, created);
+        return created;
+    }
+
+    /**
+     * Returns a future of the size of the file of a fetch that fails if
+     * the size is not known within Constants.RELAY_TIMEOUT.
+     *
+     * @param fetch fetch of the file.
+     * @return future completed with the size of the file, -1 if the origin
+     * does not have it.
+     * */
+    private CompletableFuture<Long> bounded(Fetch fetch) {
+        final CompletableFuture<Long> size = fetch.sized.copy();
+        if (!size.isDone()) {
+            CompletableFuture.delayedExecutor(Constants.RELAY_TIMEOUT,
+                    TimeUnit.MILLISECONDS).execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            size.completeExceptionally(new IOException(
+                                    "No size from " + origin + " in "
+                                    + Constants.RELAY_TIMEOUT + " ms."));
+                        }
+                    });
+        }
+        return size;
+    }
+
+    /**
+     * Waits at most Constants.RELAY_TIMEOUT for the size of the file of a
+     * fetch.
+     *
+     * @param fetch fetch of the file.
+     * @return size of the file, -1 if it is missing or cannot be told.
+     * */
+    private long sizeOf(Fetch fetch) {
+        try {
+            return bounded(fetch).join();
+        } catch (CompletionException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Runs a fetch on a thread of the fetcher, starting the threads on
+     * first use.
+     *
+     * @param key normalized filename.
+     * @param fetch fetch to run.
+     * */
+    private synchronized void start(final String key, final Fetch fetch) {
+        if (fetcher == null) {
+            fetcher = Executors.newFixedThreadPool(Constants.RELAY_FETCHES,
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable,
+                                    "TFTPRelayFetcher");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        fetched.incrementAndGet();
+        fetcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    transfer(key, fetch);
+                } finally {
+                    fetches.remove(key, fetch);
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetches a file from the origin, writing it to the cache as it
+     * arrives, and commits it to the cache once whole. A fetch failed is
+     * kept to answer for the file for Constants.RELAY_MISS_TTL.
+     *
+     * @param key normalized filename.
+     * @param fetch fetch to run.
+     * */
+    private void transfer(String key, Fetch fetch) {
+        try {
+            client.get(origin, fetch.filename, fetch);
+        } catch (IOException | RuntimeException e) {
+            if (fetch.upload != null) {
+                fetch.upload.abort();
+            }
+            if (!(e instanceof NoSuchFileException)) {
+                System.out.println("NOTE 059: " + fetch.filename + " not "
+                        + "fetched from " + origin + ". " + e.getMessage()
+                        + "\n");
+            }
+            fetch.end(e instanceof IOException ? (IOException) e
+                    : new IOException(e));
+            fetch.until = System.nanoTime()
+                    + Constants.RELAY_MISS_TTL * 1_000_000L;
+            synchronized (failed) {
+                failed.put(key, fetch);
+            }
+            return;
+        }
+        if (fetch.upload != null) {
+            try {
+                fetch.upload.commit();
+            } catch (IOException e) {
+                System.out.println("NOTE 059: " + fetch.filename + " not "
+                        + "kept. " + e.getMessage() + "\n");
+            }
+        }
+        fetch.end(null);
+    }
+
+    // getters and setters------------------------------------------------------
+
+    /**
+     * Returns the address of requests of the origin.
+     * @return address of the origin.
+     * */
+    public InetSocketAddress getOrigin() {
+        return origin;
+    }
+    /**
+     * Returns the number of fetches from the origin started.
+     * @return fetches started.
+     * */
+    public long getFetched() {
+        return fetched.get();
+    }
+
+    /**
+     * A file being fetched from the origin, the blocks of it arrived and
+     * the reads waiting for more, guarded by its own lock.
+     * */
+    private final class Fetch implements TFTPClient.Sink {
+        /** Filename as received in the first request. */
+        private final String filename;
+        /** System.currentTimeMillis() the fetch started at. */
+        private final long startedAt = System.currentTimeMillis();
+        /** Size of the file, completed once known: -1 if the origin does
+         * not have the file, exceptionally if the fetch failed before. */
+        private final CompletableFuture<Long> sized =
+                new CompletableFuture<>();
+        /** Reads of bytes not yet arrived. */
+        private final List<Read> waiting = new ArrayList<>();
+        /** Contents arrived so far. */
+        private byte[] data = new byte[0];
+        /** Number of bytes arrived, from the start of the file. */
+        private long arrived;
+        /** System.nanoTime() bytes last arrived at, or the fetch started. */
+        private long arrivedAt = System.nanoTime();
+        /** Size of the file, -1 until known. */
+        private long size = -1;
+        /** Whether the fetch ended. */
+        private boolean ended;
+        /** Why the fetch failed, null if it did not. */
+        private IOException failure;
+        /** Copy of the file in the cache, null if it cannot be kept. */
+        private WriteHandle upload;
+        /** System.nanoTime() until which a failed fetch answers for its
+         * file. */
+        private long until;
+
+        private Fetch(String filename) {
+            this.filename = filename;
+        }
+
+        @Override
+        public void opened(TFTPClient.Transfer transfer) throws IOException {
+            long announced = transfer.getTransferSize();
+            if (announced > Integer.MAX_VALUE - 8) {
+                throw new IOException("File of " + announced + " bytes too "
+                        + "large to relay.");
+            }
+            try {
+                upload = cache.openWrite(filename, announced);
+            } catch (IOException e) {
+                System.out.println("NOTE 059: " + filename + " not kept. "
+                        + e.getMessage() + "\n");
+            }
+            if (announced >= 0) {
+                synchronized (this) {
+                    data = new byte[(int) announced];
+                    size = announced;
+                }
+                sized.complete(announced);
+            }
+        }
+
+        @Override
+        public void write(long offset, byte[] block, int from, int length)
+                throws IOException {
+            long end = offset + length;
+            synchronized (this) {
+                if (size >= 0 && end > size || end > Integer.MAX_VALUE - 8) {
+                    throw new IOException("More than " + Math.max(size, 0)
+                            + " bytes sent by " + origin + ".");
+                }
+                if (end > data.length) {
+                    data = Arrays.copyOf(data, (int) Math.min(
+                            Integer.MAX_VALUE - 8,
+                            Math.max(end, 2L * data.length)));
+                }
+                System.arraycopy(block, from, data, (int) offset, length);
+            }
+            if (upload != null) {
+                try {
+                    upload.write(ByteBuffer.wrap(block, from, length),
+                            offset).join();
+                } catch (CompletionException e) {
+                    System.out.println("NOTE 059: " + filename + " not "
+                            + "kept. " + e.getCause().getMessage() + "\n");
+                    upload.abort();
+                    upload = null;
+                }
+            }
+            List<Read> done = new ArrayList<>();
+            synchronized (this) {
+                arrived = end;
+                arrivedAt = System.nanoTime();
+                for (int i = waiting.size() - 1; i >= 0; i--) {
+                    Read read = waiting.get(i);
+                    if (read.offset + read.length <= arrived) {
+                        read.dst.put(data, (int) read.offset, read.length);
+                        done.add(waiting.remove(i));
+                    }
+                }
+            }
+            // completed out of the lock: the readers go on from here
+            for (Read read : done) {
+                read.result.complete(read.length);
+            }
+        }
+
+        /**
+         * Ends the fetch, and fails the reads still waiting. Once whole,
+         * the size of a file whose tsize was not sent is that of the bytes
+         * arrived. A failed fetch drops the bytes arrived.
+         *
+         * @param fault why the fetch failed, null if it did not.
+         * */
+        private void end(IOException fault) {
+            List<Read> left;
+            synchronized (this) {
+                if (fault == null && size >= 0 && arrived < size) {
+                    fault = new IOException(arrived + " of " + size
+                            + " bytes sent by " + origin + ".");
+                }
+                if (fault == null && size < 0) {
+                    data = Arrays.copyOf(data, (int) arrived);
+                    size = arrived;
+                }
+                if (fault != null) {
+                    data = new byte[0];
+                    arrived = 0;
+                }
+                failure = fault;
+                ended = true;
+                left = new ArrayList<>(waiting);
+                waiting.clear();
+            }
+            if (fault instanceof NoSuchFileException) {
+                sized.complete(-1L);
+            } else if (fault != null) {
+                sized.completeExceptionally(fault);
+            } else {
+                sized.complete(size);
+            }
+            for (Read read : left) {
+                read.result.completeExceptionally(notFetched());
+            }
+        }
+
+        /**
+         * Returns whether the file has arrived up to an offset, or will
+         * not: the fetch ended, or no bytes arrived for
+         * Constants.RELAY_TIMEOUT.
+         *
+         * @param end offset of the first byte needed.
+         * @return true if a read up to 'end' completes at once.
+         * */
+        private synchronized boolean ready(long end) {
+            return arrived >= end || ended || stalled();
+        }
+
+        /**
+         * Reads a range of the file at once if it has arrived, else once it
+         * arrives. Fails at once if the fetch ended or stalled before, and
+         * after Constants.RELAY_TIMEOUT if the range is still not there.
+         *
+         * @param dst buffer filled from its position.
+         * @param offset position in the file of the first byte read.
+         * @param length number of bytes read.
+         * @return future completed with the number of bytes read.
+         * */
+        private CompletableFuture<Integer> read(ByteBuffer dst, long offset,
+                                                int length) {
+            final Read read;
+            synchronized (this) {
+                if (offset + length <= arrived) {
+                    dst.put(data, (int) offset, length);
+                    return CompletableFuture.completedFuture(length);
+                }
+                if (ended || stalled()) {
+                    return CompletableFuture.failedFuture(notFetched());
+                }
+                read = new Read(dst, offset, length);
+                waiting.add(read);
+            }
+            CompletableFuture.delayedExecutor(Constants.RELAY_TIMEOUT,
+                    TimeUnit.MILLISECONDS).execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            expire(read);
+                        }
+                    });
+            return read.result;
+        }
+
+        /**
+         * Fails a read still waiting after Constants.RELAY_TIMEOUT. Its
+         * buffer is never filled afterwards, as the reader may reuse it.
+         *
+         * @param read read waited for.
+         * */
+        private void expire(Read read) {
+            synchronized (this) {
+                if (!waiting.remove(read)) {
+                    return; // completed meanwhile
+                }
+            }
+            read.result.completeExceptionally(new IOException(filename
+                    + " not sent by " + origin + " in "
+                    + Constants.RELAY_TIMEOUT + " ms."));
+        }
+
+        /**
+         * Returns true if no bytes arrived for Constants.RELAY_TIMEOUT.
+         * Called with the lock held.
+         *
+         * @return true if the fetch stalled.
+         * */
+        private boolean stalled() {
+            return System.nanoTime() - arrivedAt
+                    >= Constants.RELAY_TIMEOUT * 1_000_000L;
+        }
+
+        /**
+         * Returns why bytes of the file will not arrive.
+         *
+         * @return exception to fail a read with.
+         * */
+        private synchronized IOException notFetched() {
+            return new IOException(filename + " not fetched from " + origin
+                    + ": " + (failure != null ? failure.getMessage()
+                    : ended ? "ended" : "stalled"));
+        }
+    }
+
+    /**
+     * A read of bytes of a Fetch not yet arrived.
+     * */
+    private static final class Read {
+        /** Buffer filled from its position. */
+        private final ByteBuffer dst;
+        /** Position in the file of the first byte read. */
+        private final long offset;
+        /** Number of bytes read. */
+        private final int length;
+        /** Completed with 'length' once read. */
+        private final CompletableFuture<Integer> result =
+                new CompletableFuture<>();
+
+        private Read(ByteBuffer dst, long offset, int length) {
+            this.dst = dst;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    // END OF FILE
+}
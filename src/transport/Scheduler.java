@@ -0,0 +1,556 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which Client TFTPServerThread gives the next turn (one block) to.
+ * Every Client is put in a class by a Classifier, and turns are shared
+ * between the classes with at least one Client by deficit round-robin: each
+ * round, a class is given as many turns as its weight, passed round-robin
+ * between its own Clients.
+ *
+ * A class thus gets its share of turns however many Clients the other
+ * classes have. A Client in a class of weight w with n Clients waits at most
+ * ceil(n / w) rounds between two turns, and a round lasts at most the sum
+ * of the weights of the classes with Clients. A small file behind hundreds
+ * of image streams waits for a few turns, not for hundreds.
+ *
+ * The delay from a Client being ready (request received or previous turn
+ * ended) to its next turn is recorded per class.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class Scheduler {
+    /** Class of the Clients of files of at most Constants.SMALL_FILE_SIZE
+     * bytes under the default Classifier. */
+    public static final String SMALL = "small";
+    /** Class of every other Client under the default Classifier. */
+    public static final String BULK = "bulk";
+
+    /** Classes by name, in the order turns are given each round. */
+    private final Map<String, ClassQueue> classes = new LinkedHashMap<>();
+    /** Values of 'classes' in the same order, iterated by round(). Only
+     * grown by admit() on the thread calling round(). */
+    private final List<ClassQueue> order = new ArrayList<>();
+    /** Classifier of new Clients. */
+    private final Classifier classifier;
+    /** Scheduling state of every Client admitted and not yet done. */
+    private final Map<Client, Session> sessions = new IdentityHashMap<>();
+    /** System.nanoTime() of the last report of queueing delays. */
+    private long lastReport = System.nanoTime();
+
+    /**
+     * Sole constructor.
+     *
+     * @param weights weight of every class by name, in the order turns are
+     *                given each round. Classes named by the Classifier but
+     *                missing here are made with weight 1.
+     * @param classifier classifier of new Clients.
+     * */
+    public Scheduler(Map<String, Integer> weights, Classifier classifier) {
+        for (Map.Entry<String, Integer> weight : weights.entrySet()) {
+            ClassQueue queue = new ClassQueue(weight.getKey(),
+                    weight.getValue());
+            classes.put(queue.name, queue);
+            order.add(queue);
+        }
+        this.classifier = classifier;
+    }
+
+    /**
+     * Returns the Classifier putting Clients of files of at most 'limit'
+     * bytes in SMALL and every other Client, including WRQs, in BULK.
+     *
+     * @param limit largest size in bytes of a small file.
+     * @return classifier by file size.
+     * */
+    public static Classifier bySize(final long limit) {
+        return new Classifier() {
+            @Override
+            public String classify(Opcode opcode, InetSocketAddress client,
+                                   String filename, long size) {
+                return opcode == Opcode.RRQ && size >= 0 && size <= limit
+                        ? SMALL : BULK;
+            }
+        };
+    }
+
+    /**
+     * Returns an empty set of classification rules, to be filled with
+     * file() and subnet() rules.
+     *
+     * @return new Rules classifying by file size until rules are added.
+     * */
+    public static Rules rules() {
+        return new Rules();
+    }
+
+    /**
+     * Puts a Client in its class, ready for a turn. Does nothing if the
+     * Client is already admitted. Called on the thread calling round().
+     *
+     * @param client Client to admit.
+     * @param size size of the file in request, -1 if unknown.
+     * */
+    protected synchronized void admit(Client client, long size) {
+        if (sessions.containsKey(client)) {
+            return;
+        }
+        String name = classifier.classify(client.getRequestOpcode(),
+                new InetSocketAddress(client.getClientAddr(),
+                        client.getClientPort()), client.getFilename(), size);
+        ClassQueue queue = classes.get(name);
+        if (queue == null) {
+            queue = new ClassQueue(name, 1);
+            classes.put(name, queue);
+            order.add(queue);
+        }
+        Session session = new Session(client.getRequestTime());
+        sessions.put(client, session);
+        queue.clients.add(client);
+        queue.active++;
+    }
+
+    /**
+     * Returns true if a Client was admitted and is not done.
+     *
+     * @param client Client in question.
+     * @return whether the Client is admitted.
+     * */
+    protected synchronized boolean isAdmitted(Client client) {
+        return sessions.containsKey(client);
+    }
+
+    /**
+     * Gives one round of turns: every class with Clients is given turns up
+     * to its deficit, in the order of the classes. A Client whose next
+     * packet is held back by a rate limit is passed over until a later
+     * round, so it neither blocks nor loses its place to the other Clients.
+     *
+     * @param turn runs one turn of a Client.
+     * @return nanoseconds until a Client held back by a rate limit may go
+     * again if no turn could be given in this round, 0 otherwise.
+     * @throws IOException if an I/O error occurs in a turn.
+     * */
+    protected long round(Turn turn) throws IOException {
+        boolean ran = false;
+        long wait = Long.MAX_VALUE;
+        for (int i = 0; i < order.size(); i++) {
+            ClassQueue queue = order.get(i);
+            if (queue.clients.isEmpty()) {
+                queue.deficit = 0; // no credit saved while idle
+                continue;
+            }
+            queue.deficit += queue.weight;
+            int held = 0; // Clients held back in a row
+            while (queue.deficit >= 1 && held < queue.clients.size()) {
+                long delay = turn.delay(queue.clients.peek());
+                if (delay > 0) {
+                    synchronized (this) {
+                        queue.clients.add(queue.clients.poll());
+                    }
+                    held++;
+                    wait = Math.min(wait, delay);
+                    continue;
+                }
+                held = 0;
+                ran = true;
+
+                Client client;
+                Session session;
+                synchronized (this) {
+                    client = queue.clients.poll();
+                    session = sessions.get(client);
+                    queue.record(System.nanoTime() - session.readySince);
+                }
+                queue.deficit--;
+
+                boolean active = turn.run(client);
+
+                synchronized (this) {
+                    if (active) {
+                        session.readySince = System.nanoTime();
+                        queue.clients.add(client);
+                    } else {
+                        sessions.remove(client);
+                        queue.active--;
+                    }
+                }
+            }
+            // no credit saved while held back either
+            queue.deficit = queue.clients.isEmpty() ? 0
+                    : Math.min(queue.deficit, queue.weight);
+        }
+        report();
+        return ran || wait == Long.MAX_VALUE ? 0 : wait;
+    }
+
+    /**
+     * Drops every Client, for example when the Server stops.
+     * */
+    protected synchronized void clear() {
+        sessions.clear();
+        for (ClassQueue queue : classes.values()) {
+            queue.clients.clear();
+            queue.active = 0;
+            queue.deficit = 0;
+        }
+    }
+
+    /**
+     * Returns the queueing delays and turns of every class so far.
+     *
+     * @return statistics of every class, in the order turns are given.
+     * */
+    public synchronized List<ClassStats> getStats() {
+        List<ClassStats> stats = new ArrayList<>();
+        for (ClassQueue queue : classes.values()) {
+            stats.add(queue.stats());
+        }
+        return stats;
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Prints the queueing delays of every class which had turns, at most
+     * once every Constants.SCHEDULER_REPORT_INTERVAL milliseconds.
+     * */
+    private void report() {
+        long now = System.nanoTime();
+        if (now - lastReport < Constants.SCHEDULER_REPORT_INTERVAL
+                * 1_000_000L) {
+            return;
+        }
+        lastReport = now;
+        for (ClassStats stats : getStats()) {
+            if (stats.getTurns() > 0) {
+                System.out.println("NOTE 060: " + stats + "\n");
+            }
+        }
+    }
+
+    /**
+     * Runs one turn of a Client for round().
+     * */
+    protected interface Turn {
+        /**
+         * Runs one turn of a Client.
+         *
+         * @param client Client whose turn it is.
+         * @return true if the Client needs more turns. False if it is done.
+         * @throws IOException if an I/O error occurs.
+         * */
+        boolean run(Client client) throws IOException;
+
+        /**
+         * Returns how long a Client must wait before its next turn, for
+         * example because of a rate limit.
+         *
+         * @param client Client next in line.
+         * @return nanoseconds to wait, 0 if the Client can go now.
+         * */
+        long delay(Client client);
+    }
+
+    /**
+     * Puts a new Client in a class by name.
+     * */
+    public interface Classifier {
+        /**
+         * Returns the class of a new Client.
+         *
+         * @param opcode RRQ or WRQ.
+         * @param client address and port of the Client.
+         * @param filename filename in request.
+         * @param size size of the file in request, -1 if unknown.
+         * @return name of the class of the Client.
+         * */
+        String classify(Opcode opcode, InetSocketAddress client,
+                        String filename, long size);
+    }
+
+    /**
+     * Classifier made of rules tried in order: the class of the first rule
+     * matching a Client is taken, else the class given by the fallback
+     * Classifier, bySize(Constants.SMALL_FILE_SIZE) unless set.
+     * */
+    public static final class Rules implements Classifier {
+        /** Rules in the order they are tried. */
+        private final List<Rule> rules = new ArrayList<>();
+        /** Classifier of Clients matching no rule. */
+        private Classifier fallback = bySize(Constants.SMALL_FILE_SIZE);
+
+        private Rules() {
+        }
+
+        /**
+         * Adds a rule matching the filenames in requests against a glob, for
+         * example "pxelinux.cfg/*".
+         *
+         * @param glob glob pattern, as in FileSystem.getPathMatcher().
+         * @param className class of the Clients matching.
+         * @return these Rules.
+         * */
+        public Rules file(String glob, String className) {
+            rules.add(new Rule(FileSystems.getDefault().getPathMatcher(
+                    "glob:" + glob), null, className));
+            return this;
+        }
+
+        /**
+         * Adds a rule matching the address of Clients against a subnet.
+         *
+         * @param cidr subnet in CIDR notation, for example "10.1.0.0/16".
+         * @param className class of the Clients matching.
+         * @return these Rules.
+         * @throws IllegalArgumentException if cidr is not a numeric subnet.
+         * */
+        public Rules subnet(String cidr, String className) {
+            rules.add(new Rule(null, Subnet.parse(cidr), className));
+            return this;
+        }
+
+        /**
+         * Sets the Classifier of Clients matching no rule.
+         *
+         * @param classifier classifier of the rest.
+         * @return these Rules.
+         * */
+        public Rules otherwise(Classifier classifier) {
+            fallback = classifier;
+            return this;
+        }
+
+        @Override
+        public String classify(Opcode opcode, InetSocketAddress client,
+                               String filename, long size) {
+            for (Rule rule : rules) {
+                if (rule.matches(client.getAddress(), filename)) {
+                    return rule.className;
+                }
+            }
+            return fallback.classify(opcode, client, filename, size);
+        }
+    }
+
+    /**
+     * One rule of Rules, matching either a filename glob or a subnet.
+     * */
+    private static final class Rule {
+        /** Matcher of filenames, null for a subnet rule. */
+        private final PathMatcher matcher;
+        /** Subnet of Clients, null for a filename rule. */
+        private final Subnet subnet;
+        /** Class of the Clients matching. */
+        private final String className;
+
+        private Rule(PathMatcher matcher, Subnet subnet, String className) {
+            this.matcher = matcher;
+            this.subnet = subnet;
+            this.className = className;
+        }
+
+        private boolean matches(InetAddress address, String filename) {
+            if (matcher != null) {
+                try {
+                    return matcher.matches(Paths.get(filename));
+                } catch (InvalidPathException e) {
+                    return false;
+                }
+            }
+            return subnet.contains(address);
+        }
+    }
+
+    /**
+     * Scheduling state of one Client.
+     * */
+    private static final class Session {
+        /** System.nanoTime() when the Client was last ready for a turn. */
+        private long readySince;
+
+        private Session(long readySince) {
+            this.readySince = readySince;
+        }
+    }
+
+    /**
+     * Clients of one class waiting for a turn, and their queueing delays.
+     * */
+    private static final class ClassQueue {
+        /** Number of most recent queueing delays kept for percentiles. */
+        private static final int SAMPLES = 1024;
+
+        /** Name of the class. */
+        private final String name;
+        /** Turns given to the class each round. */
+        private final int weight;
+        /** Clients waiting for a turn, in turn order. */
+        private final ArrayDeque<Client> clients = new ArrayDeque<>();
+        /** Most recent queueing delays in nanoseconds, as a ring. */
+        private final long[] delays = new long[SAMPLES];
+        /** Turns not yet taken this round. */
+        private int deficit;
+        /** Number of Clients admitted and not done. */
+        private int active;
+        /** Number of turns given so far. */
+        private long turns;
+        /** Sum of all queueing delays in nanoseconds. */
+        private long totalDelay;
+        /** Longest queueing delay in nanoseconds. */
+        private long maxDelay;
+
+        private ClassQueue(String name, int weight) {
+            this.name = name;
+            this.weight = Math.max(1, weight);
+        }
+
+        private void record(long delay) {
+            delays[(int) (turns % SAMPLES)] = delay;
+            turns++;
+            totalDelay += delay;
+            maxDelay = Math.max(maxDelay, delay);
+        }
+
+        private ClassStats stats() {
+            long[] recent = Arrays.copyOf(delays,
+                    (int) Math.min(turns, SAMPLES));
+            Arrays.sort(recent);
+            return new ClassStats(name, weight, active, turns,
+                    turns == 0 ? 0 : totalDelay / turns / 1000,
+                    recent.length == 0 ? 0
+                            : EventDecoder.percentile(recent, 50) / 1000,
+                    recent.length == 0 ? 0
+                            : EventDecoder.percentile(recent, 99) / 1000,
+                    maxDelay / 1000);
+        }
+    }
+
+    /**
+     * Snapshot of the turns and queueing delays of one class. Percentiles
+     * are of the last 1024 turns.
+     * */
+    public static final class ClassStats {
+        private final String name;
+        private final int weight;
+        private final int sessions;
+        private final long turns;
+        private final long meanDelay;
+        private final long p50Delay;
+        private final long p99Delay;
+        private final long maxDelay;
+
+        private ClassStats(String name, int weight, int sessions, long turns,
+                           long meanDelay, long p50Delay, long p99Delay,
+                           long maxDelay) {
+            this.name = name;
+            this.weight = weight;
+            this.sessions = sessions;
+            this.turns = turns;
+            this.meanDelay = meanDelay;
+            this.p50Delay = p50Delay;
+            this.p99Delay = p99Delay;
+            this.maxDelay = maxDelay;
+        }
+
+        @Override
+        public String toString() {
+            return "class " + name + " (weight " + weight + "): " + sessions
+                    + " sessions, " + turns + " turns, queueing delay mean="
+                    + meanDelay + " p50=" + p50Delay + " p99=" + p99Delay
+                    + " max=" + maxDelay + " us";
+        }
+
+        // getters and setters--------------------------------------------------
+
+        /**
+         * Returns the name of the class.
+         * @return class name.
+         * */
+        public String getName() {
+            return name;
+        }
+        /**
+         * Returns the turns given to the class each round.
+         * @return weight.
+         * */
+        public int getWeight() {
+            return weight;
+        }
+        /**
+         * Returns the number of Clients of the class not yet done.
+         * @return active sessions.
+         * */
+        public int getSessions() {
+            return sessions;
+        }
+        /**
+         * Returns the number of turns given to the class so far.
+         * @return turns.
+         * */
+        public long getTurns() {
+            return turns;
+        }
+        /**
+         * Returns the mean queueing delay of all turns.
+         * @return delay in microseconds.
+         * */
+        public long getMeanDelay() {
+            return meanDelay;
+        }
+        /**
+         * Returns the median queueing delay of recent turns.
+         * @return delay in microseconds.
+         * */
+        public long getP50Delay() {
+            return p50Delay;
+        }
+        /**
+         * Returns the 99th percentile queueing delay of recent turns.
+         * @return delay in microseconds.
+         * */
+        public long getP99Delay() {
+            return p99Delay;
+        }
+        /**
+         * Returns the longest queueing delay of all turns.
+         * @return delay in microseconds.
+         * */
+        public long getMaxDelay() {
+            return maxDelay;
+        }
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,126 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Group of TFTPServers, one per local address of a multi-homed host, made
+ * with TFTPServer.Builder.buildGroup(). Every Server of the group has its
+ * own listener thread, TFTPServerThread, sessions and buffers, and its
+ * sockets are bound to its own address so that replies always leave from
+ * the interface the request arrived on. The group is started and stopped as
+ * one.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class ServerGroup {
+    /** Servers of the group, one per local address. */
+    private final List<TFTPServer> servers;
+    /** Storage shared by the Servers and made by the group, null if given
+     * to the Builder. */
+    private final Storage ownedStorage;
+
+    /**
+     * Sole constructor, called by TFTPServer.Builder.buildGroup().
+     *
+     * @param servers Servers of the group, not yet started.
+     * @param ownedStorage storage closed when the group stops, null for
+     *                     none.
+     * */
+    protected ServerGroup(List<TFTPServer> servers, Storage ownedStorage) {
+        this.servers = Collections.unmodifiableList(new ArrayList<>(servers));
+        this.ownedStorage = ownedStorage;
+    }
+
+    /**
+     * Returns every address of every network interface that is up,
+     * loopback included, IPv4 and IPv6.
+     *
+     * @return local addresses, in the order of their interfaces.
+     * @throws SocketException if the interfaces cannot be listed.
+     * */
+    public static List<InetAddress> interfaceAddresses()
+            throws SocketException {
+        List<InetAddress> addresses = new ArrayList<>();
+        Enumeration<NetworkInterface> interfaces =
+                NetworkInterface.getNetworkInterfaces();
+        while (interfaces.hasMoreElements()) {
+            NetworkInterface networkInterface = interfaces.nextElement();
+            if (networkInterface.isUp()) {
+                addresses.addAll(Collections.list(
+                        networkInterface.getInetAddresses()));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Starts every Server of the group. If one cannot be bound, those
+     * already started are stopped again.
+     *
+     * @throws IOException if a socket cannot be bound.
+     * @throws IllegalStateException if a Server is already started.
+     * */
+    public synchronized void start() throws IOException {
+        List<TFTPServer> started = new ArrayList<>();
+        try {
+            for (TFTPServer server : servers) {
+                server.start();
+                started.add(server);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (TFTPServer server : started) {
+                server.stop();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stops every Server of the group, then closes the shared storage if
+     * the group made it. A stopped group can be started again.
+     * */
+    public synchronized void stop() {
+        for (TFTPServer server : servers) {
+            server.stop();
+        }
+        if (ownedStorage != null) {
+            ownedStorage.close();
+        }
+    }
+
+    // getters and setters------------------------------------------------------
+
+    /**
+     * Returns the Servers of the group.
+     * @return Servers in the order of their addresses.
+     * */
+    public List<TFTPServer> getServers() {
+        return servers;
+    }
+
+    // END OF FILE
+}
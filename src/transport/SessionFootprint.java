@@ -0,0 +1,170 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line benchmark of the heap held per concurrent session.
+ *
+ * Usage: java transport.SessionFootprint [sessions ...]
+ *
+ * For every number of sessions (10000 and 100000 by default), opens that
+ * many sessions from distinct Clients and prints the heap held per session
+ * by the rows of a SessionTable alone, and by whole Clients as a Server
+ * holds them: the Client, its entry in TFTPServer.mainStatus and its
+ * row. Run with a heap large enough for the largest number, for example
+ * -Xmx1g, and without other load.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class SessionFootprint {
+
+    /**
+     * Main method.
+     *
+     * @param args numbers of sessions.
+     * @throws IOException if a Server cannot be started.
+     * */
+    public static void main(String[] args) throws IOException {
+        List<Integer> counts = new ArrayList<>();
+        try {
+            for (String arg : args) {
+                counts.add(Integer.parseInt(arg));
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Usage: java transport.SessionFootprint "
+                    + "[sessions ...]");
+            return;
+        }
+        if (counts.isEmpty()) {
+            counts.add(10_000);
+            counts.add(100_000);
+        }
+
+        // the console output of the Servers is discarded
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            out.println(String.format("%10s %16s %16s", "sessions",
+                    "table B/session", "Client B/session"));
+            for (int count : counts) {
+                out.println(String.format("%10d %16d %16d", count,
+                        tableFootprint(count) / count,
+                        clientFootprint(count) / count));
+            }
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Returns the heap held by the rows of a SessionTable of 'count'
+     * sessions.
+     *
+     * @param count number of sessions.
+     * @return bytes held.
+     * */
+    private static long tableFootprint(int count) {
+        long before = usedHeap();
+        SessionTable table = new SessionTable(16);
+        for (int i = 0; i < count; i++) {
+            table.open(address(i), port(i), SessionTable.SENDING);
+        }
+        long after = usedHeap();
+        if (table.size() != count) {
+            throw new IllegalStateException("Sessions lost.");
+        }
+        return after - before;
+    }
+
+    /**
+     * Returns the heap held by 'count' Clients of a RRQ without options, as
+     * held by a Server.
+     *
+     * @param count number of sessions.
+     * @return bytes held.
+     * @throws IOException if the Server cannot be started.
+     * */
+    private static long clientFootprint(int count) throws IOException {
+        TFTPServer server = TFTPServer.builder().port(0)
+                .storage(new MemoryStorage()).sessionCapacity(16).build();
+        server.start(); // for its slave socket; no request is received
+        try {
+            Map<String, String> noOptions = Collections.emptyMap();
+            long before = usedHeap();
+            HashMap<InetSocketAddress, Client> pending = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                InetSocketAddress tid = new InetSocketAddress(address(i),
+                        port(i));
+                pending.put(tid, new Client(server, Opcode.RRQ, tid,
+                        "boot.img", noOptions));
+            }
+            long after = usedHeap();
+            if (pending.size() != count) {
+                throw new IllegalStateException("Sessions lost.");
+            }
+            return after - before;
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Returns a distinct address of a Client, 10.0.0.0/8 in order.
+     * @param i index of the Client.
+     * @return address.
+     * */
+    private static InetAddress address(int i) {
+        try {
+            return InetAddress.getByAddress(new byte[]{10, (byte) (i >>> 16),
+                    (byte) (i >>> 8), (byte) i});
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // length is always valid
+        }
+    }
+
+    private static int port(int i) {
+        return Constants.MIN_PORT + i % 1000;
+    }
+
+    /**
+     * Returns the heap in use after collecting garbage.
+     * @return bytes in use.
+     * */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // END OF FILE
+}
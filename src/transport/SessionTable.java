@@ -0,0 +1,558 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Compact store of the hot state of every session of a Server, kept in
+ * primitive arrays indexed by slot (struct of arrays) rather than in fields
+ * of each Client, so that a session costs tens of bytes of state and a pass
+ * over the sessions walks arrays instead of objects.
+ *
+ * Per slot: TID (address and port), block, highest block sent whose ACK is
+ * awaited, RTO, file offset, state and retries. Packet buffers are not
+ * kept per session: one is attached to a slot only while the session is
+ * sending or receiving, and returned to a pool afterwards. Likewise, a
+ * packet of a session received during the turn of another is held for it
+ * in a pooled buffer until its own turn.
+ *
+ * Slots of closed sessions are reused. Sessions are found by TID through an
+ * open addressing index. The arrays grow by doubling.
+ *
+ * Every method is synchronized, the per-packet accessors included, even
+ * though TFTPServerThread is the only thread stepping sessions: the
+ * listener thread opens the session of every request, which may grow the
+ * arrays and replace them, looks up TIDs in use and sends the first packet
+ * of a RRQ, all while TFTPServerThread reads and updates other slots.
+ * Without the lock, a write of TFTPServerThread could land in an array
+ * just replaced and be lost. The lock is uncontended but for those
+ * moments, and costs far less than the system call sending each packet.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class SessionTable {
+    /** State of a free slot. */
+    protected static final byte FREE = 0;
+    /** RRQ: options are to be acknowledged with an OACK. */
+    protected static final byte NEGOTIATING = 1;
+    /** RRQ: DATA is being sent. */
+    protected static final byte SENDING = 2;
+    /** WRQ: DATA is being received. */
+    protected static final byte RECEIVING = 3;
+    /** WRQ: the final ACK was sent and duplicates of the final DATA are
+     * acknowledged again until timeout. */
+    protected static final byte DALLYING = 4;
+
+    /** Length of the packet buffers. */
+    private static final int BUFFER_SIZE = Constants.DEFAULT_DATA_SIZE + 4;
+
+    /** Remote port (TID) per slot. */
+    private int[] ports;
+    /** IPv4 address per slot, as an int. */
+    private int[] addresses;
+    /** IPv6 address per slot, null for IPv4. */
+    private byte[][] addresses6;
+    /** RRQ: next block to send; WRQ: next block expected. */
+    private long[] blocks;
+    /** RRQ: highest block sent, whose ACK is awaited. */
+    private long[] sent;
+    /** Retransmission timeout in milliseconds. */
+    private int[] rtos;
+    /** Number of bytes of the file read or written so far. */
+    private long[] offsets;
+    /** State, FREE if the slot is not in use. */
+    private byte[] states;
+    /** Timeouts in a row. */
+    private int[] retries;
+    /** Buffer attached per slot, null if none. */
+    private byte[][] buffers;
+    /** Packet held per slot until the turn of its session, null if none. */
+    private byte[][] held;
+    /** Length of the packet held per slot. */
+    private int[] heldLengths;
+
+    /** Free slots below 'top', as a stack. */
+    private int[] free;
+    /** Number of free slots in 'free'. */
+    private int freeCount;
+    /** Slots from 'top' up have never been used. */
+    private int top;
+    /** Number of sessions. */
+    private int size;
+    /** Open addressing index of slot + 1 by TID, 0 if empty. */
+    private int[] index;
+    /** Buffers not attached. */
+    private final ArrayDeque<byte[]> pool = new ArrayDeque<>();
+
+    /**
+     * Sole constructor.
+     *
+     * @param capacity number of sessions held before the arrays grow.
+     * */
+    public SessionTable(int capacity) {
+        allocate(Math.max(16, capacity));
+    }
+
+    /**
+     * Opens a session.
+     *
+     * @param addr address of the Client.
+     * @param port port (TID) of the Client.
+     * @param state initial state.
+     * @return slot of the session.
+     * @throws IllegalStateException if a session of this TID is open.
+     * */
+    protected synchronized int open(InetAddress addr, int port, byte state) {
+        if (find(addr, port) >= 0) {
+            throw new IllegalStateException("Session of " + addr + ":" + port
+                    + " already open.");
+        }
+        if (freeCount == 0 && top == states.length) {
+            allocate(states.length * 2);
+        }
+        int slot = freeCount > 0 ? free[--freeCount] : top++;
+        ports[slot] = port;
+        if (addr instanceof Inet4Address) {
+            addresses[slot] = toInt(addr.getAddress());
+            addresses6[slot] = null;
+        } else {
+            addresses[slot] = 0;
+            addresses6[slot] = addr.getAddress();
+        }
+        blocks[slot] = 0;
+        sent[slot] = 0;
+        rtos[slot] = Constants.TIMEOUT;
+        offsets[slot] = 0;
+        states[slot] = state;
+        retries[slot] = 0;
+        insert(slot);
+        size++;
+        return slot;
+    }
+
+    /**
+     * Closes a session, freeing its slot and any buffer attached.
+     *
+     * @param slot slot of the session, ignored if already closed.
+     * */
+    protected synchronized void close(int slot) {
+        if (slot < 0 || states[slot] == FREE) {
+            return;
+        }
+        detach(slot);
+        release(slot);
+        remove(slot);
+        states[slot] = FREE;
+        addresses6[slot] = null;
+        free[freeCount++] = slot;
+        size--;
+    }
+
+    /**
+     * Closes every session.
+     * */
+    protected synchronized void clear() {
+        for (int slot = 0; slot < top; slot++) {
+            close(slot);
+        }
+    }
+
+    /**
+     * Returns the slot of the session of a TID.
+     *
+     * @param addr address of the Client.
+     * @param port port (TID) of the Client.
+     * @return slot of the session, -1 if none is open.
+     * */
+    protected synchronized int find(InetAddress addr, int port) {
+        byte[] raw = addr.getAddress();
+        for (int i = hash(raw, port) & (index.length - 1); index[i] != 0;
+             i = (i + 1) & (index.length - 1)) {
+            int slot = index[i] - 1;
+            if (matches(slot, raw, port)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Attaches a packet buffer to a session, from the pool if any is free.
+     *
+     * @param slot slot of the session.
+     * @return buffer of Constants.DEFAULT_DATA_SIZE + 4 bytes, the one
+     * already attached if any.
+     * */
+    protected synchronized byte[] attach(int slot) {
+        return attach(slot, BUFFER_SIZE);
+    }
+
+    /**
+     * Attaches a packet buffer of some length to a session, from the pool
+     * if it is no longer than Constants.DEFAULT_DATA_SIZE + 4 bytes. Longer
+     * buffers, for a larger block size, are not pooled.
+     *
+     * @param slot slot of the session.
+     * @param length length of the buffer, in bytes.
+     * @return buffer of at least 'length' bytes, the one already attached
+     * if long enough.
+     * */
+    protected synchronized byte[] attach(int slot, int length) {
+        if (buffers[slot] != null && buffers[slot].length >= length) {
+            return buffers[slot];
+        }
+        detach(slot);
+        byte[] buffer = length <= BUFFER_SIZE ? pool.poll() : null;
+        buffers[slot] = buffer != null ? buffer
+                : new byte[Math.max(length, BUFFER_SIZE)];
+        return buffers[slot];
+    }
+
+    /**
+     * Returns the buffer of a session to the pool.
+     *
+     * @param slot slot of the session.
+     * */
+    protected synchronized void detach(int slot) {
+        if (buffers[slot] != null) {
+            if (buffers[slot].length == BUFFER_SIZE) {
+                pool.push(buffers[slot]);
+            }
+            buffers[slot] = null;
+        }
+    }
+
+    /**
+     * Holds a packet for the session of its TID, received by another
+     * session. A packet held before and not yet taken is replaced, so at
+     * most one packet, the latest, is held per session.
+     *
+     * @param addr address the packet is from.
+     * @param port port (TID) the packet is from.
+     * @param data contents of the packet.
+     * @param length length of the packet, at most
+     *               Constants.DEFAULT_DATA_SIZE + 4.
+     * @return true if held. False if no session of this TID is open.
+     * */
+    protected synchronized boolean hold(InetAddress addr, int port,
+                                        byte[] data, int length) {
+        int slot = find(addr, port);
+        if (slot < 0) {
+            return false;
+        }
+        if (held[slot] == null) {
+            byte[] buffer = pool.poll();
+            held[slot] = buffer != null ? buffer : new byte[BUFFER_SIZE];
+        }
+        heldLengths[slot] = Math.min(length, BUFFER_SIZE);
+        System.arraycopy(data, 0, held[slot], 0, heldLengths[slot]);
+        return true;
+    }
+
+    /**
+     * Takes the packet held for a session, if any.
+     *
+     * @param slot slot of the session.
+     * @param dst buffer of at least Constants.DEFAULT_DATA_SIZE + 4 bytes
+     *            the packet is copied to.
+     * @return length of the packet, -1 if none is held.
+     * */
+    protected synchronized int take(int slot, byte[] dst) {
+        if (held[slot] == null) {
+            return -1;
+        }
+        int length = heldLengths[slot];
+        System.arraycopy(held[slot], 0, dst, 0, length);
+        release(slot);
+        return length;
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Returns the buffer of the packet held for a session to the pool.
+     * @param slot slot of the session.
+     * */
+    private void release(int slot) {
+        if (held[slot] != null) {
+            pool.push(held[slot]);
+            held[slot] = null;
+        }
+    }
+
+    /**
+     * Grows every array to a new capacity and rebuilds the index.
+     *
+     * @param capacity new number of slots.
+     * */
+    private void allocate(int capacity) {
+        int from = states == null ? 0 : states.length;
+        ports = grow(ports, capacity);
+        addresses = grow(addresses, capacity);
+        addresses6 = addresses6 == null ? new byte[capacity][]
+                : Arrays.copyOf(addresses6, capacity);
+        blocks = states == null ? new long[capacity]
+                : Arrays.copyOf(blocks, capacity);
+        sent = states == null ? new long[capacity]
+                : Arrays.copyOf(sent, capacity);
+        rtos = grow(rtos, capacity);
+        offsets = states == null ? new long[capacity]
+                : Arrays.copyOf(offsets, capacity);
+        states = states == null ? new byte[capacity]
+                : Arrays.copyOf(states, capacity);
+        retries = grow(retries, capacity);
+        buffers = buffers == null ? new byte[capacity][]
+                : Arrays.copyOf(buffers, capacity);
+        held = held == null ? new byte[capacity][]
+                : Arrays.copyOf(held, capacity);
+        heldLengths = grow(heldLengths, capacity);
+        free = grow(free, capacity);
+
+        // load factor of at most one half
+        index = new int[Integer.highestOneBit(capacity) << 2];
+        for (int slot = 0; slot < from; slot++) {
+            if (states[slot] != FREE) {
+                insert(slot);
+            }
+        }
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        return array == null ? new int[capacity]
+                : Arrays.copyOf(array, capacity);
+    }
+
+    /**
+     * Adds a slot to the index by its TID.
+     * @param slot slot in use.
+     * */
+    private void insert(int slot) {
+        int i = slotHash(slot) & (index.length - 1);
+        while (index[i] != 0) {
+            i = (i + 1) & (index.length - 1);
+        }
+        index[i] = slot + 1;
+    }
+
+    /**
+     * Removes a slot from the index, moving back the entries after it so
+     * that no probe sequence is broken.
+     * @param slot slot in use.
+     * */
+    private void remove(int slot) {
+        int mask = index.length - 1;
+        int i = slotHash(slot) & mask;
+        while (index[i] != slot + 1) {
+            i = (i + 1) & mask;
+        }
+        int hole = i;
+        for (i = (i + 1) & mask; index[i] != 0; i = (i + 1) & mask) {
+            int home = slotHash(index[i] - 1) & mask;
+            // moved into the hole unless its home lies after the hole
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                index[hole] = index[i];
+                hole = i;
+            }
+        }
+        index[hole] = 0;
+    }
+
+    private boolean matches(int slot, byte[] raw, int port) {
+        if (ports[slot] != port) {
+            return false;
+        }
+        return raw.length == 4 ? addresses6[slot] == null
+                && addresses[slot] == toInt(raw)
+                : Arrays.equals(addresses6[slot], raw);
+    }
+
+    private byte[] rawAddress(int slot) {
+        if (addresses6[slot] != null) {
+            return addresses6[slot];
+        }
+        int a = addresses[slot];
+        return new byte[]{(byte) (a >>> 24), (byte) (a >>> 16),
+                (byte) (a >>> 8), (byte) a};
+    }
+
+    private static int toInt(byte[] raw) {
+        return ((raw[0] & 0xFF) << 24) | ((raw[1] & 0xFF) << 16)
+                | ((raw[2] & 0xFF) << 8) | (raw[3] & 0xFF);
+    }
+
+    /**
+     * Returns hash() of the TID of a slot without copying its address.
+     * @param slot slot in use.
+     * @return hash of the TID.
+     * */
+    private int slotHash(int slot) {
+        if (addresses6[slot] != null) {
+            return hash(addresses6[slot], ports[slot]);
+        }
+        int h = 1; // Arrays.hashCode() of the 4 bytes
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            h = 31 * h + (byte) (addresses[slot] >>> shift);
+        }
+        return mix(h * 31 + ports[slot]);
+    }
+
+    private static int hash(byte[] raw, int port) {
+        return mix(Arrays.hashCode(raw) * 31 + port);
+    }
+
+    private static int mix(int h) {
+        // finalizer of MurmurHash3, spreading close addresses and ports
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    // getters and setters------------------------------------------------------
+
+    /**
+     * Returns the number of open sessions.
+     * @return number of sessions.
+     * */
+    public synchronized int size() {
+        return size;
+    }
+    /**
+     * Returns the number of sessions held before the arrays grow.
+     * @return number of slots.
+     * */
+    public synchronized int getCapacity() {
+        return states.length;
+    }
+    /**
+     * Returns the address of a session.
+     * @param slot slot of the session.
+     * @return address of the Client.
+     * */
+    protected synchronized InetAddress getAddress(int slot) {
+        try {
+            return InetAddress.getByAddress(rawAddress(slot));
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // length is always valid
+        }
+    }
+    /**
+     * Returns the port (TID) of a session.
+     * @param slot slot of the session.
+     * @return port of the Client.
+     * */
+    protected synchronized int getPort(int slot) {
+        return ports[slot];
+    }
+    /**
+     * Returns the block of a session.
+     * @param slot slot of the session.
+     * @return RRQ: next block to send; WRQ: next block expected.
+     * */
+    protected synchronized long getBlock(int slot) {
+        return blocks[slot];
+    }
+    /**
+     * Sets the block of a session.
+     * @param slot slot of the session.
+     * @param block RRQ: next block to send; WRQ: next block expected.
+     * */
+    protected synchronized void setBlock(int slot, long block) {
+        blocks[slot] = block;
+    }
+    /**
+     * Returns the highest block sent by a session, whose ACK is awaited.
+     * @param slot slot of the session.
+     * @return block number, 0 if none was sent.
+     * */
+    protected synchronized long getSent(int slot) {
+        return sent[slot];
+    }
+    /**
+     * Sets the highest block sent by a session.
+     * @param slot slot of the session.
+     * @param block block number.
+     * */
+    protected synchronized void setSent(int slot, long block) {
+        sent[slot] = block;
+    }
+    /**
+     * Returns the retransmission timeout of a session.
+     * @param slot slot of the session.
+     * @return timeout in milliseconds.
+     * */
+    protected synchronized int getRto(int slot) {
+        return rtos[slot];
+    }
+    /**
+     * Returns the number of bytes of the file read or written so far.
+     * @param slot slot of the session.
+     * @return offset in the file.
+     * */
+    protected synchronized long getOffset(int slot) {
+        return offsets[slot];
+    }
+    /**
+     * Sets the number of bytes of the file read or written so far.
+     * @param slot slot of the session.
+     * @param offset offset in the file.
+     * */
+    protected synchronized void setOffset(int slot, long offset) {
+        offsets[slot] = offset;
+    }
+    /**
+     * Returns the state of a session.
+     * @param slot slot of the session.
+     * @return state, FREE if closed.
+     * */
+    protected synchronized byte getState(int slot) {
+        return states[slot];
+    }
+    /**
+     * Sets the state of a session.
+     * @param slot slot of the session.
+     * @param state new state, not FREE.
+     * */
+    protected synchronized void setState(int slot, byte state) {
+        states[slot] = state;
+    }
+    /**
+     * Returns the number of timeouts in a row of a session.
+     * @param slot slot of the session.
+     * @return retries.
+     * */
+    protected synchronized int getRetries(int slot) {
+        return retries[slot];
+    }
+    /**
+     * Sets the number of timeouts in a row of a session.
+     * @param slot slot of the session.
+     * @param count retries.
+     * */
+    protected synchronized void setRetries(int slot, int count) {
+        retries[slot] = count;
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,205 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Egress rate limits of a Server: one TokenBucket for everything sent, one
+ * per configured subnet shared by the Clients in it, and one per Client.
+ * Every packet sent by Client.udtSend() takes its length from each bucket
+ * that applies.
+ *
+ * So that one Client held back by its own limits does not hold back the
+ * others, a Client asks delay() before each DATA it sends: the Scheduler
+ * skips a Client whose next packet would wait, a window is left part sent
+ * until a later turn, and a Transfer sets its timer to the wait instead of
+ * sending. Only the global limit, which holds back every Client alike,
+ * ever makes TFTPServerThread wait in udtSend().
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class Shaper {
+    /** Buckets of no limit at all. */
+    private static final TokenBucket[] NONE = new TokenBucket[0];
+
+    /** Limit of everything sent, null if none. */
+    private final TokenBucket global;
+    /** Limited subnets, in the order they were configured. */
+    private final List<Subnet> subnets = new ArrayList<>();
+    /** Limit of each subnet in 'subnets', at the same index. */
+    private final List<TokenBucket> subnetBuckets = new ArrayList<>();
+    /** Limit of each Client in bytes per second, 0 if none. */
+    private final long sessionRate;
+    /** Buckets of the Clients in process. */
+    private final Set<TokenBucket> sessionBuckets =
+            ConcurrentHashMap.newKeySet();
+    /** System.nanoTime() of the last report of the rates. */
+    private volatile long lastReport = System.nanoTime();
+
+    /**
+     * Sole constructor.
+     *
+     * @param globalRate limit of everything sent in bytes per second, 0 for
+     *                   none.
+     * @param sessionRate limit of each Client in bytes per second, 0 for
+     *                    none.
+     * @param subnetRates limit of each subnet in CIDR notation in bytes per
+     *                    second. A Client takes the first subnet it is in.
+     * */
+    public Shaper(long globalRate, long sessionRate,
+                  Map<String, Long> subnetRates) {
+        global = globalRate > 0 ? new TokenBucket("global", globalRate)
+                : null;
+        this.sessionRate = sessionRate;
+        for (Map.Entry<String, Long> limit : subnetRates.entrySet()) {
+            subnets.add(Subnet.parse(limit.getKey()));
+            subnetBuckets.add(new TokenBucket("subnet " + limit.getKey(),
+                    limit.getValue()));
+        }
+    }
+
+    /**
+     * Returns the buckets limiting a Client, making its own bucket if
+     * Clients are limited. Released with release() once the Client is done.
+     *
+     * @param addr address of the Client, null for packets of no Client such
+     *             as ERRORs to rejected requests.
+     * @param port port of the Client.
+     * @return buckets to pass to delay() and pace(), empty if unlimited.
+     * */
+    protected TokenBucket[] bucketsFor(InetAddress addr, int port) {
+        List<TokenBucket> buckets = new ArrayList<>(3);
+        if (global != null) {
+            buckets.add(global);
+        }
+        if (addr != null) {
+            for (int i = 0; i < subnets.size(); i++) {
+                if (subnets.get(i).contains(addr)) {
+                    buckets.add(subnetBuckets.get(i));
+                    break;
+                }
+            }
+            if (sessionRate > 0) {
+                TokenBucket session = new TokenBucket("session "
+                        + addr.getHostAddress() + ":" + port, sessionRate);
+                sessionBuckets.add(session);
+                buckets.add(session);
+            }
+        }
+        return buckets.isEmpty() ? NONE : buckets.toArray(NONE);
+    }
+
+    /**
+     * Stops reporting the bucket of a Client done.
+     *
+     * @param buckets buckets returned by bucketsFor().
+     * */
+    protected void release(TokenBucket[] buckets) {
+        for (TokenBucket bucket : buckets) {
+            sessionBuckets.remove(bucket);
+        }
+    }
+
+    /**
+     * Returns how long a packet would wait before being sent.
+     *
+     * @param buckets buckets of the Client.
+     * @param length length of the UDP payload of the packet, such as the
+     *               negotiated block size and 4 for a full DATA.
+     * @return nanoseconds to wait, 0 if the packet can be sent now.
+     * */
+    protected static long delay(TokenBucket[] buckets, int length) {
+        long wait = 0;
+        for (TokenBucket bucket : buckets) {
+            wait = Math.max(wait, bucket.delay(length
+                    + Constants.UDP_OVERHEAD));
+        }
+        return wait;
+    }
+
+    /**
+     * Takes the tokens of a packet from every bucket, and waits until the
+     * global one allows it to be sent. The limits of a Client and of its
+     * subnet are only ever waited for through delay(): a packet sent
+     * without asking it, such as an ACK or a block sent again at a
+     * timeout, puts them in debt, which holds back the next DATA.
+     *
+     * @param buckets buckets of the Client.
+     * @param length length of the UDP payload of the packet.
+     * */
+    protected void pace(TokenBucket[] buckets, int length) {
+        long wait = 0;
+        for (TokenBucket bucket : buckets) {
+            long reserved = bucket.reserve(length + Constants.UDP_OVERHEAD);
+            if (bucket == global) {
+                wait = reserved;
+            }
+        }
+        long deadline = System.nanoTime() + wait;
+        while (wait > 0) {
+            LockSupport.parkNanos(wait);
+            wait = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * Prints the current and configured rate of every bucket, at most once
+     * every Constants.SHAPING_REPORT_INTERVAL milliseconds, if any limit is
+     * configured.
+     * */
+    protected void report() {
+        long now = System.nanoTime();
+        if (now - lastReport < Constants.SHAPING_REPORT_INTERVAL
+                * 1_000_000L) {
+            return;
+        }
+        lastReport = now;
+        for (TokenBucket bucket : getBuckets()) {
+            System.out.println("NOTE 061: " + bucket + ".\n");
+        }
+    }
+
+    // getters and setters------------------------------------------------------
+
+    /**
+     * Returns every bucket: global, subnets and Clients in process.
+     * @return buckets with their configured and current rates.
+     * */
+    public List<TokenBucket> getBuckets() {
+        if (global == null && subnetBuckets.isEmpty() && sessionRate == 0) {
+            return Collections.emptyList();
+        }
+        List<TokenBucket> buckets = new ArrayList<>();
+        if (global != null) {
+            buckets.add(global);
+        }
+        buckets.addAll(subnetBuckets);
+        buckets.addAll(sessionBuckets);
+        return buckets;
+    }
+
+    // END OF FILE
+}
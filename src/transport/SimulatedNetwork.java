@@ -0,0 +1,518 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * In-memory UDP network with a virtual clock, for a Simulation to run a
+ * Server and thousands of remote Clients in one thread, repeatably and
+ * much faster than real time. Impairs every packet much like an
+ * ImpairedLink: one-way delay with jitter, reordering, random loss, and a
+ * link of limited rate with a drop-tail queue out of every host, all from
+ * one seeded random source. Unlike over an ImpairedLink, jitter alone
+ * keeps the order of the packets of a path, as a real path mostly does;
+ * a packet reordered is not held behind those sent before it.
+ *
+ * Nothing happens until asked: runNext() advances the clock to the first
+ * packet or task due and delivers or runs it. Packets are delivered to the
+ * Receiver attached to their destination, in the order they are due, ties
+ * broken by the order they were sent, so that the same seed and the same
+ * sends always give the same run. Packets to an address with no Receiver
+ * are lost, as a real network would drop them.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class SimulatedNetwork {
+    /** Packets and tasks due, first due first. */
+    private final PriorityQueue<Event> due = new PriorityQueue<>();
+    /** Receiver of every address attached. */
+    private final Map<SocketAddress, Receiver> receivers = new HashMap<>();
+    /** Virtual time each host's link is free from, if limited in rate. */
+    private final Map<InetAddress, Long> freeAt = new HashMap<>();
+    /** Virtual time the last packet of each path is delivered at. */
+    private final Map<Path, Long> lastDelivery = new HashMap<>();
+    /** One-way delay in nanoseconds. */
+    private final long delay;
+    /** Largest random delay added in nanoseconds. */
+    private final long jitter;
+    /** Probability a packet is lost. */
+    private final double loss;
+    /** Probability a packet is reordered. */
+    private final double reorder;
+    /** Rate of the link out of every host in bytes per second, 0 if
+     * none. */
+    private final long rate;
+    /** Longest wait in the queue of a link in nanoseconds. */
+    private final long queueLimit;
+    /** Random source of every impairment. */
+    private final Random random;
+    /** Current virtual time in nanoseconds. */
+    private long now;
+    /** Events scheduled, to break ties of the same time. */
+    private long sequence;
+    /** Packets sent. */
+    private long sent;
+    /** Packets dropped, by random loss or a full queue. */
+    private long dropped;
+
+    /**
+     * Receives the packets delivered to an address.
+     * */
+    public interface Receiver {
+        /**
+         * Processes a packet delivered. The packet is not used again by the
+         * network.
+         *
+         * @param packet packet, from the address and TID that sent it.
+         * @param now virtual time of the delivery in nanoseconds.
+         * @throws IOException if the packet cannot be processed.
+         * */
+        void receive(DatagramPacket packet, long now) throws IOException;
+    }
+
+    /**
+     * Runs at a virtual time, such as the timer of a remote Client.
+     * */
+    public interface Task {
+        /**
+         * Runs the task.
+         *
+         * @param now virtual time in nanoseconds.
+         * @throws IOException if an I/O error occurs.
+         * */
+        void run(long now) throws IOException;
+    }
+
+    /**
+     * Makes a network with the impairments of a Builder.
+     *
+     * @param builder impairments of the network.
+     * */
+    private SimulatedNetwork(Builder builder) {
+        delay = builder.delay;
+        jitter = builder.jitter;
+        loss = builder.loss;
+        reorder = builder.reorder;
+        rate = builder.rate;
+        queueLimit = rate == 0 ? 0 : builder.queue
+                * (Constants.DEFAULT_DATA_SIZE + 4
+                + Constants.UDP_OVERHEAD) * 1_000_000_000L / rate;
+        random = new Random(builder.seed);
+    }
+
+    /**
+     * Returns a new Builder of a network with no impairment.
+     * @return new Builder.
+     * */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Attaches the Receiver of the packets delivered to an address,
+     * replacing the one attached before if any.
+     *
+     * @param address address and port.
+     * @param receiver Receiver of the packets to that address.
+     * */
+    protected void attach(InetSocketAddress address, Receiver receiver) {
+        receivers.put(address, receiver);
+    }
+
+    /**
+     * Detaches the Receiver of an address; packets to it are then lost.
+     *
+     * @param address address and port.
+     * */
+    protected void detach(InetSocketAddress address) {
+        receivers.remove(address);
+    }
+
+    /**
+     * Makes a socket sending through this network from an address, whose
+     * packets received are delivered to a Receiver, for a Server to be
+     * started over. Closing the socket detaches the Receiver.
+     *
+     * @param address address and port of the socket.
+     * @param receiver Receiver of the packets to the socket.
+     * @return new socket.
+     * @throws SocketException if the socket of the system behind it cannot
+     * be made.
+     * */
+    protected DatagramSocket socket(InetSocketAddress address,
+                                    Receiver receiver)
+            throws SocketException {
+        attach(address, receiver);
+        return new Endpoint(address);
+    }
+
+    /**
+     * Sends a packet from an address. The packet is copied, so its buffer
+     * may be used again at once. Lost with the probability of loss, or if
+     * the queue of the link out of the host is full, otherwise delivered
+     * after the one-way delay, a random part of the jitter and its time on
+     * the link, and not before the packets sent before it on the same path
+     * unless reordered.
+     *
+     * @param from address and port the packet is sent from.
+     * @param packet packet, with its destination set.
+     * */
+    protected void send(InetSocketAddress from, DatagramPacket packet) {
+        sent++;
+        if (random.nextDouble() < loss) {
+            dropped++;
+            return;
+        }
+        long departure = now;
+        if (rate > 0) {
+            Long free = freeAt.get(from.getAddress());
+            long start = free == null ? now : Math.max(now, free);
+            if (start - now > queueLimit) {
+                dropped++;
+                return;
+            }
+            departure = start + (packet.getLength() + Constants.UDP_OVERHEAD)
+                    * 1_000_000_000L / rate;
+            freeAt.put(from.getAddress(), departure);
+        }
+        long spread = jitter > 0 ? (long) (random.nextDouble() * jitter) : 0;
+        long arrival = departure + delay + spread;
+        if (reorder == 0 || random.nextDouble() >= reorder) {
+            Path path = new Path(from, packet.getSocketAddress());
+            Long last = lastDelivery.get(path);
+            arrival = last == null ? arrival : Math.max(arrival, last);
+            lastDelivery.put(path, arrival);
+        }
+        byte[] contents = new byte[packet.getLength()];
+        System.arraycopy(packet.getData(), packet.getOffset(), contents, 0,
+                contents.length);
+        DatagramPacket copy = new DatagramPacket(contents, contents.length,
+                from);
+        due.add(new Event(arrival, sequence++, packet.getSocketAddress(),
+                copy, null));
+    }
+
+    /**
+     * Schedules a task.
+     *
+     * @param time virtual time to run it at, in nanoseconds; now if
+     *             earlier.
+     * @param task task to run.
+     * */
+    protected void schedule(long time, Task task) {
+        due.add(new Event(Math.max(time, now), sequence++, null, null,
+                task));
+    }
+
+    /**
+     * Advances the clock to the first packet or task due and delivers or
+     * runs it.
+     *
+     * @return false if nothing is due, the clock left as is.
+     * @throws IOException if the Receiver or the task fails.
+     * */
+    protected boolean runNext() throws IOException {
+        Event event = due.poll();
+        if (event == null) {
+            return false;
+        }
+        now = event.time;
+        if (event.task != null) {
+            event.task.run(now);
+            return true;
+        }
+        Receiver receiver = receivers.get(event.to);
+        if (receiver != null) {
+            receiver.receive(event.packet, now);
+        }
+        return true;
+    }
+
+    /**
+     * Advances the clock to a time before the first packet or task due,
+     * for a timer kept elsewhere, such as one of a Server.
+     *
+     * @param time virtual time in nanoseconds, ignored if not later than
+     *             now.
+     * */
+    protected void advance(long time) {
+        now = Math.max(now, time);
+    }
+
+    // getters and setters------------------------------------------------------
+
+    /**
+     * Returns the current virtual time.
+     * @return nanoseconds since the network was made.
+     * */
+    protected long now() {
+        return now;
+    }
+    /**
+     * Returns when the first packet or task is due.
+     * @return virtual time in nanoseconds, Long.MAX_VALUE if none.
+     * */
+    protected long getDeadline() {
+        Event event = due.peek();
+        return event == null ? Long.MAX_VALUE : event.time;
+    }
+    /**
+     * Returns the number of packets sent.
+     * @return packets sent.
+     * */
+    public long getSent() {
+        return sent;
+    }
+    /**
+     * Returns the number of packets dropped, by random loss or a full
+     * queue.
+     * @return packets dropped.
+     * */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Packet in flight, or task, due at a virtual time.
+     * */
+    private static final class Event implements Comparable<Event> {
+        /** Virtual time due in nanoseconds. */
+        private final long time;
+        /** Order scheduled. */
+        private final long sequence;
+        /** Destination of the packet, null for a task. */
+        private final SocketAddress to;
+        /** Packet, null for a task. */
+        private final DatagramPacket packet;
+        /** Task, null for a packet. */
+        private final Task task;
+
+        private Event(long time, long sequence, SocketAddress to,
+                      DatagramPacket packet, Task task) {
+            this.time = time;
+            this.sequence = sequence;
+            this.to = to;
+            this.packet = packet;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int order = Long.compare(time, other.time);
+            return order != 0 ? order : Long.compare(sequence,
+                    other.sequence);
+        }
+    }
+
+    /**
+     * Source and destination of packets, whose order jitter keeps.
+     * */
+    private static final class Path {
+        /** Source. */
+        private final SocketAddress from;
+        /** Destination. */
+        private final SocketAddress to;
+
+        private Path(SocketAddress from, SocketAddress to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Path)) {
+                return false;
+            }
+            Path path = (Path) other;
+            return from.equals(path.from) && to.equals(path.to);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * from.hashCode() + to.hashCode();
+        }
+    }
+
+    /**
+     * Socket of a Server sending through this network. An unbound socket
+     * of the system stays behind it so that the methods not overridden,
+     * such as those of its options, keep working; it never sends or
+     * receives. Packets to it are delivered to its Receiver rather than
+     * received, so receive() only fails.
+     * */
+    private final class Endpoint extends DatagramSocket {
+        /** Address and port of this socket in the network. */
+        private final InetSocketAddress address;
+
+        private Endpoint(InetSocketAddress address) throws SocketException {
+            super((SocketAddress) null);
+            this.address = address;
+        }
+
+        @Override
+        public void send(DatagramPacket packet) throws IOException {
+            if (isClosed()) {
+                throw new SocketException("Socket is closed");
+            }
+            SimulatedNetwork.this.send(address, packet);
+        }
+
+        @Override
+        public void receive(DatagramPacket packet)
+                throws IOException {
+            throw new SocketException("Packets to " + address
+                    + " are delivered to its Receiver.");
+        }
+
+        @Override
+        public void close() {
+            detach(address);
+            super.close();
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            return address.getAddress();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return address.getPort();
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return address;
+        }
+    }
+
+    /**
+     * Builder of the impairments of a SimulatedNetwork, none by default.
+     * */
+    public static final class Builder {
+        /** One-way delay in nanoseconds. */
+        private long delay;
+        /** Largest random delay added in nanoseconds. */
+        private long jitter;
+        /** Probability a packet is lost. */
+        private double loss;
+        /** Probability a packet is reordered. */
+        private double reorder;
+        /** Rate of the link out of every host in bytes per second, 0 if
+         * none. */
+        private long rate;
+        /** Length of the queue of every link in full DATA packets. */
+        private int queue = 64;
+        /** Seed of the random source. */
+        private long seed = 1;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the one-way delay.
+         * @param millis delay in milliseconds.
+         * @return this Builder.
+         * */
+        public Builder delay(double millis) {
+            delay = (long) (Math.max(0, millis) * 1_000_000);
+            return this;
+        }
+        /**
+         * Sets the largest random delay added to the one-way delay. The
+         * packets of a path keep their order unless reordered.
+         * @param millis jitter in milliseconds.
+         * @return this Builder.
+         * */
+        public Builder jitter(double millis) {
+            jitter = (long) (Math.max(0, millis) * 1_000_000);
+            return this;
+        }
+        /**
+         * Sets the probability a packet is lost.
+         * @param probability from 0.0 to 1.0.
+         * @return this Builder.
+         * */
+        public Builder loss(double probability) {
+            loss = probability;
+            return this;
+        }
+        /**
+         * Sets the probability a packet is reordered: delivered after its
+         * own delay and jitter even if a packet sent before it on the same
+         * path is still in flight, which it may then overtake.
+         * @param probability from 0.0 to 1.0.
+         * @return this Builder.
+         * */
+        public Builder reorder(double probability) {
+            reorder = probability;
+            return this;
+        }
+        /**
+         * Sets the rate of the link out of every host, none by default.
+         * The packets of all the Clients of a Server share the link out of
+         * it, as they would its network interface.
+         * @param bytesPerSecond rate counting IP and UDP headers, 0 for none.
+         * @return this Builder.
+         * */
+        public Builder rate(long bytesPerSecond) {
+            rate = Math.max(0, bytesPerSecond);
+            return this;
+        }
+        /**
+         * Sets the length of the queue of every link, 64 by default.
+         * Packets arriving at a full queue are dropped.
+         * @param packets length in full DATA packets.
+         * @return this Builder.
+         * */
+        public Builder queue(int packets) {
+            queue = Math.max(1, packets);
+            return this;
+        }
+        /**
+         * Sets the seed of the random source, 1 by default.
+         * @param randomSeed seed.
+         * @return this Builder.
+         * */
+        public Builder seed(long randomSeed) {
+            seed = randomSeed;
+            return this;
+        }
+
+        /**
+         * Makes a network with these impairments, its clock at 0.
+         * @return new SimulatedNetwork.
+         * */
+        public SimulatedNetwork build() {
+            return new SimulatedNetwork(this);
+        }
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,572 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Command line boot storm run in a SimulatedNetwork: thousands of remote
+ * Clients, such as PXE ROMs powered on together, read one boot file from
+ * a Server under the EVENT_LOOP engine, all in one thread on a virtual
+ * clock. The Server is the real one: every request goes through
+ * TFTPServer.accept() and every transfer through Client and Transfer,
+ * whose retransmission timeouts, windows and congestion control run on
+ * the virtual clock. The remote Clients are a model of a simple TFTP
+ * client, sending again their last packet after CLIENT_TIMEOUT, up to
+ * CLIENT_TRIES times.
+ *
+ * Usage: java transport.Simulation [-n sessions] [-s size] [-w windowsize]
+ * [-r ramp] [-d delay] [-j jitter] [-l loss] [-o reorder] [-b rate]
+ * [-q queue] [-x seed] [-t seconds] [-m retransmits/block] [-f fairness]
+ *
+ * 'sessions' Clients (10000 by default) send their read request of a file
+ * of 'size' bytes (32 KB by default) at random times over 'ramp'
+ * milliseconds (1000 by default), asking for 'windowsize' (1, stop-and-wait,
+ * by default). Every packet takes 'delay' milliseconds one way (1 by
+ * default) and up to 'jitter' more (1 by default), is lost with
+ * probability 'loss' (0.01 by default), reordered with probability
+ * 'reorder' (0.001 by default), and leaves every host through a link of
+ * 'rate' bytes per second (125000000, 1 Gbit/s, by default, 0 for none)
+ * with a queue of 'queue' packets (1024 by default), which every transfer
+ * of the Server shares. The random source is seeded with 'seed'
+ * (1 by default): the same options always give the same run, down to the
+ * digest printed of the time every transfer ended.
+ *
+ * Prints the transfers completed, their times in virtual milliseconds, the
+ * DATA sent again by the Server per block, the timeouts of the Clients,
+ * Jain's fairness index of the throughputs of the transfers, 1.0 when all
+ * are equal, and the virtual and wall clock times of the run. Exits with
+ * status 1 if a transfer fails, the last ends later than 'seconds' (10 by
+ * default) after the first request, the Server sends again more than
+ * 'retransmits/block' (0.3 by default) or the fairness index is below
+ * 'fairness' (0.5 by default).
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class Simulation {
+    /** Name of the boot file read. */
+    private static final String FILE = "pxelinux.0";
+    /** Milliseconds a Client waits before sending its last packet again. */
+    private static final int CLIENT_TIMEOUT = 1000;
+    /** Times a Client sends its last packet again before giving up. */
+    private static final int CLIENT_TRIES = 6;
+
+    /**
+     * Main method.
+     *
+     * @param args options, see the class description.
+     * @throws IOException if the Server fails.
+     * */
+    public static void main(String[] args) throws IOException {
+        int sessions = 10_000;
+        int size = 32 << 10;
+        int window = 1;
+        double ramp = 1000;
+        double delay = 1;
+        double jitter = 1;
+        double loss = 0.01;
+        double reorder = 0.001;
+        long rate = 125_000_000;
+        int queue = 1024;
+        long seed = 1;
+        double seconds = 10;
+        double retransmitLimit = 0.3;
+        double fairnessLimit = 0.5;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-n":
+                        sessions = Integer.parseInt(args[++i]);
+                        break;
+                    case "-s":
+                        size = Integer.parseInt(args[++i]);
+                        break;
+                    case "-w":
+                        window = Integer.parseInt(args[++i]);
+                        break;
+                    case "-r":
+                        ramp = Double.parseDouble(args[++i]);
+                        break;
+                    case "-d":
+                        delay = Double.parseDouble(args[++i]);
+                        break;
+                    case "-j":
+                        jitter = Double.parseDouble(args[++i]);
+                        break;
+                    case "-l":
+                        loss = Double.parseDouble(args[++i]);
+                        break;
+                    case "-o":
+                        reorder = Double.parseDouble(args[++i]);
+                        break;
+                    case "-b":
+                        rate = Long.parseLong(args[++i]);
+                        break;
+                    case "-q":
+                        queue = Integer.parseInt(args[++i]);
+                        break;
+                    case "-x":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    case "-t":
+                        seconds = Double.parseDouble(args[++i]);
+                        break;
+                    case "-m":
+                        retransmitLimit = Double.parseDouble(args[++i]);
+                        break;
+                    case "-f":
+                        fairnessLimit = Double.parseDouble(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option "
+                                + args[i] + ".");
+                }
+            }
+            if (sessions < 1 || size < 0 || window < 1
+                    || window > Constants.MAX_WINDOW_SIZE) {
+                throw new IllegalArgumentException("Sessions, size or "
+                        + "windowsize out of range.");
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("ERROR 781: Missing value of "
+                    + args[args.length - 1] + ".");
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR 782: " + e.getMessage());
+            return;
+        }
+
+        long wallStart = System.nanoTime();
+        byte[] contents = new byte[size];
+        new Random(seed).nextBytes(contents);
+        MemoryStorage storage = new MemoryStorage();
+        storage.put(FILE, contents);
+        final SimulatedNetwork network = SimulatedNetwork.builder()
+                .delay(delay).jitter(jitter).loss(loss).reorder(reorder)
+                .rate(rate)
+                .queue(queue).seed(seed).build();
+        InetAddress serverAddress = InetAddress.getByAddress(
+                new byte[]{(byte) 192, (byte) 168, 0, 1});
+        InetSocketAddress requests = new InetSocketAddress(serverAddress,
+                Constants.DEFAULT_SERVER_PORT);
+        final TFTPServer server = TFTPServer.builder()
+                .port(requests.getPort()).address(serverAddress)
+                .storage(storage).engine(Engine.EVENT_LOOP)
+                .sessionCapacity(sessions).build();
+
+        // the remote Clients, each from an address of its own
+        Random random = new Random(seed);
+        Peer[] all = new Peer[sessions];
+        long rampNanos = (long) (ramp * 1_000_000);
+        for (int i = 0; i < sessions; i++) {
+            int host = i + 1;
+            InetSocketAddress address = new InetSocketAddress(
+                    InetAddress.getByAddress(new byte[]{10,
+                            (byte) (host >> 16), (byte) (host >> 8),
+                            (byte) host}), 1024 + random.nextInt(64_000));
+            final Peer peer = new Peer(network, address, requests, window,
+                    random.nextDouble() < 0.5);
+            all[i] = peer;
+            network.attach(address, peer);
+            network.schedule(rampNanos == 0 ? 0
+                            : (long) (random.nextDouble() * rampNanos),
+                    new SimulatedNetwork.Task() {
+                        @Override
+                        public void run(long now) {
+                            peer.start(now);
+                        }
+                    });
+        }
+
+        // the Server, its listener and event loop driven on the virtual
+        // clock rather than by threads
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        final List<Client> clients = new ArrayList<>();
+        final TFTPServerThread.EventLoop[] loop =
+                new TFTPServerThread.EventLoop[1];
+        try {
+            loop[0] = server.start(network.socket(requests,
+                    new SimulatedNetwork.Receiver() {
+                        @Override
+                        public void receive(DatagramPacket packet, long now)
+                                throws IOException {
+                            server.accept(packet);
+                            Client client = server.arrivals.poll();
+                            while (client != null) {
+                                clients.add(client);
+                                loop[0].admit(client, now);
+                                client = server.arrivals.poll();
+                            }
+                        }
+                    }), network.socket(new InetSocketAddress(serverAddress,
+                    Constants.DEFAULT_SERVER_PORT + 1000),
+                    new SimulatedNetwork.Receiver() {
+                        @Override
+                        public void receive(DatagramPacket packet, long now)
+                                throws IOException {
+                            loop[0].receive(packet, now);
+                        }
+                    }));
+            while (true) {
+                long next = network.getDeadline();
+                if (loop[0].hasTimers()
+                        && loop[0].getDeadline() - next <= 0) {
+                    network.advance(loop[0].getDeadline());
+                    loop[0].expire(network.now());
+                } else if (!network.runNext()) {
+                    break;
+                }
+            }
+        } finally {
+            server.stop();
+            System.setOut(out);
+        }
+        long wall = System.nanoTime() - wallStart;
+
+        // completion times, digest and fairness of the transfers
+        long first = Long.MAX_VALUE;
+        long last = 0;
+        long digest = 17;
+        int failed = 0;
+        long clientRetries = 0;
+        long[] times = new long[sessions];
+        int completed = 0;
+        double sum = 0;
+        double squares = 0;
+        for (Peer peer : all) {
+            first = Math.min(first, peer.startedAt);
+            digest = 31 * digest + peer.endedAt;
+            clientRetries += peer.retries;
+            if (!peer.isComplete(size)) {
+                failed++;
+                continue;
+            }
+            last = Math.max(last, peer.endedAt);
+            long time = peer.endedAt - peer.startedAt;
+            times[completed++] = time;
+            double throughput = (double) size / Math.max(1, time);
+            sum += throughput;
+            squares += throughput * throughput;
+        }
+        times = Arrays.copyOf(times, completed);
+        Arrays.sort(times);
+        double fairness = completed == 0 ? 0
+                : sum * sum / (completed * squares);
+        long retransmits = 0;
+        for (Client client : clients) {
+            retransmits += client.getRetransmits();
+        }
+        long blocks = (long) sessions * (size / Constants.DEFAULT_DATA_SIZE
+                + 1);
+        double perBlock = (double) retransmits / blocks;
+        double span = completed == 0 ? 0 : (last - first) / 1e9;
+
+        System.out.println(String.format("sessions %d  completed %d  "
+                + "failed %d", sessions, completed, failed));
+        if (completed > 0) {
+            System.out.println(String.format("transfer ms  p50 %.1f  "
+                            + "p99 %.1f  max %.1f", percentile(times, 0.5),
+                    percentile(times, 0.99), times[completed - 1] / 1e6));
+        }
+        System.out.println(String.format("server retransmits/block %.4f  "
+                        + "client timeouts %d  fairness %.3f", perBlock,
+                clientRetries, fairness));
+        System.out.println(String.format("packets sent %d  dropped %d",
+                network.getSent(), network.getDropped()));
+        System.out.println(String.format("virtual s %.3f  wall ms %d  "
+                        + "digest %016x", network.now() / 1e9,
+                wall / 1_000_000, digest));
+
+        List<String> failures = new ArrayList<>();
+        if (failed > 0) {
+            failures.add(failed + " transfers failed");
+        }
+        if (span > seconds) {
+            failures.add(String.format("last transfer ended %.3f s after "
+                    + "the first request", span));
+        }
+        if (perBlock > retransmitLimit) {
+            failures.add(String.format("%.4f retransmits/block", perBlock));
+        }
+        if (fairness < fairnessLimit) {
+            failures.add(String.format("fairness %.3f", fairness));
+        }
+        if (!failures.isEmpty()) {
+            System.out.println("ERROR 783: " + String.join(", ", failures)
+                    + ".");
+            System.exit(1);
+        }
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Returns a percentile of sorted times in milliseconds.
+     *
+     * @param sorted times in nanoseconds, ascending, not empty.
+     * @param fraction percentile from 0.0 to 1.0.
+     * @return time in milliseconds.
+     * */
+    private static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * Remote Client reading the boot file, as TFTPClient does: acknowledges
+     * every block in order, or the last of every window, and the last in
+     * order once per block missing, and acknowledges it again, or sends the
+     * request again, after CLIENT_TIMEOUT without a packet in order.
+     * */
+    private static final class Peer implements SimulatedNetwork.Receiver {
+        /** Network this Client sends through. */
+        private final SimulatedNetwork network;
+        /** Address and TID of this Client. */
+        private final InetSocketAddress address;
+        /** Request address of the Server. */
+        private final InetSocketAddress server;
+        /** Windowsize asked for, 1 for stop-and-wait. */
+        private final int window;
+        /** Whether the request asks for the transfer size too. */
+        private final boolean tsize;
+        /** TID of the Server, null until it answers. */
+        private InetSocketAddress serverTid;
+        /** Read request, sent again on a timeout until answered. */
+        private byte[] request;
+        /** Next block expected, counted from the start of the transfer. */
+        private long expected = 1;
+        /** Blocks received in order since the last ACK. */
+        private int inWindow;
+        /** Block expected when a block missing was last acknowledged, so
+         * that it is only once per gap. */
+        private long nacked = -1;
+        /** Bytes received in order. */
+        private long received;
+        /** Timeouts in a row, since the last packet in order. */
+        private int tries;
+        /** Timeouts in all. */
+        private int retries;
+        /** Virtual time the timer is due, 0 if disarmed. */
+        private long timer;
+        /** Whether a task of the timer is scheduled in the network. */
+        private boolean scheduled;
+        /** Virtual time the request was sent. */
+        private long startedAt;
+        /** Virtual time the last block was received or the transfer
+         * failed, 0 while in progress. */
+        private long endedAt;
+        /** Whether the transfer ended with its last block received. */
+        private boolean complete;
+
+        private Peer(SimulatedNetwork network, InetSocketAddress address,
+                     InetSocketAddress server, int window, boolean tsize) {
+            this.network = network;
+            this.address = address;
+            this.server = server;
+            this.window = window;
+            this.tsize = tsize;
+        }
+
+        /**
+         * Sends the read request.
+         *
+         * @param now virtual time in nanoseconds.
+         * */
+        private void start(long now) {
+            startedAt = now;
+            StringBuilder text = new StringBuilder(FILE).append('\0')
+                    .append("octet").append('\0');
+            if (tsize) {
+                text.append(Constants.TSIZE_OPTION).append('\0')
+                        .append(0).append('\0');
+            }
+            if (window > 1) {
+                text.append(Constants.WINDOWSIZE_OPTION).append('\0')
+                        .append(window).append('\0');
+            }
+            byte[] bytes = text.toString().getBytes(
+                    StandardCharsets.US_ASCII);
+            request = new byte[bytes.length + 2];
+            request[1] = (byte) Opcode.RRQ.ordinal();
+            System.arraycopy(bytes, 0, request, 2, bytes.length);
+            send(request, now);
+        }
+
+        @Override
+        public void receive(DatagramPacket packet, long now) {
+            byte[] contents = packet.getData();
+            int length = packet.getLength();
+            if (length < 4 || contents[0] != 0) {
+                return;
+            }
+            InetSocketAddress from =
+                    (InetSocketAddress) packet.getSocketAddress();
+            if (serverTid == null) {
+                serverTid = from;
+            } else if (!serverTid.equals(from)) {
+                return; // another TID: not for this transfer
+            }
+            int opcode = contents[1];
+            if (endedAt != 0) {
+                // the last ACK lost: the Server sends the last block again
+                if (complete && opcode == Opcode.DATA.ordinal()) {
+                    byte[] last = ack(expected - 1);
+                    network.send(address, new DatagramPacket(last,
+                            last.length, serverTid));
+                }
+                return;
+            }
+            if (opcode == Opcode.OACK.ordinal()) {
+                if (expected == 1) {
+                    tries = 0;
+                    send(ack(0), now);
+                }
+            } else if (opcode == Opcode.DATA.ordinal()) {
+                int block = ((contents[2] & 0xFF) << 8) | (contents[3] & 0xFF);
+                int ahead = (block - (int) expected) & 0xFFFF;
+                if (ahead == 0) {
+                    received += length - 4;
+                    expected++;
+                    inWindow++;
+                    tries = 0;
+                    if (length - 4 < Constants.DEFAULT_DATA_SIZE) {
+                        complete = true;
+                        endedAt = now;
+                        timer = 0;
+                        byte[] last = ack(expected - 1);
+                        network.send(address, new DatagramPacket(last,
+                                last.length, serverTid));
+                    } else if (inWindow >= window) {
+                        send(ack(expected - 1), now);
+                    } else {
+                        arm(now);
+                    }
+                } else if (window == 1 || nacked != expected
+                        && (ahead < 0x8000 || inWindow == 0)) {
+                    // a block missing, or an old one as the ACK was lost
+                    nacked = expected;
+                    send(ack(expected - 1), now);
+                }
+            } else if (opcode == Opcode.ERROR.ordinal()) {
+                endedAt = now;
+                timer = 0;
+            }
+        }
+
+        /**
+         * Sends the request or the last ACK again, or gives up, if the
+         * timer is due.
+         * Otherwise schedules the task of the timer again for when it is
+         * due, as arming the timer does not to fill the network with stale
+         * tasks.
+         *
+         * @param now virtual time in nanoseconds.
+         * */
+        private void expire(long now) {
+            scheduled = false;
+            if (timer == 0 || endedAt != 0) {
+                return;
+            }
+            if (timer > now) {
+                schedule();
+                return;
+            }
+            retries++;
+            if (++tries > CLIENT_TRIES) {
+                endedAt = now;
+                return;
+            }
+            // the request until the Server answers, then the last block
+            // received in order
+            send(serverTid == null ? request : ack(expected - 1), now);
+        }
+
+        /**
+         * Sends a packet to the Server, to its request port until it has
+         * answered, and arms the timer.
+         *
+         * @param packet packet.
+         * @param now virtual time in nanoseconds.
+         * */
+        private void send(byte[] packet, long now) {
+            inWindow = 0;
+            network.send(address, new DatagramPacket(packet, packet.length,
+                    serverTid == null ? server : serverTid));
+            arm(now);
+        }
+
+        /**
+         * Arms the timer CLIENT_TIMEOUT from now, disarming the one before.
+         *
+         * @param now virtual time in nanoseconds.
+         * */
+        private void arm(long now) {
+            timer = now + CLIENT_TIMEOUT * 1_000_000L;
+            if (!scheduled) {
+                schedule();
+            }
+        }
+
+        /**
+         * Schedules the task of the timer for when it is due.
+         * */
+        private void schedule() {
+            scheduled = true;
+            network.schedule(timer, new SimulatedNetwork.Task() {
+                @Override
+                public void run(long now) {
+                    expire(now);
+                }
+            });
+        }
+
+        /**
+         * Returns an ACK of a block.
+         *
+         * @param block block number counted from the start of the transfer.
+         * @return ACK packet.
+         * */
+        private static byte[] ack(long block) {
+            return new byte[]{0, (byte) Opcode.ACK.ordinal(),
+                    (byte) (block >> 8), (byte) block};
+        }
+
+        /**
+         * Returns whether the whole file was received.
+         *
+         * @param size size of the file in bytes.
+         * @return true if complete.
+         * */
+        private boolean isComplete(long size) {
+            return complete && received == size;
+        }
+    }
+
+    // END OF FILE
+}
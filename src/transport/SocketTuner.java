@@ -0,0 +1,402 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sizes the receive and send buffers of the two sockets of a Server, and
+ * watches the kernel for packets dropped because a receive buffer was
+ * full, which would otherwise only show as timeouts.
+ *
+ * Once every Constants.BUFFER_CHECK_INTERVAL, on its own thread:
+ * the drop counters of both sockets are read from /proc/net/udp and
+ * /proc/net/udp6 (Linux only; elsewhere drops are not detected);
+ * the buffers of the slave socket are sized to the blocks the Clients in
+ * process may have in flight, the sum of their windows times a block and
+ * the kernel overhead of a packet, between SOCKET_BUFFER_MIN and
+ * SOCKET_BUFFER_MAX;
+ * a socket that dropped packets has its receive buffer doubled. If the
+ * slave socket cannot grow any more, as at SOCKET_BUFFER_MAX or at the
+ * limit of the kernel (net.core.rmem_max), the Server sheds load: new
+ * requests are dropped unanswered, so their Clients retry later, until a
+ * check finds no new drop of transfers. Drops of requests alone never shed
+ * load, as fewer transfers would not relieve the request socket.
+ *
+ * Buffers fixed with Builder.socketBuffer() are never resized, so any drop
+ * of transfers sheds load.
+ *
+ * Drops are counted in getDrops(), noted as NOTE 054 and recorded as
+ * transport.SocketBuffers flight recorder events.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class SocketTuner implements Runnable {
+    /** Drop counters of IPv4 sockets on Linux. */
+    private static final Path UDP = Paths.get("/proc/net/udp");
+    /** Drop counters of IPv6 sockets on Linux. */
+    private static final Path UDP6 = Paths.get("/proc/net/udp6");
+    /** Bytes a block in flight takes in a socket buffer. */
+    private static final int BLOCK_COST = Constants.DEFAULT_DATA_SIZE + 4
+            + Constants.PACKET_OVERHEAD;
+
+    /** Socket where requests are received. */
+    private final DatagramSocket requestSocket;
+    /** Socket where transfers take place. */
+    private final DatagramSocket slaveSocket;
+    /** Size of every buffer, 0 to size them here. */
+    private final int fixedSize;
+    /** Sum of the windows of the Clients in process, in blocks. */
+    private final AtomicInteger windows = new AtomicInteger();
+
+    /** Local address of the request socket as in /proc/net/udp and
+     * /proc/net/udp6. */
+    private final String[] requestKeys;
+    /** Local address of the slave socket, see requestKeys. */
+    private final String[] slaveKeys;
+
+    /** Receive buffer asked for the request socket. */
+    private int requestBuffer;
+    /** Buffers asked for the slave socket. */
+    private int slaveBuffer;
+    /** Smallest buffers of the slave socket, raised by drops. */
+    private int slaveFloor;
+    /** Drop counters of the request and slave sockets at the last check,
+     * -1 before the first. */
+    private long requestDrops = -1;
+    /** See requestDrops. */
+    private long slaveDrops = -1;
+    /** Packets dropped by the kernel since the first check. */
+    private volatile long drops;
+    /** Whether new requests are dropped. */
+    private volatile boolean shedding;
+    /** Whether the thread is to keep checking. */
+    private volatile boolean running = true;
+    /** Thread checking, null until started. */
+    private Thread thread;
+    /** Note of drops, one per Constants.REJECT_LOG_INTERVAL. */
+    private final LogLimiter log =
+            new LogLimiter(Constants.REJECT_LOG_INTERVAL);
+
+    /**
+     * Sole constructor. Sets the buffers of both sockets to their fixed or
+     * smallest size.
+     *
+     * @param requestSocket socket where requests are received.
+     * @param slaveSocket socket where transfers take place.
+     * @param fixedSize size of every buffer, 0 to size them by demand.
+     * */
+    protected SocketTuner(DatagramSocket requestSocket,
+                          DatagramSocket slaveSocket, int fixedSize) {
+        this.requestSocket = requestSocket;
+        this.slaveSocket = slaveSocket;
+        this.fixedSize = fixedSize;
+        requestKeys = keys(requestSocket);
+        slaveKeys = keys(slaveSocket);
+        int size = fixedSize > 0 ? fixedSize : Constants.SOCKET_BUFFER_MIN;
+        apply(requestSocket, size, 0, false);
+        apply(slaveSocket, size, 0, true);
+        requestBuffer = size;
+        slaveBuffer = size;
+        slaveFloor = size;
+    }
+
+    /**
+     * Starts checking on a daemon thread.
+     *
+     * @param name name of the Server, for the thread.
+     * */
+    protected synchronized void start(String name) {
+        thread = new Thread(this, "SocketTuner-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops checking; the thread ends shortly after.
+     * */
+    protected synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        long interval = Constants.BUFFER_CHECK_INTERVAL * 1_000_000L;
+        while (running) {
+            check();
+            long deadline = System.nanoTime() + interval;
+            long wait = interval;
+            while (running && wait > 0) {
+                LockSupport.parkNanos(wait);
+                wait = deadline - System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Counts the window of a Client taken into process.
+     *
+     * @param blocks windowsize of the Client, 1 for stop-and-wait.
+     * */
+    protected void opened(int blocks) {
+        windows.addAndGet(blocks);
+    }
+
+    /**
+     * Counts the window of a Client done.
+     *
+     * @param blocks windowsize of the Client, 1 for stop-and-wait.
+     * */
+    protected void closed(int blocks) {
+        windows.addAndGet(-blocks);
+    }
+
+    /**
+     * Reads the drop counters and sizes the buffers once.
+     * */
+    protected void check() {
+        long[] counters = readDrops();
+        long requestDelta = delta(counters[0], requestDrops);
+        long slaveDelta = delta(counters[1], slaveDrops);
+        requestDrops = counters[0];
+        slaveDrops = counters[1];
+
+        // fewer transfers relieve the slave socket, not the request socket:
+        // only drops of transfers the buffer cannot absorb shed requests
+        boolean stuck = fixedSize > 0 && slaveDelta > 0;
+        if (fixedSize == 0) {
+            if (requestDelta > 0) {
+                int grown = grow(requestBuffer);
+                apply(requestSocket, grown, requestBuffer, false);
+                requestBuffer = grown;
+            }
+            if (slaveDelta > 0) {
+                slaveFloor = grow(slaveFloor);
+            }
+            int demand = (int) Math.min(Constants.SOCKET_BUFFER_MAX,
+                    (long) windows.get() * BLOCK_COST);
+            int size = Math.max(slaveFloor, demand);
+            if (!apply(slaveSocket, size, slaveBuffer, true)
+                    && slaveDelta > 0) {
+                stuck = true;
+            }
+            slaveBuffer = size;
+        }
+
+        long dropped = requestDelta + slaveDelta;
+        drops += dropped;
+        boolean wasShedding = shedding;
+        shedding = stuck;
+        if (dropped > 0 && log.allow()) {
+            log.print("NOTE 054: Kernel dropped " + requestDelta
+                    + " requests and " + slaveDelta + " packets of "
+                    + "transfers. Receive buffers " + requestBuffer + " and "
+                    + slaveBuffer + " bytes" + (shedding
+                    ? ", shedding new requests." : "."));
+        } else if (wasShedding && !shedding) {
+            System.out.println("NOTE 055: No more drops, new requests "
+                    + "accepted again.\n");
+        }
+
+        FlightEvents.SocketBuffers event = new FlightEvents.SocketBuffers();
+        if (event.isEnabled()) {
+            event.requestDrops = requestDelta;
+            event.transferDrops = slaveDelta;
+            event.requestBuffer = requestBuffer;
+            event.transferBuffer = slaveBuffer;
+            event.windows = windows.get();
+            event.shedding = shedding;
+            event.commit();
+        }
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Sets the buffers of a socket, unless already asked for that size.
+     *
+     * @param socket socket.
+     * @param size size asked for in bytes.
+     * @param asked size asked for before, 0 if none.
+     * @param send whether the send buffer is set too.
+     * @return false if the receive buffer was to grow but the kernel kept
+     * it as it was, at its limit or at SOCKET_BUFFER_MAX. True otherwise.
+     * */
+    private static boolean apply(DatagramSocket socket, int size, int asked,
+                                 boolean send) {
+        if (size == asked) {
+            return size < Constants.SOCKET_BUFFER_MAX;
+        }
+        try {
+            // compared with itself: Linux reports twice the size asked for
+            int before = socket.getReceiveBufferSize();
+            socket.setReceiveBufferSize(size);
+            if (send) {
+                socket.setSendBufferSize(size);
+            }
+            return size < asked || socket.getReceiveBufferSize() > before;
+        } catch (SocketException e) {
+            return false; // closed as the Server stops
+        }
+    }
+
+    /**
+     * Returns a receive buffer size doubled, up to SOCKET_BUFFER_MAX.
+     *
+     * @param size current size in bytes.
+     * @return new size in bytes.
+     * */
+    private static int grow(int size) {
+        return (int) Math.min(Constants.SOCKET_BUFFER_MAX, 2L * size);
+    }
+
+    /**
+     * Returns how much a counter grew since the last check.
+     *
+     * @param now counter now, -1 if unknown.
+     * @param last counter at the last check, -1 if unknown.
+     * @return growth, 0 if either is unknown.
+     * */
+    private static long delta(long now, long last) {
+        return now < 0 || last < 0 ? 0 : Math.max(0, now - last);
+    }
+
+    /**
+     * Reads the drop counters of both sockets from /proc/net/udp and
+     * /proc/net/udp6.
+     *
+     * @return drops of the request socket and of the slave socket, -1
+     * where not found.
+     * */
+    private long[] readDrops() {
+        long[] counters = {-1, -1};
+        for (Path table : new Path[]{UDP, UDP6}) {
+            if (!Files.isReadable(table)) {
+                continue;
+            }
+            try (BufferedReader reader = Files.newBufferedReader(table)) {
+                reader.readLine(); // header
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // sl local rem st tx:rx tr tm retr uid timeout inode
+                    // ref pointer drops
+                    String[] fields = line.trim().split("\\s+");
+                    if (fields.length < 13) {
+                        continue;
+                    }
+                    String local = fields[1];
+                    long count = Long.parseLong(fields[fields.length - 1]);
+                    if (local.equals(requestKeys[0])
+                            || local.equals(requestKeys[1])) {
+                        counters[0] = Math.max(counters[0], 0) + count;
+                    } else if (local.equals(slaveKeys[0])
+                            || local.equals(slaveKeys[1])) {
+                        counters[1] = Math.max(counters[1], 0) + count;
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                return counters;
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * Returns the local address of a socket as written in /proc/net/udp
+     * and in /proc/net/udp6: the address in hexadecimal by 32-bit words in
+     * host order, a colon and the port in hexadecimal. A socket of an IPv4
+     * or wildcard address may be listed in either.
+     *
+     * @param socket bound socket.
+     * @return local address as in /proc/net/udp, or null if it cannot be
+     * listed there, then as in /proc/net/udp6.
+     * */
+    private static String[] keys(DatagramSocket socket) {
+        InetAddress address = socket.getLocalAddress();
+        String port = String.format(Locale.ROOT, ":%04X",
+                socket.getLocalPort());
+        byte[] bytes = address.getAddress();
+        if (address.isAnyLocalAddress()) {
+            return new String[]{hex(new byte[4]) + port,
+                    hex(new byte[16]) + port};
+        }
+        if (address instanceof Inet4Address) {
+            byte[] mapped = new byte[16]; // ::ffff:a.b.c.d
+            mapped[10] = (byte) 0xFF;
+            mapped[11] = (byte) 0xFF;
+            System.arraycopy(bytes, 0, mapped, 12, 4);
+            return new String[]{hex(bytes) + port, hex(mapped) + port};
+        }
+        return new String[]{null, hex(bytes) + port};
+    }
+
+    /**
+     * Returns an address in hexadecimal by 32-bit words in host order, as
+     * in /proc/net/udp.
+     *
+     * @param bytes address in network order, 4 or 16 bytes.
+     * @return address in hexadecimal.
+     * */
+    private static String hex(byte[] bytes) {
+        boolean little = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+        StringBuilder hex = new StringBuilder(2 * bytes.length);
+        for (int word = 0; word < bytes.length; word += 4) {
+            for (int i = 0; i < 4; i++) {
+                hex.append(String.format(Locale.ROOT, "%02X",
+                        bytes[word + (little ? 3 - i : i)] & 0xFF));
+            }
+        }
+        return hex.toString();
+    }
+
+    // getters and setters------------------------------------------------------
+
+    /**
+     * Returns the packets dropped by the kernel on both sockets since the
+     * Server started, if the platform tells.
+     * @return number of packets.
+     * */
+    protected long getDrops() {
+        return drops;
+    }
+    /**
+     * Returns whether new requests are dropped because the slave socket
+     * drops packets and its buffers cannot grow any more.
+     * @return true while shedding load.
+     * */
+    protected boolean isShedding() {
+        return shedding;
+    }
+
+    // END OF FILE
+}
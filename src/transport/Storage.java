@@ -0,0 +1,191 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where the files in requests are read from and written to. The RRQ and WRQ
+ * engines only ever go through this interface, reading and writing ranges
+ * of a file at the offset of a block, so a Server can serve files from disk
+ * (FileSystemStorage), from memory (MemoryStorage) or both (TieredStorage).
+ *
+ * Reads and writes return futures so that a backend may complete them on
+ * its own threads. Backends whose data is at hand complete them before
+ * returning.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public interface Storage {
+
+    /**
+     * Returns the size of a file, answered from memory where the backend
+     * can.
+     *
+     * @param filename filename as received in a request.
+     * @return size of the file in bytes, -1 if it does not exist.
+     * */
+    long size(String filename);
+
+    /**
+     * Looks up the size of a file without holding the caller, for backends
+     * that have to ask another host for it. Backends answering size() from
+     * memory or disk return a future completed at once.
+     *
+     * @param filename filename as received in a request.
+     * @return future completed with the size of the file in bytes, -1 if
+     * it does not exist, or completed exceptionally if it cannot be told.
+     * */
+    default CompletableFuture<Long> lookup(String filename) {
+        return CompletableFuture.completedFuture(size(filename));
+    }
+
+    /**
+     * Returns the last modified time of a file, used to tell whether a copy
+     * of it is stale.
+     *
+     * @param filename filename as received in a request.
+     * @return last modified time in milliseconds, -1 if it does not exist.
+     * */
+    long modifiedTime(String filename);
+
+    /**
+     * Opens a file for reading. The handle sees the file as it was when
+     * opened, even if it is replaced while being read.
+     *
+     * @param filename filename as received in a request.
+     * @return read handle, to be closed once the transfer ends.
+     * @throws java.nio.file.NoSuchFileException if the file does not exist.
+     * @throws IOException if the file cannot be opened.
+     * */
+    ReadHandle openRead(String filename) throws IOException;
+
+    /**
+     * Returns how many bytes a file written under a name can take, from
+     * the free space or capacity of this Storage less the space reserved
+     * by the uploads in progress, so that an upload of a known size can be
+     * refused before any of it is sent.
+     *
+     * @param filename filename as received in a request.
+     * @return bytes available, Long.MAX_VALUE if unknown.
+     * */
+    long available(String filename);
+
+    /**
+     * Returns the name a file is stored under when compared regardless of
+     * case, for Clients that do not keep the case of filenames. Called only
+     * for a name not stored as is, so it may take a listing.
+     *
+     * @param filename filename as received in a request.
+     * @return name of a stored file equal to it but for case, null if none.
+     * */
+    String findIgnoreCase(String filename);
+
+    /**
+     * Opens a file for writing. Nothing written is visible to readers until
+     * the handle is committed, when it replaces any file of the same name
+     * at once. A file of a known size is given that size up front, and the
+     * size is reserved until the handle is committed or aborted.
+     *
+     * @param filename filename as received in a request.
+     * @param size size of the file announced with tsize, -1 if unknown.
+     * @return write handle, to be committed or aborted once the transfer
+     * ends.
+     * @throws IOException if the file cannot be made.
+     * */
+    WriteHandle openWrite(String filename, long size) throws IOException;
+
+    /**
+     * Releases the resources of this Storage, such as open handles not in
+     * use and watcher threads.
+     * */
+    void close();
+
+    /**
+     * A file opened for reading.
+     * */
+    interface ReadHandle {
+        /**
+         * Returns the size of the file when it was opened.
+         * @return size in bytes.
+         * */
+        long size();
+
+        /**
+         * Reads a range of the file, filling 'dst' up to its limit or up
+         * to the end of the file, whichever comes first.
+         *
+         * @param dst buffer filled from its position.
+         * @param offset position in the file of the first byte read.
+         * @return future completed with the number of bytes read, 0 at or
+         * beyond the end of the file.
+         * */
+        CompletableFuture<Integer> read(ByteBuffer dst, long offset);
+
+        /**
+         * Returns whether a read of the file up to an offset completes at
+         * once, so that a transfer of a file still arriving waits for it
+         * without holding its thread. Backends with the whole file at hand
+         * always return true.
+         *
+         * @param end offset of the first byte not needed.
+         * @return true if a read up to 'end' completes at once.
+         * */
+        default boolean ready(long end) {
+            return true;
+        }
+
+        /**
+         * Closes this handle. The file stays open while other handles use
+         * it.
+         * */
+        void close();
+    }
+
+    /**
+     * A file opened for writing.
+     * */
+    interface WriteHandle {
+        /**
+         * Writes a range of the file, in any order.
+         *
+         * @param src buffer written from its position to its limit.
+         * @param offset position in the file of the first byte written.
+         * @return future completed with the number of bytes written.
+         * */
+        CompletableFuture<Integer> write(ByteBuffer src, long offset);
+
+        /**
+         * Puts the file written in place of any file of the same name. The
+         * file ends at the end of the furthest range written, even if a
+         * larger size was announced.
+         *
+         * @throws IOException if the file cannot be put in place.
+         * */
+        void commit() throws IOException;
+
+        /**
+         * Throws away the file written.
+         * */
+        void abort();
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,101 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A block of IPv4 or IPv6 addresses in CIDR notation, such as "10.1.0.0/16",
+ * used to match Clients by address.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public final class Subnet {
+    /** Address of the subnet. */
+    private final byte[] network;
+    /** Number of leading bits of 'network' compared. */
+    private final int prefix;
+    /** Subnet as given. */
+    private final String cidr;
+
+    private Subnet(byte[] network, int prefix, String cidr) {
+        this.network = network;
+        this.prefix = prefix;
+        this.cidr = cidr;
+    }
+
+    /**
+     * Parses a subnet in CIDR notation. A bare address is a subnet of that
+     * address alone.
+     *
+     * @param cidr numeric address, optionally followed by / and a prefix
+     *             length.
+     * @return parsed subnet.
+     * @throws IllegalArgumentException if cidr is not a numeric subnet.
+     * */
+    public static Subnet parse(String cidr) {
+        int slash = cidr.indexOf('/');
+        String address = slash < 0 ? cidr : cidr.substring(0, slash);
+        if (!address.matches("[0-9A-Fa-f:.]+")) {
+            // refuse host names rather than resolve them
+            throw new IllegalArgumentException("Bad subnet " + cidr + ".");
+        }
+        try {
+            byte[] network = InetAddress.getByName(address).getAddress();
+            int prefix = slash < 0 ? network.length * 8
+                    : Integer.parseInt(cidr.substring(slash + 1));
+            if (prefix < 0 || prefix > network.length * 8) {
+                throw new IllegalArgumentException("Bad prefix length in "
+                        + cidr + ".");
+            }
+            return new Subnet(network, prefix, cidr);
+        } catch (UnknownHostException | NumberFormatException e) {
+            throw new IllegalArgumentException("Bad subnet " + cidr + ".");
+        }
+    }
+
+    /**
+     * Returns true if an address is in this subnet. Addresses of the other
+     * family never are.
+     *
+     * @param address address of a Client.
+     * @return whether the address is in this subnet.
+     * */
+    public boolean contains(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (bytes.length != network.length) {
+            return false;
+        }
+        int bits = prefix;
+        for (int i = 0; i < bytes.length && bits > 0; i++, bits -= 8) {
+            int mask = bits >= 8 ? 0xFF : (0xFF << (8 - bits)) & 0xFF;
+            if ((bytes[i] & mask) != (network[i] & mask)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return cidr;
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,1425 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client side of the protocol, as a library and as a command line tool.
+ * Reads and writes files in octet mode, negotiating the blksize (RFC 2348),
+ * windowsize (RFC 7440), tsize and timeout (RFC 2349) and rollover options
+ * with an OACK (RFC 2347). A Server answering without an OACK is talked to
+ * with the defaults of RFC 1350; one refusing the options with ERROR 8 is
+ * asked again without them.
+ *
+ * Transfers are blocking, or asynchronous on a pool of at most
+ * 'concurrency' threads shared by every transfer of this TFTPClient.
+ * Received files are streamed to an OutputStream or written in place to a
+ * FileChannel, block by block.
+ *
+ * Usage: java transport.TFTPClient [-s host[:port]] [-b blksize]
+ * [-w windowsize] [-t timeout] [-T] [-r retries] [-R rollover]
+ * [-c concurrency] [-o directory|-] [-n repeat] [--put]
+ * file|tftp://host[:port]/file ...
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class TFTPClient implements Closeable {
+    /** Length of the opcode and block number heading a DATA packet. */
+    private static final int HEADER = 4;
+
+    /** Requested number of data bytes per DATA packet. */
+    private final int blockSize;
+    /** Requested number of DATA packets per ACK. */
+    private final int windowSize;
+    /** Whether the size of the file is requested or announced. */
+    private final boolean transferSize;
+    /** Requested timeout in seconds, 0 to leave it to the Server. */
+    private final int timeout;
+    /** Number of times a packet is sent again before giving up. */
+    private final int retries;
+    /** Requested block number following 65535, -1 to leave it out. */
+    private final int rollover;
+    /** Largest number of asynchronous transfers at a time. */
+    private final int concurrency;
+    /** Threads of asynchronous transfers. Null until first used. */
+    private ExecutorService pool;
+
+    /**
+     * Constructor used by the Builder.
+     *
+     * @param builder settings of this TFTPClient.
+     * */
+    private TFTPClient(Builder builder) {
+        blockSize = builder.blockSize;
+        windowSize = builder.windowSize;
+        transferSize = builder.transferSize;
+        timeout = builder.timeout;
+        retries = builder.retries;
+        rollover = builder.rollover;
+        concurrency = builder.concurrency;
+    }
+
+    /**
+     * Returns a Builder of a TFTPClient using the defaults of RFC 1350.
+     *
+     * @return new Builder.
+     * */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Main method. Fetches (or with --put, sends) every file given, at most
+     * 'concurrency' at a time, then prints the throughput and the
+     * distributions of time to first byte and completion time.
+     *
+     * @param args options and files, see the class description.
+     * @throws InterruptedException if interrupted while waiting.
+     * */
+    public static void main(String[] args) throws InterruptedException {
+        Builder builder = builder();
+        String host = "localhost";
+        int port = Constants.DEFAULT_SERVER_PORT;
+        String output = ".";
+        int repeat = 1;
+        boolean put = false;
+        List<String> targets = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-s":
+                        InetSocketAddress server = parseServer(args[++i]);
+                        host = server.getHostString();
+                        port = server.getPort();
+                        break;
+                    case "-b":
+                        builder.blockSize(Integer.parseInt(args[++i]));
+                        break;
+                    case "-w":
+                        builder.windowSize(Integer.parseInt(args[++i]));
+                        break;
+                    case "-t":
+                        builder.timeout(Integer.parseInt(args[++i]));
+                        break;
+                    case "-T":
+                        builder.transferSize(true);
+                        break;
+                    case "-r":
+                        builder.retries(Integer.parseInt(args[++i]));
+                        break;
+                    case "-R":
+                        builder.rollover(Integer.parseInt(args[++i]));
+                        break;
+                    case "-c":
+                        builder.concurrency(Integer.parseInt(args[++i]));
+                        break;
+                    case "-o":
+                        output = args[++i];
+                        break;
+                    case "-n":
+                        repeat = Integer.parseInt(args[++i]);
+                        break;
+                    case "--put":
+                        put = true;
+                        break;
+                    default:
+                        if (args[i].startsWith("-")) {
+                            throw new IllegalArgumentException("Unknown "
+                                    + "option " + args[i] + ".");
+                        }
+                        targets.add(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("ERROR 701: Missing value of "
+                    + args[args.length - 1] + ".");
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR 702: " + e.getMessage());
+            return;
+        }
+        if (targets.isEmpty()) {
+            System.out.println("Usage: java transport.TFTPClient "
+                    + "[-s host[:port]] [-b blksize] [-w windowsize] "
+                    + "[-t timeout] [-T] [-r retries] [-R rollover] "
+                    + "[-c concurrency] [-o directory|-] [-n repeat] [--put] "
+                    + "file|tftp://host[:port]/file ...");
+            return;
+        }
+        boolean toStdout = output.equals("-");
+        if (toStdout && (targets.size() > 1 || repeat > 1 || put)) {
+            System.out.println("ERROR 703: -o - takes a single file.");
+            return;
+        }
+
+        List<String> names = new ArrayList<>();
+        List<CompletableFuture<Transfer>> transfers = new ArrayList<>();
+        long start = System.nanoTime();
+        try (TFTPClient client = builder.build()) {
+            for (int round = 0; round < repeat; round++) {
+                for (String target : targets) {
+                    InetSocketAddress server = new InetSocketAddress(host,
+                            port);
+                    String filename = target;
+                    if (target.startsWith("tftp://")) {
+                        int slash = target.indexOf('/', "tftp://".length());
+                        server = parseServer(target.substring(
+                                "tftp://".length(),
+                                slash < 0 ? target.length() : slash));
+                        filename = slash < 0 ? "" : target.substring(
+                                slash + 1);
+                    }
+                    Task task = new Task(client, server, filename, put,
+                            toStdout || repeat > 1 ? null : Paths.get(output),
+                            repeat > 1);
+                    names.add(server.getHostString() + ":" + server.getPort()
+                            + "/" + (put ? Paths.get(filename).getFileName()
+                            : filename));
+                    transfers.add(client.submit(task));
+                }
+            }
+
+            // the file itself goes to stdout with -o -
+            report(toStdout ? System.err : System.out, names, transfers,
+                    start);
+        }
+    }
+
+    /**
+     * Reads a file from a Server into an OutputStream, in order.
+     *
+     * @param server address of requests of the Server.
+     * @param filename name of the file on the Server.
+     * @param out stream the file is written to. Not closed.
+     * @return statistics of the transfer.
+     * @throws IOException if an I/O error occurs, the Server answers with
+     * an ERROR or stops answering.
+     * */
+    public Transfer get(InetSocketAddress server, String filename,
+                        final OutputStream out) throws IOException {
+        return receive(server, filename, new Sink() {
+            @Override
+            public void opened(Transfer transfer) {
+                // nothing to prepare
+            }
+
+            @Override
+            public void write(long offset, byte[] data, int from, int length)
+                    throws IOException {
+                out.write(data, from, length);
+            }
+        });
+    }
+
+    /**
+     * Reads a file from a Server into a FileChannel, writing every block at
+     * its position from the start of the channel.
+     *
+     * @param server address of requests of the Server.
+     * @param filename name of the file on the Server.
+     * @param out channel the file is written to. Not closed.
+     * @return statistics of the transfer.
+     * @throws IOException if an I/O error occurs, the Server answers with
+     * an ERROR or stops answering.
+     * */
+    public Transfer get(InetSocketAddress server, String filename,
+                        final FileChannel out) throws IOException {
+        return receive(server, filename, new Sink() {
+            @Override
+            public void opened(Transfer transfer) {
+                // nothing to prepare
+            }
+
+            @Override
+            public void write(long offset, byte[] data, int from, int length)
+                    throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(data, from, length);
+                long position = offset;
+                while (buffer.hasRemaining()) {
+                    position += out.write(buffer, position);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads a file from a Server into a Sink, which learns the options
+     * negotiated, such as tsize, before the first block.
+     *
+     * @param server address of requests of the Server.
+     * @param filename name of the file on the Server.
+     * @param sink destination of the blocks.
+     * @return statistics of the transfer.
+     * @throws java.nio.file.NoSuchFileException if the Server has no such
+     * file.
+     * @throws IOException if an I/O error occurs, the Server answers with
+     * an ERROR or stops answering.
+     * */
+    protected Transfer get(InetSocketAddress server, String filename,
+                           Sink sink) throws IOException {
+        return receive(server, filename, sink);
+    }
+
+    /**
+     * Writes a file to a Server.
+     *
+     * @param server address of requests of the Server.
+     * @param filename name of the file on the Server.
+     * @param in stream the file is read from. Not closed.
+     * @param size size of the file in bytes announced with tsize, -1 if
+     *             unknown.
+     * @return statistics of the transfer.
+     * @throws IOException if an I/O error occurs, the Server answers with
+     * an ERROR or stops answering.
+     * */
+    public Transfer put(InetSocketAddress server, String filename,
+                        InputStream in, long size) throws IOException {
+        return send(server, filename, in, size);
+    }
+
+    /**
+     * Reads a file from a Server into an OutputStream on the pool of this
+     * TFTPClient.
+     *
+     * @param server address of requests of the Server.
+     * @param filename name of the file on the Server.
+     * @param out stream the file is written to. Not closed.
+     * @return future completed with the statistics of the transfer.
+     * @see #get(InetSocketAddress, String, OutputStream)
+     * */
+    public CompletableFuture<Transfer> getAsync(
+            final InetSocketAddress server, final String filename,
+            final OutputStream out) {
+        return submit(new Callable<Transfer>() {
+            @Override
+            public Transfer call() throws IOException {
+                return get(server, filename, out);
+            }
+        });
+    }
+
+    /**
+     * Reads a file from a Server into a FileChannel on the pool of this
+     * TFTPClient.
+     *
+     * @param server address of requests of the Server.
+     * @param filename name of the file on the Server.
+     * @param out channel the file is written to. Not closed.
+     * @return future completed with the statistics of the transfer.
+     * @see #get(InetSocketAddress, String, FileChannel)
+     * */
+    public CompletableFuture<Transfer> getAsync(
+            final InetSocketAddress server, final String filename,
+            final FileChannel out) {
+        return submit(new Callable<Transfer>() {
+            @Override
+            public Transfer call() throws IOException {
+                return get(server, filename, out);
+            }
+        });
+    }
+
+    /**
+     * Writes a file to a Server on the pool of this TFTPClient.
+     *
+     * @param server address of requests of the Server.
+     * @param filename name of the file on the Server.
+     * @param in stream the file is read from. Not closed.
+     * @param size size of the file in bytes, -1 if unknown.
+     * @return future completed with the statistics of the transfer.
+     * @see #put(InetSocketAddress, String, InputStream, long)
+     * */
+    public CompletableFuture<Transfer> putAsync(
+            final InetSocketAddress server, final String filename,
+            final InputStream in, final long size) {
+        return submit(new Callable<Transfer>() {
+            @Override
+            public Transfer call() throws IOException {
+                return put(server, filename, in, size);
+            }
+        });
+    }
+
+    /**
+     * Stops the pool of asynchronous transfers. Transfers already running
+     * are completed; those not started are failed.
+     * */
+    @Override
+    public synchronized void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Runs a transfer on the pool, starting the pool on first use.
+     *
+     * @param transfer blocking transfer.
+     * @return future completed with the result of the transfer.
+     * */
+    private CompletableFuture<Transfer> submit(
+            final Callable<Transfer> transfer) {
+        final CompletableFuture<Transfer> result = new CompletableFuture<>();
+        synchronized (this) {
+            if (pool == null) {
+                final AtomicInteger count = new AtomicInteger();
+                pool = Executors.newFixedThreadPool(concurrency,
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable runnable) {
+                                Thread thread = new Thread(runnable,
+                                        "TFTPClient-"
+                                        + count.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+            }
+        }
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.complete(transfer.call());
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Reads a file, sending an ACK every 'windowsize' blocks, when a block
+     * arrives out of order, and after the last block.
+     *
+     * @param server address of requests of the Server.
+     * @param filename name of the file on the Server.
+     * @param sink destination of the blocks received.
+     * @return statistics of the transfer.
+     * @throws IOException if an I/O error occurs, the Server answers with
+     * an ERROR or stops answering.
+     * */
+    private Transfer receive(InetSocketAddress server, String filename,
+                             Sink sink) throws IOException {
+        Transfer transfer = new Transfer(server, filename);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(timeoutMillis());
+            byte[] buffer = new byte[Math.max(blockSize,
+                    Constants.DEFAULT_DATA_SIZE) + HEADER];
+            DatagramPacket received = new DatagramPacket(buffer,
+                    buffer.length);
+            open(socket, Opcode.RRQ, requestedOptions(0), received,
+                    transfer);
+            sink.opened(transfer);
+            SocketAddress remote = transfer.remote;
+            int size = transfer.blockSize;
+            int window = transfer.windowSize;
+            int roll = transfer.rollover;
+
+            long expected = 1;
+            int inWindow = 0;
+            long nacked = -1; // expected block when an ACK was last forced
+            int attempts = 0;
+            boolean pending = true; // 'received' holds the first reply
+            while (true) {
+                if (!pending) {
+                    try {
+                        received.setLength(buffer.length);
+                        socket.receive(received);
+                    } catch (SocketTimeoutException e) {
+                        transfer.timeouts++;
+                        if (++attempts > retries) {
+                            throw new SocketTimeoutException("No DATA "
+                                    + expected + " from " + remote + ".");
+                        }
+                        transfer.retransmits++;
+                        sendAck(socket, remote, expected - 1, roll);
+                        inWindow = 0;
+                        continue;
+                    }
+                    if (!received.getSocketAddress().equals(remote)) {
+                        sendError(socket, received.getSocketAddress(),
+                                Error.UNKNOWN_TID, "Unknown transfer ID.");
+                        continue;
+                    }
+                }
+                pending = false;
+
+                int opcode = opcodeOf(received);
+                if (opcode == Opcode.ERROR.ordinal()) {
+                    throw errorOf(received);
+                }
+                if (opcode == Opcode.OACK.ordinal() && expected == 1) {
+                    sendAck(socket, remote, 0, roll); // again if ACK 0 lost
+                    continue;
+                }
+                if (opcode != Opcode.DATA.ordinal()) {
+                    continue;
+                }
+
+                attempts = 0;
+                long block = BlockNumber.fromWire(BlockNumber.read(buffer),
+                        expected, roll);
+                int length = received.getLength() - HEADER;
+                if (block == expected) {
+                    if (transfer.firstByteNanos == 0) {
+                        transfer.firstByteNanos = System.nanoTime();
+                    }
+                    sink.write((expected - 1) * size, buffer, HEADER, length);
+                    transfer.bytes += length;
+                    transfer.blocks++;
+                    expected++;
+                    inWindow++;
+                    boolean last = length < size;
+                    if (last || inWindow == window) {
+                        sendAck(socket, remote, block, roll);
+                        inWindow = 0;
+                    }
+                    if (last) {
+                        transfer.endNanos = System.nanoTime();
+                        dally(socket, remote, received, block, roll);
+                        return transfer;
+                    }
+                } else if (window == 1 || nacked != expected
+                        && (block > expected || inWindow == 0)) {
+                    // gap, or a window sent again as its ACK was lost: ACK
+                    // the last block in order, once per gap so a window out
+                    // of order does not flood. A late duplicate amid a
+                    // window is ignored, lest the Server go back for it
+                    sendAck(socket, remote, expected - 1, roll);
+                    nacked = expected;
+                    inWindow = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a file, sending up to 'windowsize' DATA packets before waiting
+     * for an ACK. An ACK of part of the window makes the rest be sent
+     * again; ACKs of blocks already acknowledged are ignored, so a delayed
+     * ACK never doubles the DATA sent (Sorcerer's Apprentice Syndrome).
+     *
+     * @param server address of requests of the Server.
+     * @param filename name of the file on the Server.
+     * @param in stream the file is read from.
+     * @param size size of the file in bytes, -1 if unknown.
+     * @return statistics of the transfer.
+     * @throws IOException if an I/O error occurs, the Server answers with
+     * an ERROR or stops answering.
+     * */
+    private Transfer send(InetSocketAddress server, String filename,
+                          InputStream in, long size) throws IOException {
+        Transfer transfer = new Transfer(server, filename);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(timeoutMillis());
+            byte[] buffer = new byte[Constants.DEFAULT_DATA_SIZE + HEADER];
+            DatagramPacket received = new DatagramPacket(buffer,
+                    buffer.length);
+            open(socket, Opcode.WRQ, requestedOptions(size), received,
+                    transfer);
+            int opcode = opcodeOf(received);
+            if (opcode != Opcode.ACK.ordinal()
+                    && opcode != Opcode.OACK.ordinal()) {
+                sendError(socket, transfer.remote, Error.ILLEGAL_OPERATION,
+                        "Expecting ACK 0 or OACK.");
+                throw new IOException("Unexpected opcode " + opcode
+                        + " from " + transfer.remote + ".");
+            }
+            SocketAddress remote = transfer.remote;
+            int blockLength = transfer.blockSize;
+            int window = transfer.windowSize;
+            int roll = transfer.rollover;
+
+            // packets of the window, block n in slot (n - 1) % window
+            byte[][] packets = new byte[window][];
+            int[] lengths = new int[window];
+            long base = 1; // oldest block not acknowledged
+            long next = 1; // next block to send
+            long read = 0; // last block read from 'in'
+            long last = -1; // last block of the file, -1 until read
+            int attempts = 0;
+            while (last < 0 || base <= last) {
+                while (next < base + window && (last < 0 || next <= last)) {
+                    int slot = (int) ((next - 1) % window);
+                    if (next > read) {
+                        if (packets[slot] == null) {
+                            packets[slot] = new byte[blockLength + HEADER];
+                        }
+                        int length = in.readNBytes(packets[slot], HEADER,
+                                blockLength);
+                        packets[slot][1] = (byte) Opcode.DATA.ordinal();
+                        BlockNumber.write(packets[slot],
+                                BlockNumber.toWire(next, roll));
+                        lengths[slot] = length + HEADER;
+                        transfer.bytes += length;
+                        read = next;
+                        if (length < blockLength) {
+                            last = next;
+                        }
+                    } else {
+                        transfer.retransmits++;
+                    }
+                    socket.send(new DatagramPacket(packets[slot],
+                            lengths[slot], remote));
+                    if (transfer.firstByteNanos == 0) {
+                        transfer.firstByteNanos = System.nanoTime();
+                    }
+                    next++;
+                }
+
+                try {
+                    received.setLength(buffer.length);
+                    socket.receive(received);
+                } catch (SocketTimeoutException e) {
+                    transfer.timeouts++;
+                    if (++attempts > retries) {
+                        throw new SocketTimeoutException("No ACK " + base
+                                + " from " + remote + ".");
+                    }
+                    next = base; // go back to the oldest block not ACKed
+                    continue;
+                }
+                if (!received.getSocketAddress().equals(remote)) {
+                    sendError(socket, received.getSocketAddress(),
+                            Error.UNKNOWN_TID, "Unknown transfer ID.");
+                    continue;
+                }
+                opcode = opcodeOf(received);
+                if (opcode == Opcode.ERROR.ordinal()) {
+                    throw errorOf(received);
+                }
+                if (opcode != Opcode.ACK.ordinal()) {
+                    continue;
+                }
+                long acked = BlockNumber.fromWire(BlockNumber.read(buffer),
+                        base, roll);
+                if (acked >= base && acked < next) {
+                    attempts = 0;
+                    transfer.blocks += acked - base + 1;
+                    base = acked + 1;
+                    next = base; // the rest of the window is sent again
+                }
+            }
+            transfer.endNanos = System.nanoTime();
+            return transfer;
+        }
+    }
+
+    /**
+     * Sends a request and waits for the first reply of the Server, sending
+     * the request again on timeout. The Server's TID is taken from the
+     * reply, and the negotiated options from an OACK. A request refused
+     * with ERROR 8 is sent again without options.
+     *
+     * @param socket socket of the transfer.
+     * @param opcode RRQ or WRQ.
+     * @param options options requested.
+     * @param received packet receiving the reply.
+     * @param transfer transfer to fill with the TID and options.
+     * @throws IOException if an I/O error occurs, the Server answers with
+     * an ERROR or does not answer.
+     * */
+    private void open(DatagramSocket socket, Opcode opcode,
+                      Map<String, String> options, DatagramPacket received,
+                      Transfer transfer) throws IOException {
+        byte[] request = request(opcode, transfer.filename, options);
+        DatagramPacket packet = new DatagramPacket(request, request.length,
+                transfer.server);
+        transfer.startNanos = System.nanoTime();
+        socket.send(packet);
+
+        int attempts = 0;
+        while (true) {
+            try {
+                received.setLength(received.getData().length);
+                socket.receive(received);
+            } catch (SocketTimeoutException e) {
+                transfer.timeouts++;
+                if (++attempts > retries) {
+                    throw new SocketTimeoutException("No reply from "
+                            + transfer.server + ".");
+                }
+                transfer.retransmits++;
+                socket.send(packet);
+                continue;
+            }
+            if (!received.getAddress().equals(
+                    transfer.server.getAddress())) {
+                continue; // not from the Server
+            }
+
+            int replyOpcode = opcodeOf(received);
+            if (replyOpcode == Opcode.ERROR.ordinal()) {
+                if (errorCodeOf(received) == Error.OPTION_NEGOTIATION
+                        .ordinal() && !options.isEmpty()) {
+                    options = Collections.emptyMap();
+                    request = request(opcode, transfer.filename, options);
+                    packet = new DatagramPacket(request, request.length,
+                            transfer.server);
+                    socket.send(packet);
+                    attempts = 0;
+                    continue;
+                }
+                throw errorOf(received);
+            }
+
+            transfer.remote = received.getSocketAddress();
+            if (replyOpcode == Opcode.OACK.ordinal()) {
+                negotiate(socket, transfer, options, received);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Applies the options acknowledged in an OACK to a transfer. An option
+     * answered with a value not allowed by its RFC fails the transfer with
+     * ERROR 8.
+     *
+     * @param socket socket of the transfer.
+     * @param transfer transfer to apply the options to.
+     * @param requested options requested.
+     * @param oack OACK received.
+     * @throws IOException if an acknowledged option is not acceptable.
+     * */
+    private void negotiate(DatagramSocket socket, Transfer transfer,
+                           Map<String, String> requested,
+                           DatagramPacket oack) throws IOException {
+        Map<String, String> acknowledged = optionsOf(oack);
+        try {
+            for (Map.Entry<String, String> option : acknowledged.entrySet()) {
+                String name = option.getKey();
+                long value = Long.parseLong(option.getValue());
+                if (!requested.containsKey(name)) {
+                    throw new NumberFormatException();
+                }
+                switch (name) {
+                    case Constants.BLKSIZE_OPTION:
+                        if (value < Constants.MIN_BLOCK_SIZE
+                                || value > blockSize) {
+                            throw new NumberFormatException();
+                        }
+                        transfer.blockSize = (int) value;
+                        break;
+                    case Constants.WINDOWSIZE_OPTION:
+                        if (value < 1 || value > windowSize) {
+                            throw new NumberFormatException();
+                        }
+                        transfer.windowSize = (int) value;
+                        break;
+                    case Constants.TSIZE_OPTION:
+                        transfer.transferSize = value;
+                        break;
+                    case Constants.ROLLOVER_OPTION:
+                        if (value != 0 && value != 1) {
+                            throw new NumberFormatException();
+                        }
+                        transfer.rollover = (int) value;
+                        break;
+                    default:
+                        // timeout is only echoed back
+                }
+            }
+        } catch (NumberFormatException e) {
+            sendError(socket, transfer.remote, Error.OPTION_NEGOTIATION,
+                    "Option negotiation refused.");
+            throw new IOException("Unacceptable options " + acknowledged
+                    + " from " + transfer.remote + ".");
+        }
+    }
+
+    /**
+     * Waits for the last DATA packet sent again, in case the last ACK was
+     * lost, and acknowledges it again.
+     *
+     * @param socket socket of the transfer.
+     * @param remote address and TID of the Server.
+     * @param received packet receiving the DATA.
+     * @param last last block number.
+     * @param roll block number following 65535.
+     * @throws IOException if an I/O error occurs.
+     * */
+    private void dally(DatagramSocket socket, SocketAddress remote,
+                       DatagramPacket received, long last, int roll)
+            throws IOException {
+        try {
+            while (true) {
+                received.setLength(received.getData().length);
+                socket.receive(received);
+                if (received.getSocketAddress().equals(remote)
+                        && opcodeOf(received) == Opcode.DATA.ordinal()
+                        && BlockNumber.fromWire(BlockNumber.read(
+                        received.getData()), last, roll) == last) {
+                    sendAck(socket, remote, last, roll);
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // the Server has its last ACK
+        }
+    }
+
+    /**
+     * Returns the options to request, leaving out those at their default.
+     *
+     * @param size tsize to send, the size of the file in a WRQ or 0 in a
+     *             RRQ. Left out if negative.
+     * @return options to request, in order.
+     * */
+    private Map<String, String> requestedOptions(long size) {
+        Map<String, String> options = new LinkedHashMap<>();
+        if (blockSize != Constants.DEFAULT_DATA_SIZE) {
+            options.put(Constants.BLKSIZE_OPTION, String.valueOf(blockSize));
+        }
+        if (windowSize != 1) {
+            options.put(Constants.WINDOWSIZE_OPTION,
+                    String.valueOf(windowSize));
+        }
+        if (timeout > 0) {
+            options.put(Constants.TIMEOUT_OPTION, String.valueOf(timeout));
+        }
+        if (transferSize && size >= 0) {
+            options.put(Constants.TSIZE_OPTION, String.valueOf(size));
+        }
+        if (rollover >= 0) {
+            options.put(Constants.ROLLOVER_OPTION, String.valueOf(rollover));
+        }
+        return options;
+    }
+
+    /**
+     * Returns the time to wait for a packet before sending again.
+     *
+     * @return timeout in milliseconds.
+     * */
+    private int timeoutMillis() {
+        return timeout > 0 ? timeout * 1000 : Constants.TIMEOUT;
+    }
+
+    /**
+     * Produces a RRQ or WRQ in octet mode.
+     *
+     * @param opcode RRQ or WRQ.
+     * @param filename name of the file on the Server.
+     * @param options options requested.
+     * @return contents of the request.
+     * */
+    private static byte[] request(Opcode opcode, String filename,
+                                  Map<String, String> options) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0);
+        out.write(opcode.ordinal());
+        writeString(out, filename);
+        writeString(out, "octet");
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            writeString(out, option.getKey());
+            writeString(out, option.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes();
+        out.write(bytes, 0, bytes.length);
+        out.write(0);
+    }
+
+    /**
+     * Sends an ACK.
+     *
+     * @param socket socket of the transfer.
+     * @param remote address and TID of the Server.
+     * @param block block number counted from the start of the transfer.
+     * @param roll block number following 65535.
+     * @throws IOException if an I/O error occurs.
+     * */
+    private static void sendAck(DatagramSocket socket, SocketAddress remote,
+                                long block, int roll) throws IOException {
+        byte[] ack = {0, (byte) Opcode.ACK.ordinal(), 0, 0};
+        BlockNumber.write(ack, BlockNumber.toWire(block, roll));
+        socket.send(new DatagramPacket(ack, ack.length, remote));
+    }
+
+    /**
+     * Sends an ERROR.
+     *
+     * @param socket socket of the transfer.
+     * @param remote address and port to send the ERROR to.
+     * @param error error code.
+     * @param message error message.
+     * @throws IOException if an I/O error occurs.
+     * */
+    private static void sendError(DatagramSocket socket, SocketAddress remote,
+                                  Error error, String message)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0);
+        out.write(Opcode.ERROR.ordinal());
+        out.write(0);
+        out.write(error.ordinal());
+        writeString(out, message);
+        byte[] contents = out.toByteArray();
+        socket.send(new DatagramPacket(contents, contents.length, remote));
+    }
+
+    private static int opcodeOf(DatagramPacket packet) {
+        return packet.getLength() < 2 ? -1
+                : (packet.getData()[0] & 0xFF) << 8
+                | (packet.getData()[1] & 0xFF);
+    }
+
+    private static int errorCodeOf(DatagramPacket packet) {
+        return packet.getLength() < 4 ? -1
+                : (packet.getData()[2] & 0xFF) << 8
+                | (packet.getData()[3] & 0xFF);
+    }
+
+    /**
+     * Returns an exception carrying the code and message of an ERROR.
+     *
+     * @param packet ERROR received.
+     * @return exception to throw, a NoSuchFileException for
+     * FILE_NOT_FOUND.
+     * */
+    private static IOException errorOf(DatagramPacket packet) {
+        int end = 4;
+        while (end < packet.getLength() && packet.getData()[end] != 0) {
+            end++;
+        }
+        String message = end > 4 ? new String(packet.getData(), 4, end - 4)
+                : "";
+        String text = "ERROR " + errorCodeOf(packet) + " from "
+                + packet.getSocketAddress() + ": " + message;
+        if (errorCodeOf(packet) == Error.FILE_NOT_FOUND.ordinal()) {
+            return new NoSuchFileException(null, null, text);
+        }
+        return new IOException(text);
+    }
+
+    /**
+     * Returns the options of an OACK, by lower-case name.
+     *
+     * @param packet OACK received.
+     * @return options acknowledged, in order.
+     * */
+    private static Map<String, String> optionsOf(DatagramPacket packet) {
+        Map<String, String> options = new LinkedHashMap<>();
+        byte[] data = packet.getData();
+        String name = null;
+        int start = 2;
+        for (int index = 2; index < packet.getLength(); index++) {
+            if (data[index] != 0) {
+                continue;
+            }
+            String value = new String(data, start, index - start);
+            if (name == null) {
+                name = value.toLowerCase();
+            } else {
+                options.put(name, value);
+                name = null;
+            }
+            start = index + 1;
+        }
+        return options;
+    }
+
+    /**
+     * Parses host[:port], the port being 69 if left out. An IPv6 address
+     * followed by a port is written in brackets, as in [::1]:69.
+     *
+     * @param server host and optional port.
+     * @return unresolved address of the Server.
+     * */
+    protected static InetSocketAddress parseServer(String server) {
+        if (server.startsWith("[")) {
+            int bracket = server.indexOf(']');
+            if (bracket < 0) {
+                throw new IllegalArgumentException("Missing ] in " + server
+                        + ".");
+            }
+            String host = server.substring(1, bracket);
+            return bracket + 1 < server.length()
+                    && server.charAt(bracket + 1) == ':'
+                    ? new InetSocketAddress(host, Integer.parseInt(
+                            server.substring(bracket + 2)))
+                    : new InetSocketAddress(host,
+                            Constants.DEFAULT_SERVER_PORT);
+        }
+        int colon = server.lastIndexOf(':');
+        if (colon < 0 || server.indexOf(':') != colon) {
+            return new InetSocketAddress(server,
+                    Constants.DEFAULT_SERVER_PORT);
+        }
+        return new InetSocketAddress(server.substring(0, colon),
+                Integer.parseInt(server.substring(colon + 1)));
+    }
+
+    /**
+     * Waits for every transfer, printing one line per transfer in the order
+     * given, then the totals and latency distributions.
+     *
+     * @param out stream the report is printed to.
+     * @param names host:port/file of every transfer.
+     * @param transfers futures of every transfer.
+     * @param start System.nanoTime() when the first transfer was submitted.
+     * @throws InterruptedException if interrupted while waiting.
+     * */
+    private static void report(PrintStream out, List<String> names,
+                               List<CompletableFuture<Transfer>> transfers,
+                               long start) throws InterruptedException {
+        long[] firstBytes = new long[transfers.size()];
+        long[] completions = new long[transfers.size()];
+        int done = 0;
+        int failed = 0;
+        long bytes = 0;
+        for (int i = 0; i < transfers.size(); i++) {
+            try {
+                Transfer transfer = transfers.get(i).get();
+                out.println(String.format("OK   %-40s %12d B %10.3f ms"
+                                + " %8.2f MB/s  ttfb %8d us  blksize %d "
+                                + "windowsize %d  retransmits %d",
+                        names.get(i), transfer.getBytes(),
+                        transfer.getDuration() / 1e6,
+                        transfer.getThroughput() / 1e6,
+                        transfer.getTimeToFirstByte() / 1000,
+                        transfer.getBlockSize(), transfer.getWindowSize(),
+                        transfer.getRetransmits()));
+                firstBytes[done] = transfer.getTimeToFirstByte();
+                completions[done] = transfer.getDuration();
+                bytes += transfer.getBytes();
+                done++;
+            } catch (ExecutionException e) {
+                out.println("ERROR 704: " + names.get(i) + ": "
+                        + e.getCause().getMessage());
+                failed++;
+            }
+        }
+        long total = System.nanoTime() - start;
+
+        out.println(String.format("\n%d transfers, %d failed, %d bytes "
+                        + "in %.3f ms, %.2f MB/s", transfers.size(), failed,
+                bytes, total / 1e6, bytes / (total / 1e9) / 1e6));
+        if (done > 0) {
+            long[] ttfb = Arrays.copyOf(firstBytes, done);
+            long[] completion = Arrays.copyOf(completions, done);
+            Arrays.sort(ttfb);
+            Arrays.sort(completion);
+            out.println(String.format("%-10s p50=%-8d p90=%-8d "
+                            + "p99=%-8d max=%d us", "TTFB",
+                    EventDecoder.percentile(ttfb, 50) / 1000,
+                    EventDecoder.percentile(ttfb, 90) / 1000,
+                    EventDecoder.percentile(ttfb, 99) / 1000,
+                    ttfb[done - 1] / 1000));
+            out.println(String.format("%-10s p50=%-8d p90=%-8d "
+                            + "p99=%-8d max=%d us", "completion",
+                    EventDecoder.percentile(completion, 50) / 1000,
+                    EventDecoder.percentile(completion, 90) / 1000,
+                    EventDecoder.percentile(completion, 99) / 1000,
+                    completion[done - 1] / 1000));
+        }
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Destination of the blocks of a file read, in order.
+     * */
+    protected interface Sink {
+        /**
+         * Called once the Server answered, before the first block, with
+         * the options negotiated.
+         *
+         * @param transfer transfer, with the tsize of the file if the
+         *                 Server sent it.
+         * @throws IOException if the transfer is to be given up.
+         * */
+        void opened(Transfer transfer) throws IOException;
+
+        /**
+         * Writes one block.
+         *
+         * @param offset position of the block from the start of the file.
+         * @param data buffer holding the block.
+         * @param from index of the first byte of the block in 'data'.
+         * @param length number of bytes of the block.
+         * @throws IOException if an I/O error occurs.
+         * */
+        void write(long offset, byte[] data, int from, int length)
+                throws IOException;
+    }
+
+    /**
+     * One transfer of the command line tool, opening and closing the local
+     * file around it.
+     * */
+    private static final class Task implements Callable<Transfer> {
+        private final TFTPClient client;
+        private final InetSocketAddress server;
+        private final String filename;
+        private final boolean put;
+        /** Local directory of the file, null for stdout or discarding. */
+        private final Path directory;
+        /** Whether the file read is thrown away. */
+        private final boolean discard;
+
+        private Task(TFTPClient client, InetSocketAddress server,
+                     String filename, boolean put, Path directory,
+                     boolean discard) {
+            this.client = client;
+            this.server = server;
+            this.filename = filename;
+            this.put = put;
+            this.directory = directory;
+            this.discard = discard;
+        }
+
+        @Override
+        public Transfer call() throws IOException {
+            if (put) {
+                Path local = Paths.get(filename);
+                try (InputStream in = Files.newInputStream(local)) {
+                    return client.put(server, local.getFileName().toString(),
+                            in, Files.size(local));
+                }
+            }
+            if (discard) {
+                return client.get(server, filename,
+                        OutputStream.nullOutputStream());
+            }
+            if (directory == null) {
+                return client.get(server, filename, System.out);
+            }
+            Path local = directory.resolve(Paths.get(filename).getFileName());
+            try (FileChannel out = FileChannel.open(local,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                return client.get(server, filename, out);
+            }
+        }
+    }
+
+    /**
+     * Statistics and negotiated options of one transfer.
+     * */
+    public static final class Transfer {
+        /** Address of requests of the Server. */
+        private final InetSocketAddress server;
+        /** Name of the file on the Server. */
+        private final String filename;
+        /** Address and TID the Server answered from. */
+        private SocketAddress remote;
+        /** Negotiated block size. */
+        private int blockSize = Constants.DEFAULT_DATA_SIZE;
+        /** Negotiated window size. */
+        private int windowSize = 1;
+        /** Block number following 65535. */
+        private int rollover = Constants.BLOCK_ROLLOVER;
+        /** Size announced by the Server in an OACK, -1 if none. */
+        private long transferSize = -1;
+        /** Bytes of the file transferred. */
+        private long bytes;
+        /** Blocks transferred, and acknowledged when writing. */
+        private long blocks;
+        /** Packets sent again. */
+        private int retransmits;
+        /** Timeouts waiting for the Server. */
+        private int timeouts;
+        /** System.nanoTime() when the request was sent. */
+        private long startNanos;
+        /** System.nanoTime() of the first block received or sent. */
+        private long firstByteNanos;
+        /** System.nanoTime() of the last block received or acknowledged. */
+        private long endNanos;
+
+        private Transfer(InetSocketAddress server, String filename) {
+            this.server = server;
+            this.filename = filename;
+        }
+
+        // getters and setters--------------------------------------------------
+
+        /**
+         * Returns the address of requests of the Server.
+         * @return address of the Server.
+         * */
+        public InetSocketAddress getServer() {
+            return server;
+        }
+
+        /**
+         * Returns the name of the file on the Server.
+         * @return filename.
+         * */
+        public String getFilename() {
+            return filename;
+        }
+
+        /**
+         * Returns the number of data bytes per DATA packet used.
+         * @return block size.
+         * */
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        /**
+         * Returns the number of DATA packets per ACK used.
+         * @return window size.
+         * */
+        public int getWindowSize() {
+            return windowSize;
+        }
+
+        /**
+         * Returns the size of the file announced by the Server.
+         * @return size in bytes, -1 if not announced.
+         * */
+        public long getTransferSize() {
+            return transferSize;
+        }
+
+        /**
+         * Returns the number of bytes of the file transferred.
+         * @return bytes transferred.
+         * */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns the number of blocks transferred.
+         * @return blocks transferred.
+         * */
+        public long getBlocks() {
+            return blocks;
+        }
+
+        /**
+         * Returns the number of packets sent again.
+         * @return retransmissions.
+         * */
+        public int getRetransmits() {
+            return retransmits;
+        }
+
+        /**
+         * Returns the number of timeouts waiting for the Server.
+         * @return timeouts.
+         * */
+        public int getTimeouts() {
+            return timeouts;
+        }
+
+        /**
+         * Returns the time from the request to the first block received or
+         * sent.
+         * @return time to first byte in nanoseconds.
+         * */
+        public long getTimeToFirstByte() {
+            return firstByteNanos - startNanos;
+        }
+
+        /**
+         * Returns the time from the request to the last block received or
+         * acknowledged.
+         * @return duration in nanoseconds.
+         * */
+        public long getDuration() {
+            return endNanos - startNanos;
+        }
+
+        /**
+         * Returns the average throughput of the transfer.
+         * @return bytes per second.
+         * */
+        public double getThroughput() {
+            return bytes / (Math.max(1, getDuration()) / 1e9);
+        }
+    }
+
+    /**
+     * Builder of a TFTPClient. Every option is left out of requests while
+     * at its default.
+     * */
+    public static final class Builder {
+        /** Requested block size. */
+        private int blockSize = Constants.DEFAULT_DATA_SIZE;
+        /** Requested window size. */
+        private int windowSize = 1;
+        /** Whether tsize is requested. */
+        private boolean transferSize;
+        /** Requested timeout in seconds, 0 for none. */
+        private int timeout;
+        /** Number of times a packet is sent again. */
+        private int retries = Constants.MAX_RETRIES;
+        /** Requested rollover, -1 for none. */
+        private int rollover = -1;
+        /** Size of the pool of asynchronous transfers. */
+        private int concurrency = Runtime.getRuntime().availableProcessors();
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the block size requested, 512 by default.
+         * @param size 8 to 65464 bytes.
+         * @return this Builder.
+         * @throws IllegalArgumentException if size is out of range.
+         * */
+        public Builder blockSize(int size) {
+            if (size < Constants.MIN_BLOCK_SIZE
+                    || size > Constants.MAX_BLOCK_SIZE) {
+                throw new IllegalArgumentException("Block size must be from "
+                        + Constants.MIN_BLOCK_SIZE + " to "
+                        + Constants.MAX_BLOCK_SIZE + ".");
+            }
+            blockSize = size;
+            return this;
+        }
+        /**
+         * Sets the window size requested, 1 (stop-and-wait) by default.
+         * @param size 1 to 65535 blocks.
+         * @return this Builder.
+         * @throws IllegalArgumentException if size is out of range.
+         * */
+        public Builder windowSize(int size) {
+            if (size < 1 || size > Constants.MAX_BLOCK) {
+                throw new IllegalArgumentException("Window size must be from "
+                        + "1 to " + Constants.MAX_BLOCK + ".");
+            }
+            windowSize = size;
+            return this;
+        }
+        /**
+         * Sets whether the size of the file is requested in a RRQ and
+         * announced in a WRQ.
+         * @param requested true to send tsize.
+         * @return this Builder.
+         * */
+        public Builder transferSize(boolean requested) {
+            transferSize = requested;
+            return this;
+        }
+        /**
+         * Sets the timeout requested, also used as the retransmission
+         * timeout of this TFTPClient. By default none is requested and
+         * Constants.TIMEOUT milliseconds are used.
+         * @param seconds 1 to 255 seconds.
+         * @return this Builder.
+         * @throws IllegalArgumentException if seconds is out of range.
+         * */
+        public Builder timeout(int seconds) {
+            if (seconds < 1 || seconds > 255) {
+                throw new IllegalArgumentException("Timeout must be from 1 "
+                        + "to 255 seconds.");
+            }
+            timeout = seconds;
+            return this;
+        }
+        /**
+         * Sets the number of times a packet is sent again before a transfer
+         * fails, Constants.MAX_RETRIES by default.
+         * @param count number of retries, 0 or more.
+         * @return this Builder.
+         * @throws IllegalArgumentException if count is negative.
+         * */
+        public Builder retries(int count) {
+            if (count < 0) {
+                throw new IllegalArgumentException("Retries must not be "
+                        + "negative.");
+            }
+            retries = count;
+            return this;
+        }
+        /**
+         * Sets the block number following 65535 requested with the rollover
+         * option. By default none is requested and 0 is assumed.
+         * @param block 0 or 1.
+         * @return this Builder.
+         * @throws IllegalArgumentException if block is not 0 or 1.
+         * */
+        public Builder rollover(int block) {
+            if (block != 0 && block != 1) {
+                throw new IllegalArgumentException("Block rollover must be 0 "
+                        + "or 1.");
+            }
+            rollover = block;
+            return this;
+        }
+        /**
+         * Sets the largest number of asynchronous transfers at a time, the
+         * number of processors by default.
+         * @param transfers 1 or more.
+         * @return this Builder.
+         * @throws IllegalArgumentException if transfers is less than 1.
+         * */
+        public Builder concurrency(int transfers) {
+            if (transfers < 1) {
+                throw new IllegalArgumentException("Concurrency must be at "
+                        + "least 1.");
+            }
+            concurrency = transfers;
+            return this;
+        }
+        /**
+         * Builds the TFTPClient.
+         * @return new TFTPClient.
+         * */
+        public TFTPClient build() {
+            return new TFTPClient(this);
+        }
+    }
+
+    // END OF FILE
+}
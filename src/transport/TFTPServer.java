@@ -18,11 +18,32 @@ package transport;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 /**
- * This class acts as the main body and main thread of the Server side of this
- * TFTP protocol where requests are received at the master (default) port 69.
+ * This class acts as the main body of the Server side of this TFTP protocol
+ * where requests are received at the master (default) port 69. A server is
+ * built with TFTPServer.builder(), so that any number of servers can be
+ * started and stopped within one program. On hosts with several interfaces,
+ * Builder.buildGroup() makes one Server per local address, each with its own
+ * threads, sessions and buffers.
  *
  * @author 223459 afd22@sussex.ac.uk
  * @version 1.0 %G%, %U%.
@@ -32,110 +53,1286 @@ public class TFTPServer {
     /** Default size of a single DATA block content. */
     private static final int DEFAULT_DATA_SIZE
             = Constants.DEFAULT_DATA_SIZE;
-    /** Default port number 69 of main server socket. */
-    private static final int DEFAULT_SERVER_PORT
-            = Constants.DEFAULT_SERVER_PORT;
+
+    /** Port where initial read / write requests are received. 0 for any
+     * free port. */
+    private final int serverPort;
+    /** Port of the slave socket where transfers take place. 0 for any
+     * free port. */
+    private final int slavePort;
+    /** Local address both sockets are bound to, null for all. */
+    private final InetAddress address;
+    /** Directory where files in requests are read from and written to by
+     * the default Storage. */
+    private final Path root;
+    /** Storage given to the Builder, null to use a FileSystemStorage of
+     * 'root' made and closed by this Server. */
+    private final Storage configuredStorage;
+    /** Engine processing the Clients of this Server. */
+    private final Engine engine;
+    /** Block number following 65535 on the wire, 0 or 1. */
+    private final int blockRollover;
+    /** Whether windowed transfers adapt their window to loss. */
+    private final boolean congestionControl;
+    /** Largest file accepted by a WRQ, in bytes. */
+    private final long uploadLimit;
+    /** Size of the socket buffers, 0 to size them by demand. */
+    private final int socketBuffer;
+    /** Maps the filenames in requests to the names of stored files. */
+    private final FilenameMap filenames;
+    /** Chooses the block size of read requests asking for blksize. */
+    private final PathMtu pathMtu;
+    /** Directory where event dumps are written. */
+    private final Path dumpDirectory;
+    /** File the traffic is captured to, null for no capture. */
+    private final Path captureFile;
+    /** Scheduler of the turns of the Clients. */
+    private final Scheduler scheduler;
+    /** Egress rate limits. */
+    private final Shaper shaper;
+    /** Transfer state of every Client in process. */
+    private final SessionTable sessions;
+    /** Record of every packet sent and received, always on. */
+    private final EventRing events;
+    /** Notes of packets rejected and Clients given up, one per
+     * Constants.REJECT_LOG_INTERVAL. */
+    private final LogLimiter rejectLog =
+            new LogLimiter(Constants.REJECT_LOG_INTERVAL);
+    /** Number of packets rejected since this Server was built. */
+    private final AtomicLong rejected = new AtomicLong();
+    /** System.currentTimeMillis() of the last dump on error. */
+    private volatile long lastErrorDump;
 
     /** Socket with port 69 where initial read / write requests are received. */
-    private static DatagramSocket defaultSocket;
+    private DatagramSocket defaultSocket;
+    /** Thread receiving requests at 'defaultSocket'. */
+    private Thread listener;
+    /** Thread processing the Clients. */
+    private TFTPServerThread thread;
+    /** Sizes the socket buffers and watches for drops, since the last
+     * start(). */
+    private volatile SocketTuner tuner;
+    /** Whether this Server is started and not yet stopped. */
+    private volatile boolean running = false;
+    /** Capture of the traffic since the last start(), null if none. */
+    private volatile TrafficCapture capture;
+    /** Storage of the files served. Made on first use. */
+    private volatile Storage storage;
+    /** System.nanoTime() at the last call to start(). */
+    private volatile long startedAt;
+    /** System.nanoTime() when the last call to start() returned. */
+    private volatile long readyAt;
+    /** System.nanoTime() when the first request after start() was
+     * received, 0 if none yet. */
+    private volatile long firstRequestAt;
+    /** System.nanoTime() when the first packet after start() was sent, 0
+     * if none yet. */
+    private volatile long firstPacketAt;
 
-    /** Main Clients currently in process by TFTPServerThread. */
-    protected static HashMap<InetSocketAddress, Client> mainStatus =
+    /** Main Clients currently in process by TFTPServerThread. Read and
+     * written by that thread only. */
+    protected final HashMap<InetSocketAddress, Client> mainStatus =
             new HashMap<>();
 
-    /** Adding or removing Clients happen here and 'mainStatus' updates
-     * according to this list after every Clients in 'mainStatus' is
-     * processed once (gone through one process). */
-    protected static HashMap<InetSocketAddress, Client> mainStatusPending =
-            new HashMap<>();
+    /** Clients of new requests, handed by the listener thread to
+     * TFTPServerThread, which blocks on this queue while it has no Client
+     * in process. */
+    protected final BlockingQueue<Client> arrivals =
+            new LinkedBlockingQueue<>();
 
-    static {
-        try {
-            defaultSocket = new DatagramSocket(DEFAULT_SERVER_PORT);
-        } catch (SocketException e) {
-            e.printStackTrace();
+    /**
+     * Sole constructor, called by Builder.build().
+     *
+     * @param builder configuration of this Server.
+     * */
+    private TFTPServer(Builder builder) {
+        serverPort = builder.serverPort;
+        slavePort = builder.slavePort;
+        address = builder.address;
+        root = builder.root.toAbsolutePath().normalize();
+        configuredStorage = builder.storage;
+        storage = configuredStorage;
+        engine = builder.engine;
+        blockRollover = builder.blockRollover;
+        congestionControl = builder.congestionControl;
+        uploadLimit = builder.uploadLimit;
+        socketBuffer = builder.socketBuffer;
+        filenames = builder.filenames;
+        pathMtu = new PathMtu(builder.mtu, builder.subnetMtus,
+                builder.mtuProbing);
+        dumpDirectory = builder.dumpDirectory;
+        captureFile = builder.captureFile;
+        events = new EventRing(builder.eventCapacity);
+        shaper = new Shaper(builder.rateLimit, builder.sessionRateLimit,
+                builder.subnetRateLimits);
+        sessions = new SessionTable(builder.sessionCapacity);
+        if (engine == Engine.ROUND_ROBIN) {
+            // a single class: one turn per Client per round
+            scheduler = new Scheduler(Collections.singletonMap(
+                    Scheduler.BULK, 1), new Scheduler.Classifier() {
+                        @Override
+                        public String classify(Opcode opcode,
+                                               InetSocketAddress client,
+                                               String filename, long size) {
+                            return Scheduler.BULK;
+                        }
+                    });
+        } else {
+            scheduler = new Scheduler(builder.weights, builder.classifier);
         }
     }
 
     /**
-     * Main method.
+     * Returns a new Builder with the defaults of RFC 1350: port 69, a slave
+     * port chosen by the system and the working directory as root.
      *
-     * @param args arguments input in terminal. No arguments expected.
+     * @return builder of a TFTPServer.
+     * */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Main method. Starts a Server on port 69 serving the working directory.
+     *
+     * Usage: java transport.TFTPServer [-p port] [-r root] [-q bytes]
+     * [-b bytes] [-m rule-file] [-u mtu] [-k pack] [-e host[:port]]
+     * [address ...|all]
+     *
+     * -q limits the size of the files written by WRQ. -b fixes the socket
+     * buffers, sized by demand otherwise. -m maps filenames by the rules of
+     * a file, see FilenameMap. -u sets the MTU of every path, taken from
+     * the interfaces otherwise, see PathMtu. -k serves the files of a pack
+     * made by Packer instead of the root. -e relays the files missing in the
+     * root from an origin Server, keeping them in the root, see
+     * RelayStorage. With no address, a single Server
+     * listens on all addresses. Otherwise one Server is started per address
+     * given, or per address of every interface up with "all".
+     *
+     * @param args options and local addresses, all optional.
      * @throws IOException if an I/O error occurs.
      */
     public static void main(String[] args) throws IOException {
+        Builder builder = builder();
+        List<InetAddress> addresses = new ArrayList<>();
+        Path root = Paths.get("");
+        InetSocketAddress origin = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-p":
+                        builder.port(Integer.parseInt(args[++i]));
+                        break;
+                    case "-r":
+                        root = Paths.get(args[++i]);
+                        builder.root(root);
+                        break;
+                    case "-q":
+                        builder.uploadLimit(Long.parseLong(args[++i]));
+                        break;
+                    case "-b":
+                        builder.socketBuffer(Integer.parseInt(args[++i]));
+                        break;
+                    case "-m":
+                        builder.filenames(FilenameMap.load(
+                                Paths.get(args[++i])));
+                        break;
+                    case "-u":
+                        builder.mtu(Integer.parseInt(args[++i]));
+                        break;
+                    case "-k":
+                        builder.storage(new PackStorage(
+                                Paths.get(args[++i])));
+                        break;
+                    case "-e":
+                        origin = TFTPClient.parseServer(args[++i]);
+                        break;
+                    case "all":
+                        addresses.addAll(ServerGroup.interfaceAddresses());
+                        break;
+                    default:
+                        if (args[i].startsWith("-")) {
+                            throw new IllegalArgumentException("Unknown "
+                                    + "option " + args[i] + ".");
+                        }
+                        addresses.add(InetAddress.getByName(args[i]));
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("ERROR 721: Missing value of "
+                    + args[args.length - 1] + ".");
+            return;
+        } catch (IllegalArgumentException | UnknownHostException e) {
+            System.out.println("ERROR 722: " + e.getMessage());
+            return;
+        }
+        if (origin != null) {
+            builder.storage(new RelayStorage(origin,
+                    new FileSystemStorage(root)));
+        }
+
+        if (addresses.isEmpty()) {
+            builder.build().start();
+        } else {
+            builder.buildGroup(addresses).start();
+        }
         System.out.println("\nServer started indefinitely...");
         System.out.println("Waiting for requests from Clients...\n");
-        runTFTPServer();
     }
 
     /**
-     * Receives write / read requests at port 69 and updates
-     * 'mainStatusPending' as new requests are received. Makes the second
-     * of two threads in Server side where the main thread will receive
-     * requests and the second 'TFTPServerThread' processes for each received
-     * requests.
+     * Binds the sockets of this Server and starts the listener and the
+     * TFTPServerThread. Optional subsystems such as the storage are only
+     * made when first needed so that the first packet is served quickly.
      *
-     * @throws IOException if an I/O error occurs.
+     * @throws IOException if a socket cannot be bound.
+     * @throws IllegalStateException if this Server is already started.
      * */
-    private static void runTFTPServer() throws IOException {
-        TFTPServerThread thread = new TFTPServerThread();
+    public synchronized void start() throws IOException {
+        if (running) {
+            throw new IllegalStateException("Server already started.");
+        }
+        startedAt = System.nanoTime();
+        firstRequestAt = 0;
+        firstPacketAt = 0;
+
+        defaultSocket = new DatagramSocket(new InetSocketAddress(address,
+                serverPort));
+        try {
+            if (captureFile != null) {
+                capture = new TrafficCapture(captureFile);
+            }
+            thread = new TFTPServerThread(this, slavePort, address);
+            tuner = new SocketTuner(defaultSocket, thread.slaveSocket,
+                    socketBuffer);
+        } catch (IOException e) {
+            defaultSocket.close();
+            if (capture != null) {
+                capture.close();
+                capture = null;
+            }
+            throw e;
+        }
+
+        running = true;
+        tuner.start(getName());
         thread.start();
+        // anonymous class rather than a lambda: bootstrapping the first
+        // lambda of the program alone costs tens of milliseconds
+        listener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                listen();
+            }
+        }, "TFTPServer-" + getName());
+        listener.start();
 
-        System.out.println("LISTENING------------------------------");
-        while (true) {
-            // initialize master (default) socket and request packet
-            byte[] buf = new byte[DEFAULT_DATA_SIZE + 4];
-            // receive request from client
-            DatagramPacket requestPacket = new DatagramPacket(buf, buf.length);
+        readyAt = System.nanoTime();
+        System.out.println("Server started in " + (readyAt - startedAt) / 1000
+                + " us on " + getName() + ", slavePort = "
+                + getSlavePort() + ".\n");
+    }
+
+    /**
+     * Starts this Server over sockets already made, such as those of a
+     * SimulatedNetwork, without any thread: the caller passes every packet
+     * received at the request socket to accept(), the Clients then handed
+     * over through 'arrivals' and every packet received at the slave socket
+     * to the EventLoop returned, and runs its timers when due, all with a
+     * clock of its own. Only under the EVENT_LOOP engine, whose Clients
+     * take the time of every step. The sockets are closed by stop().
+     *
+     * @param requestSocket socket where requests are received.
+     * @param slaveSocket socket where transfers take place.
+     * @return event loop of the Clients in process.
+     * @throws IllegalStateException if this Server is already started or
+     * not under the EVENT_LOOP engine.
+     * */
+    protected synchronized TFTPServerThread.EventLoop start(
+            DatagramSocket requestSocket, DatagramSocket slaveSocket) {
+        if (running) {
+            throw new IllegalStateException("Server already started.");
+        }
+        if (engine != Engine.EVENT_LOOP) {
+            throw new IllegalStateException("Engine " + engine
+                    + " not driven from outside.");
+        }
+        startedAt = System.nanoTime();
+        firstRequestAt = 0;
+        firstPacketAt = 0;
+        defaultSocket = requestSocket;
+        thread = new TFTPServerThread(this, slaveSocket);
+        tuner = new SocketTuner(defaultSocket, slaveSocket, socketBuffer);
+        listener = null;
+        running = true;
+        readyAt = System.nanoTime();
+        return thread.new EventLoop();
+    }
+
+    /**
+     * Stops this Server, closing its sockets and dropping all Clients in
+     * process. A stopped Server can be started again.
+     * */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        String name = getName();
+        tuner.stop();
+        defaultSocket.close();
+        thread.shutdown();
+        try {
+            if (listener != null) {
+                listener.join(Constants.TIMEOUT * 10);
+            }
+            thread.join(Constants.TIMEOUT * 10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        arrivals.clear();
+        mainStatus.clear();
+        scheduler.clear();
+        sessions.clear();
+        if (capture != null) {
+            capture.close();
+            capture = null;
+        }
+        if (configuredStorage == null && storage != null) {
+            storage.close();
+            storage = null;
+        }
+        System.out.println("Server on " + name + " stopped.\n");
+    }
+
+    /**
+     * Writes the events recorded by this Server to a new file in the dump
+     * directory, to be read with EventDecoder.
+     *
+     * @return path of the dump.
+     * @throws IOException if an I/O error occurs.
+     * */
+    public Path dumpEvents() throws IOException {
+        Path file = dumpDirectory.resolve("tftp-events-" + getPort() + "-"
+                + System.currentTimeMillis() + ".bin");
+        events.dump(file);
+        return file;
+    }
+
+    /**
+     * Dumps the recorded events after a fault of this Server, such as an
+     * exception or a transfer given up, at most once every
+     * Constants.EVENT_DUMP_INTERVAL milliseconds so that a burst of faults
+     * does not produce a burst of dumps. Only the latest
+     * Constants.EVENT_DUMP_LIMIT dumps in the dump directory are kept.
+     * */
+    protected void dumpEventsOnError() {
+        long now = System.currentTimeMillis();
+        if (now - lastErrorDump < Constants.EVENT_DUMP_INTERVAL) {
+            return;
+        }
+        lastErrorDump = now;
+        try {
+            System.out.println("NOTE 052: Events dumped to " + dumpEvents()
+                    + ".\n");
+            pruneDumps();
+        } catch (IOException e) {
+            System.out.println("NOTE 053: Events not dumped. "
+                    + e.getMessage() + "\n");
+        }
+    }
+
+    /**
+     * Body of the listener thread. Runs until stop() is called.
+     * */
+    private void listen() {
+        try {
+            runTFTPServer();
+        } catch (IOException e) {
+            if (running) {
+                System.out.println("NOTE 144: Listener stopped. " + e
+                        + "\n");
+            }
+        }
+    }
 
+    /**
+     * Receives write / read requests at port 69 and hands the Client of
+     * every new request to TFTPServerThread through 'arrivals'. Makes the
+     * second of two threads in Server side where the listener thread will
+     * receive requests and the second 'TFTPServerThread' processes for each
+     * received requests. The first packet of a read request is sent here,
+     * without waiting for a turn, by Client.startRead().
+     *
+     * @throws IOException if an I/O error occurs.
+     * */
+    private void runTFTPServer() throws IOException {
+        System.out.println("LISTENING------------------------------");
+        // one buffer for every request: a Client keeps none of it
+        byte[] buf = new byte[DEFAULT_DATA_SIZE + 4];
+        DatagramPacket requestPacket = new DatagramPacket(buf, buf.length);
+        while (running) {
+            requestPacket.setData(buf, 0, buf.length);
             defaultSocket.receive(requestPacket);
+            if (firstRequestAt == 0) {
+                firstRequestAt = System.nanoTime();
+            }
+            accept(requestPacket);
+        }
+    }
+
+    /**
+     * Processes a packet received at the request socket: rejects it
+     * cheaply if not a RRQ or WRQ, of a TID in use or shed under load,
+     * otherwise hands it to handleRequest(). Never throws, so that a
+     * request is never the end of the listener.
+     *
+     * @param requestPacket packet received.
+     * */
+    protected void accept(DatagramPacket requestPacket) {
+        // cheap reject first: no parsing, no allocation
+        byte[] buf = requestPacket.getData();
+        int length = requestPacket.getLength();
+        if (length < 4 || buf[0] != 0 || (buf[1] != Opcode.RRQ.ordinal()
+                && buf[1] != Opcode.WRQ.ordinal())) {
+            reject("packet not RRQ or WRQ", requestPacket);
+            return;
+        }
+        if (sessions.find(requestPacket.getAddress(),
+                requestPacket.getPort()) >= 0) {
+            reject("request of a TID in use", requestPacket);
+            return; // reject connection as duplicate request
+        }
+        if (tuner.isShedding()) {
+            // unanswered, so the Client sends it again later
+            reject("request shed under load", requestPacket);
+            return;
+        }
+
+        FlightEvents.Request event = new FlightEvents.Request();
+        event.begin();
+        try {
+            handleRequest(requestPacket, event);
+        } catch (IOException | RuntimeException e) {
+            event.outcome = "fault";
+            if (running && rejectLog.allow()) {
+                rejectLog.print("NOTE 141: Request from "
+                        + requestPacket.getSocketAddress()
+                        + " not processed. " + e);
+            }
+        } finally {
+            if (event.shouldCommit()) {
+                event.client = requestPacket.getAddress().getHostAddress();
+                event.port = requestPacket.getPort();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Processes a request with a valid opcode: drops it if malformed,
+     * answers it with an ERROR if not in octet mode, otherwise makes its
+     * Client, sends the first packet of a RRQ or checks the space for a
+     * WRQ, and hands the Client to TFTPServerThread. A fault after the
+     * Client is made gives up that Client only. A RRQ of a file the
+     * Storage has to look up on another host, as a RelayStorage miss, is
+     * begun by the thread that learns its size, so that the listener
+     * never waits on that host.
+     *
+     * @param requestPacket request received.
+     * @param event flight recorder event of the request, given its
+     *              request, file and outcome.
+     * @throws IOException if an I/O error occurs before the Client is
+     * made.
+     * */
+    private void handleRequest(DatagramPacket requestPacket,
+                               FlightEvents.Request event)
+            throws IOException {
+        byte[] packetContents = requestPacket.getData();
+        int length = requestPacket.getLength();
+        String filename = Client.getFilename(packetContents, length);
+        event.request = packetContents[1] == Opcode.RRQ.ordinal()
+                ? Opcode.RRQ.toString() : Opcode.WRQ.toString();
+        event.file = filename;
+        if (filename == null) {
+            reject("malformed request", requestPacket);
+            event.outcome = "malformed";
+            return;
+        }
+        if (!Client.isOctet(packetContents, length)) {
+            event.outcome = "not octet";
+            (new Client(this)).sendErrorPacket(Error.ILLEGAL_OPERATION,
+                    requestPacket);
+            System.out.println("NOTE 098: Mode of request not octet.\n");
+            return;
+        }
+        Map<String, String> options = Client.getOptions(packetContents,
+                length);
+        InetSocketAddress clientSocAddr = new InetSocketAddress(
+                requestPacket.getAddress(), requestPacket.getPort());
+
+        System.out.println("===============RECEIVED================");
+        System.out.println("Received a request from "
+                + requestPacket.getAddress() + ", "
+                + requestPacket.getPort() + ".");
+        String name = filenames.resolve(requestPacket.getAddress(), filename,
+                getStorage());
+        System.out.println("File in request is " + filename
+                + (name.equals(filename) ? "" : ", mapped to " + name)
+                + ".\n");
+        if (!options.isEmpty()) {
+            System.out.println("Options in request are " + options
+                    + ".\n");
+        }
 
-            InetAddress clientAddr = requestPacket.getAddress();
-            int clientPort = requestPacket.getPort();
-            InetSocketAddress clientSocAddr = new InetSocketAddress(
-                    clientAddr, clientPort);
-
-            if (mainStatusPending.containsKey(clientSocAddr)) {
-                System.out.println("NOTE 218: Duplicate client TID "
-                        + clientPort + " request rejected.\n");
-                continue; // reject connection as duplicate request
-            }
-
-            System.out.println("===============RECEIVED================");
-
-            byte[] packetContents = requestPacket.getData();
-            Opcode request;
-            String filename =
-                    (new Client()).getFilename(packetContents);
-
-            System.out.println("Received a request from "
-                    + requestPacket.getAddress() + ", "
-                    + requestPacket.getPort() + ".");
-            System.out.println("File in request is " + filename + ".\n");
-
-            if (buf[1] == Opcode.RRQ.ordinal()) {
-                System.out.println("RRQ, slavePort = "
-                        + TFTPServerThread.slaveSocket.getLocalPort()
-                        + ".\n");
-                request = Opcode.RRQ;
-            } else if (buf[1] == Opcode.WRQ.ordinal()) {
-                System.out.println("WRQ, slavePort = "
-                        + TFTPServerThread.slaveSocket.getLocalPort()
-                        + ".\n");
-                request = Opcode.WRQ;
-            } else {
-                (new Client()).sendErrorPacket(
-                        Error.ILLEGAL_OPERATION, requestPacket);
-                System.out.println("NOTE 099: Request not RRQ or WRQ.\n");
-                continue;
-            }
-
-            Client client = new Client(request, clientSocAddr, filename);
-            mainStatusPending.put(clientSocAddr, client);
-
-            System.out.println("TOTAL CLIENTS: " + mainStatusPending.size()
+        Opcode request;
+        if (packetContents[1] == Opcode.RRQ.ordinal()) {
+            System.out.println("RRQ, slavePort = " + getSlavePort()
                     + ".\n");
+            request = Opcode.RRQ;
+        } else {
+            System.out.println("WRQ, slavePort = " + getSlavePort()
+                    + ".\n");
+            request = Opcode.WRQ;
+        }
+
+        // a Storage asking another host for the file is not waited for
+        final CompletableFuture<Long> lookup = request == Opcode.RRQ
+                ? getStorage().lookup(name) : null;
+        TrafficCapture currentCapture = capture;
+        if (currentCapture != null) {
+            currentCapture.request(clientSocAddr, request, filename,
+                    lookup != null && lookup.isDone()
+                            && !lookup.isCompletedExceptionally()
+                            ? lookup.join() : -1, options);
+        }
+
+        final Client client = new Client(this, request, clientSocAddr, name,
+                options);
+        if (lookup != null && !lookup.isDone()) {
+            // started by the thread telling the size; the packet is copied
+            // as the listener receives the next request into its buffer
+            final DatagramPacket deferred = new DatagramPacket(
+                    Arrays.copyOf(packetContents, length), length,
+                    requestPacket.getAddress(), requestPacket.getPort());
+            lookup.whenComplete(new BiConsumer<Long, Throwable>() {
+                @Override
+                public void accept(Long size, Throwable fault) {
+                    if (running) {
+                        begin(client, deferred, lookup);
+                    }
+                }
+            });
+            event.outcome = "deferred";
+            return;
+        }
+        event.outcome = begin(client, requestPacket, lookup);
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Sends the first packet of a RRQ, rather than at the first turn, or
+     * refuses a WRQ too large before any DATA is sent, and hands the
+     * Client to TFTPServerThread. A fault gives up that Client only.
+     *
+     * @param client Client of a new request.
+     * @param requestPacket request received.
+     * @param lookup RRQ: lookup of the file in the Storage, done; null
+     *               for a WRQ.
+     * @return outcome of the request for its flight recorder event.
+     * */
+    private String begin(Client client, DatagramPacket requestPacket,
+                         CompletableFuture<Long> lookup) {
+        try {
+            boolean started = client.getRequestOpcode() == Opcode.RRQ
+                    ? client.startRead(requestPacket, lookup)
+                    : client.startWrite(requestPacket);
+            if (!started) {
+                return "refused";
+            }
+        } catch (IOException | RuntimeException e) {
+            client.fail(e);
+            return "fault";
+        }
+        arrivals.add(client);
+
+        System.out.println("TOTAL CLIENTS: " + sessions.size() + ".\n");
+        return "accepted";
+    }
+
+    /**
+     * Deletes the oldest event dumps in the dump directory, of any Server,
+     * beyond the latest Constants.EVENT_DUMP_LIMIT.
+     *
+     * @throws IOException if the directory cannot be listed or a dump
+     * deleted.
+     * */
+    private void pruneDumps() throws IOException {
+        List<Path> dumps = new ArrayList<>();
+        try (DirectoryStream<Path> listed = Files.newDirectoryStream(
+                dumpDirectory.toAbsolutePath(), "tftp-events-*.bin")) {
+            for (Path dump : listed) {
+                dumps.add(dump);
+            }
+        }
+        if (dumps.size() <= Constants.EVENT_DUMP_LIMIT) {
+            return;
+        }
+        final Map<Path, FileTime> modified = new HashMap<>();
+        for (Path dump : dumps) {
+            modified.put(dump, Files.getLastModifiedTime(dump));
+        }
+        dumps.sort(new Comparator<Path>() {
+            @Override
+            public int compare(Path a, Path b) {
+                return modified.get(a).compareTo(modified.get(b));
+            }
+        });
+        for (Path dump : dumps.subList(0, dumps.size()
+                - Constants.EVENT_DUMP_LIMIT)) {
+            Files.deleteIfExists(dump);
+        }
+    }
+
+    /**
+     * Counts a packet rejected and notes it, at most once every
+     * Constants.REJECT_LOG_INTERVAL. Takes constant time and allocates
+     * nothing unless the note is printed.
+     *
+     * @param reason why the packet was rejected.
+     * @param packet packet rejected.
+     * */
+    protected void reject(String reason, DatagramPacket packet) {
+        rejected.incrementAndGet();
+        if (rejectLog.allow()) {
+            rejectLog.print("NOTE 140: Rejected " + reason + " from "
+                    + packet.getAddress() + ", " + packet.getPort() + ".");
+        }
+    }
+
+    /**
+     * Records the time the first packet was served after start(), noting it
+     * if it took longer than Constants.STARTUP_TARGET. Called for every
+     * packet sent, so returns immediately after the first.
+     * */
+    protected void packetServed() {
+        if (firstPacketAt != 0) {
+            return;
+        }
+        firstPacketAt = System.nanoTime();
+        long micros = getTimeToFirstPacket();
+        System.out.println("NOTE 050: First packet served " + micros
+                + " us after start.\n");
+        if (micros > Constants.STARTUP_TARGET * 1000L) {
+            System.out.println("NOTE 051: Startup exceeded target of "
+                    + Constants.STARTUP_TARGET + " ms.\n");
+        }
+    }
+
+    /**
+     * Returns the local address and port of requests, for thread names and
+     * messages.
+     * @return "address:port", or "port N" if bound to all addresses.
+     * */
+    private String getName() {
+        if (address == null) {
+            return "port " + getPort();
+        }
+        String host = address.getHostAddress();
+        return (address instanceof Inet6Address ? "[" + host + "]" : host)
+                + ":" + getPort();
+    }
+
+    // getters and setters------------------------------------------------------
+
+    /**
+     * Returns the storage of the files served, making the default one on
+     * first use.
+     * @return storage of this Server.
+     * */
+    public Storage getStorage() {
+        Storage current = storage;
+        if (current == null) {
+            synchronized (this) {
+                if (storage == null) {
+                    storage = new FileSystemStorage(root);
+                }
+                current = storage;
+            }
+        }
+        return current;
+    }
+    /**
+     * Returns the scheduler of the turns of the Clients.
+     * @return scheduler of this Server.
+     * */
+    protected Scheduler getScheduler() {
+        return scheduler;
+    }
+    /**
+     * Returns the turns and queueing delays of every scheduling class.
+     * @return statistics of every class, in the order turns are given.
+     * */
+    public List<Scheduler.ClassStats> getSchedulingStats() {
+        return scheduler.getStats();
+    }
+    /**
+     * Returns the transfer state of every Client in process.
+     * @return sessions of this Server.
+     * */
+    protected SessionTable getSessions() {
+        return sessions;
+    }
+    /**
+     * Returns the egress rate limits of this Server.
+     * @return shaper of this Server.
+     * */
+    protected Shaper getShaper() {
+        return shaper;
+    }
+    /**
+     * Returns the configured and current rates of every egress rate limit:
+     * global, subnets and Clients in process.
+     * @return token buckets, empty if no limit is configured.
+     * */
+    public List<TokenBucket> getShapingStats() {
+        return shaper.getBuckets();
+    }
+    /**
+     * Returns the record of every packet sent and received.
+     * @return event ring of this Server.
+     * */
+    protected EventRing getEvents() {
+        return events;
+    }
+    /**
+     * Returns the capture of the traffic received.
+     * @return capture since the last start(), null if not capturing.
+     * */
+    protected TrafficCapture getCapture() {
+        return capture;
+    }
+    /**
+     * Returns the slave socket where transfers take place.
+     * @return slave socket of this Server.
+     * */
+    protected DatagramSocket getSlaveSocket() {
+        return thread.slaveSocket;
+    }
+    /**
+     * Returns the port where requests are received.
+     * @return bound request port, or the configured port if not started.
+     * */
+    public int getPort() {
+        return defaultSocket == null ? serverPort
+                : defaultSocket.getLocalPort();
+    }
+    /**
+     * Returns the local address requests and transfers are bound to.
+     * @return local address, null if bound to all addresses.
+     * */
+    public InetAddress getAddress() {
+        return address;
+    }
+    /**
+     * Returns the port where transfers take place.
+     * @return bound slave port, or the configured port if not started.
+     * */
+    public int getSlavePort() {
+        return thread == null ? slavePort : thread.slaveSocket.getLocalPort();
+    }
+    /**
+     * Returns the directory files are served from by the default Storage.
+     * @return root of this Server.
+     * */
+    public Path getRoot() {
+        return root;
+    }
+    /**
+     * Returns the engine processing the Clients of this Server.
+     * @return engine of this Server.
+     * */
+    public Engine getEngine() {
+        return engine;
+    }
+    /**
+     * Returns the block number following 65535 on the wire, unless a Client
+     * requests otherwise with the rollover option.
+     * @return 0 or 1.
+     * */
+    public int getBlockRollover() {
+        return blockRollover;
+    }
+    /**
+     * Returns whether windowed transfers adapt their window to loss, or
+     * keep the negotiated windowsize.
+     * @return true if congestion control is on.
+     * */
+    public boolean isCongestionControl() {
+        return congestionControl;
+    }
+    /**
+     * Returns the packets the kernel dropped on the sockets of this Server
+     * because their receive buffers were full, since the last start().
+     * Known on Linux only.
+     * @return number of packets, 0 if unknown.
+     * */
+    public long getKernelDrops() {
+        SocketTuner current = tuner;
+        return current == null ? 0 : current.getDrops();
+    }
+    /**
+     * Returns what sizes the socket buffers of this Server and watches
+     * them for drops.
+     * @return tuner, null if never started.
+     * */
+    protected SocketTuner getTuner() {
+        return tuner;
+    }
+    /**
+     * Returns what maps the filenames in requests to stored files.
+     * @return filename map.
+     * */
+    public FilenameMap getFilenames() {
+        return filenames;
+    }
+    /**
+     * Returns what chooses the block size of read requests asking for
+     * blksize.
+     * @return path MTU of the Clients.
+     * */
+    protected PathMtu getPathMtu() {
+        return pathMtu;
+    }
+    /**
+     * Returns the largest file accepted by a WRQ.
+     * @return size in bytes, Long.MAX_VALUE if unlimited.
+     * */
+    public long getUploadLimit() {
+        return uploadLimit;
+    }
+    /**
+     * Returns whether this Server is started and not yet stopped.
+     * @return true if running.
+     * */
+    public boolean isRunning() {
+        return running;
+    }
+    /**
+     * Returns the number of packets rejected so far: malformed, of an
+     * unknown TID, or out of sequence.
+     * @return number of packets rejected since this Server was built.
+     * */
+    public long getRejected() {
+        return rejected.get();
+    }
+    /**
+     * Returns the notes of packets rejected and Clients given up.
+     * @return rate-limited log of this Server.
+     * */
+    protected LogLimiter getRejectLog() {
+        return rejectLog;
+    }
+    /**
+     * Returns the time from the last start() to the first packet served,
+     * excluding the time spent idle before the first request arrived.
+     * @return time in microseconds, -1 if no packet was served yet.
+     * */
+    public long getTimeToFirstPacket() {
+        long served = firstPacketAt;
+        long requested = firstRequestAt;
+        if (served == 0 || requested == 0) {
+            return -1;
+        }
+        long idle = Math.max(0, requested - readyAt);
+        return (served - startedAt - idle) / 1000;
+    }
+
+    /**
+     * Configuration of a TFTPServer. All settings are optional.
+     * */
+    public static final class Builder {
+        /** Port of requests. */
+        private int serverPort = Constants.DEFAULT_SERVER_PORT;
+        /** Port of transfers, 0 for any free port. */
+        private int slavePort = 0;
+        /** Local address of both sockets, null for all. */
+        private InetAddress address;
+        /** Directory of served files. */
+        private Path root = Paths.get("");
+        /** Engine processing the Clients. */
+        private Engine engine = Engine.DEFICIT_ROUND_ROBIN;
+        /** Block number following 65535. */
+        private int blockRollover = Constants.BLOCK_ROLLOVER;
+        /** Whether windowed transfers adapt their window to loss. */
+        private boolean congestionControl = true;
+        /** Largest file accepted by a WRQ. */
+        private long uploadLimit = Long.MAX_VALUE;
+        /** Size of the socket buffers, 0 to size them by demand. */
+        private int socketBuffer;
+        /** Maps the filenames in requests to stored files. */
+        private FilenameMap filenames = FilenameMap.builder().build();
+        /** MTU of every path, 0 to take that of the interface. */
+        private int mtu;
+        /** MTU of subnets, in order. */
+        private final Map<String, Integer> subnetMtus = new LinkedHashMap<>();
+        /** Whether black holes lower the block size of later transfers. */
+        private boolean mtuProbing;
+        /** Number of sessions held before the session table grows. */
+        private int sessionCapacity = Constants.SESSION_CAPACITY;
+        /** Directory of event dumps. */
+        private Path dumpDirectory = Paths.get("");
+        /** File of the traffic capture, null for none. */
+        private Path captureFile;
+        /** Number of events kept. */
+        private int eventCapacity = Constants.EVENT_CAPACITY;
+        /** Storage of served files, null for the default. */
+        private Storage storage;
+        /** Weights of the scheduling classes, in turn order. */
+        private final Map<String, Integer> weights = new LinkedHashMap<>();
+        /** Limit of everything sent in bytes per second, 0 for none. */
+        private long rateLimit;
+        /** Limit of each Client in bytes per second, 0 for none. */
+        private long sessionRateLimit;
+        /** Limits of subnets in bytes per second, in order. */
+        private final Map<String, Long> subnetRateLimits =
+                new LinkedHashMap<>();
+        /** Classifier of Clients into scheduling classes. */
+        private Scheduler.Classifier classifier =
+                Scheduler.bySize(Constants.SMALL_FILE_SIZE);
+
+        private Builder() {
+            weights.put(Scheduler.SMALL, Constants.SMALL_CLASS_WEIGHT);
+            weights.put(Scheduler.BULK, 1);
+        }
+
+
+        /**
+         * Sets the port where requests are received, 69 by default.
+         * @param port port number, 0 for any free port.
+         * @return this Builder.
+         * */
+        public Builder port(int port) {
+            serverPort = port;
+            return this;
+        }
+        /**
+         * Sets the port where transfers take place, any free port by default.
+         * @param port port number, 0 for any free port.
+         * @return this Builder.
+         * */
+        public Builder slavePort(int port) {
+            slavePort = port;
+            return this;
+        }
+        /**
+         * Binds the Server to a single local address, so that it only
+         * receives requests sent to that address and every reply leaves from
+         * it. All addresses by default.
+         * @param localAddress IPv4 or IPv6 local address, null for all.
+         * @return this Builder.
+         * */
+        public Builder address(InetAddress localAddress) {
+            address = localAddress;
+            return this;
+        }
+        /**
+         * Sets the directory files are served from, the working directory by
+         * default.
+         * @param directory root of the Server.
+         * @return this Builder.
+         * */
+        public Builder root(Path directory) {
+            root = directory;
+            return this;
+        }
+        /**
+         * Sets the engine processing the Clients.
+         * @param clientEngine engine of the Server.
+         * @return this Builder.
+         * */
+        public Builder engine(Engine clientEngine) {
+            engine = clientEngine;
+            return this;
+        }
+        /**
+         * Sets the block number following 65535 on the wire for transfers of
+         * more than 65535 blocks, to match the behaviour of the Clients.
+         * @param rollover 0 or 1.
+         * @return this Builder.
+         * @throws IllegalArgumentException if rollover is not 0 or 1.
+         * */
+        public Builder blockRollover(int rollover) {
+            if (rollover != 0 && rollover != 1) {
+                throw new IllegalArgumentException("Block rollover must be 0 "
+                        + "or 1.");
+            }
+            blockRollover = rollover;
+            return this;
+        }
+        /**
+         * Sets whether windowed transfers (RFC 7440) adapt their window to
+         * timeouts and partial ACKs, on by default. When off, every window
+         * is the negotiated windowsize.
+         * @param adaptive true for congestion control, false for fixed
+         *                 windows.
+         * @return this Builder.
+         * */
+        public Builder congestionControl(boolean adaptive) {
+            congestionControl = adaptive;
+            return this;
+        }
+        /**
+         * Sets the number of concurrent sessions the session table holds
+         * before it grows, Constants.SESSION_CAPACITY by default.
+         * @param capacity number of sessions.
+         * @return this Builder.
+         * */
+        public Builder sessionCapacity(int capacity) {
+            sessionCapacity = capacity;
+            return this;
+        }
+        /**
+         * Sets the directory where event dumps are written, the working
+         * directory by default.
+         * @param directory directory of event dumps.
+         * @return this Builder.
+         * */
+        public Builder dumpDirectory(Path directory) {
+            dumpDirectory = directory;
+            return this;
+        }
+        /**
+         * Captures the timing of every request, ACK and DATA received to a
+         * file, to be replayed with TrafficReplay. Off by default. The file
+         * is written anew on every start().
+         * @param file capture file, null for no capture.
+         * @return this Builder.
+         * */
+        public Builder capture(Path file) {
+            captureFile = file;
+            return this;
+        }
+        /**
+         * Sets the number of most recent events kept for dumps.
+         * @param capacity number of events, rounded up to a power of two.
+         * @return this Builder.
+         * */
+        public Builder eventCapacity(int capacity) {
+            eventCapacity = capacity;
+            return this;
+        }
+        /**
+         * Sets where files are read from and written to, in place of a
+         * FileSystemStorage of the root directory. The Server does not
+         * close a Storage given here.
+         * @param fileStorage storage of the Server.
+         * @return this Builder.
+         * */
+        public Builder storage(Storage fileStorage) {
+            storage = fileStorage;
+            return this;
+        }
+        /**
+         * Sets the weight of a scheduling class of the DEFICIT_ROUND_ROBIN
+         * engine, the number of turns it is given each round. Classes are
+         * given turns in the order they are first set. By default, "small"
+         * has weight Constants.SMALL_CLASS_WEIGHT and "bulk" 1.
+         * @param name name of the class, as returned by the Classifier.
+         * @param weight turns per round, at least 1.
+         * @return this Builder.
+         * @throws IllegalArgumentException if weight is less than 1.
+         * */
+        public Builder schedulingClass(String name, int weight) {
+            if (weight < 1) {
+                throw new IllegalArgumentException("Weight must be at "
+                        + "least 1.");
+            }
+            weights.put(name, weight);
+            return this;
+        }
+        /**
+         * Sets the Classifier of Clients into scheduling classes of the
+         * DEFICIT_ROUND_ROBIN engine, by file size by default.
+         * @param clientClassifier classifier, for example Scheduler.rules().
+         * @return this Builder.
+         * */
+        public Builder classifier(Scheduler.Classifier clientClassifier) {
+            classifier = clientClassifier;
+            return this;
+        }
+        /**
+         * Fixes the receive and send buffers of both sockets. By default
+         * they are sized by the windows of the Clients in process and grown
+         * when the kernel drops packets, see SocketTuner.
+         * @param bytes size of every buffer, 0 to size them by demand.
+         * @return this Builder.
+         * */
+        public Builder socketBuffer(int bytes) {
+            socketBuffer = Math.max(0, bytes);
+            return this;
+        }
+        /**
+         * Sets what maps the filenames in requests to the names of stored
+         * files. By default filenames are only normalized, see
+         * FilenameMap.normalize().
+         * @param map filename map, may be shared by several Servers.
+         * @return this Builder.
+         * */
+        public Builder filenames(FilenameMap map) {
+            filenames = map;
+            return this;
+        }
+        /**
+         * Sets the MTU of the path to every Client, which the blksize of a
+         * read request is held to. By default it is that of the interface
+         * the Client is reached through, see PathMtu.
+         * @param bytes MTU, at least PathMtu.MIN_MTU, 0 for that of the
+         *              interface.
+         * @return this Builder.
+         * @throws IllegalArgumentException if the MTU is out of range.
+         * */
+        public Builder mtu(int bytes) {
+            if (bytes != 0 && (bytes < PathMtu.MIN_MTU || bytes > 65535)) {
+                throw new IllegalArgumentException("MTU must be 0 or from "
+                        + PathMtu.MIN_MTU + " to 65535 bytes.");
+            }
+            mtu = bytes;
+            return this;
+        }
+        /**
+         * Sets the MTU of the path to the Clients of a subnet, such as one
+         * behind a tunnel. A Client in several subnets set takes the first
+         * one set.
+         * @param cidr subnet in CIDR notation, for example "10.1.0.0/16".
+         * @param bytes MTU, at least PathMtu.MIN_MTU.
+         * @return this Builder.
+         * @throws IllegalArgumentException if cidr is not a numeric subnet
+         * or the MTU is out of range.
+         * */
+        public Builder subnetMtu(String cidr, int bytes) {
+            Subnet.parse(cidr);
+            if (bytes < PathMtu.MIN_MTU || bytes > 65535) {
+                throw new IllegalArgumentException("MTU must be from "
+                        + PathMtu.MIN_MTU + " to 65535 bytes.");
+            }
+            subnetMtus.put(cidr, bytes);
+            return this;
+        }
+        /**
+         * Sets whether a Client whose full blocks time out before any is
+         * acknowledged is offered smaller blocks in its later transfers, off
+         * by default. The transfer in which the blocks are lost goes on in
+         * its own block size.
+         * @param probing true to lower the MTU set or detected on black
+         *                holes.
+         * @return this Builder.
+         * */
+        public Builder mtuProbing(boolean probing) {
+            mtuProbing = probing;
+            return this;
+        }
+        /**
+         * Limits the size of the files written by WRQ, none by default. A
+         * WRQ whose tsize is larger is answered with DISK_FULL before any
+         * DATA is sent, as is one that would not fit in the Storage.
+         * @param bytes largest file accepted, in bytes.
+         * @return this Builder.
+         * */
+        public Builder uploadLimit(long bytes) {
+            uploadLimit = Math.max(0, bytes);
+            return this;
+        }
+        /**
+         * Limits the rate of everything sent by the Server, none by default.
+         * Packets are counted with their IP and UDP headers.
+         * @param bytesPerSecond limit, 0 for none.
+         * @return this Builder.
+         * */
+        public Builder rateLimit(long bytesPerSecond) {
+            rateLimit = Math.max(0, bytesPerSecond);
+            return this;
+        }
+        /**
+         * Limits the rate sent to each Client, none by default.
+         * @param bytesPerSecond limit, 0 for none.
+         * @return this Builder.
+         * */
+        public Builder sessionRateLimit(long bytesPerSecond) {
+            sessionRateLimit = Math.max(0, bytesPerSecond);
+            return this;
+        }
+        /**
+         * Limits the rate sent to all Clients of a subnet together. A Client
+         * in several limited subnets is limited by the first one set.
+         * @param cidr subnet in CIDR notation, for example "10.1.0.0/16".
+         * @param bytesPerSecond limit, at least 1.
+         * @return this Builder.
+         * @throws IllegalArgumentException if cidr is not a numeric subnet
+         * or the limit is less than 1.
+         * */
+        public Builder subnetRateLimit(String cidr, long bytesPerSecond) {
+            Subnet.parse(cidr);
+            if (bytesPerSecond < 1) {
+                throw new IllegalArgumentException("Rate limit must be at "
+                        + "least 1 byte per second.");
+            }
+            subnetRateLimits.put(cidr, bytesPerSecond);
+            return this;
+        }
+        /**
+         * Returns a new TFTPServer with this configuration, not yet started.
+         * @return configured TFTPServer.
+         * */
+        public TFTPServer build() {
+            return new TFTPServer(this);
+        }
+        /**
+         * Returns one new TFTPServer per local address with this
+         * configuration, not yet started. Each Server has its own listener,
+         * TFTPServerThread, sessions, Scheduler and rate limits, while the
+         * files are served from one Storage shared by all. The address set
+         * with address() is ignored, and a capture file set with capture()
+         * is written per Server, with the address added to its name.
+         * @param addresses local addresses, IPv4 or IPv6.
+         * @return configured group of TFTPServers.
+         * @throws IllegalArgumentException if no address is given.
+         * */
+        public ServerGroup buildGroup(List<InetAddress> addresses) {
+            if (addresses.isEmpty()) {
+                throw new IllegalArgumentException("At least one address "
+                        + "required.");
+            }
+            InetAddress configuredAddress = address;
+            Path configuredCapture = captureFile;
+            Storage configuredStorage = storage;
+            Storage ownedStorage = null;
+            if (storage == null) {
+                ownedStorage = new FileSystemStorage(
+                        root.toAbsolutePath().normalize());
+                storage = ownedStorage;
+            }
+
+            List<TFTPServer> servers = new ArrayList<>();
+            try {
+                for (InetAddress localAddress : addresses) {
+                    address = localAddress;
+                    if (configuredCapture != null) {
+                        captureFile = configuredCapture.resolveSibling(
+                                configuredCapture.getFileName() + "-"
+                                + localAddress.getHostAddress()
+                                        .replace(':', '.'));
+                    }
+                    servers.add(build());
+                }
+            } finally {
+                address = configuredAddress;
+                captureFile = configuredCapture;
+                storage = configuredStorage;
+            }
+            return new ServerGroup(servers, ownedStorage);
         }
     }
 
@@ -16,10 +16,12 @@
  * */
 package transport;
 
-import java.io.File;
 import java.io.IOException;
 import java.net.*;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Represents the second of two threads in this Server, which processes the
@@ -29,211 +31,399 @@ import java.util.Map;
  * @version 1.0 %G%, %U%.
  * */
 public class TFTPServerThread extends Thread {
-    private static final int SLAVE_PORT =
-            (int) (Math.random() * (Constants.MAX_PORT - Constants.MIN_PORT))
-                    + Constants.MIN_PORT;
-    protected static DatagramSocket slaveSocket;
+    /** Longest wait in milliseconds for a packet under the EVENT_LOOP
+     * engine before new Clients are taken in. */
+    private static final int POLL_INTERVAL = 1;
 
-    static {
-        try {
-            slaveSocket = new DatagramSocket(SLAVE_PORT);
-        } catch (SocketException e) {
-            e.printStackTrace();
+    /** Server whose Clients are processed by this thread. */
+    private final TFTPServer server;
+    /** Sole slave socket of the Server, where transfers take place. */
+    protected final DatagramSocket slaveSocket;
+    /** Runs one turn of a Client for the Scheduler of the Server. */
+    private final Scheduler.Turn turn = new Scheduler.Turn() {
+        @Override
+        public boolean run(Client client) throws IOException {
+            System.out.println(">>> Next Client or operation...\n");
+            try {
+                runTFTPServer(client);
+            } catch (IOException e) {
+                if (slaveSocket.isClosed()) {
+                    throw e; // the Server is stopping
+                }
+                client.fail(e);
+            } catch (RuntimeException e) {
+                client.fail(e);
+            }
+            return !client.isFinished();
         }
+
+        @Override
+        public long delay(Client client) {
+            return client.delay();
+        }
+    };
+
+    /**
+     * Sole constructor. Binds the slave socket.
+     *
+     * @param server Server whose Clients are processed by this thread.
+     * @param slavePort port of the slave socket, 0 for any free port.
+     * @throws SocketException if the slave socket cannot be bound.
+     * */
+    public TFTPServerThread(TFTPServer server, int slavePort)
+            throws SocketException {
+        this(server, slavePort, null);
     }
 
-    public TFTPServerThread() {
+    /**
+     * Constructor binding the slave socket to one local address, so that
+     * every packet of a transfer leaves from the interface its request
+     * arrived on.
+     *
+     * @param server Server whose Clients are processed by this thread.
+     * @param slavePort port of the slave socket, 0 for any free port.
+     * @param address local address of the slave socket, null for all.
+     * @throws SocketException if the slave socket cannot be bound.
+     * */
+    public TFTPServerThread(TFTPServer server, int slavePort,
+                            InetAddress address) throws SocketException {
+        super("TFTPServerThread" + (address == null ? ""
+                : "-" + address.getHostAddress()));
+        this.server = server;
+        slaveSocket = new DatagramSocket(new InetSocketAddress(address,
+                slavePort));
+    }
+
+    /**
+     * Constructor taking a slave socket already made, such as one of a
+     * SimulatedNetwork. The socket is closed by shutdown().
+     *
+     * @param server Server whose Clients are processed by this thread.
+     * @param socket slave socket of the Server.
+     * */
+    protected TFTPServerThread(TFTPServer server, DatagramSocket socket) {
         super("TFTPServerThread");
+        this.server = server;
+        slaveSocket = socket;
+    }
+
+    /**
+     * Stops this thread by closing the slave socket, which also ends any
+     * blocking receive in process, and waking it with a throw-away Client
+     * if it waits for one. Not by interrupt(), which would close the file
+     * channels shared with other Servers if a read was in process.
+     * */
+    protected void shutdown() {
+        slaveSocket.close();
+        server.arrivals.add(new Client(server));
     }
 
     /**
-     * Main run() function of thread. Runs forever.
+     * Main run() function of thread. Runs until the Server is stopped. Every
+     * pass admits the Clients handed over by the listener thread to the
+     * Scheduler of the Server, runs one round of turns and drops the
+     * Clients done.
+     *
+     * With no Client in process, blocks on the queue of new Clients, so an
+     * idle Server takes no CPU time and a request is picked up as soon as
+     * it is handed over. With every Client held back by a rate limit,
+     * waits on the same queue until the first may go again.
      * */
     @Override
     public void run() {
+        if (server.getEngine() == Engine.EVENT_LOOP) {
+            try {
+                runEvents();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                if (server.isRunning()) {
+                    System.out.println("NOTE 143: Server thread stopped. "
+                            + e + "\n");
+                    server.dumpEventsOnError();
+                }
+            }
+            return;
+        }
+        Scheduler scheduler = server.getScheduler();
+        long idle = 0;
         try {
-            while (true) {
-                // Math.random() and int i = 0 are necessary to 'stimulate'
-                // machine to perform this while-loop. Server fails without
-                // this necessary function.
-                if (Math.random() > 0.50) { // DO NOT DELETE
-                   int i = 0; // DO NOT DELETE
+            while (server.isRunning()) {
+                Client arrived;
+                if (server.mainStatus.isEmpty()) {
+                    arrived = server.arrivals.take();
+                } else if (idle > 0) {
+                    arrived = server.arrivals.poll(idle,
+                            TimeUnit.NANOSECONDS);
+                } else {
+                    arrived = server.arrivals.poll();
+                }
+                if (!server.isRunning()) {
+                    break;
                 }
-                for (Client c : TFTPServer.mainStatus.values()) {
-                   System.out.println(">>> Next Client or operation...\n");
-                   runTFTPServer(c);
+                while (arrived != null) {
+                    admit(scheduler, arrived);
+                    arrived = server.arrivals.poll();
                 }
 
-                if (!TFTPServer.mainStatus.equals(TFTPServer
-                       .mainStatusPending)) {
-                   System.out.println("NOTE 741: Client list updated.\n");
-                   TFTPServer.mainStatus.clear();
-                   TFTPServer.mainStatus.putAll(TFTPServer.mainStatusPending);
+                idle = scheduler.round(turn);
+                server.getShaper().report();
+
+                Iterator<Client> clients = server.mainStatus.values()
+                        .iterator();
+                while (clients.hasNext()) {
+                    if (clients.next().isFinished()) {
+                        clients.remove();
+                    }
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
-            e.printStackTrace();
-            System.out.println("IOException occurred.\n");
+            if (server.isRunning()) {
+                System.out.println("NOTE 143: Server thread stopped. " + e
+                        + "\n");
+                server.dumpEventsOnError();
+            }
         }
     }
 
+    //=========================helper methods===================================
+
     /**
-     * Runs the main process.
+     * Body of this thread under the EVENT_LOOP engine. Every pass takes in
+     * the Clients handed over by the listener thread, receives at most one
+     * packet, until the first timer is due, and passes it to the Client it
+     * is from, then runs every timer due. Blocks on the queue of new
+     * Clients while there is no Client in process, like run().
      *
-     * If a read request (RRQ) is received, the file requested is checked
-     * first if it exists. A FILE_NOT_FOUND ERROR packet is sent if it doesn't.
-     *
-     * @param client specific individual client to process.
      * @throws IOException if an I/O error occurs.
+     * @throws InterruptedException if interrupted while waiting.
      * */
-    private void runTFTPServer(Client client) throws IOException {
-
-        DatagramPacket initialRequestPacket =
-                generateRequestPacket(client.getRequestOpcode(),
-                        client.getFilename(), client.getClientAddr(),
-                        client.getClientPort());
+    private void runEvents() throws IOException, InterruptedException {
+        EventLoop loop = new EventLoop();
+        byte[] buf = new byte[Constants.DEFAULT_DATA_SIZE + 4];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
 
-        if (client.getRequestOpcode() == Opcode.RRQ) {
+        while (server.isRunning()) {
+            Client arrived = server.mainStatus.isEmpty()
+                    ? server.arrivals.take() : server.arrivals.poll();
+            if (!server.isRunning()) {
+                break;
+            }
+            while (arrived != null) {
+                loop.admit(arrived, System.nanoTime());
+                arrived = server.arrivals.poll();
+            }
 
-            if (client.getBlockNumber() == 1) {
-                // verify file exists; if not, send FILE_NOT_FOUND error to
-                // client
-                if (fileExists(initialRequestPacket)) {
-                    readRequestServer(initialRequestPacket);
-                } else {
-                    client.sendFileNotFoundError(initialRequestPacket);
+            long wait = loop.hasTimers()
+                    ? loop.getDeadline() - System.nanoTime()
+                    : POLL_INTERVAL * 1_000_000L;
+            if (wait > 0 && wait < 1_000_000) {
+                // a paced block due sooner than a socket timeout can wait
+                LockSupport.parkNanos(wait);
+            } else if (wait > 0) {
+                slaveSocket.setSoTimeout((int) Math.min(POLL_INTERVAL,
+                        wait / 1_000_000));
+                packet.setData(buf, 0, buf.length);
+                try {
+                    slaveSocket.receive(packet);
+                    loop.receive(packet, System.nanoTime());
+                } catch (SocketTimeoutException e) {
+                    // a timer is due, or new Clients may be waiting
                 }
-            } else {
-                readRequestServer(initialRequestPacket);
             }
 
-        } else if (client.getRequestOpcode() == Opcode.WRQ) {
-            writeRequestServer(initialRequestPacket);
-        } else {
-            System.out.println("ERROR 868\n");
-            System.exit(-1);
+            loop.expire(System.nanoTime());
+            server.getShaper().report();
         }
     }
 
     /**
-     * The read method that leads to the main read method on the Server side.
-     * Request packet was previously verified to be a read request and file
-     * verified to exist.
+     * Puts a Client handed over by the listener thread in process, unless
+     * it is already done, which a RRQ whose first packet failed is.
      *
-     * If the request is new, calls a method to make a read buffer of the
-     * file. Calls the main read method 'Client.readFile()'.
+     * @param scheduler Scheduler of the Server.
+     * @param client Client of a new request.
+     * */
+    private void admit(Scheduler scheduler, Client client) {
+        if (client.isFinished()) {
+            return;
+        }
+        server.mainStatus.put(new InetSocketAddress(client.getClientAddr(),
+                client.getClientPort()), client);
+        scheduler.admit(client, client.getFileSize());
+    }
+
+    /**
+     * Runs one turn of a Client. The requested file of a read request (RRQ)
+     * was found and opened, and its first packet sent, by the listener of
+     * the Server as soon as the request was received.
      *
-     * @param rrqPacket read request from client, previously verified to be a
-     *                 read request.
+     * @param client specific individual client to process.
      * @throws IOException if an I/O error occurs.
      * */
-    private void readRequestServer(DatagramPacket rrqPacket)
-            throws IOException {
-
-        int clientPort = rrqPacket.getPort();
-        InetAddress clientAddr = rrqPacket.getAddress();
-        int blockNumber = getClient(clientAddr, clientPort).getBlockNumber();
-
-        // make file reader buffer at first step, file already confirmed to
-        // exist
-        if (blockNumber == 1) {
-            getClient(clientAddr, clientPort).makeBuffer();
+    private void runTFTPServer(Client client) throws IOException {
+        if (client.getRequestOpcode() == Opcode.RRQ) {
+            // get one block acknowledged and move on to next Client
+            client.readFile();
+        } else if (client.getRequestOpcode() == Opcode.WRQ) {
+            writeRequestServer(client);
+        } else {
+            throw new IllegalStateException("ERROR 868: Request "
+                    + client.getRequestOpcode() + " not RRQ or WRQ.");
         }
-
-        // get one block acknowledged and move on to next Client
-        getClient(clientAddr, clientPort).readFile();
     }
 
     /**
      * The write method that leads to the main write method on the Server side.
-     * Request packet previously verified to be a write request.
      *
      * If the request is new, attempts to send the first ACK (ACK 0) to Sender.
      * Calls the main write method 'Client.receiveWrittenFile()'.
      *
-     * @param request write request received from Client, previously verified
-     *               to be a write request.
+     * @param client Client of a write request.
      * @throws IOException if an I/O error occurs.
      * */
-    private void writeRequestServer(DatagramPacket request)
-            throws IOException {
-
-        int clientPort = request.getPort();
-        InetAddress clientAddr = request.getAddress();
-        int blockExpected = getClient(clientAddr, clientPort)
-                .getBlockExpected();
-
+    private void writeRequestServer(Client client) throws IOException {
         // send first ACK 0 and wait until DATA 1 is received and processed.
-        if (blockExpected == 1) {
-            getClient(clientAddr, clientPort).sendFirstAck();
+        if (client.getBlockExpected() == 1) {
+            client.sendFirstAck();
         }
 
         // receive and process subsequent DATA packets
-        getClient(clientAddr, clientPort).receiveWrittenFile();
+        client.receiveWrittenFile();
     }
 
-    // ==========================helper methods=================================
-
     /**
-     * Returns the Client object from TFTPServer.mainStatus based on the
-     * Socket Internet Address (address and port) identifier.
+     * Clients in process under the EVENT_LOOP engine, by slot, and their
+     * timers. Driven by runEvents() with System.nanoTime(), or by a
+     * Simulation with the virtual clock of its network: every method
+     * takes the time of the step rather than reading a clock, so that a
+     * run is repeatable.
      *
-     * @param addr Internet address of intended client.
-     * @param port port number of intended client.
-     * @return Client that has the matching Internet address and port number.
+     * A packet of a Client not yet taken in is held for it in the sessions
+     * of the Server and passed to it once its transfer has begun.
      * */
-    private Client getClient(InetAddress addr, int port) {
-        for (Map.Entry<InetSocketAddress, Client> i
-                : TFTPServer.mainStatus.entrySet()) {
-            InetSocketAddress current = i.getKey();
-            if (current.equals(new InetSocketAddress(addr, port))) {
-                return i.getValue();
+    protected final class EventLoop {
+        /** Sessions of the Server. */
+        private final SessionTable sessions = server.getSessions();
+        /** Clients in process by slot. */
+        private Client[] bySlot = new Client[sessions.getCapacity()];
+        /** Timers of the Clients in process. */
+        private final TimerHeap timers =
+                new TimerHeap(sessions.getCapacity());
+        /** Buffer of a packet held for a Client taken in. */
+        private final byte[] buf = new byte[Constants.DEFAULT_DATA_SIZE + 4];
+        /** Packet held for a Client taken in. */
+        private final DatagramPacket held = new DatagramPacket(buf,
+                buf.length);
+
+        /**
+         * Takes in a Client handed over by the listener, unless it is
+         * already done, and begins its transfer.
+         *
+         * @param client Client of a new request.
+         * @param now current time in nanoseconds.
+         * @throws IOException if the slave socket is closed.
+         * */
+        protected void admit(Client client, long now) throws IOException {
+            if (client.isFinished()) {
+                return;
+            }
+            int slot = client.getSlot();
+            if (slot >= bySlot.length) {
+                bySlot = Arrays.copyOf(bySlot, Math.max(slot + 1,
+                        bySlot.length * 2));
+            }
+            bySlot[slot] = client;
+            server.mainStatus.put(new InetSocketAddress(
+                    client.getClientAddr(), client.getClientPort()), client);
+            settle(client, client.begin(now), now);
+            int length = sessions.take(slot, buf);
+            if (length >= 0 && !client.isFinished()) {
+                held.setData(buf, 0, length);
+                settle(client, client.step(held, now), now);
             }
         }
-        System.out.println("ERROR 160: getClient produced null.");
-        System.exit(-1);
-        return null;
-    }
 
-    /**
-     * Returns a write / read request packet with the intended file and
-     * Socket Internet Address.
-     *
-     * @param opcode either Opcode.WRQ or Opcode.RRQ for write and read
-     *               requests respectively.
-     * @param filename name of target file.
-     * @param addr Internet address of Client where request originally from.
-     * @param port port number of Client where request originally from.
-     * @return write / read request packet with filename and Socket address.
-     * */
-    private DatagramPacket generateRequestPacket(Opcode opcode,
-                                                 String filename,
-                                                 InetAddress addr, int port) {
-        return (new Client()).generateRequestPacket(opcode, filename, addr,
-                port);
-    }
+        /**
+         * Passes a packet received at the slave socket to the Client it is
+         * from, holds it for a Client not yet taken in, or rejects it.
+         *
+         * @param packet packet received.
+         * @param now time of receipt in nanoseconds.
+         * @throws IOException if the slave socket is closed.
+         * */
+        protected void receive(DatagramPacket packet, long now)
+                throws IOException {
+            byte[] contents = packet.getData();
+            int slot = packet.getLength() < 4 || contents[0] != 0 ? -1
+                    : sessions.find(packet.getAddress(), packet.getPort());
+            Client client = slot >= 0 && slot < bySlot.length
+                    ? bySlot[slot] : null;
+            if (client != null) {
+                settle(client, client.step(packet, now), now);
+            } else if (slot >= 0) { // not yet taken in
+                sessions.hold(packet.getAddress(), packet.getPort(),
+                        contents, packet.getLength());
+            } else {
+                server.reject("malformed packet or unknown TID", packet);
+            }
+        }
 
-    /**
-     * Returns true if the file requested is found. False otherwise.
-     *
-     * @param request read request received.
-     * @return true if file requested in read request is found. False otherwise.
-     * */
-    private boolean fileExists(DatagramPacket request) {
-        File file = new File(getFilename(request.getData()));
-        return file.exists();
-    }
+        /**
+         * Runs every timer due.
+         *
+         * @param now current time in nanoseconds.
+         * @throws IOException if the slave socket is closed.
+         * */
+        protected void expire(long now) throws IOException {
+            while (!timers.isEmpty() && timers.peekDeadline() - now <= 0) {
+                int slot = timers.poll();
+                Client client = bySlot[slot];
+                if (client != null) {
+                    settle(client, client.expire(now), now);
+                }
+            }
+        }
 
-    /**
-     * Returns the filename from a write request (WRQ) or read request (RRQ).
-     * Exits system if mode is not octet (and indirectly if the packet's
-     * contents do not resemble that of a WRQ or RRQ).
-     *
-     * @param b raw content of received WRQ or RRQ.
-     * @return filename kept inside the WRQ or RRQ.
-     * */
-    private String getFilename(byte[] b) {
-        return (new Client()).getFilename(b);
+        /**
+         * Sets the timer of a Client after a step of its transfer, or drops
+         * the Client if its transfer has ended.
+         *
+         * @param client Client stepped.
+         * @param timer nanoseconds until its timer is due, Transfer.NO_TIMER
+         *              if none.
+         * @param now time of the step in nanoseconds.
+         * */
+        private void settle(Client client, long timer, long now) {
+            int slot = client.getSlot();
+            if (client.isFinished()) {
+                bySlot[slot] = null;
+                timers.cancel(slot);
+                server.mainStatus.remove(new InetSocketAddress(
+                        client.getClientAddr(), client.getClientPort()));
+            } else if (timer == Transfer.NO_TIMER) {
+                timers.cancel(slot);
+            } else {
+                timers.schedule(slot, now + timer);
+            }
+        }
+
+        /**
+         * Returns whether any timer is set.
+         * @return false if no Client waits for a timer.
+         * */
+        protected boolean hasTimers() {
+            return !timers.isEmpty();
+        }
+        /**
+         * Returns when the first timer is due, if any is set.
+         * @return deadline in nanoseconds.
+         * */
+        protected long getDeadline() {
+            return timers.peekDeadline();
+        }
     }
 
     // END OF FILE
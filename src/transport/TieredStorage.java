@@ -0,0 +1,338 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Storage serving hot files from memory in front of a slower Storage,
+ * usually a FileSystemStorage. A file read 'promoteAfter' times is copied
+ * into memory by a background thread and served from there for as long as
+ * its size and last modified time on the backing Storage are unchanged.
+ * Once the memory tier is full, the least recently read files are dropped
+ * from it to make room.
+ *
+ * Writes go to the backing Storage and drop the copy in memory.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class TieredStorage implements Storage {
+    /** Storage every file is kept on. */
+    private final Storage backing;
+    /** Copies of the hot files. */
+    private final MemoryStorage memory;
+    /** Number of reads of a file before it is copied into memory. */
+    private final int promoteAfter;
+    /** Read statistics of every file read, by filename. */
+    private final Map<String, Heat> heat = new ConcurrentHashMap<>();
+    /** Thread copying files into memory. Null until first needed. */
+    private ExecutorService promoter;
+
+    /**
+     * Constructor with a memory tier of Constants.MEMORY_TIER_CAPACITY
+     * bytes, promoting files after Constants.PROMOTE_AFTER_READS reads.
+     *
+     * @param backing Storage every file is kept on.
+     * */
+    public TieredStorage(Storage backing) {
+        this(backing, Constants.MEMORY_TIER_CAPACITY,
+                Constants.PROMOTE_AFTER_READS);
+    }
+
+    /**
+     * Full constructor.
+     *
+     * @param backing Storage every file is kept on.
+     * @param capacity largest total size of the files in memory, in bytes.
+     * @param promoteAfter number of reads of a file before it is copied
+     *                     into memory, at least 1.
+     * */
+    public TieredStorage(Storage backing, long capacity, int promoteAfter) {
+        this.backing = backing;
+        this.memory = new MemoryStorage(capacity);
+        this.promoteAfter = Math.max(1, promoteAfter);
+    }
+
+    @Override
+    public long size(String filename) {
+        return backing.size(filename);
+    }
+
+    @Override
+    public long modifiedTime(String filename) {
+        return backing.modifiedTime(filename);
+    }
+
+    @Override
+    public ReadHandle openRead(String filename) throws IOException {
+        long mtime = backing.modifiedTime(filename);
+        long size = backing.size(filename);
+        Heat file = heat.get(filename);
+        if (mtime < 0) {
+            if (file != null) {
+                demote(filename, file);
+            }
+            throw new NoSuchFileException(filename);
+        }
+        if (file == null) {
+            file = new Heat();
+            Heat previous = heat.putIfAbsent(filename, file);
+            if (previous != null) {
+                file = previous;
+            }
+        }
+
+        boolean promote;
+        synchronized (file) {
+            file.lastRead = System.nanoTime();
+            if (file.promoted) {
+                if (file.mtime == mtime && file.size == size) {
+                    try {
+                        return memory.openRead(filename);
+                    } catch (NoSuchFileException e) {
+                        file.promoted = false; // dropped to make room
+                    }
+                } else {
+                    demote(filename, file);
+                }
+            }
+            promote = ++file.reads >= promoteAfter && !file.promoting
+                    && size <= Math.min(memory.getCapacity(),
+                    Integer.MAX_VALUE - 8);
+            if (promote) {
+                file.promoting = true;
+            }
+        }
+        if (promote) {
+            schedulePromotion(filename, file, mtime, size);
+        }
+        return backing.openRead(filename);
+    }
+
+    @Override
+    public long available(String filename) {
+        return backing.available(filename);
+    }
+
+    @Override
+    public String findIgnoreCase(String filename) {
+        return backing.findIgnoreCase(filename);
+    }
+
+    @Override
+    public WriteHandle openWrite(final String filename, long size)
+            throws IOException {
+        final WriteHandle handle = backing.openWrite(filename, size);
+        return new WriteHandle() {
+            @Override
+            public CompletableFuture<Integer> write(ByteBuffer src,
+                                                    long offset) {
+                return handle.write(src, offset);
+            }
+
+            @Override
+            public void commit() throws IOException {
+                handle.commit();
+                Heat file = heat.get(filename);
+                if (file != null) {
+                    demote(filename, file);
+                }
+            }
+
+            @Override
+            public void abort() {
+                handle.abort();
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (promoter != null) {
+                promoter.shutdownNow();
+                promoter = null;
+            }
+        }
+        backing.close();
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Copies a file into memory on the promoter thread, starting the thread
+     * on first use.
+     *
+     * @param filename filename as received in a request.
+     * @param file read statistics of the file.
+     * @param mtime last modified time of the file when promotion was due.
+     * @param size size of the file when promotion was due.
+     * */
+    private synchronized void schedulePromotion(final String filename,
+                                                final Heat file,
+                                                final long mtime,
+                                                final long size) {
+        if (promoter == null) {
+            promoter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "TFTPTierPromoter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        final int writes;
+        synchronized (file) {
+            writes = file.writes;
+        }
+        promoter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    promote(filename, file, mtime, size, writes);
+                } finally {
+                    synchronized (file) {
+                        file.promoting = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies a file into memory, unless it changes while it is copied.
+     *
+     * @param filename filename as received in a request.
+     * @param file read statistics of the file.
+     * @param mtime last modified time of the file when promotion was due.
+     * @param size size of the file when promotion was due.
+     * @param writes number of writes of the file when promotion was due.
+     * */
+    private void promote(String filename, Heat file, long mtime, long size,
+                         int writes) {
+        byte[] data = new byte[(int) size];
+        try {
+            ReadHandle source = backing.openRead(filename);
+            try {
+                if (source.size() != size) {
+                    return;
+                }
+                ByteBuffer dst = ByteBuffer.wrap(data);
+                while (dst.hasRemaining()) {
+                    if (source.read(dst, dst.position()).join() == 0) {
+                        return; // shorter than announced
+                    }
+                }
+            } finally {
+                source.close();
+            }
+            if (backing.modifiedTime(filename) != mtime) {
+                return;
+            }
+
+            makeRoom(size);
+            synchronized (file) {
+                if (file.writes != writes) {
+                    return; // written while copied
+                }
+                memory.put(filename, data);
+                file.promoted = true;
+                file.mtime = mtime;
+                file.size = size;
+            }
+        } catch (IOException | CompletionException e) {
+            System.out.println("NOTE 135: " + filename + " not promoted. "
+                    + e.getMessage() + "\n");
+        }
+    }
+
+    /**
+     * Drops the least recently read files from memory until a file of the
+     * given size fits. Only called on the promoter thread.
+     *
+     * @param size size in bytes of the file to be copied into memory.
+     * */
+    private void makeRoom(long size) {
+        while (memory.getUsed() + size > memory.getCapacity()) {
+            String coldest = null;
+            Heat coldestFile = null;
+            for (Map.Entry<String, Heat> entry : heat.entrySet()) {
+                Heat candidate = entry.getValue();
+                if (candidate.promoted && (coldestFile == null
+                        || candidate.lastRead < coldestFile.lastRead)) {
+                    coldest = entry.getKey();
+                    coldestFile = candidate;
+                }
+            }
+            if (coldestFile == null) {
+                return;
+            }
+            demote(coldest, coldestFile);
+        }
+    }
+
+    /**
+     * Drops the copy of a file from memory, if any, and starts counting its
+     * reads again.
+     *
+     * @param filename filename as received in a request.
+     * @param file read statistics of the file.
+     * */
+    private void demote(String filename, Heat file) {
+        synchronized (file) {
+            file.writes++;
+            file.reads = 0;
+            if (file.promoted) {
+                file.promoted = false;
+                memory.remove(filename);
+            }
+        }
+    }
+
+    /**
+     * Read statistics of one file, guarded by its own lock.
+     * */
+    private static final class Heat {
+        /** Reads since the file was last changed or dropped from memory. */
+        private int reads;
+        /** System.nanoTime() of the last read. */
+        private volatile long lastRead;
+        /** Whether a copy of the file is in memory. */
+        private volatile boolean promoted;
+        /** Whether a copy of the file is being made. */
+        private boolean promoting;
+        /** Number of times the file was written or dropped from memory. */
+        private int writes;
+        /** Last modified time of the file in memory. */
+        private long mtime;
+        /** Size of the file in memory. */
+        private long size;
+    }
+
+    // END OF FILE
+}
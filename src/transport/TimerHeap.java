@@ -0,0 +1,206 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.util.Arrays;
+
+/**
+ * Timers of sessions by slot, as a binary min-heap of deadlines kept in
+ * primitive arrays, like the sessions of a SessionTable. A session has at
+ * most one timer: scheduling it again moves it. Never allocates once grown
+ * to the number of sessions.
+ *
+ * Deadlines are System.nanoTime() values, or any clock of the same kind,
+ * compared by their difference so that they may wrap around.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class TimerHeap {
+    /** Deadline per position in the heap. */
+    private long[] deadlines;
+    /** Slot per position in the heap. */
+    private int[] slots;
+    /** Position in the heap per slot, -1 if it has no timer. */
+    private int[] positions;
+    /** Number of timers. */
+    private int size;
+
+    /**
+     * Sole constructor.
+     *
+     * @param capacity number of slots held before the arrays grow.
+     * */
+    public TimerHeap(int capacity) {
+        int length = Math.max(1, capacity);
+        deadlines = new long[length];
+        slots = new int[length];
+        positions = new int[length];
+        Arrays.fill(positions, -1);
+    }
+
+    /**
+     * Sets the timer of a slot, replacing any it had.
+     *
+     * @param slot slot of the session.
+     * @param deadline time the timer is due.
+     * */
+    protected void schedule(int slot, long deadline) {
+        if (slot >= positions.length) {
+            int old = positions.length;
+            positions = Arrays.copyOf(positions, Math.max(slot + 1, old * 2));
+            Arrays.fill(positions, old, positions.length, -1);
+        }
+        int position = positions[slot];
+        if (position < 0) {
+            if (size == deadlines.length) {
+                deadlines = Arrays.copyOf(deadlines, size * 2);
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            position = size++;
+            slots[position] = slot;
+            positions[slot] = position;
+        }
+        deadlines[position] = deadline;
+        siftDown(siftUp(position));
+    }
+
+    /**
+     * Removes the timer of a slot, if any.
+     *
+     * @param slot slot of the session.
+     * */
+    protected void cancel(int slot) {
+        if (slot < 0 || slot >= positions.length || positions[slot] < 0) {
+            return;
+        }
+        removeAt(positions[slot]);
+    }
+
+    /**
+     * Removes the timer due first.
+     *
+     * @return slot of the timer, -1 if there is none.
+     * */
+    protected int poll() {
+        if (size == 0) {
+            return -1;
+        }
+        int slot = slots[0];
+        removeAt(0);
+        return slot;
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Removes the timer at a position of the heap.
+     *
+     * @param position position of the timer.
+     * */
+    private void removeAt(int position) {
+        positions[slots[position]] = -1;
+        size--;
+        if (position == size) {
+            return;
+        }
+        move(size, position);
+        siftDown(siftUp(position));
+    }
+
+    /**
+     * Moves a timer up while it is due before its parent.
+     *
+     * @param position position of the timer.
+     * @return new position of the timer.
+     * */
+    private int siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (deadlines[position] - deadlines[parent] >= 0) {
+                break;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+        return position;
+    }
+
+    /**
+     * Moves a timer down while a child is due before it.
+     *
+     * @param position position of the timer.
+     * */
+    private void siftDown(int position) {
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size
+                    && deadlines[child + 1] - deadlines[child] < 0) {
+                child++;
+            }
+            if (deadlines[child] - deadlines[position] >= 0) {
+                return;
+            }
+            swap(position, child);
+            position = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        long deadline = deadlines[a];
+        int slot = slots[a];
+        move(b, a);
+        deadlines[b] = deadline;
+        slots[b] = slot;
+        positions[slot] = b;
+    }
+
+    private void move(int from, int to) {
+        deadlines[to] = deadlines[from];
+        slots[to] = slots[from];
+        positions[slots[to]] = to;
+    }
+
+    // getters and setters------------------------------------------------------
+
+    /**
+     * Returns true if no timer is set.
+     * @return whether there is no timer.
+     * */
+    protected boolean isEmpty() {
+        return size == 0;
+    }
+    /**
+     * Returns the time the first timer is due.
+     * @return deadline of the first timer, undefined if there is none.
+     * */
+    protected long peekDeadline() {
+        return deadlines[0];
+    }
+    /**
+     * Returns the number of timers set.
+     * @return number of timers.
+     * */
+    protected int size() {
+        return size;
+    }
+
+    // END OF FILE
+}
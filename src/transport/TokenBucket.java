@@ -0,0 +1,172 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+/**
+ * Token bucket limiting the rate of bytes sent. Tokens (bytes) are added at
+ * 'rate' per second up to 'burst'; a packet takes its length in tokens and,
+ * when there are not enough, waits until the bucket has refilled the
+ * shortfall. With a burst of a few packets this paces packets evenly
+ * rather than in bursts.
+ *
+ * The rate actually sent is measured over windows of one second.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class TokenBucket {
+    /** Length of the windows the current rate is measured over. */
+    private static final long WINDOW = 1_000_000_000L;
+
+    /** What this bucket limits, for example "global". */
+    private final String name;
+    /** Configured rate in bytes per second. */
+    private final long rate;
+    /** Largest number of tokens held, in bytes. */
+    private final long burst;
+    /** Tokens held, negative while packets sent are waited for. */
+    private double tokens;
+    /** System.nanoTime() of the last refill. */
+    private long refilled = System.nanoTime();
+    /** Bytes sent since the creation of this bucket. */
+    private long sent;
+    /** System.nanoTime() at the start of the current window. */
+    private long windowStart = refilled;
+    /** Bytes sent in the current window. */
+    private long windowSent;
+    /** Rate sent in the last complete window, in bytes per second. */
+    private long currentRate;
+
+    /**
+     * Constructor with a burst of 10 milliseconds at 'rate', and at least
+     * two full packets.
+     *
+     * @param name what this bucket limits.
+     * @param rate rate in bytes per second, at least 1.
+     * */
+    public TokenBucket(String name, long rate) {
+        this(name, rate, Math.max(2 * (Constants.DEFAULT_DATA_SIZE + 4
+                + Constants.UDP_OVERHEAD), rate / 100));
+    }
+
+    /**
+     * Full constructor. The bucket starts full.
+     *
+     * @param name what this bucket limits.
+     * @param rate rate in bytes per second, at least 1.
+     * @param burst largest number of bytes sent at once, at least 1.
+     * */
+    public TokenBucket(String name, long rate, long burst) {
+        this.name = name;
+        this.rate = Math.max(1, rate);
+        this.burst = Math.max(1, burst);
+        tokens = this.burst;
+    }
+
+    /**
+     * Takes the tokens of a packet about to be sent, going into debt if
+     * there are not enough.
+     *
+     * @param bytes length of the packet on the wire.
+     * @return nanoseconds to wait before sending the packet.
+     * */
+    protected synchronized long reserve(int bytes) {
+        long now = System.nanoTime();
+        refill(now);
+        tokens -= bytes;
+        sent += bytes;
+        if (now - windowStart >= WINDOW) {
+            currentRate = windowSent * WINDOW / (now - windowStart);
+            windowStart = now;
+            windowSent = 0;
+        }
+        windowSent += bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+    }
+
+    /**
+     * Returns how long a packet would wait before being sent, without taking
+     * any token. A packet longer than the burst waits for a full bucket
+     * only, as it never fits in one, and takes the rest by going into debt.
+     *
+     * @param bytes length of the packet on the wire.
+     * @return nanoseconds until there are enough tokens, 0 if there are.
+     * */
+    protected synchronized long delay(int bytes) {
+        refill(System.nanoTime());
+        long needed = Math.min(bytes, burst);
+        return tokens >= needed ? 0
+                : (long) ((needed - tokens) * 1e9 / rate);
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - refilled) * (double) rate
+                / 1e9);
+        refilled = now;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + ": " + getCurrentRate() + " of " + rate + " B/s, "
+                + sent + " B sent";
+    }
+
+    // getters and setters------------------------------------------------------
+
+    /**
+     * Returns what this bucket limits.
+     * @return name of the bucket.
+     * */
+    public String getName() {
+        return name;
+    }
+    /**
+     * Returns the configured rate.
+     * @return rate in bytes per second.
+     * */
+    public long getRate() {
+        return rate;
+    }
+    /**
+     * Returns the largest number of bytes sent at once.
+     * @return burst in bytes.
+     * */
+    public long getBurst() {
+        return burst;
+    }
+    /**
+     * Returns the rate sent over the last complete second, 0 if nothing was
+     * sent for over a second.
+     * @return current rate in bytes per second.
+     * */
+    public synchronized long getCurrentRate() {
+        long idle = System.nanoTime() - windowStart;
+        if (idle >= 2 * WINDOW) {
+            return 0;
+        }
+        return idle >= WINDOW ? windowSent * WINDOW / idle : currentRate;
+    }
+    /**
+     * Returns the number of bytes sent through this bucket.
+     * @return bytes sent.
+     * */
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,175 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Optional record of the timing of every request, ACK and DATA received by
+ * a Server, written to a compact capture file to be replayed with
+ * TrafficReplay. Payloads are not kept: only the sizes needed to replay the
+ * same transfers, that is the size of every file read and the length of
+ * every DATA received.
+ *
+ * Capture format, all big endian: magic "TFTPCAP1" and long
+ * currentTimeMillis at the start, then one record per packet received:
+ * byte opcode, int session, int microseconds since the previous record,
+ * followed for RRQ and WRQ by UTF filename, long size of the file (-1 if
+ * unknown), short number of options and UTF name and value of each, and
+ * for ACK and DATA by int block number counted from the start of the
+ * transfer and short length of the DATA content (0 for ACK). Sessions are
+ * numbered from 0 in the order of their requests.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class TrafficCapture {
+    /** Magic number at the start of a capture, "TFTPCAP1" in ASCII. */
+    protected static final long MAGIC = 0x5446545043415031L;
+
+    /** Capture file being written. */
+    private final DataOutputStream out;
+    /** Session number of every Client that made a request. */
+    private final Map<InetSocketAddress, Integer> sessions = new HashMap<>();
+    /** System.nanoTime() of the last record. */
+    private long lastRecord = System.nanoTime();
+    /** Number of sessions so far. */
+    private int sessionCount;
+    /** Number of records so far. */
+    private long records;
+
+    /**
+     * Sole constructor. Creates or truncates the capture file.
+     *
+     * @param file capture file.
+     * @throws IOException if the file cannot be written.
+     * */
+    public TrafficCapture(Path file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file)));
+        out.writeLong(MAGIC);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Records a request, starting a new session for its Client.
+     *
+     * @param client address and TID of the Client.
+     * @param opcode RRQ or WRQ.
+     * @param filename file in the request.
+     * @param size size of the file in bytes, -1 if unknown.
+     * @param options options in the request.
+     * */
+    protected synchronized void request(InetSocketAddress client,
+                                        Opcode opcode, String filename,
+                                        long size,
+                                        Map<String, String> options) {
+        int session = sessionCount++;
+        sessions.put(client, session);
+        try {
+            header(opcode, session);
+            out.writeUTF(filename);
+            out.writeLong(size);
+            out.writeShort(options.size());
+            for (Map.Entry<String, String> option : options.entrySet()) {
+                out.writeUTF(option.getKey());
+                out.writeUTF(option.getValue());
+            }
+        } catch (IOException e) {
+            System.out.println("NOTE 070: Capture not written. "
+                    + e.getMessage() + "\n");
+        }
+    }
+
+    /**
+     * Records an ACK or DATA received from a Client that made a request
+     * since the capture started. Others are left out.
+     *
+     * @param client address and TID of the Client.
+     * @param opcode ACK or DATA.
+     * @param block block number counted from the start of the transfer.
+     * @param length length of the DATA content, 0 for ACK.
+     * */
+    protected synchronized void packet(InetSocketAddress client,
+                                       Opcode opcode, long block,
+                                       int length) {
+        Integer session = sessions.get(client);
+        if (session == null) {
+            return;
+        }
+        try {
+            header(opcode, session);
+            out.writeInt((int) block);
+            out.writeShort(Math.max(0, length));
+        } catch (IOException e) {
+            System.out.println("NOTE 070: Capture not written. "
+                    + e.getMessage() + "\n");
+        }
+    }
+
+    /**
+     * Writes what is left of the capture and closes the file.
+     * */
+    protected synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.out.println("NOTE 070: Capture not written. "
+                    + e.getMessage() + "\n");
+        }
+        sessions.clear();
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Writes the opcode, session and time of a record.
+     *
+     * @param opcode opcode of the packet.
+     * @param session session of the Client.
+     * @throws IOException if an I/O error occurs.
+     * */
+    private void header(Opcode opcode, int session) throws IOException {
+        long now = System.nanoTime();
+        long micros = (now - lastRecord) / 1000;
+        // keep the remainder so that rounding does not add up
+        lastRecord += micros * 1000;
+        out.writeByte(opcode.ordinal());
+        out.writeInt(session);
+        out.writeInt((int) Math.min(micros, Integer.MAX_VALUE));
+        records++;
+    }
+
+    // getters and setters------------------------------------------------------
+
+    /**
+     * Returns the number of packets recorded so far.
+     * @return number of records.
+     * */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,623 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Command line benchmark replaying a capture written by TrafficCapture
+ * against a TFTPServer on loopback, to compare engines and versions under
+ * the arrival pattern of real traffic such as a boot storm.
+ *
+ * Usage: java transport.TrafficReplay capture-file [-x speed] [-e engine]
+ *
+ * Every session of the capture is replayed from its own socket: the request
+ * is sent at the same offset from the start as captured, divided by
+ * 'speed' (1 by default), and every ACK or DATA is sent at its captured
+ * offset from the request, but never before the DATA or ACK it follows has
+ * arrived. Files read are made up in a MemoryStorage with their captured
+ * sizes, so neither the files nor the disk are needed. The console output
+ * of the Server is discarded.
+ *
+ * Prints the number of sessions, failures and the wall time, then the
+ * distribution of:
+ * completion, from request sent to last DATA received (RRQ) or last ACK
+ * received (WRQ);
+ * captured, the same as captured, divided by 'speed';
+ * first reply, from request sent to first packet received;
+ * lag, from the captured time of each ACK or DATA to the time it was sent,
+ * being the time spent waiting on the Server.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class TrafficReplay {
+    /** Length of a full DATA packet. */
+    private static final int PACKET = Constants.DEFAULT_DATA_SIZE + 4;
+    /** Longest wait in nanoseconds for the packet an ACK or DATA follows,
+     * after which it is sent anyway. */
+    private static final long GATE = TimeUnit.MILLISECONDS.toNanos(
+            Constants.TIMEOUT * 10L);
+
+    /**
+     * Main method.
+     *
+     * @param args capture file and options, see the class description.
+     * @throws IOException if the capture cannot be read or the Server
+     * cannot be started.
+     * @throws InterruptedException if interrupted while waiting.
+     * */
+    public static void main(String[] args) throws IOException,
+            InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: java transport.TrafficReplay "
+                    + "capture-file [-x speed] [-e engine]");
+            return;
+        }
+        double speed = 1;
+        Engine engine = Engine.DEFICIT_ROUND_ROBIN;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-x":
+                        speed = Double.parseDouble(args[++i]);
+                        if (!(speed > 0)) {
+                            throw new IllegalArgumentException("Speed must "
+                                    + "be positive.");
+                        }
+                        break;
+                    case "-e":
+                        engine = Engine.valueOf(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option "
+                                + args[i] + ".");
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("ERROR 731: Missing value of "
+                    + args[args.length - 1] + ".");
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR 732: " + e.getMessage());
+            return;
+        }
+
+        List<Session> sessions = read(args[0]);
+        if (sessions == null) {
+            System.out.println("ERROR 733: " + args[0]
+                    + " is not a traffic capture.");
+            return;
+        }
+        MemoryStorage storage = new MemoryStorage();
+        for (Session session : sessions) {
+            if (session.opcode == Opcode.RRQ && session.size >= 0
+                    && storage.size(session.filename) < 0) {
+                byte[] contents = new byte[(int) session.size];
+                Arrays.fill(contents, (byte) session.filename.hashCode());
+                storage.put(session.filename, contents);
+            }
+        }
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        TFTPServer server = TFTPServer.builder().port(0)
+                .address(InetAddress.getLoopbackAddress()).engine(engine)
+                .storage(storage).build();
+        long wall;
+        try {
+            server.start();
+            InetSocketAddress target = new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), server.getPort());
+            long start = System.nanoTime();
+            List<Thread> threads = new ArrayList<>();
+            for (Session session : sessions) {
+                session.target = target;
+                session.speed = speed;
+                session.due = start + (long) (session.start / speed);
+                LockSupport.parkNanos(session.due - System.nanoTime());
+                Thread thread = new Thread(session, "TrafficReplay-"
+                        + session.id);
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            wall = System.nanoTime() - start;
+        } finally {
+            server.stop();
+            System.setOut(out);
+        }
+
+        int failed = 0;
+        List<Long> completions = new ArrayList<>();
+        List<Long> captured = new ArrayList<>();
+        List<Long> firstReplies = new ArrayList<>();
+        List<Long> lags = new ArrayList<>();
+        for (Session session : sessions) {
+            if (session.failed) {
+                failed++;
+                continue;
+            }
+            completions.add(session.completion);
+            captured.add((long) (session.getCapturedDuration() / speed));
+            firstReplies.add(session.firstReply);
+            lags.addAll(session.lags);
+        }
+        out.println(sessions.size() + " sessions, " + failed + " failed, "
+                + wall / 1_000_000 + " ms at " + speed + "x with " + engine
+                + ".");
+        printDistribution(out, "completion", completions);
+        printDistribution(out, "captured", captured);
+        printDistribution(out, "first reply", firstReplies);
+        printDistribution(out, "lag", lags);
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * Reads the sessions of a capture, in the order of their requests.
+     *
+     * @param file path of the capture.
+     * @return sessions, null if the file is not a capture.
+     * @throws IOException if an I/O error occurs.
+     * */
+    private static List<Session> read(String file) throws IOException {
+        Map<Integer, Session> sessions = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(Paths.get(file))))) {
+            if (in.readLong() != TrafficCapture.MAGIC) {
+                return null;
+            }
+            in.readLong(); // start of the capture
+            long time = 0;
+            while (true) {
+                int opcode;
+                try {
+                    opcode = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                int id = in.readInt();
+                time += in.readInt() * 1000L;
+                if (opcode == Opcode.RRQ.ordinal()
+                        || opcode == Opcode.WRQ.ordinal()) {
+                    Session session = new Session(id,
+                            Opcode.values()[opcode], in.readUTF(),
+                            in.readLong(), time);
+                    int count = in.readUnsignedShort();
+                    for (int i = 0; i < count; i++) {
+                        session.options.put(in.readUTF(), in.readUTF());
+                    }
+                    sessions.put(id, session);
+                } else {
+                    long block = in.readInt() & 0xFFFFFFFFL;
+                    int length = Math.min(in.readUnsignedShort(),
+                            Constants.DEFAULT_DATA_SIZE);
+                    Session session = sessions.get(id);
+                    if (session != null) {
+                        session.add(Opcode.values()[opcode], time, block,
+                                length);
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(sessions.values());
+    }
+
+    /**
+     * Prints the percentiles of a list of durations in microseconds.
+     *
+     * @param out stream to print to.
+     * @param name name of the duration.
+     * @param nanos durations in nanoseconds.
+     * */
+    private static void printDistribution(PrintStream out, String name,
+                                          List<Long> nanos) {
+        if (nanos.isEmpty()) {
+            return;
+        }
+        long[] sorted = new long[nanos.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = nanos.get(i);
+        }
+        Arrays.sort(sorted);
+        out.println(String.format("  %-11s n=%-6d p50=%-9d p90=%-9d "
+                        + "p99=%-9d max=%d us", name, sorted.length,
+                EventDecoder.percentile(sorted, 50) / 1000,
+                EventDecoder.percentile(sorted, 90) / 1000,
+                EventDecoder.percentile(sorted, 99) / 1000,
+                sorted[sorted.length - 1] / 1000));
+    }
+
+    /**
+     * One captured session and the results of its replay. ACKs are kept
+     * for an RRQ and DATA for a WRQ; anything else is left out.
+     * */
+    private static final class Session implements Runnable {
+        /** Session number in the capture. */
+        private final int id;
+        /** RRQ or WRQ. */
+        private final Opcode opcode;
+        /** File in the request. */
+        private final String filename;
+        /** Captured size of the file read, -1 if unknown. */
+        private final long size;
+        /** Offset of the request from the start of the capture in ns. */
+        private final long start;
+        /** Options in the request. */
+        private final Map<String, String> options = new LinkedHashMap<>();
+        /** Offsets of the ACKs or DATA from the request in ns. */
+        private long[] offsets = new long[16];
+        /** Block numbers of the ACKs or DATA. */
+        private long[] blocks = new long[16];
+        /** Lengths of the DATA contents. */
+        private int[] lengths = new int[16];
+        /** Number of ACKs or DATA. */
+        private int count;
+
+        /** Request port of the Server. */
+        private InetSocketAddress target;
+        /** Speed of the replay. */
+        private double speed;
+        /** System.nanoTime() the request is due. */
+        private long due;
+        /** Socket of the replay. */
+        private DatagramSocket socket;
+        /** TID of the Server, null until its first packet. */
+        private InetSocketAddress server;
+        /** Block number following 65535. */
+        private int rollover;
+        /** Highest block received in order (RRQ) or acknowledged (WRQ). */
+        private long highest;
+        /** Last block of the transfer, -1 until known. */
+        private long last = -1;
+
+        /** Whether the replay failed. */
+        private boolean failed;
+        /** Time from the request to the end of the transfer in ns. */
+        private long completion;
+        /** Time from the request to the first reply in ns, -1 if none. */
+        private long firstReply = -1;
+        /** Lag of every ACK or DATA sent in ns. */
+        private final List<Long> lags = new ArrayList<>();
+
+        private Session(int id, Opcode opcode, String filename, long size,
+                        long start) {
+            this.id = id;
+            this.opcode = opcode;
+            this.filename = filename;
+            this.size = size;
+            this.start = start;
+        }
+
+        /**
+         * Adds a captured packet, if it is the one this session replays.
+         *
+         * @param packetOpcode opcode of the packet.
+         * @param time offset from the start of the capture in ns.
+         * @param block block number of the packet.
+         * @param length length of the DATA content.
+         * */
+        private void add(Opcode packetOpcode, long time, long block,
+                         int length) {
+            if (packetOpcode != (opcode == Opcode.RRQ ? Opcode.ACK
+                    : Opcode.DATA)) {
+                return;
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                blocks = Arrays.copyOf(blocks, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            offsets[count] = time - start;
+            blocks[count] = block;
+            lengths[count] = length;
+            count++;
+        }
+
+        @Override
+        public void run() {
+            String value = options.get(Constants.ROLLOVER_OPTION);
+            rollover = "1".equals(value) ? 1 : "0".equals(value) ? 0
+                    : Constants.BLOCK_ROLLOVER;
+            try (DatagramSocket replaySocket = new DatagramSocket(0,
+                    target.getAddress())) {
+                socket = replaySocket;
+                send(request(), target);
+                if (opcode == Opcode.RRQ) {
+                    replayRead();
+                } else {
+                    replayWrite();
+                }
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+
+        /**
+         * Sends the captured ACKs, then acknowledges whatever is left of
+         * the file until its last block: every block in lock step, or on
+         * timeouts and the last block in a windowed transfer.
+         *
+         * @throws IOException if an I/O error occurs.
+         * */
+        private void replayRead() throws IOException {
+            boolean windowed = options.containsKey(
+                    Constants.WINDOWSIZE_OPTION);
+            for (int i = 0; i < count && !failed; i++) {
+                awaitBlock(blocks[i]);
+                pace(i);
+                sendAck(Math.min(blocks[i], highest));
+            }
+            int retries = 0;
+            // blocks sent again do not put off the timeout
+            long deadline = System.nanoTime() + GATE / 10;
+            while (!failed && (last < 0 || highest < last)) {
+                long before = highest;
+                if (receive(deadline)) {
+                    if (highest != before) {
+                        retries = 0;
+                        deadline = System.nanoTime() + GATE / 10;
+                        if (!windowed || highest == last) {
+                            sendAck(highest);
+                        }
+                    }
+                } else if (++retries > Constants.MAX_RETRIES) {
+                    failed = true;
+                } else {
+                    sendAck(highest);
+                    deadline = System.nanoTime() + GATE / 10;
+                }
+            }
+        }
+
+        /**
+         * Sends the captured DATA, each once the previous one is
+         * acknowledged, then waits for the ACK of the last block. Like any
+         * Client, sends the previous DATA again on timeouts rather than
+         * skip ahead.
+         *
+         * @throws IOException if an I/O error occurs.
+         * */
+        private void replayWrite() throws IOException {
+            byte[] packet = new byte[PACKET];
+            packet[1] = (byte) Opcode.DATA.ordinal();
+            int length = 0;
+            for (int i = 0; i < count && !failed; i++) {
+                awaitAck(blocks[i] - 1, packet, length);
+                pace(i);
+                length = lengths[i];
+                if (length < Constants.DEFAULT_DATA_SIZE) {
+                    last = blocks[i];
+                }
+                BlockNumber.write(packet, BlockNumber.toWire(blocks[i],
+                        rollover));
+                send(packet, 4 + length);
+            }
+            if (last < 0) {
+                failed = true; // the capture ends before the transfer
+                return;
+            }
+            awaitAck(last, packet, length);
+        }
+
+        /**
+         * Receives until a block is acknowledged, sending the request or
+         * the DATA in 'packet' again on every timeout.
+         *
+         * @param block block to wait for the ACK of.
+         * @param packet last DATA sent.
+         * @param length length of its content.
+         * @throws IOException if an I/O error occurs.
+         * */
+        private void awaitAck(long block, byte[] packet, int length)
+                throws IOException {
+            int retries = 0;
+            while (!failed && (server == null || highest < block)) {
+                if (receive(System.nanoTime() + GATE / 10)) {
+                    continue;
+                }
+                if (++retries > Constants.MAX_RETRIES) {
+                    failed = true;
+                } else if (server == null) {
+                    send(request(), target);
+                } else if (block > 0) {
+                    send(packet, 4 + length);
+                }
+            }
+        }
+
+        /**
+         * Receives until the Server has replied and 'highest' reaches a
+         * block, or GATE has elapsed.
+         *
+         * @param block block to wait for.
+         * @throws IOException if an I/O error occurs.
+         * */
+        private void awaitBlock(long block) throws IOException {
+            long deadline = System.nanoTime() + GATE;
+            while (!failed && (server == null || highest < block)
+                    && receive(deadline)) {
+                // keep receiving
+            }
+        }
+
+        /**
+         * Waits until the captured offset of a packet and records its lag.
+         *
+         * @param index index of the packet.
+         * */
+        private void pace(int index) {
+            long scheduled = due + (long) (offsets[index] / speed);
+            long now = System.nanoTime();
+            if (scheduled > now) {
+                LockSupport.parkNanos(scheduled - now);
+                lags.add(0L);
+            } else {
+                lags.add(now - scheduled);
+            }
+        }
+
+        /**
+         * Receives one packet from the Server, updating the transfer state.
+         *
+         * @param deadline System.nanoTime() to give up at.
+         * @return true if a packet was received. False on timeout.
+         * @throws IOException if an I/O error occurs.
+         * */
+        private boolean receive(long deadline) throws IOException {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            byte[] buf = new byte[PACKET];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            socket.setSoTimeout((int) Math.max(1, remaining / 1_000_000));
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+            long now = System.nanoTime();
+            if (server == null) {
+                server = (InetSocketAddress) packet.getSocketAddress();
+                firstReply = now - due;
+            }
+            int received = buf[1];
+            if (received == Opcode.ERROR.ordinal()) {
+                failed = true;
+            } else if (received == Opcode.DATA.ordinal()
+                    && opcode == Opcode.RRQ) {
+                long block = BlockNumber.fromWire(BlockNumber.read(buf),
+                        highest + 1, rollover);
+                if (block == highest + 1) {
+                    highest = block;
+                    if (packet.getLength() < PACKET) {
+                        last = block;
+                    }
+                    if (highest == last) {
+                        completion = now - due;
+                    }
+                }
+            } else if (received == Opcode.ACK.ordinal()
+                    && opcode == Opcode.WRQ) {
+                long block = BlockNumber.fromWire(BlockNumber.read(buf),
+                        highest + 1, rollover);
+                highest = Math.max(highest, block);
+                if (last >= 0 && highest >= last) {
+                    completion = now - due;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Sends an ACK to the Server.
+         *
+         * @param block block number acknowledged.
+         * @throws IOException if an I/O error occurs.
+         * */
+        private void sendAck(long block) throws IOException {
+            byte[] ack = new byte[4];
+            ack[1] = (byte) Opcode.ACK.ordinal();
+            BlockNumber.write(ack, BlockNumber.toWire(block, rollover));
+            send(ack, ack.length);
+        }
+
+        /**
+         * Sends a packet to the TID of the Server, or fails the replay if
+         * the Server never replied.
+         *
+         * @param contents contents of the packet.
+         * @param length length of the packet.
+         * @throws IOException if an I/O error occurs.
+         * */
+        private void send(byte[] contents, int length) throws IOException {
+            if (server == null) {
+                failed = true;
+                return;
+            }
+            socket.send(new DatagramPacket(contents, length, server));
+        }
+
+        /**
+         * Sends a packet to an address.
+         *
+         * @param contents contents of the packet.
+         * @param address destination.
+         * @throws IOException if an I/O error occurs.
+         * */
+        private void send(byte[] contents, InetSocketAddress address)
+                throws IOException {
+            socket.send(new DatagramPacket(contents, contents.length,
+                    address));
+        }
+
+        /**
+         * Returns the captured request, in octet mode with its options.
+         *
+         * @return contents of the request.
+         * */
+        private byte[] request() {
+            StringBuilder fields = new StringBuilder();
+            fields.append(filename).append('\0').append("octet").append('\0');
+            for (Map.Entry<String, String> option : options.entrySet()) {
+                fields.append(option.getKey()).append('\0')
+                        .append(option.getValue()).append('\0');
+            }
+            byte[] text = fields.toString().getBytes(
+                    StandardCharsets.US_ASCII);
+            byte[] contents = new byte[text.length + 2];
+            contents[1] = (byte) opcode.ordinal();
+            System.arraycopy(text, 0, contents, 2, text.length);
+            return contents;
+        }
+
+        /**
+         * Returns the captured time from the request to the last packet of
+         * the session.
+         * @return duration in ns.
+         * */
+        private long getCapturedDuration() {
+            return count == 0 ? 0 : offsets[count - 1];
+        }
+    }
+
+    // END OF FILE
+}
@@ -0,0 +1,574 @@
+/*
+ * THE TFTP PROTOCOL (Server side).
+ *
+ * Based on RFC 1350 at https://www.ietf.org/rfc/rfc1350.txt with some
+ * simplifications. A simple file transfer protocol that reads or writes
+ * files to another server working solely under octet mode, passing raw 8 bit
+ * bytes of data, and implemented on top of the Internet User Datagram Protocol
+ * (UDP / Datagram). Works in parallel with at least one other remote client.
+ *
+ * Assignment 2: Implementation of the Trivial File Transfer Protocol
+ * (TFTP) of G5115 Computer Networks, University of Sussex, Spring 2020.
+ * Deadline: May 08, 2020.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+package transport;
+
+import java.io.IOException;
+
+/**
+ * The protocol of one transfer on the Server side as a step function, free
+ * of sockets, storage, threads and clocks: given the state of the transfer
+ * and one input (the start, a packet received or a timer), it updates the
+ * state, emits the packets to send through an Output and returns when the
+ * next timer is due. The engine driving it owns all I/O and time, so the
+ * same protocol runs under a blocking socket, a selector, virtual threads
+ * or a simulated network, and a step neither blocks nor allocates.
+ *
+ * RRQ: the OACK, if any, is sent until ACK 0 is received, then windows of
+ * 'windowSize' blocks (1 for stop-and-wait), paced by the congestion
+ * control if any, until the last block is acknowledged. An ACK of part of a
+ * window goes back to the block after it (go-back-N); an ACK of a block
+ * already acknowledged is ignored, windowed or not, as a late duplicate
+ * cannot be told from a sign of loss and answering duplicates would double
+ * every later block (the Sorcerer's Apprentice Syndrome). The whole window
+ * is sent again at timeout.
+ * The last block is presumed received after FINAL_LOOP_LIMIT timeouts in a
+ * row.
+ *
+ * WRQ: ACK 0, or the OACK of the options accepted, is sent, then every
+ * DATA of the block expected is handed to the Output to be written and
+ * acknowledged. The last ACK is sent again on timeout. Once the final DATA
+ * is committed, duplicates of it are acknowledged again until no packet
+ * arrives for a dally of 10 timeouts.
+ *
+ * Either side gives up after MAX_RETRIES timeouts in a row, and on an
+ * ERROR packet other than UNKNOWN_TID.
+ *
+ * @author 223459 afd22@sussex.ac.uk
+ * @version 1.0 %G%, %U%.
+ * */
+public class Transfer {
+    /** Returned by a step when no timer is due. */
+    protected static final long NO_TIMER = -1;
+    /** State of a transfer ended. */
+    protected static final byte DONE = -1;
+
+    /** RRQ or WRQ. */
+    private final Opcode opcode;
+    /** Length of a full DATA block. */
+    private final int blockSize;
+    /** Block number on the wire after 65535, 0 or 1. */
+    private final int rollover;
+    /** Retransmission timeout in nanoseconds. */
+    private final long rto;
+    /** RRQ: number of blocks per window, 1 for stop-and-wait. */
+    private final int windowSize;
+    /** RRQ: congestion control pacing windows, null if not paced. */
+    private final CongestionControl congestion;
+    /** RRQ: last block, shorter than blockSize and possibly empty. */
+    private final long lastBlock;
+    /** Whether options are acknowledged with an OACK: RRQ before DATA 1,
+     * WRQ in place of ACK 0. */
+    private final boolean negotiated;
+
+    /** One of the states of SessionTable, or DONE. */
+    private byte state;
+    /** RRQ: first block not acknowledged; WRQ: next block expected. */
+    private long block;
+    /** RRQ: highest block sent. */
+    private long sent;
+    /** RRQ: next block of the window to send. */
+    private long next;
+    /** RRQ: last block of the window in attempt. */
+    private long end;
+    /** RRQ: time the last block of the window was sent, 0 if sent before
+     * (Karn). */
+    private long timedAt;
+    /** Time the next timer is due, valid if 'armed'. */
+    private long deadline;
+    /** Whether a timer is due. */
+    private boolean armed;
+    /** Timeouts in a row. */
+    private int retries;
+
+    /**
+     * Constructor of a transfer, see read() and write().
+     *
+     * @param opcode RRQ or WRQ.
+     * @param blockSize length of a full DATA block.
+     * @param rollover block number on the wire after 65535, 0 or 1.
+     * @param rtoNanos retransmission timeout in nanoseconds.
+     * @param windowSize RRQ: number of blocks per window.
+     * @param congestion RRQ: congestion control, null if not paced.
+     * @param size RRQ: size of the file read.
+     * @param negotiating whether an OACK is sent first.
+     * */
+    private Transfer(Opcode opcode, int blockSize, int rollover,
+                     long rtoNanos, int windowSize,
+                     CongestionControl congestion, long size,
+                     boolean negotiating) {
+        this.opcode = opcode;
+        this.blockSize = blockSize;
+        this.rollover = rollover;
+        rto = rtoNanos;
+        this.windowSize = Math.max(1, windowSize);
+        this.congestion = congestion;
+        lastBlock = size / blockSize + 1;
+        negotiated = negotiating;
+        block = 1;
+        if (opcode == Opcode.RRQ) {
+            state = negotiating ? SessionTable.NEGOTIATING
+                    : SessionTable.SENDING;
+        } else {
+            state = SessionTable.RECEIVING;
+        }
+    }
+
+    /**
+     * Returns a read request (RRQ) transfer.
+     *
+     * @param size size of the file read.
+     * @param blockSize length of a full DATA block.
+     * @param rollover block number on the wire after 65535, 0 or 1.
+     * @param rtoNanos retransmission timeout in nanoseconds.
+     * @param windowSize number of blocks per window, 1 for stop-and-wait.
+     * @param congestion congestion control pacing windows, null if not
+     *                   paced.
+     * @param negotiating whether options are acknowledged with an OACK
+     *                    first.
+     * @return transfer not started.
+     * */
+    protected static Transfer read(long size, int blockSize, int rollover,
+                                   long rtoNanos, int windowSize,
+                                   CongestionControl congestion,
+                                   boolean negotiating) {
+        return new Transfer(Opcode.RRQ, blockSize, rollover, rtoNanos,
+                windowSize, congestion, size, negotiating);
+    }
+
+    /**
+     * Returns a write request (WRQ) transfer.
+     *
+     * @param blockSize length of a full DATA block.
+     * @param rollover block number on the wire after 65535, 0 or 1.
+     * @param rtoNanos retransmission timeout in nanoseconds.
+     * @param negotiating whether options are acknowledged with an OACK in
+     *                    place of ACK 0.
+     * @return transfer not started.
+     * */
+    protected static Transfer write(int blockSize, int rollover,
+                                    long rtoNanos, boolean negotiating) {
+        return new Transfer(Opcode.WRQ, blockSize, rollover, rtoNanos, 1,
+                null, 0, negotiating);
+    }
+
+    /**
+     * Starts the transfer: sends the OACK or first window of a RRQ, or the
+     * OACK or ACK 0 of a WRQ.
+     *
+     * @param now current time in nanoseconds.
+     * @param primed RRQ: whether the OACK, or DATA 1 if none, was already
+     *               sent, as by Client.startRead().
+     * @param out where packets are sent.
+     * @return nanoseconds until timeout() is due, NO_TIMER if none.
+     * @throws IOException if the Output fails.
+     * */
+    protected long start(long now, boolean primed, Output out)
+            throws IOException {
+        if (opcode == Opcode.WRQ) {
+            if (negotiated) {
+                out.sendOack(false);
+            } else {
+                out.sendAck(0, false);
+            }
+            return arm(now, rto);
+        }
+        if (state == SessionTable.NEGOTIATING) {
+            if (!primed) {
+                out.sendOack(false);
+            }
+            timedAt = primed ? 0 : now;
+            return arm(now, rto);
+        }
+        next = block;
+        end = windowEnd();
+        timedAt = 0;
+        if (primed) { // DATA 1 sent; its ACK may have waited, so not timed
+            sent = 1;
+            next = 2;
+        }
+        return sendWindow(now, out);
+    }
+
+    /**
+     * Processes a packet received from the Client of this transfer.
+     *
+     * @param packet contents of the packet.
+     * @param length length of the packet.
+     * @param now current time in nanoseconds.
+     * @param out where packets are sent.
+     * @return nanoseconds until timeout() is due, NO_TIMER if none.
+     * @throws IOException if the Output fails.
+     * */
+    protected long receive(byte[] packet, int length, long now, Output out)
+            throws IOException {
+        if (state == DONE || length < 4 || packet[0] != 0) {
+            return remaining(now);
+        }
+        int received = packet[1];
+        if (received == Opcode.ERROR.ordinal()) {
+            if (packet[3] != Error.UNKNOWN_TID.ordinal()) {
+                return finish(false, out);
+            }
+        } else if (opcode == Opcode.RRQ
+                && received == Opcode.ACK.ordinal()) {
+            return receiveAck(BlockNumber.fromWire(BlockNumber.read(packet),
+                    block, rollover), now, out);
+        } else if (opcode == Opcode.WRQ
+                && received == Opcode.DATA.ordinal()) {
+            return receiveData(BlockNumber.fromWire(BlockNumber.read(packet),
+                    block, rollover), packet, length, now, out);
+        }
+        return remaining(now);
+    }
+
+    /**
+     * Processes a timer. A timer not yet due, as after a packet moved it,
+     * is left as it is.
+     *
+     * @param now current time in nanoseconds.
+     * @param out where packets are sent.
+     * @return nanoseconds until timeout() is due, NO_TIMER if none.
+     * @throws IOException if the Output fails.
+     * */
+    protected long timeout(long now, Output out) throws IOException {
+        if (state == DONE || !armed || now - deadline < 0) {
+            return remaining(now);
+        }
+        armed = false;
+        if (opcode == Opcode.RRQ && state == SessionTable.SENDING
+                && next <= end) {
+            return sendWindow(now, out); // next paced block due
+        }
+        if (state == SessionTable.DALLYING) {
+            return finish(true, out);
+        }
+
+        retries++;
+        if (opcode == Opcode.RRQ && congestion != null
+                && state == SessionTable.SENDING) {
+            congestion.timedOut();
+        }
+        if (opcode == Opcode.RRQ && end == lastBlock
+                && state == SessionTable.SENDING
+                && retries > Constants.FINAL_LOOP_LIMIT) {
+            return finish(true, out); // presumed received
+        }
+        if (retries > Constants.MAX_RETRIES) {
+            return finish(false, out);
+        }
+
+        if (opcode == Opcode.WRQ) {
+            if (block == 1 && negotiated) {
+                out.sendOack(true);
+            } else {
+                out.sendAck(block - 1, true);
+            }
+            return arm(now, rto);
+        }
+        if (state == SessionTable.NEGOTIATING) {
+            out.sendOack(true);
+            timedAt = 0;
+            return arm(now, rto);
+        }
+        next = block;
+        end = windowEnd();
+        timedAt = 0;
+        return sendWindow(now, out);
+    }
+
+    //=========================helper methods===================================
+
+    /**
+     * RRQ: Processes an ACK.
+     *
+     * @param ack block acknowledged.
+     * @param now current time in nanoseconds.
+     * @param out where packets are sent.
+     * @return nanoseconds until timeout() is due, NO_TIMER if none.
+     * @throws IOException if the Output fails.
+     * */
+    private long receiveAck(long ack, long now, Output out)
+            throws IOException {
+        if (state == SessionTable.NEGOTIATING) {
+            if (ack != 0) {
+                return remaining(now);
+            }
+            if (congestion != null && timedAt != 0) {
+                // first round trip of a windowed transfer
+                congestion.acknowledged(0, now - timedAt);
+            }
+            state = SessionTable.SENDING;
+            retries = 0;
+            next = block;
+            end = windowEnd();
+            timedAt = 0;
+            return sendWindow(now, out);
+        }
+
+        if (ack < block || ack > sent) {
+            // duplicate or of an earlier window, or never sent
+            return remaining(now);
+        }
+
+        retries = 0;
+        if (ack < end) {
+            // not timed: the ACK waited while the rest was sent
+            if (congestion != null) {
+                congestion.lost();
+            }
+        } else if (congestion != null) {
+            congestion.acknowledged((int) (ack - block + 1),
+                    timedAt != 0 ? now - timedAt : 0);
+        }
+        block = ack + 1;
+        if (ack == lastBlock) {
+            return finish(true, out);
+        }
+        next = block;
+        end = windowEnd();
+        timedAt = 0;
+        return sendWindow(now, out);
+    }
+
+    /**
+     * WRQ: Processes a DATA packet.
+     *
+     * @param received block received.
+     * @param packet contents of the packet.
+     * @param length length of the packet.
+     * @param now current time in nanoseconds.
+     * @param out where packets are sent.
+     * @return nanoseconds until timeout() is due, NO_TIMER if none.
+     * @throws IOException if the Output fails.
+     * */
+    private long receiveData(long received, byte[] packet, int length,
+                             long now, Output out) throws IOException {
+        if (received < block) {
+            // a duplicate, as when an ACK was lost; the dally starts again
+            out.sendAck(received, true);
+            return state == SessionTable.DALLYING ? arm(now, 10 * rto)
+                    : remaining(now);
+        }
+        if (received > block || state == SessionTable.DALLYING) {
+            return remaining(now); // a block is missing in between
+        }
+
+        out.write(received, packet, 4, length - 4);
+        block++;
+        retries = 0;
+        if (length - 4 < blockSize) {
+            out.commit();
+            out.sendAck(received, false);
+            state = SessionTable.DALLYING;
+            return arm(now, 10 * rto);
+        }
+        out.sendAck(received, false);
+        return arm(now, rto);
+    }
+
+    /**
+     * RRQ: Sends the blocks of the window in attempt from 'next' that are
+     * due, and sets the timer to the next paced block or to the end of the
+     * wait of one held back by a rate limit, or to the timeout of the window
+     * once it is sent.
+     *
+     * @param now current time in nanoseconds.
+     * @param out where packets are sent.
+     * @return nanoseconds until timeout() is due.
+     * @throws IOException if the Output fails.
+     * */
+    private long sendWindow(long now, Output out) throws IOException {
+        long interval = congestion == null ? 0
+                : congestion.pacingInterval();
+        while (next <= end) {
+            long wait = out.delay(next);
+            if (wait > 0) {
+                return arm(now, wait); // held back by a rate limit
+            }
+            boolean retransmit = next <= sent;
+            out.sendData(next, retransmit);
+            timedAt = retransmit ? 0 : now;
+            sent = Math.max(sent, next);
+            next++;
+            if (interval > 0 && next <= end) {
+                return arm(now, interval); // a block due every 'interval'
+            }
+        }
+        return arm(now, rto);
+    }
+
+    /**
+     * RRQ: Returns the last block of a window starting at 'block'.
+     *
+     * @return last block of the window.
+     * */
+    private long windowEnd() {
+        return Math.min(lastBlock, block + windowSize - 1);
+    }
+
+    /**
+     * Ends the transfer.
+     *
+     * @param complete whether the file was transferred in full.
+     * @param out where the end is told.
+     * @return NO_TIMER.
+     * @throws IOException if the Output fails.
+     * */
+    private long finish(boolean complete, Output out) throws IOException {
+        state = DONE;
+        armed = false;
+        out.end(complete);
+        return NO_TIMER;
+    }
+
+    /**
+     * Sets the timer.
+     *
+     * @param now current time in nanoseconds.
+     * @param nanos nanoseconds from now until the timer is due.
+     * @return nanos.
+     * */
+    private long arm(long now, long nanos) {
+        deadline = now + nanos;
+        armed = true;
+        return nanos;
+    }
+
+    /**
+     * Returns the time left until the timer is due.
+     *
+     * @param now current time in nanoseconds.
+     * @return nanoseconds until timeout() is due, 0 if overdue, NO_TIMER if
+     * none.
+     * */
+    private long remaining(long now) {
+        return armed ? Math.max(0, deadline - now) : NO_TIMER;
+    }
+
+    // getters and setters------------------------------------------------------
+
+    /**
+     * Returns the state of this transfer.
+     * @return one of the states of SessionTable, or DONE.
+     * */
+    protected byte getState() {
+        return state;
+    }
+    /**
+     * Returns true once this transfer has ended.
+     * @return whether the transfer has ended.
+     * */
+    protected boolean isDone() {
+        return state == DONE;
+    }
+    /**
+     * Returns the first block not acknowledged (RRQ) or next block
+     * expected (WRQ).
+     * @return block number counted from the start of the transfer.
+     * */
+    protected long getBlock() {
+        return block;
+    }
+    /**
+     * RRQ: Returns the highest block sent.
+     * @return block number counted from the start of the transfer.
+     * */
+    protected long getSent() {
+        return sent;
+    }
+    /**
+     * Returns the number of timeouts in a row.
+     * @return timeouts in a row.
+     * */
+    protected int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Packets and file operations emitted by the steps of a Transfer, in
+     * order. Implemented by the engine driving it.
+     * */
+    protected interface Output {
+        /**
+         * RRQ: Returns how long the rate limits of the transfer, or a
+         * block not yet arrived in the Storage, hold back the next DATA.
+         * Asked before each block is sent, so that either sets the timer
+         * rather than holding the thread.
+         *
+         * @param block block number of the next DATA.
+         * @return nanoseconds to wait, 0 if the next DATA can be sent now.
+         * */
+        long delay(long block);
+
+        /**
+         * RRQ: Sends the DATA of a block, read from the file.
+         *
+         * @param block block number counted from the start of the transfer.
+         * @param retransmit whether the block was sent before.
+         * @throws IOException if an I/O error occurs.
+         * */
+        void sendData(long block, boolean retransmit) throws IOException;
+
+        /**
+         * Sends an ACK.
+         *
+         * @param block block number counted from the start of the transfer.
+         * @param retransmit whether the ACK was sent before.
+         * @throws IOException if an I/O error occurs.
+         * */
+        void sendAck(long block, boolean retransmit) throws IOException;
+
+        /**
+         * RRQ: Sends the OACK of the options accepted.
+         *
+         * @param retransmit whether the OACK was sent before.
+         * @throws IOException if an I/O error occurs.
+         * */
+        void sendOack(boolean retransmit) throws IOException;
+
+        /**
+         * WRQ: Writes the content of the block expected, before it is
+         * acknowledged.
+         *
+         * @param block block number counted from the start of the transfer.
+         * @param packet contents of the DATA packet.
+         * @param offset offset of the content in 'packet'.
+         * @param length length of the content.
+         * @throws IOException if an I/O error occurs.
+         * */
+        void write(long block, byte[] packet, int offset, int length)
+                throws IOException;
+
+        /**
+         * WRQ: Commits the file written, before the final ACK is sent.
+         *
+         * @throws IOException if an I/O error occurs.
+         * */
+        void commit() throws IOException;
+
+        /**
+         * Ends the transfer. No packet is emitted afterwards.
+         *
+         * @param complete whether the file was transferred in full, or
+         *                 presumed so; false if the transfer was given up.
+         * @throws IOException if an I/O error occurs.
+         * */
+        void end(boolean complete) throws IOException;
+    }
+
+    // END OF FILE
+}